@@ -9,21 +9,33 @@ import android.hardware.SensorManager;
 import android.os.Bundle;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import io.fabo.driver.ADC121AnalogDriver;
 import io.fabo.driver.Adx345AccelerometerDriver;
 import io.fabo.driver.BH1749ColorDriver;
 import io.fabo.driver.CCS811Co2Driver;
 import io.fabo.driver.CDM7160Co2Driver;
+import io.fabo.driver.I2cBusScheduler;
 import io.fabo.driver.ISL29034AmbientDriver;
 import io.fabo.driver.MPL115;
 import io.fabo.driver.MPL115BarometerDriver;
 import io.fabo.driver.S11059ColorDriver;
+import io.fabo.driver.SampleStore;
+import io.fabo.driver.SPS30;
 import io.fabo.driver.SPS30PMDriver;
+import io.fabo.driver.SensorStartup;
 import io.fabo.driver.Si1132UVDriver;
 
 public class MainActivity extends Activity implements SensorEventListener {
+    private I2cBusScheduler mI2cBusScheduler;
+    private SensorStartup mSensorStartup;
+    private SampleStore mSampleStore;
+    private ScheduledExecutorService mStorageExecutor;
     private Adx345AccelerometerDriver mAdx345AccelerometerDriver;
     private ISL29034AmbientDriver mISL29034AmbientDriver;
     private S11059ColorDriver mS11059ColorDriver;
@@ -84,86 +96,135 @@ public class MainActivity extends Activity implements SensorEventListener {
                 }
             }
         });
+        // All drivers share one bus thread.
+        mI2cBusScheduler = new I2cBusScheduler(BoardDefaults.getI2CPort());
+        // Samples are also kept on storage, a log per sensor.
+        mSampleStore = new SampleStore(new File(getFilesDir(), "samples"));
+        // Flush every few seconds, so full segments are released and a crash
+        // loses little; compress the flushed segments now and then.
+        mStorageExecutor = Executors.newSingleThreadScheduledExecutor();
+        mStorageExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                mSampleStore.flush();
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+        mStorageExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "[SYS] compacted " + mSampleStore.compact() + " segments");
+            }
+        }, 1, 1, TimeUnit.HOURS);
+        // Bring all sensors up in parallel instead of one setEnabled after another.
+        mSensorStartup = new SensorStartup(mI2cBusScheduler);
         if(Adx345Enable) {
             try {
-                mAdx345AccelerometerDriver = new Adx345AccelerometerDriver(BoardDefaults.getI2CPort());
+                mAdx345AccelerometerDriver = new Adx345AccelerometerDriver(mI2cBusScheduler);
                 mAdx345AccelerometerDriver.register();
+                mAdx345AccelerometerDriver.startup(mSensorStartup);
             } catch (IOException e) {
                 Log.e(TAG, "Error: ", e);
             }
         }
         if(ISL29034Enable) {
             try {
-                mISL29034AmbientDriver = new ISL29034AmbientDriver(BoardDefaults.getI2CPort());
+                mISL29034AmbientDriver = new ISL29034AmbientDriver(mI2cBusScheduler);
                 mISL29034AmbientDriver.register();
+                mISL29034AmbientDriver.startup(mSensorStartup);
             } catch (IOException e) {
                 Log.e(TAG, "Error: ", e);
             }
         }
         if(S11059Enable) {
             try {
-                mS11059ColorDriver = new S11059ColorDriver(BoardDefaults.getI2CPort());
+                mS11059ColorDriver = new S11059ColorDriver(mI2cBusScheduler);
                 mS11059ColorDriver.register();
+                mS11059ColorDriver.startup(mSensorStartup);
             } catch (IOException e) {
                 Log.e(TAG, "Error: ", e);
             }
         }
         if(Si1132Enable) {
             try {
-                mSi1132UVDriver = new Si1132UVDriver(BoardDefaults.getI2CPort());
+                mSi1132UVDriver = new Si1132UVDriver(mI2cBusScheduler);
                 mSi1132UVDriver.register();
+                mSi1132UVDriver.startup(mSensorStartup);
             } catch (IOException e) {
                 Log.e(TAG, "Error: ", e);
             }
         }
         if(BH1749Enable) {
             try {
-                mBH1749ColorDriver = new BH1749ColorDriver(BoardDefaults.getI2CPort());
+                mBH1749ColorDriver = new BH1749ColorDriver(mI2cBusScheduler);
                 mBH1749ColorDriver.register();
+                mBH1749ColorDriver.startup(mSensorStartup);
             } catch (IOException e) {
                 Log.e(TAG, "Error initializing accelerometer driver: ", e);
             }
         }
         if(CCS811Enable) {
             try {
-                mCCS811Co2Driver = new CCS811Co2Driver(BoardDefaults.getI2CPort());
+                mCCS811Co2Driver = new CCS811Co2Driver(mI2cBusScheduler);
                 mCCS811Co2Driver.register();
+                mCCS811Co2Driver.startup(mSensorStartup);
             } catch (IOException e) {
                 Log.e(TAG, "Error initializing accelerometer driver: ", e);
             }
         }
         if(ADC121Enable) {
             try {
-                mADC121AnalogDriver = new ADC121AnalogDriver(BoardDefaults.getI2CPort());
+                mADC121AnalogDriver = new ADC121AnalogDriver(mI2cBusScheduler);
                 mADC121AnalogDriver.register();
+                mADC121AnalogDriver.startup(mSensorStartup);
             } catch (IOException e) {
                 Log.e(TAG, "Error initializing accelerometer driver: ", e);
             }
         }
         if(CDM7160Enable) {
             try {
-                mCDM7160Co2Driver = new CDM7160Co2Driver(BoardDefaults.getI2CPort());
+                mCDM7160Co2Driver = new CDM7160Co2Driver(mI2cBusScheduler);
                 mCDM7160Co2Driver.register();
+                mCDM7160Co2Driver.startup(mSensorStartup);
             } catch (IOException e) {
                 Log.e(TAG, "Error initializing accelerometer driver: ", e);
             }
         }
         if(SPS30Enable) {
             try {
-                mSPS30PMDriver = new SPS30PMDriver(BoardDefaults.getI2CPort());
+                mSPS30PMDriver = new SPS30PMDriver(mI2cBusScheduler);
+                mSPS30PMDriver.setLog(mSampleStore.getLog("SPS30", SPS30.NUM_VALUES));
                 mSPS30PMDriver.register();
+                mSPS30PMDriver.startup(mSensorStartup);
             } catch (IOException e) {
                 Log.e(TAG, "Error initializing accelerometer driver: ", e);
             }
         }
         if(MPL115Enable) {
             try {
-                mMPL115BarometerDriver = new MPL115BarometerDriver(BoardDefaults.getI2CPort());
+                mMPL115BarometerDriver = new MPL115BarometerDriver(mI2cBusScheduler);
                 mMPL115BarometerDriver.register();
+                mMPL115BarometerDriver.startup(mSensorStartup);
             } catch (IOException e) {
                 Log.e(TAG, "Error initializing accelerometer driver: ", e);
             }
         }
+        mSensorStartup.start(new SensorStartup.Callback() {
+            @Override
+            public void onSensorReady(String name, long timeToFirstSampleNanos) {
+                Log.i(TAG, "[SYS] " + name + " first sample:"
+                        + TimeUnit.NANOSECONDS.toMillis(timeToFirstSampleNanos) + "ms");
+            }
+
+            @Override
+            public void onSensorFailed(String name) {
+                Log.i(TAG, "[SYS] " + name + " not found");
+            }
+
+            @Override
+            public void onStartupFinished(long elapsedNanos) {
+                Log.i(TAG, "[SYS] startup:" + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms");
+            }
+        });
     }
 
     @Override
@@ -262,7 +323,27 @@ public class MainActivity extends Activity implements SensorEventListener {
                 mMPL115BarometerDriver = null;
             }
         }
-
+        if (mSensorStartup != null) {
+            mSensorStartup.cancel();
+            mSensorStartup = null;
+        }
+        if (mI2cBusScheduler != null) {
+            mI2cBusScheduler.close();
+            mI2cBusScheduler = null;
+        }
+        if (mStorageExecutor != null) {
+            mStorageExecutor.shutdownNow();
+            try {
+                mStorageExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mStorageExecutor = null;
+        }
+        if (mSampleStore != null) {
+            mSampleStore.close();
+            mSampleStore = null;
+        }
     }
 
     @Override
@@ -301,10 +382,16 @@ public class MainActivity extends Activity implements SensorEventListener {
         } else if(event.sensor.getName().startsWith("FaBoCDM7160")) {
             Log.i(TAG, "ppm(0.01ppm-2ppm):" + event.values[0] + "(ppm)");
         } else if(event.sensor.getName().startsWith("FaBoSPS30")) {
-            Log.i(TAG, "pm1.0:" + event.values[0] + "μg/m3");
-            Log.i(TAG, "pm2.5:" + event.values[1] + "μg/m3");
-            Log.i(TAG, "pm5:" + event.values[2] + "μg/m3");
-            Log.i(TAG, "pm10:" + event.values[3] + "μg/m53");
+            Log.i(TAG, "pm1.0:" + event.values[SPS30.MASS_PM1_0] + "μg/m3");
+            Log.i(TAG, "pm2.5:" + event.values[SPS30.MASS_PM2_5] + "μg/m3");
+            Log.i(TAG, "pm4.0:" + event.values[SPS30.MASS_PM4_0] + "μg/m3");
+            Log.i(TAG, "pm10:" + event.values[SPS30.MASS_PM10] + "μg/m3");
+            Log.i(TAG, "nc0.5:" + event.values[SPS30.NUMBER_PM0_5] + "#/cm3");
+            Log.i(TAG, "nc1.0:" + event.values[SPS30.NUMBER_PM1_0] + "#/cm3");
+            Log.i(TAG, "nc2.5:" + event.values[SPS30.NUMBER_PM2_5] + "#/cm3");
+            Log.i(TAG, "nc4.0:" + event.values[SPS30.NUMBER_PM4_0] + "#/cm3");
+            Log.i(TAG, "nc10:" + event.values[SPS30.NUMBER_PM10] + "#/cm3");
+            Log.i(TAG, "size:" + event.values[SPS30.TYPICAL_PARTICLE_SIZE] + "μm");
         } else if(event.sensor.getName().startsWith("FaBoMPL115")) {
             Log.i(TAG, "hpm:" + event.values[0]);
             float aizuAltitude = 212.5f;
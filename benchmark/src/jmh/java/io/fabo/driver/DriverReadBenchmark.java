@@ -0,0 +1,234 @@
+package io.fabo.driver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+
+/**
+ * Read and decode paths of every chip driver, backed by the simulated I2C bus.
+ * Run with {@code ./gradlew :benchmark:jmh}; the gc profiler reports bytes
+ * allocated per operation as gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+public class DriverReadBenchmark {
+
+    private SimulatedI2cBus mBus;
+
+    private ADC121 mADC121;
+    private Adx345 mAdx345;
+    private BH1749 mBH1749;
+    private CCS811 mCCS811;
+    private CDM7160 mCDM7160;
+    private ISL29034 mISL29034;
+    private MPL115 mMPL115;
+    private S11059 mS11059;
+    private SPS30 mSPS30;
+    private Si1132 mSi1132;
+
+    private byte[] mSerialFrame;
+    private final float[] mOut = new float[4];
+    private final float[] mOut5 = new float[5];
+    private final float[] mOutSps30 = new float[SPS30.NUM_VALUES];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mBus = new SimulatedI2cBus("I2C1");
+
+        mBus.attach(ADC121.I2C_ADDRESS, new SimADC121()).setInput(1234);
+        mADC121 = new ADC121(mBus.open(ADC121.I2C_ADDRESS));
+        mADC121.setCycleTime(ADC121.INTERVAL_0_4);
+
+        mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345()).setAcceleration(12, -34, 256);
+        mAdx345 = new Adx345(mBus.open(Adx345.I2C_ADDRESS));
+        mAdx345.setConfigure();
+        mAdx345.powerOn();
+
+        mBus.attach(0x38, new SimBH1749()).setLight(100, 200, 300, 40, 210);
+        mBH1749 = new BH1749(mBus.open(0x38));
+        mBH1749.setMeasurement(BH1749.MEAS_35MS);
+        mBH1749.setMeasurementEnable(true);
+
+        mBus.attach(CCS811.I2C_ADDRESS, new SimCCS811()).setAir(450, 12);
+        mCCS811 = new CCS811(mBus.open(CCS811.I2C_ADDRESS));
+
+        mBus.attach(0x44, new SimISL29034()).setLux(300);
+        mISL29034 = new ISL29034(mBus.open(0x44));
+        mISL29034.setOperation(ISL29034.MODE_ALS_CONTINUS);
+        mISL29034.setRange(ISL29034.RANGE_0);
+        mISL29034.setResolution(ISL29034.RES_16);
+
+        SimMPL115 mpl115 = mBus.attach(MPL115.I2C_ADDRESS, new SimMPL115());
+        mpl115.setCoefficients(0x3ECE, 0x1000, 0x1000, 0x0100);
+        mpl115.setAdc(400, 512);
+        mMPL115 = new MPL115(mBus.open(MPL115.I2C_ADDRESS));
+        mMPL115.readCoef();
+
+        mBus.attach(0x2A, new SimS11059()).setLight(1000, 2000, 3000, 400);
+        mS11059 = new S11059(mBus.open(0x2A));
+        mS11059.setControl();
+
+        mBus.attach(SPS30.I2C_ADDRESS, new SimSPS30()).setValues(1f, 2f, 3f, 4f, 5f, 6f, 7f, 8f, 9f, 0.5f);
+        mSPS30 = new SPS30(mBus.open(SPS30.I2C_ADDRESS));
+        mSPS30.start();
+        mSerialFrame = mSPS30.readCommand(0xD033, 48);
+
+        // CDM7160 collides with SPS30 at 0x69 and Si1132 with MPL115 at 0x60.
+        SimulatedI2cBus bus2 = new SimulatedI2cBus("I2C2");
+
+        bus2.attach(CDM7160.I2C_ADDRESS, new SimCDM7160()).setCo2(800);
+        mCDM7160 = new CDM7160(bus2.open(CDM7160.I2C_ADDRESS));
+        mCDM7160.setControl(CDM7160.MODE_CONTINUS);
+
+        bus2.attach(0x60, new SimSi1132()).setLight(300, 260, 512);
+        mSi1132 = new Si1132(bus2.open(0x60));
+        mSi1132.configuration();
+        mSi1132.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mADC121.close();
+        mAdx345.close();
+        mBH1749.close();
+        mCCS811.close();
+        mCDM7160.close();
+        mISL29034.close();
+        mMPL115.close();
+        mS11059.close();
+        mSPS30.close();
+        mSi1132.close();
+    }
+
+    @Benchmark
+    public float adc121ReadAdc() throws IOException {
+        return mADC121.readAdc();
+    }
+
+    @Benchmark
+    public float[] adc121ReadInto() throws IOException {
+        mADC121.readInto(mOut, 0);
+        return mOut;
+    }
+
+    @Benchmark
+    public float[] adx345ReadSample() throws IOException {
+        return mAdx345.readSample();
+    }
+
+    @Benchmark
+    public float[] adx345ReadInto() throws IOException {
+        mAdx345.readInto(mOut, 0);
+        return mOut;
+    }
+
+    /** Per channel reads, as BH1749ColorDriver.read() did before readInto. */
+    @Benchmark
+    public void bh1749Read(Blackhole bh) throws IOException {
+        bh.consume(mBH1749.readValid());
+        bh.consume(mBH1749.readRed());
+        bh.consume(mBH1749.readGreen());
+        bh.consume(mBH1749.readBlue());
+        bh.consume(mBH1749.readIR());
+        bh.consume(mBH1749.readGreen2());
+    }
+
+    @Benchmark
+    public boolean bh1749ReadInto() throws IOException {
+        return mBH1749.readInto(mOut5, 0);
+    }
+
+    @Benchmark
+    public float[] ccs811GetAlgResultData() throws IOException {
+        return mCCS811.getAlgResultData();
+    }
+
+    @Benchmark
+    public float[] ccs811ReadInto() throws IOException {
+        mCCS811.readInto(mOut, 0);
+        return mOut;
+    }
+
+    @Benchmark
+    public byte ccs811GetStatus() {
+        return mCCS811.getStatus();
+    }
+
+    @Benchmark
+    public float cdm7160ReadCo2() throws IOException {
+        return mCDM7160.readCo2();
+    }
+
+    /** One transaction, the latest conversion is read without waiting. */
+    @Benchmark
+    public float isl29034ReadLux() throws IOException {
+        return mISL29034.readLux();
+    }
+
+    @Benchmark
+    public float[] mpl115ReadData() throws IOException {
+        return mMPL115.readData();
+    }
+
+    @Benchmark
+    public float[] mpl115ReadInto() throws IOException {
+        mMPL115.readInto(mOut, 0);
+        return mOut;
+    }
+
+    @Benchmark
+    public float[] s11059ReadSample() throws IOException {
+        return mS11059.readSample();
+    }
+
+    @Benchmark
+    public float[] s11059ReadInto() throws IOException {
+        mS11059.readInto(mOut, 0);
+        return mOut;
+    }
+
+    @Benchmark
+    public boolean sps30CheckReady() {
+        return mSPS30.checkReady();
+    }
+
+    @Benchmark
+    public float[] sps30ReadData() throws IOException {
+        return mSPS30.readData();
+    }
+
+    @Benchmark
+    public float[] sps30ReadInto() throws IOException {
+        mSPS30.readInto(mOutSps30, 0);
+        return mOutSps30;
+    }
+
+    @Benchmark
+    public byte sps30CheckSum() {
+        return mSPS30.checkSum(new byte[]{(byte) 0xBE, (byte) 0xEF});
+    }
+
+    @Benchmark
+    public String sps30RawToString() {
+        return mSPS30.rawToString(mSerialFrame);
+    }
+
+    /** Per channel reads, as Si1132UVDriver.read() did before readInto. */
+    @Benchmark
+    public void si1132Read(Blackhole bh) throws IOException {
+        bh.consume(mSi1132.readUV());
+        bh.consume(mSi1132.readIR());
+        bh.consume(mSi1132.readVisible());
+    }
+
+    @Benchmark
+    public float[] si1132ReadInto() throws IOException {
+        mSi1132.readInto(mOut, 0);
+        return mOut;
+    }
+}
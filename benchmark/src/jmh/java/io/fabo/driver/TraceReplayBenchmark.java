@@ -0,0 +1,90 @@
+package io.fabo.driver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Decode paths fed from a recorded I2C trace instead of the simulated chips:
+ * the bus traffic of ROUNDS reads of an Adx345, a CCS811 and an SPS30 is
+ * recorded once, then replayed to fresh drivers as fast as possible.
+ */
+@State(Scope.Thread)
+public class TraceReplayBenchmark {
+
+    private static final int ROUNDS = 1000;
+    private static final String BUS = "I2C1";
+
+    private I2cTraceReplay mReplay;
+    private Adx345 mAdx345;
+    private CCS811 mCCS811;
+    private SPS30 mSPS30;
+
+    private final float[] mOut = new float[4];
+    private final float[] mOutSps30 = new float[SPS30.NUM_VALUES];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        SimulatedI2cBus bus = new SimulatedI2cBus(BUS);
+        bus.setManualClock(true);
+        SimAdx345 adx345 = bus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        SimCCS811 ccs811 = bus.attach(CCS811.I2C_ADDRESS, new SimCCS811());
+        SimSPS30 sps30 = bus.attach(SPS30.I2C_ADDRESS, new SimSPS30());
+
+        try (I2cTraceRecorder recorder = I2cTraceRecorder.start(trace)) {
+            Adx345 recordedAdx345 = new Adx345(
+                    I2cStats.instrument(BUS, Adx345.I2C_ADDRESS, bus.open(Adx345.I2C_ADDRESS)));
+            CCS811 recordedCCS811 = new CCS811(
+                    I2cStats.instrument(BUS, CCS811.I2C_ADDRESS, bus.open(CCS811.I2C_ADDRESS)));
+            SPS30 recordedSPS30 = new SPS30(
+                    I2cStats.instrument(BUS, SPS30.I2C_ADDRESS, bus.open(SPS30.I2C_ADDRESS)));
+            recordedAdx345.powerOn();
+            recordedSPS30.start();
+            for (int i = 0; i < ROUNDS; i++) {
+                adx345.setAcceleration(i % 512, -i % 512, 256);
+                ccs811.setAir(400 + i, i % 100);
+                sps30.setValues(i, i, i, i, i, i, i, i, i, 0.5f);
+                bus.advanceMillis(1000);
+                recordedAdx345.readInto(mOut, 0);
+                recordedCCS811.readInto(mOut, 0);
+                recordedSPS30.readInto(mOutSps30, 0);
+            }
+            if (recorder.getRecords() == 0) {
+                throw new IllegalStateException("no transactions recorded");
+            }
+        }
+
+        mReplay = new I2cTraceReplay(new ByteArrayInputStream(trace.toByteArray()));
+        mReplay.setSpeed(I2cTraceReplay.AS_FAST_AS_POSSIBLE);
+        mAdx345 = new Adx345(mReplay.open(BUS, Adx345.I2C_ADDRESS));
+        mCCS811 = new CCS811(mReplay.open(BUS, CCS811.I2C_ADDRESS));
+        mSPS30 = new SPS30(mReplay.open(BUS, SPS30.I2C_ADDRESS));
+    }
+
+    /** One round: a sample of each chip, decoded from the replayed bytes. */
+    @Benchmark
+    @OperationsPerInvocation(ROUNDS)
+    public float replayRounds() throws IOException {
+        mReplay.rewind();
+        mAdx345.powerOn();
+        mSPS30.start();
+        float sum = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            mAdx345.readInto(mOut, 0);
+            sum += mOut[0];
+            mCCS811.readInto(mOut, 0);
+            sum += mOut[0];
+            mSPS30.readInto(mOutSps30, 0);
+            sum += mOutSps30[0];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,39 @@
+package android.util;
+
+/**
+ * Host stand-in for android.util.Log so the drivers can run outside Android.
+ * Messages are dropped.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+}
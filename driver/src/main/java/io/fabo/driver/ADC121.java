@@ -3,7 +3,6 @@ package io.fabo.driver;
 import android.support.annotation.IntDef;
 
 import com.google.android.things.pio.I2cDevice;
-import com.google.android.things.pio.PeripheralManager;
 
 import java.io.IOException;
 
@@ -39,6 +38,7 @@ public class ADC121 implements AutoCloseable {
     private final int OFFSET_ALERT_FLAG = 0b00001000;
     private final int OFFSET_ALERT_PIN = 0b00000100;
     private final int OFFSET_PRIORITY = 0b00000001;
+    private final int CYCLE_TIME_SHIFT = 5;
     /**
      * Cycle time.
      */
@@ -62,6 +62,9 @@ public class ADC121 implements AutoCloseable {
     public @interface PriorityValue {}
 
     private I2cDevice mDevice;
+    private RegisterCache mRegisters;
+    private final byte[] mDataBuffer = new byte[2];
+    private final byte[] mLimitBuffer = new byte[2];
 
     /**
      * Create a new ADC121 driver connected to the given I2C bus.
@@ -69,8 +72,7 @@ public class ADC121 implements AutoCloseable {
      * @throws IOException
      */
     public ADC121(String bus) throws IOException {
-        PeripheralManager pioService = PeripheralManager.getInstance();
-        I2cDevice device = pioService.openI2cDevice(bus, I2C_ADDRESS);
+        I2cDevice device = I2cStats.open(bus, I2C_ADDRESS);
         try {
             connect(device);
         } catch (IOException|RuntimeException e) {
@@ -95,7 +97,8 @@ public class ADC121 implements AutoCloseable {
         if (mDevice != null) {
             throw new IllegalStateException("device already connected");
         }
-        mDevice = device;
+        mDevice = ResilientI2cDevice.wrap(device, null);
+        mRegisters = new RegisterCache(mDevice);
     }
 
 
@@ -109,6 +112,7 @@ public class ADC121 implements AutoCloseable {
                 mDevice.close();
             } finally {
                 mDevice = null;
+                mRegisters = null;
             }
         }
     }
@@ -119,9 +123,7 @@ public class ADC121 implements AutoCloseable {
      */
     public void setCycleTime(@CycleTime int cycleTime) {
         try {
-            byte value = mDevice.readRegByte(REG_CONFIGURATION);
-            value = (byte)((value & ~OFFSET_CYCLE_TIME) | cycleTime);
-            mDevice.writeRegByte(REG_CONFIGURATION, value);
+            mRegisters.update(REG_CONFIGURATION, OFFSET_CYCLE_TIME, cycleTime << CYCLE_TIME_SHIFT);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -132,9 +134,7 @@ public class ADC121 implements AutoCloseable {
      */
     public void alertFlagEnable(boolean flag) {
         try {
-            byte value = mDevice.readRegByte(REG_CONFIGURATION);
-            value = (byte)((value & ~OFFSET_ALERT_FLAG) | (flag ? 1<<3:0));
-            mDevice.writeRegByte(REG_CONFIGURATION, value);
+            mRegisters.update(REG_CONFIGURATION, OFFSET_ALERT_FLAG, flag ? OFFSET_ALERT_FLAG : 0);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -145,9 +145,7 @@ public class ADC121 implements AutoCloseable {
      */
     public void alertPinEnable(boolean flag) {
         try {
-            byte value = mDevice.readRegByte(REG_CONFIGURATION);
-            value = (byte)((value & ~OFFSET_ALERT_PIN) | (flag ? 1<<2:0));
-            mDevice.writeRegByte(REG_CONFIGURATION, value);
+            mRegisters.update(REG_CONFIGURATION, OFFSET_ALERT_PIN, flag ? OFFSET_ALERT_PIN : 0);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -158,26 +156,60 @@ public class ADC121 implements AutoCloseable {
      */
     public void alertHold(@PriorityValue int priorityValue) {
         try {
-            byte value = mDevice.readRegByte(REG_CONFIGURATION);
-            value = (byte)((value & ~OFFSET_ALERT_HOLD) | priorityValue << 4);
-            mDevice.writeRegByte(REG_CONFIGURATION, value);
+            mRegisters.update(REG_CONFIGURATION, OFFSET_ALERT_HOLD, priorityValue << 4);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Set the alert window, the alert is raised by a conversion outside it.
+     * @param low lowest conversion inside, 0-4095.
+     * @param high highest conversion inside, 0-4095.
+     * @throws IOException
+     */
+    public synchronized void setAlertLimits(int low, int high) throws IOException {
+        byte limit[] = mLimitBuffer;
+        limit[0] = (byte) ((low >> 8) & 0x0f);
+        limit[1] = (byte) low;
+        mDevice.writeRegBuffer(REG_ALERT_LIMIT_LW, limit, limit.length);
+        limit[0] = (byte) ((high >> 8) & 0x0f);
+        limit[1] = (byte) high;
+        mDevice.writeRegBuffer(REG_ALERT_LIMIT_HG, limit, limit.length);
+    }
+
+    /**
+     * Clear the under and over range alert, which releases a held ALERT pin.
+     * @throws IOException
+     */
+    public void clearAlert() throws IOException {
+        mDevice.writeRegByte(REG_ALERT_STATUS, (byte) 0b11);
+    }
+
     /**
      * Read an accelerometer sample.
      * @return acceleration over xyz axis in G.
      * @throws IOException
      * @throws IllegalStateException
      */
-    public float readAdc() throws IOException, IllegalStateException {
+    public synchronized float readAdc() throws IOException, IllegalStateException {
         if (mDevice == null) {
             throw new IllegalStateException("device not connected");
         }
-        byte analog_buff[] = new byte[2];
+        byte analog_buff[] = mDataBuffer;
         mDevice.readRegBuffer(REG_CONVERSION, analog_buff, analog_buff.length);
-        return ((analog_buff[1] & 0x0f)<< 8) | (analog_buff[0] & 0xff);
+        // MSB first, the 12 bit result in D11-D0.
+        return ((analog_buff[0] & 0x0f) << 8) | (analog_buff[1] & 0xff);
+    }
+
+    /**
+     * Read a conversion into a caller provided array, without allocating.
+     * @param out destination array.
+     * @param offset index of the conversion in out.
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public void readInto(float[] out, int offset) throws IOException, IllegalStateException {
+        out[offset] = readAdc();
     }
 }
@@ -2,22 +2,27 @@ package io.fabo.driver;
 
 import android.hardware.Sensor;
 
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.PeripheralManager;
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
-import com.google.android.things.userdriver.sensor.UserSensorReading;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
-public class ADC121AnalogDriver implements AutoCloseable {
+public class ADC121AnalogDriver extends FrameworkSensorDriver implements AutoCloseable {
 
     private static final String TAG = ADC121AnalogDriver.class.getSimpleName();
     private static final String DRIVER_NAME = "FaBoADC121";
     private static final String DRIVER_VENDOR = "GClue";
     private static final int DRIVER_VERSION = 1;
     private ADC121 mDevice;
+    private I2cBusScheduler mScheduler;
     private UserSensor mUserSensor;
+    private Gpio mInterrupt;
+    private float mInterruptDelta;
 
     /**
      * Create a new framework accelerometer driver connected to the given I2C bus.
@@ -27,9 +32,23 @@ public class ADC121AnalogDriver implements AutoCloseable {
      * @see #register()
      */
     public ADC121AnalogDriver(String bus) throws IOException {
+        super(DRIVER_NAME);
         mDevice = new ADC121(bus);
     }
 
+    /**
+     * Create a new framework driver whose transactions run on the given bus scheduler.
+     * The chip is polled at its conversion rate while the sensor is enabled.
+     * @param scheduler scheduler of the I2C bus.
+     * @throws IOException
+     * @see #register()
+     */
+    public ADC121AnalogDriver(I2cBusScheduler scheduler) throws IOException {
+        super(DRIVER_NAME);
+        mDevice = new ADC121(scheduler.open(ADC121.I2C_ADDRESS));
+        mScheduler = scheduler;
+    }
+
     /**
      * Close the driver and the underlying device.
      * @throws IOException
@@ -40,8 +59,13 @@ public class ADC121AnalogDriver implements AutoCloseable {
         if (mDevice != null) {
             try {
                 mDevice.close();
+                if (mInterrupt != null) {
+                    mInterrupt.close();
+                }
             } finally {
                 mDevice = null;
+                dropSensorDriver();
+                mInterrupt = null;
             }
         }
     }
@@ -55,7 +79,7 @@ public class ADC121AnalogDriver implements AutoCloseable {
             throw new IllegalStateException("cannot registered closed driver");
         }
         if (mUserSensor == null) {
-            mUserSensor = build(mDevice);
+            mUserSensor = build(getSensorDriver());
             UserDriverManager.getInstance().registerSensor(mUserSensor);
         }
     }
@@ -70,7 +94,35 @@ public class ADC121AnalogDriver implements AutoCloseable {
         }
     }
 
-    static UserSensor build(final ADC121 adc121) {
+    /**
+     * Read when the chip signals on its interrupt pin instead of polling it.
+     * Call before register() or startup().
+     * @param gpio name of the GPIO the ALERT pin is wired to.
+     * @param delta change in counts to wake up for, 0 for any change.
+     * @throws IOException
+     */
+    public void setInterrupt(String gpio, float delta) throws IOException {
+        if (hasSensorDriver()) {
+            throw new IllegalStateException("sensor driver already created");
+        }
+        if (mInterrupt != null) {
+            mInterrupt.close();
+        }
+        mInterrupt = PeripheralManager.getInstance().openGpio(gpio);
+        mInterruptDelta = delta;
+    }
+
+    @Override
+    /*package*/ PolledSensorDriver newSensorDriver() {
+        return driver(mDevice, mScheduler, mInterrupt, mInterruptDelta);
+    }
+
+    @Override
+    /*package*/ boolean isClosed() {
+        return mDevice == null;
+    }
+
+    static UserSensor build(UserSensorDriver driver) {
         return new UserSensor.Builder()
                 .setCustomType(Sensor.TYPE_DEVICE_PRIVATE_BASE,
                         "fabo.io.adc",
@@ -79,26 +131,81 @@ public class ADC121AnalogDriver implements AutoCloseable {
                 .setVendor(DRIVER_VENDOR)
                 .setVersion(DRIVER_VERSION)
                 .setUuid(UUID.randomUUID())
-                .setDriver(new UserSensorDriver() {
-                    @Override
-                    public UserSensorReading read() throws IOException {
-                        float adc = adc121.readAdc();
-                        float data[] = new float[]{adc};
-                        return new UserSensorReading(data);
-                    }
-
-                    @Override
-                    public void setEnabled(boolean enabled) throws IOException {
-                        if (enabled) {
-                            adc121.alertFlagEnable(false);
-                            adc121.alertHold(ADC121.ACTIVE_LOW);
-                            adc121.alertPinEnable(false);
-                            adc121.setCycleTime(ADC121.INTERVAL_0_4);
-                        } else {
-                            adc121.setCycleTime(ADC121.INTERVAL_0);
-                        }
-                    }
-                })
+                .setDriver(driver)
                 .build();
     }
+
+    static PolledSensorDriver driver(ADC121 adc121, I2cBusScheduler scheduler) {
+        return driver(adc121, scheduler, null, 0);
+    }
+
+    static PolledSensorDriver driver(final ADC121 adc121, I2cBusScheduler scheduler,
+                                     final Gpio interrupt, final float delta) {
+        final PolledSensor sensor = new PolledSensor(scheduler, 1, new PolledSensor.Sampler() {
+            @Override
+            public boolean sample(float[] values) throws IOException {
+                adc121.readInto(values, 0);
+                if (interrupt != null) {
+                    // Wake up when the input leaves the window around this conversion.
+                    int counts = (int) values[0];
+                    int window = Math.round(delta);
+                    adc121.setAlertLimits(Math.max(0, counts - window), Math.min(0x0fff, counts + window));
+                    adc121.clearAlert();
+                }
+                return true;
+            }
+        });
+        return new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) throws IOException {
+                if (enabled && interrupt != null) {
+                    sensor.start(bringUp(adc121, true), interrupt);
+                } else if (enabled) {
+                    // 0.4ksps, one conversion every 2.5ms.
+                    sensor.start(bringUp(adc121, false), 2500, TimeUnit.MICROSECONDS);
+                } else {
+                    sensor.stop();
+                    adc121.setCycleTime(ADC121.INTERVAL_0);
+                    adc121.alertPinEnable(false);
+                }
+            }
+        };
+    }
+
+    /**
+     * Disable the alert and start automatic conversion.
+     * @param adc121 chip.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(ADC121 adc121) {
+        return bringUp(adc121, false);
+    }
+
+    /**
+     * Set up the alert and start automatic conversion.
+     * @param adc121 chip.
+     * @param interrupt hold ALERT from the first conversion, else disable it.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(final ADC121 adc121, final boolean interrupt) {
+        return new BringUp(DRIVER_NAME, 1, TimeUnit.SECONDS) {
+            @Override
+            protected long step(int state) throws IOException {
+                if (interrupt) {
+                    // An empty window, so the first conversion raises the alert.
+                    adc121.setAlertLimits(0x0fff, 0);
+                    adc121.clearAlert();
+                    adc121.alertFlagEnable(true);
+                    adc121.alertHold(ADC121.ACTIVE_HIGH);
+                    adc121.alertPinEnable(true);
+                } else {
+                    adc121.alertFlagEnable(false);
+                    adc121.alertHold(ADC121.ACTIVE_LOW);
+                    adc121.alertPinEnable(false);
+                }
+                adc121.setCycleTime(ADC121.INTERVAL_0_4);
+                return DONE;
+            }
+        };
+    }
 }
@@ -1,7 +1,8 @@
 package io.fabo.driver;
 
+import android.support.annotation.IntDef;
+
 import com.google.android.things.pio.I2cDevice;
-import com.google.android.things.pio.PeripheralManager;
 
 import java.io.IOException;
 
@@ -26,6 +27,16 @@ public class Adx345 implements AutoCloseable {
     private byte ADXL345_POWER_CTL_REG = 0x2D;
     /** Power-saving features control */
     private byte ADXL345_3AIXS = 0x32;
+    /** Data rate and power mode control */
+    private byte ADXL345_BW_RATE_REG = 0x2C;
+    /** FIFO control */
+    private byte ADXL345_FIFO_CTL_REG = 0x38;
+    /** FIFO status */
+    private byte ADXL345_FIFO_STATUS_REG = 0x39;
+    /** Entries in FIFO_STATUS */
+    private byte ADXL345_FIFO_ENTRIES_MASK = 0b00111111;
+    /** Watermark in FIFO_CTL */
+    private byte ADXL345_FIFO_SAMPLES_MASK = 0b00011111;
     /** SELF Test ON */
     private byte ADXL345_SELF_TEST_ON = (byte) 0b10000000;
     /** SELF Test OFF */
@@ -75,7 +86,37 @@ public class Adx345 implements AutoCloseable {
     /** WAKEUP 1Hz */
     private byte ADXL345_WAKEUP_1HZ = 0b11;
 
+    /**
+     * Output data rate.
+     */
+    public final static int RATE_3200HZ = 0x0F;
+    public final static int RATE_1600HZ = 0x0E;
+    public final static int RATE_800HZ = 0x0D;
+    public final static int RATE_400HZ = 0x0C;
+    public final static int RATE_200HZ = 0x0B;
+    public final static int RATE_100HZ = 0x0A;
+    public final static int RATE_50HZ = 0x09;
+    public final static int RATE_25HZ = 0x08;
+    @IntDef({RATE_3200HZ, RATE_1600HZ, RATE_800HZ, RATE_400HZ, RATE_200HZ, RATE_100HZ, RATE_50HZ, RATE_25HZ})
+    public @interface OutputDataRate {}
+
+    /**
+     * FIFO mode.
+     */
+    public final static int FIFO_BYPASS = 0b00 << 6;
+    public final static int FIFO_FIFO = 0b01 << 6;
+    public final static int FIFO_STREAM = 0b10 << 6;
+    public final static int FIFO_TRIGGER = 0b11 << 6;
+    @IntDef({FIFO_BYPASS, FIFO_FIFO, FIFO_STREAM, FIFO_TRIGGER})
+    public @interface FifoMode {}
+
+    /**
+     * Number of FIFO entries.
+     */
+    public final static int FIFO_DEPTH = 32;
+
     private I2cDevice mDevice;
+    private final byte[] mSampleBuffer = new byte[6];
 
     /**
      * Create a new Adx345 driver connected to the given I2C bus.
@@ -83,8 +124,7 @@ public class Adx345 implements AutoCloseable {
      * @throws IOException
      */
     public Adx345(String bus) throws IOException {
-        PeripheralManager pioService = PeripheralManager.getInstance();
-        I2cDevice device = pioService.openI2cDevice(bus, I2C_ADDRESS);
+        I2cDevice device = I2cStats.open(bus, I2C_ADDRESS);
         try {
             connect(device);
         } catch (IOException|RuntimeException e) {
@@ -109,7 +149,12 @@ public class Adx345 implements AutoCloseable {
         if (mDevice != null) {
             throw new IllegalStateException("device already connected");
         }
-        mDevice = device;
+        mDevice = ResilientI2cDevice.wrap(device, new ResilientI2cDevice.Probe() {
+            @Override
+            public boolean probe() {
+                return whoAmI();
+            }
+        });
     }
 
 
@@ -134,7 +179,7 @@ public class Adx345 implements AutoCloseable {
     public boolean whoAmI() {
         try {
             byte value = mDevice.readRegByte(ADXL345_DEVID_REG);
-            if((value & 0xff) == ADXL345_DEVICE_NAME) {
+            if((value & 0xff) == (ADXL345_DEVICE_NAME & 0xff)) {
                 return true;
             } else {
                 return false;
@@ -176,6 +221,67 @@ public class Adx345 implements AutoCloseable {
         }
     }
 
+    /**
+     * Set the output data rate, normal power.
+     * @param rate output data rate.
+     */
+    public void setOutputDataRate(@OutputDataRate int rate) {
+        try {
+            mDevice.writeRegByte(ADXL345_BW_RATE_REG, (byte) rate);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get the sample period of an output data rate.
+     * @param rate output data rate.
+     * @return period in nanoseconds.
+     */
+    public static long getSamplePeriodNanos(@OutputDataRate int rate) {
+        // 3200Hz halves with every step down.
+        return (312500L << (RATE_3200HZ - rate));
+    }
+
+    /**
+     * Set the FIFO mode.
+     * @param mode FIFO mode.
+     * @param watermark entries that set the watermark interrupt, 1-31.
+     */
+    public void setFifoMode(@FifoMode int mode, int watermark) {
+        try {
+            mDevice.writeRegByte(ADXL345_FIFO_CTL_REG, (byte)(mode | (watermark & ADXL345_FIFO_SAMPLES_MASK)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read the number of samples in the FIFO.
+     * @return entries, 0-32.
+     * @throws IOException
+     */
+    public int getFifoEntries() throws IOException, IllegalStateException {
+        if (mDevice == null) {
+            throw new IllegalStateException("device not connected");
+        }
+        return mDevice.readRegByte(ADXL345_FIFO_STATUS_REG) & ADXL345_FIFO_ENTRIES_MASK;
+    }
+
+    /**
+     * Pop samples from the FIFO. Each entry is one 6 byte read of the data registers.
+     * @param out receives x, y, z of each sample.
+     * @param offset index of the first x in out.
+     * @param count entries to pop, at most the value of getFifoEntries().
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public synchronized void readFifo(float[] out, int offset, int count) throws IOException, IllegalStateException {
+        for (int i = 0; i < count; i++) {
+            readInto(out, offset + i * 3);
+        }
+    }
+
     /**
      * Read an accelerometer sample.
      * @return acceleration over xyz axis in G.
@@ -183,17 +289,26 @@ public class Adx345 implements AutoCloseable {
      * @throws IllegalStateException
      */
     public float[] readSample() throws IOException, IllegalStateException {
+        float sample[] = new float[3];
+        readInto(sample, 0);
+        return sample;
+    }
+
+    /**
+     * Read an accelerometer sample without allocating.
+     * @param out receives x, y, z.
+     * @param offset index of x in out.
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public synchronized void readInto(float[] out, int offset) throws IOException, IllegalStateException {
         if (mDevice == null) {
             throw new IllegalStateException("device not connected");
         }
-        int length = 6;
-        byte axis_buff[] = new byte[length];
+        byte axis_buff[] = mSampleBuffer;
         mDevice.readRegBuffer(ADXL345_3AIXS, axis_buff, axis_buff.length);
-        int x = (((int)axis_buff[1]) << 8) | axis_buff[0];
-        int y = (((int)axis_buff[3]) << 8) | axis_buff[2];
-        int z = (((int)axis_buff[5]) << 8) | axis_buff[4];
-        return new float[]{
-                x, y, z
-        };
+        out[offset] = (axis_buff[1] << 8) | (axis_buff[0] & 0xff);
+        out[offset + 1] = (axis_buff[3] << 8) | (axis_buff[2] & 0xff);
+        out[offset + 2] = (axis_buff[5] << 8) | (axis_buff[4] & 0xff);
     }
 }
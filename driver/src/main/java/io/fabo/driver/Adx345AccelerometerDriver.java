@@ -5,19 +5,21 @@ import android.hardware.Sensor;
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
-import com.google.android.things.userdriver.sensor.UserSensorReading;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
-public class Adx345AccelerometerDriver implements AutoCloseable {
+public class Adx345AccelerometerDriver extends FrameworkSensorDriver implements AutoCloseable {
 
     private static final String TAG = Adx345AccelerometerDriver.class.getSimpleName();
     private static final String DRIVER_NAME = "FaBoAdx345";
     private static final String DRIVER_VENDOR = "GClue";
     private static final int DRIVER_VERSION = 1;
     private Adx345 mDevice;
+    private I2cBusScheduler mScheduler;
     private UserSensor mUserSensor;
+    private Adx345FifoReader mFifoReader;
 
     /**
      * Create a new framework accelerometer driver connected to the given I2C bus.
@@ -27,9 +29,23 @@ public class Adx345AccelerometerDriver implements AutoCloseable {
      * @see #register()
      */
     public Adx345AccelerometerDriver(String bus) throws IOException {
+        super(DRIVER_NAME);
         mDevice = new Adx345(bus);
     }
 
+    /**
+     * Create a new framework driver whose transactions run on the given bus scheduler.
+     * The chip is polled at its conversion rate while the sensor is enabled.
+     * @param scheduler scheduler of the I2C bus.
+     * @throws IOException
+     * @see #register()
+     */
+    public Adx345AccelerometerDriver(I2cBusScheduler scheduler) throws IOException {
+        super(DRIVER_NAME);
+        mDevice = new Adx345(scheduler.open(Adx345.I2C_ADDRESS));
+        mScheduler = scheduler;
+    }
+
     /**
      * Close the driver and the underlying device.
      * @throws IOException
@@ -37,11 +53,13 @@ public class Adx345AccelerometerDriver implements AutoCloseable {
     @Override
     public void close() throws IOException {
         unregister();
+        stopFifo();
         if (mDevice != null) {
             try {
                 mDevice.close();
             } finally {
                 mDevice = null;
+                dropSensorDriver();
             }
         }
     }
@@ -54,8 +72,11 @@ public class Adx345AccelerometerDriver implements AutoCloseable {
         if (mDevice == null) {
             throw new IllegalStateException("cannot registered closed driver");
         }
+        if (mFifoReader != null) {
+            throw new IllegalStateException("cannot register while streaming the FIFO");
+        }
         if (mUserSensor == null) {
-            mUserSensor = build(mDevice);
+            mUserSensor = build(getSensorDriver());
             UserDriverManager.getInstance().registerSensor(mUserSensor);
         }
     }
@@ -70,30 +91,100 @@ public class Adx345AccelerometerDriver implements AutoCloseable {
         }
     }
 
-    static UserSensor build(final Adx345 adx345) {
+    /**
+     * Stream samples through the chip's FIFO at a higher output data rate than
+     * the framework sensor, which reads one sample per event. The FIFO is
+     * drained on the bus thread each time it reaches the watermark.
+     * @param rate output data rate.
+     * @param watermark entries per batch, 1-31.
+     * @param capacity samples kept until read.
+     * @return reader to take the samples from.
+     * @see #stopFifo()
+     */
+    public Adx345FifoReader startFifo(@Adx345.OutputDataRate int rate, int watermark, int capacity) {
+        if (mDevice == null) {
+            throw new IllegalStateException("cannot start closed driver");
+        }
+        if (mScheduler == null) {
+            throw new IllegalStateException("FIFO streaming needs a bus scheduler");
+        }
+        if (mUserSensor != null) {
+            throw new IllegalStateException("cannot stream the FIFO while registered");
+        }
+        stopFifo();
+        Adx345FifoReader reader = new Adx345FifoReader(mDevice, capacity);
+        mDevice.setConfigure();
+        reader.start(rate, watermark);
+        reader.schedule(mScheduler);
+        mFifoReader = reader;
+        return reader;
+    }
+
+    /**
+     * Stop streaming the FIFO.
+     */
+    public void stopFifo() {
+        if (mFifoReader != null) {
+            mFifoReader.stop();
+            mFifoReader = null;
+        }
+    }
+
+    @Override
+    /*package*/ PolledSensorDriver newSensorDriver() {
+        return driver(mDevice, mScheduler);
+    }
+
+    @Override
+    /*package*/ boolean isClosed() {
+        return mDevice == null;
+    }
+
+    static UserSensor build(UserSensorDriver driver) {
         return new UserSensor.Builder()
                 .setType(Sensor.TYPE_ACCELEROMETER)
                 .setName(DRIVER_NAME)
                 .setVendor(DRIVER_VENDOR)
                 .setVersion(DRIVER_VERSION)
                 .setUuid(UUID.randomUUID())
-                .setDriver(new UserSensorDriver() {
-                    @Override
-                    public UserSensorReading read() throws IOException {
-                        float[] sample = adx345.readSample();
-                        return new UserSensorReading(sample);
-                    }
-
-                    @Override
-                    public void setEnabled(boolean enabled) throws IOException {
-                        if (enabled) {
-                            adx345.setConfigure();
-                            adx345.powerOn();
-                        } else {
-                            // ToDo
-                        }
-                    }
-                })
+                .setDriver(driver)
                 .build();
     }
+
+    static PolledSensorDriver driver(final Adx345 adx345, I2cBusScheduler scheduler) {
+        final PolledSensor sensor = new PolledSensor(scheduler, 3, new PolledSensor.Sampler() {
+            @Override
+            public boolean sample(float[] values) throws IOException {
+                adx345.readInto(values, 0);
+                return true;
+            }
+        });
+        return new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) throws IOException {
+                if (enabled) {
+                    // 100Hz output data rate.
+                    sensor.start(bringUp(adx345), 10, TimeUnit.MILLISECONDS);
+                } else {
+                    sensor.stop();
+                }
+            }
+        };
+    }
+
+    /**
+     * Set the data format and start measuring.
+     * @param adx345 chip.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(final Adx345 adx345) {
+        return new BringUp(DRIVER_NAME, 1, TimeUnit.SECONDS) {
+            @Override
+            protected long step(int state) throws IOException {
+                adx345.setConfigure();
+                adx345.powerOn();
+                return DONE;
+            }
+        };
+    }
 }
@@ -0,0 +1,319 @@
+package io.fabo.driver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FIFO stream acquisition for the ADXL345.
+ * The chip buffers up to 32 samples at its output data rate. Once the
+ * FIFO reaches the watermark the whole batch is drained into a ring
+ * buffer, each sample timestamped from the output data rate. The
+ * reconstructed clock is slewed towards the host clock once per batch
+ * and restarted when the FIFO overflowed.
+ * At 3200Hz draining needs most of a 400kHz bus, each entry is a
+ * separate 6 byte read. Drained samples can also be stored in a SampleLog.
+ */
+public class Adx345FifoReader {
+    private static final String TAG = Adx345FifoReader.class.getSimpleName();
+
+    /** Fraction of the clock error corrected per batch. */
+    private static final int SLEW_SHIFT = 4;
+
+    /**
+     * Time source for the timestamps.
+     */
+    /*package*/ interface Ticker {
+        long nanoTime();
+    }
+
+    private static final Ticker SYSTEM_TICKER = new Ticker() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final Adx345 mDevice;
+    private final Ticker mTicker;
+    private final int mCapacity;
+    private final float[] mSamples;
+    private final long[] mTimestamps;
+    private final float[] mBatch = new float[Adx345.FIFO_DEPTH * 3];
+    private int mHead;
+    private int mCount;
+    private long mDropped;
+    private long mOverruns;
+
+    private long mPeriodNanos;
+    private int mWatermark;
+    private boolean mTimed;
+    private long mLastTimestamp;
+    private I2cBusScheduler mScheduler;
+    private I2cBusScheduler.Poll mPoll;
+    /** FIFO entries left at the last status read, and when it was; guarded by mBatch. */
+    private int mFifoEntries;
+    private long mFifoRead;
+    private SampleLog mLog;
+    private SampleRollup mRollup;
+
+    private final I2cBusScheduler.PollTask mDrainTask = new I2cBusScheduler.PollTask() {
+        @Override
+        public void poll() throws IOException {
+            try {
+                drain();
+            } finally {
+                rearm();
+            }
+        }
+    };
+
+    /**
+     * Create a new FIFO reader.
+     * @param device accelerometer.
+     * @param capacity samples kept until read.
+     */
+    public Adx345FifoReader(Adx345 device, int capacity) {
+        this(device, capacity, SYSTEM_TICKER);
+    }
+
+    /*package*/ Adx345FifoReader(Adx345 device, int capacity, Ticker ticker) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mDevice = device;
+        mTicker = ticker;
+        mCapacity = capacity;
+        mSamples = new float[capacity * 3];
+        mTimestamps = new long[capacity];
+    }
+
+    /**
+     * Start measuring in FIFO stream mode.
+     * @param rate output data rate.
+     * @param watermark entries per batch, 1-31.
+     */
+    public void start(@Adx345.OutputDataRate int rate, int watermark) {
+        if (watermark < 1 || watermark >= Adx345.FIFO_DEPTH) {
+            throw new IllegalArgumentException("watermark must be 1-31");
+        }
+        synchronized (this) {
+            mPeriodNanos = Adx345.getSamplePeriodNanos(rate);
+            mWatermark = watermark;
+            mTimed = false;
+        }
+        // Outside the lock: a drain on the bus thread may need it while this waits for the bus.
+        // Bypass first to empty the FIFO.
+        mDevice.setFifoMode(Adx345.FIFO_BYPASS, 0);
+        mDevice.setOutputDataRate(rate);
+        mDevice.setFifoMode(Adx345.FIFO_STREAM, watermark);
+        mDevice.powerOn();
+    }
+
+    /**
+     * Drain the FIFO on the bus thread once per watermark worth of samples.
+     * Each drain arms the next one for when the FIFO reaches the watermark
+     * again, so batches shorter than the scheduler's minimum period are
+     * drained in time too.
+     * @param scheduler scheduler of the bus the accelerometer is on.
+     */
+    public synchronized void schedule(I2cBusScheduler scheduler) {
+        if (mPoll != null) {
+            mPoll.cancel();
+        }
+        mScheduler = scheduler;
+        mPoll = scheduler.scheduleOnce(mPeriodNanos * mWatermark, TimeUnit.NANOSECONDS, mDrainTask);
+    }
+
+    private void rearm() {
+        int left;
+        long read;
+        synchronized (mBatch) {
+            left = mFifoEntries;
+            read = mFifoRead;
+        }
+        long elapsed = mTicker.nanoTime() - read;
+        synchronized (this) {
+            if (mPoll == null) {
+                return;
+            }
+            // Due when the FIFO holds a watermark again, counted from the status read.
+            long batch = mPeriodNanos * Math.max(1, mWatermark - left);
+            long delay = Math.max(0, Math.min(batch, batch - elapsed));
+            mPoll = mScheduler.scheduleOnce(delay, TimeUnit.NANOSECONDS, mDrainTask);
+        }
+    }
+
+    /**
+     * Store every drained sample, with its reconstructed timestamp.
+     * @param log log with 3 channels, x, y and z, or null to stop.
+     */
+    public synchronized void setLog(SampleLog log) {
+        if (log != null && log.getChannels() != 3) {
+            throw new IllegalArgumentException("log has " + log.getChannels() + " channels, not 3");
+        }
+        mLog = log;
+    }
+
+    /**
+     * Keep aggregates of every drained sample, e.g. to follow the peaks at full rate.
+     * @param rollup rollup with 3 channels, x, y and z, or null to stop.
+     */
+    public synchronized void setRollup(SampleRollup rollup) {
+        if (rollup != null && rollup.getChannels() != 3) {
+            throw new IllegalArgumentException("rollup has " + rollup.getChannels() + " channels, not 3");
+        }
+        mRollup = rollup;
+    }
+
+    /**
+     * Stop polling and return the FIFO to bypass mode.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (mPoll != null) {
+                mPoll.cancel();
+                mPoll = null;
+            }
+        }
+        // Outside the lock, like start().
+        mDevice.setFifoMode(Adx345.FIFO_BYPASS, 0);
+    }
+
+    /**
+     * Drain the FIFO when it reached the watermark.
+     * @return samples drained.
+     * @throws IOException
+     */
+    public int drain() throws IOException {
+        return drain(false);
+    }
+
+    /**
+     * Drain whatever is in the FIFO.
+     * @return samples drained.
+     * @throws IOException
+     */
+    public int flush() throws IOException {
+        return drain(true);
+    }
+
+    private int drain(boolean all) throws IOException {
+        // Only one thread drains at a time; readers only wait for the copy.
+        synchronized (mBatch) {
+            int entries = mDevice.getFifoEntries();
+            long now = mTicker.nanoTime();
+            mFifoEntries = entries;
+            mFifoRead = now;
+            if (entries == 0 || (!all && entries < mWatermark)) {
+                return 0;
+            }
+            mFifoEntries = 0;
+            mDevice.readFifo(mBatch, 0, entries);
+            append(entries, entries >= Adx345.FIFO_DEPTH, now);
+            return entries;
+        }
+    }
+
+    private synchronized void append(int entries, boolean overrun, long now) {
+        long period = mPeriodNanos;
+        // The newest entry was sampled within one period before the status read.
+        long anchored = now - (entries - 1) * period;
+        long first;
+        if (overrun) {
+            mOverruns++;
+        }
+        if (!mTimed || overrun) {
+            first = anchored;
+            mTimed = true;
+        } else {
+            long expected = mLastTimestamp + period;
+            long error = anchored - expected;
+            if (Math.abs(error) > Adx345.FIFO_DEPTH * period) {
+                first = anchored;
+            } else {
+                first = expected + (error >> SLEW_SHIFT);
+            }
+        }
+        for (int i = 0; i < entries; i++) {
+            if (mCount == mCapacity) {
+                mHead = (mHead + 1) % mCapacity;
+                mCount--;
+                mDropped++;
+            }
+            int tail = (mHead + mCount) % mCapacity;
+            System.arraycopy(mBatch, i * 3, mSamples, tail * 3, 3);
+            mTimestamps[tail] = first + i * period;
+            mCount++;
+        }
+        mLastTimestamp = first + (entries - 1) * period;
+        if (mRollup != null) {
+            for (int i = 0; i < entries; i++) {
+                mRollup.append(mRollup.timestamp(first + i * period), mBatch, i * 3);
+            }
+        }
+        if (mLog != null) {
+            try {
+                for (int i = 0; i < entries; i++) {
+                    mLog.append(mLog.timestamp(first + i * period), mBatch, i * 3);
+                }
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "cannot store samples in " + mLog.getDirectory(), e);
+                mLog = null;
+            }
+        }
+    }
+
+    /**
+     * Get the number of samples waiting to be read.
+     * @return samples.
+     */
+    public synchronized int available() {
+        return mCount;
+    }
+
+    /**
+     * Take the oldest samples.
+     * @param xyz receives x, y, z of each sample, 3 values per sample.
+     * @param timestamps receives the timestamp of each sample in nanoseconds, may be null.
+     * @param max samples to take at most.
+     * @return samples taken.
+     */
+    public synchronized int read(float[] xyz, long[] timestamps, int max) {
+        int n = Math.min(max, mCount);
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(mSamples, mHead * 3, xyz, i * 3, 3);
+            if (timestamps != null) {
+                timestamps[i] = mTimestamps[mHead];
+            }
+            mHead = (mHead + 1) % mCapacity;
+        }
+        mCount -= n;
+        return n;
+    }
+
+    /**
+     * Get the sample period of the running output data rate.
+     * @return period in nanoseconds.
+     */
+    public synchronized long getSamplePeriodNanos() {
+        return mPeriodNanos;
+    }
+
+    /**
+     * Get the samples overwritten because the ring buffer was full.
+     * @return count.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Get the drains that found the FIFO full, samples may have been lost on the chip.
+     * @return count.
+     */
+    public synchronized long getOverrunCount() {
+        return mOverruns;
+    }
+}
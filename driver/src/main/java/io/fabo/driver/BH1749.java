@@ -3,7 +3,6 @@ package io.fabo.driver;
 import android.support.annotation.IntDef;
 
 import com.google.android.things.pio.I2cDevice;
-import com.google.android.things.pio.PeripheralManager;
 
 import java.io.IOException;
 import java.lang.annotation.Retention;
@@ -15,7 +14,7 @@ public class BH1749 implements AutoCloseable {
     /**
      * I2C slave address of the BH1749.
      */
-    private final int I2C_ADDRESS = 0x38;
+    public static final int I2C_ADDRESS = 0x38;
 
     /** Regiser address. */
     private final int REG_SYSTEM_CONTROL = 0x40;
@@ -72,6 +71,32 @@ public class BH1749 implements AutoCloseable {
 
     public final int MEAS_MASK = 0b00000111;
 
+    /**
+     * Interrupt source channel.
+     */
+    public final static int INT_SOURCE_RED = 0b00;
+    public final static int INT_SOURCE_GREEN = 0b01;
+    public final static int INT_SOURCE_BLUE = 0b10;
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({INT_SOURCE_RED, INT_SOURCE_GREEN, INT_SOURCE_BLUE})
+    public @interface InterruptSource {}
+
+    private final int INT_STATUS_MASK = 0b10000000;
+    private final int INT_SOURCE_SHIFT = 2;
+    private final int INT_ENABLE_MASK = 0b00000001;
+
+    /**
+     * Persistence, INT is asserted at every measurement end or after
+     * 1, 4 or 8 consecutive measurements outside the thresholds.
+     */
+    public final static int PERSISTENCE_EVERY = 0b00;
+    public final static int PERSISTENCE_1 = 0b01;
+    public final static int PERSISTENCE_4 = 0b10;
+    public final static int PERSISTENCE_8 = 0b11;
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({PERSISTENCE_EVERY, PERSISTENCE_1, PERSISTENCE_4, PERSISTENCE_8})
+    public @interface Persistence {}
+
     // Mode Control 1
 
     private final int VALID_SHIFT = 7;
@@ -83,6 +108,10 @@ public class BH1749 implements AutoCloseable {
     private final int MANUFACTURER_ID = 0xE0;
 
     private I2cDevice mDevice;
+    private RegisterCache mRegisters;
+    /** RED to GREEN2 data, 0x50-0x5B. */
+    private final byte[] mDataBuffer = new byte[REG_GREEN2_DATA + 2 - REG_RED_DATA];
+    private final byte[] mThresholdBuffer = new byte[4];
 
     private byte mRange;
     private byte mResolution;
@@ -93,8 +122,7 @@ public class BH1749 implements AutoCloseable {
      * @throws IOException
      */
     public BH1749(String bus) throws IOException {
-        PeripheralManager pioService = PeripheralManager.getInstance();
-        I2cDevice device = pioService.openI2cDevice(bus, I2C_ADDRESS);
+        I2cDevice device = I2cStats.open(bus, I2C_ADDRESS);
         try {
             connect(device);
         } catch (IOException|RuntimeException e) {
@@ -119,7 +147,13 @@ public class BH1749 implements AutoCloseable {
         if (mDevice != null) {
             throw new IllegalStateException("device already connected");
         }
-        mDevice = device;
+        mDevice = ResilientI2cDevice.wrap(device, new ResilientI2cDevice.Probe() {
+            @Override
+            public boolean probe() {
+                return whoAmI();
+            }
+        });
+        mRegisters = new RegisterCache(mDevice);
     }
 
     /**
@@ -132,6 +166,7 @@ public class BH1749 implements AutoCloseable {
                 mDevice.close();
             } finally {
                 mDevice = null;
+                mRegisters = null;
             }
         }
     }
@@ -173,6 +208,7 @@ public class BH1749 implements AutoCloseable {
      */
     public void reset() {
         try {
+            mRegisters.invalidateAll();
             mDevice.writeRegByte(REG_SYSTEM_CONTROL, (byte)0b10000000);
         } catch (IOException e) {
         }
@@ -184,7 +220,7 @@ public class BH1749 implements AutoCloseable {
      */
     public int getIRGain() {
         try {
-            byte value = mDevice.readRegByte(REG_MODE_CONTROL1);
+            byte value = mRegisters.read(REG_MODE_CONTROL1);
             value &= IR_GAIN_MASK;
             return (value >> IR_GAIN_SHIFT);
         } catch (IOException e) {
@@ -198,10 +234,7 @@ public class BH1749 implements AutoCloseable {
      */
     public boolean setIRGain(@IrGain int irGain) {
         try {
-            byte value = mDevice.readRegByte(REG_MODE_CONTROL1);
-            value &= ~(IR_GAIN_MASK);
-            value |= (irGain << IR_GAIN_SHIFT);
-            mDevice.writeRegByte(REG_MODE_CONTROL1, value);
+            mRegisters.update(REG_MODE_CONTROL1, IR_GAIN_MASK, irGain << IR_GAIN_SHIFT);
             return true;
         } catch (IOException e) {
             e.printStackTrace();
@@ -215,7 +248,7 @@ public class BH1749 implements AutoCloseable {
      */
     public int getRGBGain() {
         try {
-            byte value = mDevice.readRegByte(REG_MODE_CONTROL1);
+            byte value = mRegisters.read(REG_MODE_CONTROL1);
             value &= RGB_GAIN_MASK;
             return value >> RGB_GAIN_SHIFT;
         } catch (IOException e) {
@@ -229,10 +262,7 @@ public class BH1749 implements AutoCloseable {
      */
     public boolean setRGBGain(@RgbGain int rgbGain) {
         try {
-            byte value = mDevice.readRegByte(REG_MODE_CONTROL1);
-            value &= ~(RGB_GAIN_MASK);
-            value |= (rgbGain << RGB_GAIN_SHIFT);
-            mDevice.writeRegByte(REG_MODE_CONTROL1, value);
+            mRegisters.update(REG_MODE_CONTROL1, RGB_GAIN_MASK, rgbGain << RGB_GAIN_SHIFT);
             return true;
         } catch (IOException e) {
             e.printStackTrace();
@@ -246,7 +276,7 @@ public class BH1749 implements AutoCloseable {
      */
     public byte getMeasurement() {
         try {
-            byte value = mDevice.readRegByte(REG_MODE_CONTROL1);
+            byte value = mRegisters.read(REG_MODE_CONTROL1);
             value &= MEAS_MASK;
             return value;
         } catch (IOException e) {
@@ -260,10 +290,7 @@ public class BH1749 implements AutoCloseable {
      */
     public boolean setMeasurement(@MeasurementTime int meas) {
         try {
-            byte value = mDevice.readRegByte(REG_MODE_CONTROL1);
-            value &= ~(MEAS_MASK);
-            value |= meas;
-            mDevice.writeRegByte(REG_MODE_CONTROL1, value);
+            mRegisters.update(REG_MODE_CONTROL1, MEAS_MASK, meas);
             return true;
         } catch (IOException e) {
             e.printStackTrace();
@@ -271,6 +298,33 @@ public class BH1749 implements AutoCloseable {
         }
     }
 
+    /**
+     * Get the duration of a measurement time setting.
+     * @param meas measurement time.
+     * @return nanoseconds.
+     */
+    public static long getMeasurementNanos(@MeasurementTime int meas) {
+        switch (meas) {
+            case MEAS_35MS:
+                return 35000000L;
+            case MEAS_120MS:
+                return 120000000L;
+            case MEAS_240MS:
+                return 240000000L;
+            default:
+                throw new IllegalArgumentException("meas " + meas);
+        }
+    }
+
+    /**
+     * Get the amplification of a gain setting, the same for RGB and IR.
+     * @param gain RGB or IR gain.
+     * @return factor relative to x1.
+     */
+    public static int getGainFactor(int gain) {
+        return gain == RGB_GAIN_X32 ? 32 : 1;
+    }
+
     /**
      * Read Measurement Enable
      * @return Measurement enable
@@ -305,6 +359,61 @@ public class BH1749 implements AutoCloseable {
         }
     }
 
+    /**
+     * Set the INT pin.
+     * @param enable interrupt enable.
+     * @param source channel compared against the thresholds.
+     */
+    public boolean setInterrupt(boolean enable, @InterruptSource int source) {
+        try {
+            mDevice.writeRegByte(REG_INTERRUPT,
+                    (byte) (source << INT_SOURCE_SHIFT | (enable ? INT_ENABLE_MASK : 0)));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Set the interrupt persistence.
+     * @param persistence PERSISTENCE_EVERY for data ready, else threshold crossings.
+     */
+    public boolean setPersistence(@Persistence int persistence) {
+        try {
+            mDevice.writeRegByte(REG_PERSISTENCE, (byte) persistence);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Set the thresholds of the interrupt source channel.
+     * @param low lower threshold in counts.
+     * @param high upper threshold in counts.
+     * @throws IOException
+     */
+    public synchronized void setThresholds(int low, int high) throws IOException {
+        byte[] data = mThresholdBuffer;
+        data[0] = (byte) high;
+        data[1] = (byte) (high >> 8);
+        data[2] = (byte) low;
+        data[3] = (byte) (low >> 8);
+        mDevice.writeRegBuffer(REG_TH_HIGH, data, data.length);
+    }
+
+    /**
+     * Read and clear the interrupt status, which releases the INT pin.
+     * @return interrupt was active.
+     * @throws IOException
+     */
+    public boolean clearInterrupt() throws IOException {
+        byte value = mDevice.readRegByte(REG_INTERRUPT);
+        return (value & INT_STATUS_MASK) == INT_STATUS_MASK;
+    }
+
     /**
      * Read VALID Register
      * @return
@@ -319,6 +428,48 @@ public class BH1749 implements AutoCloseable {
         }
     }
 
+    /**
+     * Read all channels of one conversion.
+     * @return red, green, blue, ir, green2, or null when no new conversion is valid.
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public float[] readSample() throws IOException, IllegalStateException {
+        float sample[] = new float[5];
+        return readInto(sample, 0) ? sample : null;
+    }
+
+    /**
+     * Read all channels of one conversion without allocating.
+     * One read of MODE_CONTROL2 for VALID and one burst read of the data registers.
+     * @param out receives red, green, blue, ir, green2.
+     * @param offset index of red in out.
+     * @return false when no new conversion is valid, out is left unchanged.
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public synchronized boolean readInto(float[] out, int offset) throws IOException, IllegalStateException {
+        if (mDevice == null) {
+            throw new IllegalStateException("device not connected");
+        }
+        if (!readValid()) {
+            return false;
+        }
+        byte data_buff[] = mDataBuffer;
+        mDevice.readRegBuffer(REG_RED_DATA, data_buff, data_buff.length);
+        out[offset] = word(data_buff, REG_RED_DATA);
+        out[offset + 1] = word(data_buff, REG_GREEN_DATA);
+        out[offset + 2] = word(data_buff, REG_BLUE_DATA);
+        out[offset + 3] = word(data_buff, REG_IR_DATA);
+        out[offset + 4] = word(data_buff, REG_GREEN2_DATA);
+        return true;
+    }
+
+    private int word(byte[] data, int reg) {
+        int i = reg - REG_RED_DATA;
+        return (data[i] & 0xff) | (data[i + 1] & 0xff) << 8;
+    }
+
     /**
      * Read red data
      * @return
@@ -3,22 +3,27 @@ package io.fabo.driver;
 import android.hardware.Sensor;
 import android.util.Log;
 
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.PeripheralManager;
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
-import com.google.android.things.userdriver.sensor.UserSensorReading;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
-public class BH1749ColorDriver implements AutoCloseable {
+public class BH1749ColorDriver extends FrameworkSensorDriver implements AutoCloseable {
 
     private static final String TAG = BH1749ColorDriver.class.getSimpleName();
     private static final String DRIVER_NAME = "FaBoBH1749";
     private static final String DRIVER_VENDOR = "FaBo";
     private static final int DRIVER_VERSION = 1;
     private BH1749 mDevice;
+    private I2cBusScheduler mScheduler;
     private UserSensor mUserSensor;
+    private Gpio mInterrupt;
+    private float mInterruptDelta;
 
     /**
      * Create a new framework accelerometer driver connected to the given I2C bus.
@@ -28,9 +33,23 @@ public class BH1749ColorDriver implements AutoCloseable {
      * @see #register()
      */
     public BH1749ColorDriver(String bus) throws IOException {
+        super(DRIVER_NAME);
         mDevice = new BH1749(bus);
     }
 
+    /**
+     * Create a new framework driver whose transactions run on the given bus scheduler.
+     * The chip is polled at its conversion rate while the sensor is enabled.
+     * @param scheduler scheduler of the I2C bus.
+     * @throws IOException
+     * @see #register()
+     */
+    public BH1749ColorDriver(I2cBusScheduler scheduler) throws IOException {
+        super(DRIVER_NAME);
+        mDevice = new BH1749(scheduler.open(BH1749.I2C_ADDRESS));
+        mScheduler = scheduler;
+    }
+
     /**
      * Close the driver and the underlying device.
      * @throws IOException
@@ -41,8 +60,13 @@ public class BH1749ColorDriver implements AutoCloseable {
         if (mDevice != null) {
             try {
                 mDevice.close();
+                if (mInterrupt != null) {
+                    mInterrupt.close();
+                }
             } finally {
                 mDevice = null;
+                dropSensorDriver();
+                mInterrupt = null;
             }
         }
     }
@@ -56,7 +80,7 @@ public class BH1749ColorDriver implements AutoCloseable {
             throw new IllegalStateException("cannot registered closed driver");
         }
         if (mUserSensor == null) {
-            mUserSensor = build(mDevice);
+            mUserSensor = build(getSensorDriver());
             UserDriverManager.getInstance().registerSensor(mUserSensor);
         }
     }
@@ -71,7 +95,35 @@ public class BH1749ColorDriver implements AutoCloseable {
         }
     }
 
-    static UserSensor build(final BH1749 bh1749) {
+    /**
+     * Read when the chip signals on its interrupt pin instead of polling it.
+     * Call before register() or startup().
+     * @param gpio name of the GPIO the INT pin is wired to.
+     * @param delta change of green in counts per millisecond to wake up for, 0 for every measurement.
+     * @throws IOException
+     */
+    public void setInterrupt(String gpio, float delta) throws IOException {
+        if (hasSensorDriver()) {
+            throw new IllegalStateException("sensor driver already created");
+        }
+        if (mInterrupt != null) {
+            mInterrupt.close();
+        }
+        mInterrupt = PeripheralManager.getInstance().openGpio(gpio);
+        mInterruptDelta = delta;
+    }
+
+    @Override
+    /*package*/ PolledSensorDriver newSensorDriver() {
+        return driver(mDevice, mScheduler, mInterrupt, mInterruptDelta);
+    }
+
+    @Override
+    /*package*/ boolean isClosed() {
+        return mDevice == null;
+    }
+
+    static UserSensor build(UserSensorDriver driver) {
         return new UserSensor.Builder()
                 .setCustomType(Sensor.TYPE_DEVICE_PRIVATE_BASE,
                         "fabo.io.color",
@@ -80,42 +132,89 @@ public class BH1749ColorDriver implements AutoCloseable {
                 .setVendor(DRIVER_VENDOR)
                 .setVersion(DRIVER_VERSION)
                 .setUuid(UUID.randomUUID())
-                .setDriver(new UserSensorDriver() {
-                    @Override
-                    public UserSensorReading read() throws IOException {
-                        float data[] = {};
-
-                        if(bh1749.readValid()) {
-                            float red = bh1749.readRed();
-                            float green = bh1749.readGreen();
-                            float blue = bh1749.readBlue();
-                            float ir = bh1749.readIR();
-                            float green2 = bh1749.readGreen2();
-                            data = new float[]{red, green, blue, ir, green2};
-                            return new UserSensorReading(data);
-                        }
-
-                        return null;
-                    }
-
-                    @Override
-                    public void setEnabled(boolean enabled) throws IOException {
-                        if (enabled) {
-
-                            bh1749.reset();
-                            if(bh1749.whoAmI()) {
-                                bh1749.setIRGain(BH1749.IR_GAIN_X1);
-                                bh1749.setRGBGain(BH1749.RGB_GAIN_X1);
-                                bh1749.setMeasurement(BH1749.MEAS_240MS);
-                                bh1749.setMeasurementEnable(true);
-                            }
-
-                        } else {
-                            bh1749.setMeasurementEnable(false);
-                            bh1749.reset();
-                        }
-                    }
-                })
+                .setDriver(driver)
                 .build();
     }
+
+    static PolledSensorDriver driver(BH1749 bh1749, I2cBusScheduler scheduler) {
+        return driver(bh1749, scheduler, null, 0);
+    }
+
+    static PolledSensorDriver driver(final BH1749 bh1749, I2cBusScheduler scheduler,
+                                     final Gpio interrupt, final float delta) {
+        final ColorAutoExposure autoExposure = ColorAutoExposure.forBH1749(bh1749);
+        final PolledSensor sensor = new PolledSensor(scheduler, 5, new PolledSensor.AdaptiveSampler() {
+            private int mPersistence = BH1749.PERSISTENCE_EVERY;
+
+            @Override
+            public boolean sample(float[] values) throws IOException {
+                boolean valid = autoExposure.read(values, 0);
+                if (interrupt != null) {
+                    arm(valid ? values[1] : Float.NaN);
+                }
+                return valid;
+            }
+
+            @Override
+            public long getPeriodNanos() {
+                return autoExposure.getCycleNanos();
+            }
+
+            private void arm(float green) throws IOException {
+                int persistence = BH1749.PERSISTENCE_EVERY;
+                if (delta > 0 && !Float.isNaN(green) && !autoExposure.isSettling()) {
+                    // Wake up when green leaves the window around this reading.
+                    int counts = Math.round(autoExposure.toCounts(green));
+                    int window = Math.round(autoExposure.toCounts(delta));
+                    bh1749.setThresholds(Math.max(0, counts - window), Math.min(0xFFFF, counts + window));
+                    persistence = BH1749.PERSISTENCE_1;
+                }
+                if (persistence != mPersistence) {
+                    bh1749.setPersistence(persistence);
+                    mPersistence = persistence;
+                }
+                bh1749.clearInterrupt();
+            }
+        });
+        return new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) throws IOException {
+                if (enabled && interrupt != null) {
+                    sensor.start(bringUp(bh1749, autoExposure, true), interrupt);
+                } else if (enabled) {
+                    sensor.start(bringUp(bh1749, autoExposure, false), 240, TimeUnit.MILLISECONDS);
+                } else {
+                    sensor.stop();
+                    bh1749.setMeasurementEnable(false);
+                    bh1749.reset();
+                }
+            }
+        };
+    }
+
+    /**
+     * Reset, check the part id and start measuring at the auto-exposure's initial setting.
+     * @param bh1749 chip.
+     * @param autoExposure gain and measurement time control.
+     * @param interrupt assert INT at the end of every measurement.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(final BH1749 bh1749, final ColorAutoExposure autoExposure,
+                           final boolean interrupt) {
+        return new BringUp(DRIVER_NAME, 1, TimeUnit.SECONDS) {
+            @Override
+            protected long step(int state) throws IOException {
+                bh1749.reset();
+                if (!bh1749.whoAmI()) {
+                    return FAILED;
+                }
+                if (interrupt) {
+                    bh1749.setPersistence(BH1749.PERSISTENCE_EVERY);
+                    bh1749.setInterrupt(true, BH1749.INT_SOURCE_GREEN);
+                }
+                autoExposure.start();
+                return DONE;
+            }
+        };
+    }
 }
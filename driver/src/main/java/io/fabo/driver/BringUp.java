@@ -0,0 +1,135 @@
+package io.fabo.driver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Power-up sequence of a chip as a state machine.
+ * Each step issues its transactions and returns how long to wait before
+ * the next one, so no thread sleeps while a chip resets or boots. The
+ * sequence is advanced by PolledSensor, on the bus thread when there is a
+ * scheduler and from the framework's reads otherwise.
+ */
+/*package*/ abstract class BringUp {
+    private static final String TAG = BringUp.class.getSimpleName();
+
+    /** Step result: the chip is measuring. */
+    static final long DONE = -1;
+    /** Step result: the chip did not come up. */
+    static final long FAILED = -2;
+
+    /** Delay before a step that threw is tried again. */
+    private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final String mName;
+    private final long mTimeoutNanos;
+    private int mState;
+    private long mStartedAt;
+    private long mDueAt;
+    private long mFinishedAt;
+    private long mResult;
+
+    /**
+     * @param name chip name for the log.
+     * @param timeout time the whole sequence may take.
+     * @param unit unit of timeout.
+     */
+    BringUp(String name, long timeout, TimeUnit unit) {
+        mName = name;
+        mTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Run the transactions of a state. The first state is 0.
+     * @param state current state.
+     * @return nanoseconds until the next step, DONE or FAILED.
+     * @throws IOException the step is tried again.
+     */
+    protected abstract long step(int state) throws IOException;
+
+    /**
+     * Move to another state.
+     * @param state next state.
+     * @param delay time to wait before it.
+     * @param unit unit of delay.
+     * @return delay in nanoseconds, for step to return.
+     */
+    protected final long next(int state, long delay, TimeUnit unit) {
+        mState = state;
+        return unit.toNanos(delay);
+    }
+
+    /**
+     * Run the current state again later, e.g. while polling a ready bit.
+     * @param delay time to wait.
+     * @param unit unit of delay.
+     * @return delay in nanoseconds, for step to return.
+     */
+    protected final long retry(long delay, TimeUnit unit) {
+        return unit.toNanos(delay);
+    }
+
+    /**
+     * Start the sequence from state 0.
+     * @param now current time in nanoseconds.
+     */
+    synchronized void restart(long now) {
+        mState = 0;
+        mStartedAt = now;
+        mDueAt = now;
+        mResult = 0;
+    }
+
+    /**
+     * Run the step that is due.
+     * @param now current time in nanoseconds.
+     * @return nanoseconds until the next step is due, DONE or FAILED.
+     */
+    synchronized long advance(long now) {
+        if (mResult < 0) {
+            return mResult;
+        }
+        if (now - mDueAt < 0) {
+            return mDueAt - now;
+        }
+        if (now - mStartedAt > mTimeoutNanos) {
+            Log.w(TAG, mName + " did not come up in state " + mState);
+            return finish(FAILED, now);
+        }
+        long delay;
+        try {
+            delay = step(mState);
+        } catch (IOException e) {
+            delay = RETRY_NANOS;
+        }
+        if (delay < 0) {
+            return finish(delay, now);
+        }
+        mDueAt = now + delay;
+        return delay;
+    }
+
+    private long finish(long result, long now) {
+        mResult = result;
+        mFinishedAt = now;
+        return result;
+    }
+
+    /**
+     * Check whether the sequence ended, successfully or not.
+     * @return finished or not.
+     */
+    synchronized boolean isFinished() {
+        return mResult < 0;
+    }
+
+    /**
+     * Time the sequence took.
+     * @return nanoseconds from restart to DONE or FAILED, -1 while running.
+     */
+    synchronized long getElapsedNanos() {
+        return mResult < 0 ? mFinishedAt - mStartedAt : -1;
+    }
+}
@@ -1,10 +1,8 @@
 package io.fabo.driver;
 
 import android.support.annotation.IntDef;
-import android.util.Log;
 
 import com.google.android.things.pio.I2cDevice;
-import com.google.android.things.pio.PeripheralManager;
 
 import java.io.IOException;
 
@@ -85,8 +83,13 @@ public class CCS811 implements AutoCloseable {
     public @interface MeasMode {}
 
     private final int MEAS_DRIVE_MODE_MASK = 0b01110000;
+    private final int MEAS_INT_DATARDY = 0b00001000;
+    private final int MEAS_INT_THRESH = 0b00000100;
 
     private I2cDevice mDevice;
+    private final byte[] mAlgResultBuffer = new byte[4];
+    private final byte[] mThresholdBuffer = new byte[5];
+    private RegisterCache mRegisters;
 
     /**
      * Create a new CCS811 driver connected to the given I2C bus.
@@ -94,8 +97,7 @@ public class CCS811 implements AutoCloseable {
      * @throws IOException
      */
     public CCS811(String bus) throws IOException {
-        PeripheralManager pioService = PeripheralManager.getInstance();
-        I2cDevice device = pioService.openI2cDevice(bus, I2C_ADDRESS);
+        I2cDevice device = I2cStats.open(bus, I2C_ADDRESS);
         try {
             connect(device);
         } catch (IOException|RuntimeException e) {
@@ -120,7 +122,13 @@ public class CCS811 implements AutoCloseable {
         if (mDevice != null) {
             throw new IllegalStateException("device already connected");
         }
-        mDevice = device;
+        mDevice = ResilientI2cDevice.wrap(device, new ResilientI2cDevice.Probe() {
+            @Override
+            public boolean probe() {
+                return whoAmI();
+            }
+        });
+        mRegisters = new RegisterCache(mDevice);
     }
 
     /**
@@ -133,6 +141,7 @@ public class CCS811 implements AutoCloseable {
                 mDevice.close();
             } finally {
                 mDevice = null;
+                mRegisters = null;
             }
         }
     }
@@ -160,6 +169,7 @@ public class CCS811 implements AutoCloseable {
     public void reset() {
         try {
             byte reset_cmd[] = {(byte)0x11, (byte)0xE5, (byte)0x72, (byte)0x8A};
+            mRegisters.invalidateAll();
             mDevice.writeRegBuffer(REG_SW_RESET, reset_cmd, reset_cmd.length);
         } catch (IOException e) {
             e.printStackTrace();
@@ -171,6 +181,8 @@ public class CCS811 implements AutoCloseable {
      */
     public void start() {
         try {
+            // Boot and application mode have different register maps.
+            mRegisters.invalidateAll();
             mDevice.write(new byte[]{(byte) REG_APP_START}, 1);
         } catch (IOException e) {
             e.printStackTrace();
@@ -183,45 +195,89 @@ public class CCS811 implements AutoCloseable {
      */
     public void setDriveMode(@MeasMode int mode) {
         try {
-            byte nowMode = mDevice.readRegByte(REG_MEAS_MODE);
-            nowMode = (byte)((nowMode & ~MEAS_DRIVE_MODE_MASK) | mode);
-            mDevice.writeRegByte(REG_MEAS_MODE, nowMode);
-            byte newOne = mDevice.readRegByte(REG_MEAS_MODE);
-            Log.i(TAG, "nowModeFinal=" + newOne);
+            mRegisters.update(REG_MEAS_MODE, MEAS_DRIVE_MODE_MASK, mode);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Set the nINT pin, released by reading the algorithm result.
+     * @param dataReady assert nINT when a new result is ready.
+     * @param threshold only when the eCO2 result crossed a threshold, needs dataReady.
+     */
+    public void setInterrupt(boolean dataReady, boolean threshold) {
+        try {
+            mRegisters.update(REG_MEAS_MODE, MEAS_INT_DATARDY | MEAS_INT_THRESH,
+                    (dataReady ? MEAS_INT_DATARDY : 0) | (threshold ? MEAS_INT_THRESH : 0));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Set the eCO2 thresholds used with a threshold interrupt.
+     * @param lowToMedium boundary of the low and medium range in ppm.
+     * @param mediumToHigh boundary of the medium and high range in ppm.
+     * @param hysteresis ppm a result must go past a boundary.
+     * @throws IOException
+     */
+    public synchronized void setThresholds(int lowToMedium, int mediumToHigh, int hysteresis) throws IOException {
+        byte setData[] = mThresholdBuffer;
+        setData[0] = (byte)((lowToMedium >> 8) & 0xFF);
+        setData[1] = (byte)(lowToMedium & 0xFF);
+        setData[2] = (byte)((mediumToHigh >> 8) & 0xFF);
+        setData[3] = (byte)(mediumToHigh & 0xFF);
+        setData[4] = (byte)(hysteresis & 0xFF);
+        mDevice.writeRegBuffer(REG_THRESHOLDS, setData, setData.length);
+    }
+
     /**
      * Get baseline.
-     * @return
+     * @return baseline, 0 when it cannot be read.
      */
     public int getBaseLine() {
         try {
-            byte base_buff[] = new byte[2];
-            mDevice.readRegBuffer(REG_BASELINE, base_buff, base_buff.length);
-            return (int)((base_buff[0] << 8) | base_buff[1]);
+            return readBaseline();
         } catch (IOException e) {
             e.printStackTrace();
             return 0;
         }
     }
 
+    /**
+     * Read the baseline, telling a failure apart from a value.
+     * @return encoded baseline.
+     * @throws IOException
+     */
+    public int readBaseline() throws IOException {
+        byte base_buff[] = new byte[2];
+        mDevice.readRegBuffer(REG_BASELINE, base_buff, base_buff.length);
+        return ((base_buff[0] & 0xFF) << 8) | (base_buff[1] & 0xFF);
+    }
+
     /**
      * Check status
-     * @return status.
+     * @return status, 0 when it cannot be read.
      */
     public byte getStatus() {
         try {
-            byte status = mDevice.readRegByte(REG_STATUS);
-            return status;
+            return readStatus();
         } catch (IOException e) {
             e.printStackTrace();
             return 0;
         }
     }
 
+    /**
+     * Read the status register, telling a failure apart from a status of 0.
+     * @return status.
+     * @throws IOException
+     */
+    public byte readStatus() throws IOException {
+        return mDevice.readRegByte(REG_STATUS);
+    }
+
     /**
      * Check status
      * @return status.
@@ -240,6 +296,24 @@ public class CCS811 implements AutoCloseable {
         }
     }
 
+    /**
+     * Check whether a valid application firmware is loaded.
+     * @return valid or not.
+     * @throws IOException
+     */
+    public boolean isAppValid() throws IOException {
+        return (readStatus() & STATUS_APP_VALID_LOAD) == STATUS_APP_VALID_LOAD;
+    }
+
+    /**
+     * Check whether the application firmware is running, after start().
+     * @return app mode or not.
+     * @throws IOException
+     */
+    public boolean isAppMode() throws IOException {
+        return (readStatus() & STATUS_MODE_APP) == STATUS_MODE_APP;
+    }
+
     /**
      * Check Error
      * @return error.
@@ -339,15 +413,25 @@ public class CCS811 implements AutoCloseable {
      * @throws IllegalStateException
      */
     public float[] getAlgResultData() throws IOException, IllegalStateException {
+        float data[] = new float[2];
+        readInto(data, 0);
+        return data;
+    }
+
+    /**
+     * Get alg result data without allocating.
+     * @param out receives co2, voc.
+     * @param offset index of co2 in out.
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public synchronized void readInto(float[] out, int offset) throws IOException, IllegalStateException {
         if (mDevice == null) {
             throw new IllegalStateException("device not connected");
         }
-        byte alg_buff[] = new byte[4];
+        byte alg_buff[] = mAlgResultBuffer;
         mDevice.readRegBuffer(REG_ALG_RESULT_DATA, alg_buff, alg_buff.length);
-        int co2Value = ((alg_buff[0] & 0xff)<< 8) | alg_buff[1] & 0xff;
-        int vocValue = ((alg_buff[2] & 0xff) << 8) | alg_buff[3] & 0xff;
-        return new float[]{
-                co2Value, vocValue
-        };
+        out[offset] = ((alg_buff[0] & 0xff) << 8) | alg_buff[1] & 0xff;
+        out[offset + 1] = ((alg_buff[2] & 0xff) << 8) | alg_buff[3] & 0xff;
     }
 }
@@ -3,22 +3,27 @@ package io.fabo.driver;
 import android.hardware.Sensor;
 import android.util.Log;
 
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.PeripheralManager;
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
-import com.google.android.things.userdriver.sensor.UserSensorReading;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
-public class CCS811Co2Driver implements AutoCloseable {
+public class CCS811Co2Driver extends FrameworkSensorDriver implements AutoCloseable {
 
     private static final String TAG = CCS811Co2Driver.class.getSimpleName();
     private static final String DRIVER_NAME = "FaBoCCS811";
     private static final String DRIVER_VENDOR = "GClue";
     private static final int DRIVER_VERSION = 1;
     private CCS811 mDevice;
+    private I2cBusScheduler mScheduler;
     private UserSensor mUserSensor;
+    private Gpio mInterrupt;
+    private float mInterruptDelta;
 
     /**
      * Create a new framework accelerometer driver connected to the given I2C bus.
@@ -28,9 +33,23 @@ public class CCS811Co2Driver implements AutoCloseable {
      * @see #register()
      */
     public CCS811Co2Driver(String bus) throws IOException {
+        super(DRIVER_NAME);
         mDevice = new CCS811(bus);
     }
 
+    /**
+     * Create a new framework driver whose transactions run on the given bus scheduler.
+     * The chip is polled at its conversion rate while the sensor is enabled.
+     * @param scheduler scheduler of the I2C bus.
+     * @throws IOException
+     * @see #register()
+     */
+    public CCS811Co2Driver(I2cBusScheduler scheduler) throws IOException {
+        super(DRIVER_NAME);
+        mDevice = new CCS811(scheduler.open(CCS811.I2C_ADDRESS));
+        mScheduler = scheduler;
+    }
+
     /**
      * Close the driver and the underlying device.
      * @throws IOException
@@ -41,8 +60,13 @@ public class CCS811Co2Driver implements AutoCloseable {
         if (mDevice != null) {
             try {
                 mDevice.close();
+                if (mInterrupt != null) {
+                    mInterrupt.close();
+                }
             } finally {
                 mDevice = null;
+                dropSensorDriver();
+                mInterrupt = null;
             }
         }
     }
@@ -56,7 +80,7 @@ public class CCS811Co2Driver implements AutoCloseable {
             throw new IllegalStateException("cannot registered closed driver");
         }
         if (mUserSensor == null) {
-            mUserSensor = build(mDevice);
+            mUserSensor = build(getSensorDriver());
             UserDriverManager.getInstance().registerSensor(mUserSensor);
         }
     }
@@ -71,7 +95,35 @@ public class CCS811Co2Driver implements AutoCloseable {
         }
     }
 
-    static UserSensor build(final CCS811 ccs811) {
+    /**
+     * Read when the chip signals on its interrupt pin instead of polling it.
+     * Call before register() or startup().
+     * @param gpio name of the GPIO the nINT pin is wired to.
+     * @param delta change of eCO2 in ppm to wake up for, 0 for every result.
+     * @throws IOException
+     */
+    public void setInterrupt(String gpio, float delta) throws IOException {
+        if (hasSensorDriver()) {
+            throw new IllegalStateException("sensor driver already created");
+        }
+        if (mInterrupt != null) {
+            mInterrupt.close();
+        }
+        mInterrupt = PeripheralManager.getInstance().openGpio(gpio);
+        mInterruptDelta = delta;
+    }
+
+    @Override
+    /*package*/ PolledSensorDriver newSensorDriver() {
+        return driver(mDevice, mScheduler, mInterrupt, mInterruptDelta);
+    }
+
+    @Override
+    /*package*/ boolean isClosed() {
+        return mDevice == null;
+    }
+
+    static UserSensor build(UserSensorDriver driver) {
         return new UserSensor.Builder()
                 .setCustomType(Sensor.TYPE_DEVICE_PRIVATE_BASE,
                         "fabo.io.co2",
@@ -80,47 +132,98 @@ public class CCS811Co2Driver implements AutoCloseable {
                 .setVendor(DRIVER_VENDOR)
                 .setVersion(DRIVER_VERSION)
                 .setUuid(UUID.randomUUID())
-                .setDriver(new UserSensorDriver() {
-                    @Override
-                    public UserSensorReading read() throws IOException {
-                        float[] sample = ccs811.getAlgResultData();
-                        return new UserSensorReading(sample);
-                    }
-
-                    @Override
-                    public void setEnabled(boolean enabled) throws IOException {
-
-                        if (enabled) {
-                            ccs811.reset();
-                            delay(100);
-
-                            if(ccs811.whoAmI()) {
-                                ccs811.start();
-                                delay(100);
-
-                                if (ccs811.checkError()) {
-                                    Log.i(TAG, "error:" + ccs811.getErrorDetail(ccs811.getError()));
-                                }
-
-                                if (ccs811.checkStatus()) {
-                                    Log.i(TAG, "app is no valid");
-                                }
-
-                                ccs811.setDriveMode(CCS811.MEAS_DRIVE_MODE_1);
-                            }
-                        } else {
-                            ccs811.setDriveMode(CCS811.MEAS_DRIVE_MODE_0);
-                        }
-                    }
-                })
+                .setDriver(driver)
                 .build();
     }
 
-    private static void delay(int time) {
-        try {
-            Thread.sleep(time);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    static PolledSensorDriver driver(CCS811 ccs811, I2cBusScheduler scheduler) {
+        return driver(ccs811, scheduler, null, 0);
+    }
+
+    static PolledSensorDriver driver(final CCS811 ccs811, I2cBusScheduler scheduler,
+                                     final Gpio interrupt, final float delta) {
+        final PolledSensor sensor = new PolledSensor(scheduler, 2, new PolledSensor.Sampler() {
+            @Override
+            public boolean sample(float[] values) throws IOException {
+                // Reading the result releases nINT.
+                ccs811.readInto(values, 0);
+                if (interrupt != null && delta > 0) {
+                    // Wake up when eCO2 leaves the window around this result.
+                    int eco2 = Math.round(values[0]);
+                    int window = Math.round(delta);
+                    ccs811.setThresholds(Math.max(0, eco2 - window), eco2 + window, 0);
+                    ccs811.setInterrupt(true, true);
+                }
+                return true;
+            }
+        });
+        return new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) throws IOException {
+                if (enabled && interrupt != null) {
+                    sensor.start(bringUp(ccs811, true), interrupt);
+                } else if (enabled) {
+                    // Drive mode 1 measures every second.
+                    sensor.start(bringUp(ccs811, false), 1, TimeUnit.SECONDS);
+                } else {
+                    sensor.stop();
+                    ccs811.setDriveMode(CCS811.MEAS_DRIVE_MODE_0);
+                }
+            }
+        };
+    }
+
+    /**
+     * Reset, start the application firmware and enter drive mode 1.
+     * Polls the STATUS bits instead of sleeping through the boot times.
+     * @param ccs811 chip.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(CCS811 ccs811) {
+        return bringUp(ccs811, false);
+    }
+
+    /**
+     * Reset, start the application firmware and enter drive mode 1.
+     * @param ccs811 chip.
+     * @param interrupt assert nINT for every result.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(final CCS811 ccs811, final boolean interrupt) {
+        return new BringUp(DRIVER_NAME, 1, TimeUnit.SECONDS) {
+            private static final int RESET = 0;
+            private static final int BOOT = 1;
+            private static final int APP = 2;
+
+            @Override
+            protected long step(int state) throws IOException {
+                switch (state) {
+                    case RESET:
+                        ccs811.reset();
+                        // The boot loader answers 2ms after reset.
+                        return next(BOOT, 2, TimeUnit.MILLISECONDS);
+                    case BOOT:
+                        if (!ccs811.whoAmI() || !ccs811.isAppValid()) {
+                            return retry(2, TimeUnit.MILLISECONDS);
+                        }
+                        ccs811.start();
+                        return next(APP, 1, TimeUnit.MILLISECONDS);
+                    case APP:
+                        if (!ccs811.isAppMode()) {
+                            return retry(1, TimeUnit.MILLISECONDS);
+                        }
+                        if (ccs811.checkError()) {
+                            Log.i(TAG, "error:" + ccs811.getErrorDetail(ccs811.getError()));
+                        }
+                        ccs811.setDriveMode(CCS811.MEAS_DRIVE_MODE_1);
+                        if (interrupt) {
+                            ccs811.setInterrupt(true, false);
+                        }
+                        return DONE;
+                    default:
+                        return FAILED;
+                }
+            }
+        };
     }
 }
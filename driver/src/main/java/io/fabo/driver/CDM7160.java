@@ -4,7 +4,6 @@ import android.support.annotation.IntDef;
 import android.util.Log;
 
 import com.google.android.things.pio.I2cDevice;
-import com.google.android.things.pio.PeripheralManager;
 
 import java.io.IOException;
 
@@ -66,8 +65,7 @@ public class CDM7160 implements AutoCloseable {
      * @throws IOException
      */
     public CDM7160(String bus) throws IOException {
-        PeripheralManager pioService = PeripheralManager.getInstance();
-        I2cDevice device = pioService.openI2cDevice(bus, (byte)I2C_ADDRESS);
+        I2cDevice device = I2cStats.open(bus, I2C_ADDRESS);
         try {
             connect(device);
         } catch (IOException|RuntimeException e) {
@@ -92,7 +90,7 @@ public class CDM7160 implements AutoCloseable {
         if (mDevice != null) {
             throw new IllegalStateException("device already connected");
         }
-        mDevice = device;
+        mDevice = ResilientI2cDevice.wrap(device, null);
     }
 
     /**
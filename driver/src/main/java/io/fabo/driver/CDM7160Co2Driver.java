@@ -5,18 +5,19 @@ import android.hardware.Sensor;
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
-import com.google.android.things.userdriver.sensor.UserSensorReading;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
-public class CDM7160Co2Driver implements AutoCloseable {
+public class CDM7160Co2Driver extends FrameworkSensorDriver implements AutoCloseable {
 
     private static final String TAG = CDM7160Co2Driver.class.getSimpleName();
     private static final String DRIVER_NAME = "FaBoCDM7160";
     private static final String DRIVER_VENDOR = "GClue";
     private static final int DRIVER_VERSION = 1;
     private CDM7160 mDevice;
+    private I2cBusScheduler mScheduler;
     private UserSensor mUserSensor;
 
     /**
@@ -27,9 +28,23 @@ public class CDM7160Co2Driver implements AutoCloseable {
      * @see #register()
      */
     public CDM7160Co2Driver(String bus) throws IOException {
+        super(DRIVER_NAME);
         mDevice = new CDM7160(bus);
     }
 
+    /**
+     * Create a new framework driver whose transactions run on the given bus scheduler.
+     * The chip is polled at its conversion rate while the sensor is enabled.
+     * @param scheduler scheduler of the I2C bus.
+     * @throws IOException
+     * @see #register()
+     */
+    public CDM7160Co2Driver(I2cBusScheduler scheduler) throws IOException {
+        super(DRIVER_NAME);
+        mDevice = new CDM7160(scheduler.open(CDM7160.I2C_ADDRESS));
+        mScheduler = scheduler;
+    }
+
     /**
      * Close the driver and the underlying device.
      * @throws IOException
@@ -42,6 +57,7 @@ public class CDM7160Co2Driver implements AutoCloseable {
                 mDevice.close();
             } finally {
                 mDevice = null;
+                dropSensorDriver();
             }
         }
     }
@@ -55,7 +71,7 @@ public class CDM7160Co2Driver implements AutoCloseable {
             throw new IllegalStateException("cannot registered closed driver");
         }
         if (mUserSensor == null) {
-            mUserSensor = build(mDevice);
+            mUserSensor = build(getSensorDriver());
             UserDriverManager.getInstance().registerSensor(mUserSensor);
         }
     }
@@ -70,7 +86,17 @@ public class CDM7160Co2Driver implements AutoCloseable {
         }
     }
 
-    static UserSensor build(final CDM7160 cdm7160) {
+    @Override
+    /*package*/ PolledSensorDriver newSensorDriver() {
+        return driver(mDevice, mScheduler);
+    }
+
+    @Override
+    /*package*/ boolean isClosed() {
+        return mDevice == null;
+    }
+
+    static UserSensor build(UserSensorDriver driver) {
         return new UserSensor.Builder()
                 .setCustomType(Sensor.TYPE_DEVICE_PRIVATE_BASE,
                         "fabo.io.co2",
@@ -79,27 +105,45 @@ public class CDM7160Co2Driver implements AutoCloseable {
                 .setVendor(DRIVER_VENDOR)
                 .setVersion(DRIVER_VERSION)
                 .setUuid(UUID.randomUUID())
-                .setDriver(new UserSensorDriver() {
-                    @Override
-                    public UserSensorReading read() throws IOException {
-                        //if(!cdm7160.checkBusy()) {
-                            float co2 = cdm7160.readCo2();
-                            float data[] = new float[]{co2};
-                            return new UserSensorReading(data);
-                        //}
-                        //return null;
-                    }
-
-                    @Override
-                    public void setEnabled(boolean enabled) throws IOException {
-                        if (enabled) {
-                            cdm7160.reset();
-                            cdm7160.setControl(CDM7160.MODE_CONTINUS);
-                        } else {
-                            cdm7160.setControl(CDM7160.MODE_POWER_DOWN);
-                        }
-                    }
-                })
+                .setDriver(driver)
                 .build();
     }
+
+    static PolledSensorDriver driver(final CDM7160 cdm7160, I2cBusScheduler scheduler) {
+        final PolledSensor sensor = new PolledSensor(scheduler, 1, new PolledSensor.Sampler() {
+            @Override
+            public boolean sample(float[] values) throws IOException {
+                values[0] = cdm7160.readCo2();
+                return true;
+            }
+        });
+        return new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) throws IOException {
+                if (enabled) {
+                    // Continuous mode updates every two seconds.
+                    sensor.start(bringUp(cdm7160), 2, TimeUnit.SECONDS);
+                } else {
+                    sensor.stop();
+                    cdm7160.setControl(CDM7160.MODE_POWER_DOWN);
+                }
+            }
+        };
+    }
+
+    /**
+     * Reset and start continuous measurement.
+     * @param cdm7160 chip.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(final CDM7160 cdm7160) {
+        return new BringUp(DRIVER_NAME, 1, TimeUnit.SECONDS) {
+            @Override
+            protected long step(int state) throws IOException {
+                cdm7160.reset();
+                cdm7160.setControl(CDM7160.MODE_CONTINUS);
+                return DONE;
+            }
+        };
+    }
 }
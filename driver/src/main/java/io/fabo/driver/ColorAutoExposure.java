@@ -0,0 +1,261 @@
+package io.fabo.driver;
+
+import java.io.IOException;
+
+/**
+ * Automatic gain and integration time for the colour sensors.
+ * Every gain and integration time pair of a chip is an exposure, ordered by
+ * gain times integration. After each reading the brightest channel picks
+ * the next one: the longest exposure that keeps it below 70% of full scale
+ * for the best signal to noise, stepping down as soon as it reaches 90% and
+ * up only when the next exposure would read below 50%. In bright light
+ * this ends at the shortest integration, e.g. 35ms instead of 240ms cycles
+ * on the BH1749.
+ * Readings are normalised to counts per millisecond at the lowest gain, so
+ * they stay continuous across changes.
+ */
+public abstract class ColorAutoExposure {
+    private static final String TAG = ColorAutoExposure.class.getSimpleName();
+
+    private static final int FULL_SCALE = 0xFFFF;
+    private static final float SATURATION = 0.9f;
+    private static final float TARGET = 0.7f;
+    private static final float STEP_UP = 0.5f;
+
+    private final int mSequential;
+    private final float[] mGains;
+    private final long[] mIntegrationNanos;
+    /** Exposures in ascending order, gain index * times + time index. */
+    private final int[] mExposures;
+    private final float[] mRaw;
+    private final int mInitial;
+    private int mExposure;
+    private boolean mSettling;
+
+    /**
+     * Create a new controller.
+     * @param channels channels per reading.
+     * @param sequential channels integrated one after another in a cycle.
+     * @param gains amplification of each gain setting.
+     * @param integrationNanos integration time of each time setting.
+     * @param gain gain setting to start from.
+     * @param time time setting to start from.
+     */
+    /*package*/ ColorAutoExposure(int channels, int sequential, float[] gains, long[] integrationNanos,
+                                 int gain, int time) {
+        mSequential = sequential;
+        mGains = gains;
+        mIntegrationNanos = integrationNanos;
+        mRaw = new float[channels];
+        mExposures = new int[gains.length * integrationNanos.length];
+        for (int i = 0; i < mExposures.length; i++) {
+            // Insertion sort, equal exposures prefer the shorter integration.
+            int exposure = i;
+            int j = i;
+            while (j > 0 && value(mExposures[j - 1]) > value(exposure)) {
+                mExposures[j] = mExposures[j - 1];
+                j--;
+            }
+            mExposures[j] = exposure;
+        }
+        int initial = 0;
+        while (mExposures[initial] != gain * integrationNanos.length + time) {
+            initial++;
+        }
+        mInitial = initial;
+    }
+
+    /**
+     * Apply a gain and integration time and restart the measurement.
+     * @param gain gain setting.
+     * @param time time setting.
+     * @throws IOException
+     */
+    protected abstract void apply(int gain, int time) throws IOException;
+
+    /**
+     * Read raw counts of every channel.
+     * @param raw receives the counts.
+     * @return false when no new reading is available.
+     * @throws IOException
+     */
+    protected abstract boolean readRaw(float[] raw) throws IOException;
+
+    /**
+     * Start from the initial exposure.
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        select(mInitial);
+    }
+
+    /**
+     * Read the latest cycle and adjust the exposure for the next one.
+     * @param out receives counts per millisecond of every channel.
+     * @param offset index of the first channel in out.
+     * @return false when there is no new reading, for the first reading after
+     * a change, or when a shorter exposure is needed because a channel saturated.
+     * @throws IOException
+     */
+    public synchronized boolean read(float[] out, int offset) throws IOException {
+        float[] raw = mRaw;
+        if (!readRaw(raw)) {
+            return false;
+        }
+        if (mSettling) {
+            // May still hold a cycle at the previous exposure.
+            mSettling = false;
+            return false;
+        }
+        float max = 0;
+        for (float counts : raw) {
+            max = Math.max(max, counts);
+        }
+        float current = value(mExposures[mExposure]);
+        boolean valid = max < FULL_SCALE || mExposure == 0;
+        if (valid) {
+            for (int i = 0; i < raw.length; i++) {
+                out[offset + i] = raw[i] / current;
+            }
+        }
+
+        float fraction = max / FULL_SCALE;
+        int next = mExposure;
+        if (fraction >= SATURATION) {
+            while (next > 0 && fraction * value(mExposures[next]) / current > TARGET) {
+                next--;
+            }
+        } else if (next + 1 < mExposures.length
+                && fraction * value(mExposures[next + 1]) / current < STEP_UP) {
+            while (next + 1 < mExposures.length
+                    && fraction * value(mExposures[next + 1]) / current <= TARGET) {
+                next++;
+            }
+        }
+        if (next != mExposure) {
+            select(next);
+        }
+        return valid;
+    }
+
+    /**
+     * Get the duration of a measurement cycle at the current exposure, the period to read at.
+     * @return nanoseconds.
+     */
+    public synchronized long getCycleNanos() {
+        return mSequential * mIntegrationNanos[mExposures[mExposure] % mIntegrationNanos.length];
+    }
+
+    /**
+     * Check whether the exposure just changed, so the next reading is dropped.
+     * @return settling or not.
+     */
+    public synchronized boolean isSettling() {
+        return mSettling;
+    }
+
+    /**
+     * Convert a normalised reading to raw counts at the current exposure, e.g. for thresholds.
+     * @param value counts per millisecond.
+     * @return counts.
+     */
+    public synchronized float toCounts(float value) {
+        return value * value(mExposures[mExposure]);
+    }
+
+    /**
+     * Get the current gain setting.
+     * @return gain index.
+     */
+    public synchronized int getGain() {
+        return mExposures[mExposure] / mIntegrationNanos.length;
+    }
+
+    /**
+     * Get the current time setting.
+     * @return time index.
+     */
+    public synchronized int getTime() {
+        return mExposures[mExposure] % mIntegrationNanos.length;
+    }
+
+    private void select(int index) throws IOException {
+        mExposure = index;
+        mSettling = true;
+        int exposure = mExposures[index];
+        apply(exposure / mIntegrationNanos.length, exposure % mIntegrationNanos.length);
+    }
+
+    /** Gain times integration in milliseconds. */
+    private float value(int exposure) {
+        return mGains[exposure / mIntegrationNanos.length]
+                * mIntegrationNanos[exposure % mIntegrationNanos.length] / 1e6f;
+    }
+
+    /**
+     * Create a controller for the BH1749, RGB and IR share the gain.
+     * Readings are red, green, blue, ir, green2.
+     * @param bh1749 chip.
+     * @return controller starting at x1 and 240ms.
+     */
+    public static ColorAutoExposure forBH1749(final BH1749 bh1749) {
+        final int[] gains = {BH1749.RGB_GAIN_X1, BH1749.RGB_GAIN_X32};
+        final int[] times = {BH1749.MEAS_35MS, BH1749.MEAS_120MS, BH1749.MEAS_240MS};
+        float[] factors = new float[gains.length];
+        for (int i = 0; i < gains.length; i++) {
+            factors[i] = BH1749.getGainFactor(gains[i]);
+        }
+        long[] nanos = new long[times.length];
+        for (int i = 0; i < times.length; i++) {
+            nanos[i] = BH1749.getMeasurementNanos(times[i]);
+        }
+        return new ColorAutoExposure(5, 1, factors, nanos, 0, 2) {
+            @Override
+            protected void apply(int gain, int time) {
+                // Toggling RGB_EN restarts the measurement and clears VALID.
+                bh1749.setMeasurementEnable(false);
+                bh1749.setRGBGain(gains[gain]);
+                bh1749.setIRGain(gains[gain]);
+                bh1749.setMeasurement(times[time]);
+                bh1749.setMeasurementEnable(true);
+            }
+
+            @Override
+            protected boolean readRaw(float[] raw) throws IOException {
+                return bh1749.readInto(raw, 0);
+            }
+        };
+    }
+
+    /**
+     * Create a controller for the S11059 in fixed time mode.
+     * Readings are red, green, blue, ir.
+     * @param s11059 chip.
+     * @return controller starting at high gain and 22.4ms per channel.
+     */
+    public static ColorAutoExposure forS11059(final S11059 s11059) {
+        int[] gains = {S11059.GAIN_LOW, S11059.GAIN_HIGH};
+        int[] times = {S11059.TIME_87_5US, S11059.TIME_1_4MS, S11059.TIME_22_4MS, S11059.TIME_179_2MS};
+        float[] factors = new float[gains.length];
+        for (int i = 0; i < gains.length; i++) {
+            factors[i] = S11059.getGainFactor(gains[i]);
+        }
+        long[] nanos = new long[times.length];
+        for (int i = 0; i < times.length; i++) {
+            nanos[i] = S11059.getIntegrationNanos(times[i]);
+        }
+        return new ColorAutoExposure(4, 4, factors, nanos, 1, 2) {
+            @Override
+            protected void apply(int gain, int time) {
+                // Indices are the register values.
+                s11059.setControl(gain, time);
+            }
+
+            @Override
+            protected boolean readRaw(float[] raw) throws IOException {
+                s11059.readInto(raw, 0);
+                return true;
+            }
+        };
+    }
+}
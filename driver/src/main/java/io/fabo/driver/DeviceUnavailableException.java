@@ -0,0 +1,20 @@
+package io.fabo.driver;
+
+import java.io.IOException;
+
+/**
+ * Thrown without touching the bus while a device that kept failing is
+ * considered dead. The device is probed now and then and used again once
+ * it answers.
+ */
+public class DeviceUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message device and state.
+     */
+    public DeviceUnavailableException(String message) {
+        super(message);
+    }
+}
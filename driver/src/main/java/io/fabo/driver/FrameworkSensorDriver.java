@@ -0,0 +1,97 @@
+package io.fabo.driver;
+
+/**
+ * Common part of the framework drivers: the PolledSensorDriver behind the
+ * UserSensor, created on first use, where its samples go, and joining a
+ * parallel startup. Subclasses create the chip specific sensor driver.
+ */
+public abstract class FrameworkSensorDriver {
+
+    private final String mName;
+    private PolledSensorDriver mSensorDriver;
+    private SampleHistory mHistory;
+    private SampleLog mLog;
+    private SampleRollup mRollup;
+
+    /*package*/ FrameworkSensorDriver(String name) {
+        mName = name;
+    }
+
+    /**
+     * Create the sensor driver of the chip.
+     * @return sensor driver.
+     */
+    /*package*/ abstract PolledSensorDriver newSensorDriver();
+
+    /**
+     * Check whether the chip was closed.
+     * @return closed or not.
+     */
+    /*package*/ abstract boolean isClosed();
+
+    /**
+     * Keep the samples in a history, e.g. for a chart or to export them.
+     * @param history history with one channel per value, or null to stop.
+     */
+    public void setHistory(SampleHistory history) {
+        mHistory = history;
+        if (mSensorDriver != null) {
+            mSensorDriver.mSensor.setHistory(history);
+        }
+    }
+
+    /**
+     * Store the samples, e.g. in a SampleStore on the SD card.
+     * @param log log with one channel per value, or null to stop.
+     */
+    public void setLog(SampleLog log) {
+        mLog = log;
+        if (mSensorDriver != null) {
+            mSensorDriver.mSensor.setLog(log);
+        }
+    }
+
+    /**
+     * Keep per-second, per-minute and per-hour aggregates of the samples.
+     * @param rollup rollup with one channel per value, or null to stop.
+     */
+    public void setRollup(SampleRollup rollup) {
+        mRollup = rollup;
+        if (mSensorDriver != null) {
+            mSensorDriver.mSensor.setRollup(rollup);
+        }
+    }
+
+    /**
+     * Bring the sensor up as part of a parallel startup, ahead of the framework enabling it.
+     * @param startup startup to join.
+     * @param dependsOn names of sensors that must deliver a sample first.
+     */
+    public void startup(SensorStartup startup, String... dependsOn) {
+        if (isClosed()) {
+            throw new IllegalStateException("cannot start closed driver");
+        }
+        startup.add(mName, getSensorDriver(), dependsOn);
+    }
+
+    /*package*/ PolledSensorDriver getSensorDriver() {
+        if (mSensorDriver == null) {
+            mSensorDriver = newSensorDriver();
+            mSensorDriver.mSensor.setHistory(mHistory);
+            mSensorDriver.mSensor.setLog(mLog);
+            mSensorDriver.mSensor.setRollup(mRollup);
+        }
+        return mSensorDriver;
+    }
+
+    /*package*/ boolean hasSensorDriver() {
+        return mSensorDriver != null;
+    }
+
+    /**
+     * Forget the sensor driver once the chip is closed.
+     */
+    /*package*/ void dropSensorDriver() {
+        mSensorDriver = null;
+    }
+}
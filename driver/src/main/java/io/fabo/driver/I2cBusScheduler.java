@@ -0,0 +1,492 @@
+package io.fabo.driver;
+
+import android.util.Log;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns all transactions of one I2C bus.
+ * Devices opened through the scheduler run every transaction on a single
+ * bus thread, and sensors poll on that thread at their own conversion
+ * rate, ordered by deadline. Transactions from other threads are run
+ * ahead of polls that are not yet due.
+ * The channels of a TCA9548A multiplexer are schedulers of their own that
+ * share the bus thread; among the jobs that are due, those on the channel
+ * the multiplexer already selected run first to save switching.
+ */
+public class I2cBusScheduler implements AutoCloseable {
+    private static final String TAG = I2cBusScheduler.class.getSimpleName();
+
+    /**
+     * Shortest poll period, keeps a fast converting chip from taking the whole bus.
+     */
+    public static final long DEFAULT_MIN_PERIOD_MILLIS = 10;
+
+    /**
+     * Work run periodically on the bus thread.
+     */
+    public interface PollTask {
+        void poll() throws IOException;
+    }
+
+    /**
+     * Jobs due this soon may run before a due job on another channel of the same multiplexer.
+     */
+    private static final long CHANNEL_GROUP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String mBus;
+    private final PriorityQueue<Job> mQueue;
+    private final Thread mThread;
+    /** Scheduler of the physical bus, this one unless this is a multiplexer channel. */
+    private final I2cBusScheduler mRoot;
+    private final TCA9548A mMux;
+    private final int mChannel;
+    /** Multiplexers on the bus, only on the scheduler of the bus; replaced, never changed. */
+    private volatile TCA9548A[] mMuxes = new TCA9548A[0];
+    /** Set on the bus thread while multiplexers are switched. */
+    private boolean mRouting;
+    private long mMinPeriodNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MIN_PERIOD_MILLIS);
+    private long mSequence;
+    private boolean mClosed;
+
+    /**
+     * Create a new scheduler for the given I2C bus.
+     * @param bus bus name, e.g. "I2C1".
+     */
+    public I2cBusScheduler(String bus) {
+        mBus = bus;
+        mQueue = new PriorityQueue<>();
+        mRoot = this;
+        mMux = null;
+        mChannel = -1;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG + "-" + bus);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Create a scheduler for a channel of a multiplexer, sharing the bus thread.
+     * @param root scheduler of the bus the multiplexer is on.
+     * @param mux multiplexer.
+     * @param channel channel.
+     */
+    /*package*/ I2cBusScheduler(I2cBusScheduler root, TCA9548A mux, int channel) {
+        mBus = root.mBus + "/0x" + Integer.toHexString(mux.getAddress()) + "." + channel;
+        mQueue = root.mQueue;
+        mRoot = root;
+        mMux = mux;
+        mChannel = channel;
+        mThread = root.mThread;
+    }
+
+    /**
+     * Get the bus name.
+     * @return bus, e.g. "I2C1/0x70.3" for channel 3 of a multiplexer at 0x70.
+     */
+    public String getBus() {
+        return mBus;
+    }
+
+    /**
+     * Get the scheduler of the physical bus.
+     * @return this, or the bus scheduler of a multiplexer channel.
+     */
+    /*package*/ I2cBusScheduler getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * Set the shortest poll period.
+     * @param period period.
+     * @param unit unit of period.
+     */
+    public void setMinPeriod(long period, TimeUnit unit) {
+        synchronized (mQueue) {
+            mRoot.mMinPeriodNanos = unit.toNanos(period);
+        }
+    }
+
+    /**
+     * Open a device on the bus. All its transactions run on the bus thread
+     * and are recorded in the I2cStats of the device.
+     * @param address 7bit slave address.
+     * @return device.
+     * @throws IOException
+     */
+    public I2cDevice open(int address) throws IOException {
+        if (mMux != null) {
+            return attach(mMux.openDevice(mChannel, address));
+        }
+        return attach(I2cStats.open(mBus, address));
+    }
+
+    /**
+     * Route an already opened device through the bus thread.
+     * @param device device.
+     * @return scheduled device.
+     */
+    /*package*/ I2cDevice attach(I2cDevice device) {
+        return new ScheduledI2cDevice(this, new MuxedI2cDevice(mRoot, mMux, mChannel, device));
+    }
+
+    /*package*/ synchronized void addMux(TCA9548A mux) {
+        TCA9548A[] muxes = Arrays.copyOf(mMuxes, mMuxes.length + 1);
+        muxes[muxes.length - 1] = mux;
+        mMuxes = muxes;
+    }
+
+    /*package*/ synchronized void removeMux(TCA9548A mux) {
+        List<TCA9548A> muxes = new ArrayList<>(Arrays.asList(mMuxes));
+        muxes.remove(mux);
+        mMuxes = muxes.toArray(new TCA9548A[muxes.size()]);
+    }
+
+    /**
+     * Connect a device before its transaction: select its channel, and
+     * switch off every other multiplexer on the bus. Runs on the bus
+     * thread; the control writes of the multiplexers come through here
+     * too and pass straight on.
+     * @param mux multiplexer of the device, or null for a device on the bus.
+     * @param channel channel of the device.
+     * @throws IOException
+     */
+    /*package*/ void route(TCA9548A mux, int channel) throws IOException {
+        if (mRouting) {
+            return;
+        }
+        mRouting = true;
+        try {
+            for (TCA9548A other : mMuxes) {
+                if (other != mux) {
+                    other.deselect();
+                }
+            }
+            if (mux != null) {
+                mux.select(channel);
+            }
+        } finally {
+            mRouting = false;
+        }
+    }
+
+    /**
+     * Poll a sensor on the bus thread. The first poll runs one period from now.
+     * @param period poll period, usually the conversion time of the chip.
+     * @param unit unit of period.
+     * @param task work to run.
+     * @return handle to change or cancel the poll.
+     */
+    public Poll schedule(long period, TimeUnit unit, PollTask task) {
+        Poll poll = new Poll(task, false);
+        poll.setPeriod(period, unit);
+        return poll;
+    }
+
+    /**
+     * Run a task once on the bus thread, e.g. when a conversion completes.
+     * The delay is not clamped to the shortest poll period.
+     * @param delay time from now.
+     * @param unit unit of delay.
+     * @param task work to run.
+     * @return handle to cancel the task.
+     */
+    public Poll scheduleOnce(long delay, TimeUnit unit, PollTask task) {
+        Poll poll = new Poll(task, true);
+        synchronized (mQueue) {
+            poll.mJob = new Job(System.nanoTime() + unit.toNanos(delay), null, poll);
+            enqueue(poll.mJob);
+        }
+        return poll;
+    }
+
+    /**
+     * Check whether the caller runs on the bus thread.
+     * @return true on the bus thread.
+     */
+    /*package*/ boolean isBusThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Check whether the scheduler of the bus was closed.
+     * @return true once closed.
+     */
+    /*package*/ boolean isClosed() {
+        synchronized (mQueue) {
+            return mRoot.mClosed;
+        }
+    }
+
+    /**
+     * Run a transaction on the bus thread and wait for it.
+     * Runs directly when called from the bus thread.
+     */
+    /*package*/ <T> T call(Callable<T> transaction) throws IOException {
+        if (isBusThread()) {
+            try {
+                return transaction.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        FutureTask<T> future = new FutureTask<>(transaction);
+        synchronized (mQueue) {
+            if (mRoot.mClosed) {
+                throw new IOException("scheduler of " + mBus + " closed");
+            }
+            mQueue.add(new Job(System.nanoTime(), future, null));
+            mQueue.notifyAll();
+        }
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            throw new IOException("scheduler of " + mBus + " closed");
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for " + mBus);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stop the bus thread. Pending polls are dropped, threads waiting for a
+     * transaction get an IOException.
+     * Does nothing for a multiplexer channel, close the scheduler of the bus.
+     */
+    @Override
+    public void close() {
+        if (mRoot != this) {
+            return;
+        }
+        synchronized (mQueue) {
+            mClosed = true;
+            for (Job job : mQueue) {
+                if (job.mTransaction != null) {
+                    job.mTransaction.cancel(false);
+                }
+            }
+            mQueue.clear();
+            mQueue.notifyAll();
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            Job job;
+            synchronized (mQueue) {
+                try {
+                    while (true) {
+                        if (mClosed) {
+                            return;
+                        }
+                        job = mQueue.peek();
+                        if (job == null) {
+                            mQueue.wait();
+                            continue;
+                        }
+                        long now = System.nanoTime();
+                        long delay = job.mDeadline - now;
+                        if (delay <= 0) {
+                            job = nextOnSelectedChannel(job, now);
+                            mQueue.remove(job);
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(mQueue, delay);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            job.run();
+        }
+    }
+
+    /**
+     * Pick a job that needs no channel switch over a due job that does.
+     * @param due earliest due job.
+     * @param now current time.
+     * @return job to run.
+     */
+    private Job nextOnSelectedChannel(Job due, long now) {
+        if (due.getMux() == null || due.isOnSelectedChannel()) {
+            return due;
+        }
+        Job best = null;
+        for (Job job : mQueue) {
+            if (job.mDeadline - now <= CHANNEL_GROUP_NANOS && job.getMux() == due.getMux()
+                    && job.isOnSelectedChannel() && (best == null || job.compareTo(best) < 0)) {
+                best = job;
+            }
+        }
+        return best != null ? best : due;
+    }
+
+    private void enqueue(Job job) {
+        synchronized (mQueue) {
+            if (!mRoot.mClosed) {
+                mQueue.add(job);
+                mQueue.notifyAll();
+            }
+        }
+    }
+
+    private void remove(Job job) {
+        synchronized (mQueue) {
+            mQueue.remove(job);
+        }
+    }
+
+    private final class Job implements Comparable<Job> {
+        private final long mDeadline;
+        private final long mSequence;
+        private final FutureTask<?> mTransaction;
+        private final Poll mPoll;
+
+        Job(long deadline, FutureTask<?> transaction, Poll poll) {
+            mDeadline = deadline;
+            mSequence = mRoot.mSequence++;
+            mTransaction = transaction;
+            mPoll = poll;
+        }
+
+        TCA9548A getMux() {
+            return mMux;
+        }
+
+        boolean isOnSelectedChannel() {
+            return mMux != null && mMux.getSelectedChannel() == mChannel;
+        }
+
+        void run() {
+            if (mTransaction != null) {
+                mTransaction.run();
+            } else {
+                mPoll.run(mDeadline);
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mDeadline != other.mDeadline) {
+                return mDeadline - other.mDeadline < 0 ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * A periodic poll on the bus thread.
+     */
+    public final class Poll {
+        private final PollTask mTask;
+        private final boolean mOnce;
+        private long mPeriodNanos;
+        private Job mJob;
+        private boolean mCancelled;
+
+        private Poll(PollTask task, boolean once) {
+            mTask = task;
+            mOnce = once;
+        }
+
+        /**
+         * Change the poll period, e.g. after the conversion time was reconfigured.
+         * The next poll runs one new period from now. Does nothing for a task scheduled once.
+         * @param period period.
+         * @param unit unit of period.
+         */
+        public void setPeriod(long period, TimeUnit unit) {
+            synchronized (mQueue) {
+                if (mCancelled || mOnce) {
+                    return;
+                }
+                mPeriodNanos = Math.max(unit.toNanos(period), mRoot.mMinPeriodNanos);
+                if (mJob != null) {
+                    remove(mJob);
+                }
+                mJob = new Job(System.nanoTime() + mPeriodNanos, null, this);
+                enqueue(mJob);
+            }
+        }
+
+        /**
+         * Get the poll period after clamping to the shortest period.
+         * @return period in nanoseconds.
+         */
+        public long getPeriodNanos() {
+            synchronized (mQueue) {
+                return mPeriodNanos;
+            }
+        }
+
+        /**
+         * Stop polling.
+         */
+        public void cancel() {
+            synchronized (mQueue) {
+                mCancelled = true;
+                if (mJob != null) {
+                    remove(mJob);
+                    mJob = null;
+                }
+            }
+        }
+
+        private void run(long deadline) {
+            synchronized (mQueue) {
+                if (mCancelled) {
+                    return;
+                }
+                if (mOnce) {
+                    mCancelled = true;
+                    mJob = null;
+                } else {
+                    // Fixed rate; polls missed while the bus was busy are skipped.
+                    long next = deadline + mPeriodNanos;
+                    long now = System.nanoTime();
+                    if (next - now <= 0) {
+                        next += ((now - next) / mPeriodNanos + 1) * mPeriodNanos;
+                    }
+                    mJob = new Job(next, null, this);
+                    enqueue(mJob);
+                }
+            }
+            try {
+                mTask.poll();
+            } catch (DeviceUnavailableException e) {
+                // Logged once when the device became unavailable.
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "poll failed on " + mBus, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+import com.google.android.things.pio.PeripheralManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transaction statistics of one I2C device: transactions, bytes, failures and
+ * retries per device and per register, and a histogram of the time each
+ * transaction held the bus. Every device the drivers open is instrumented;
+ * a scraper gets the statistics of all of them with getAll() and copies them
+ * into a reused Snapshot, optionally resetting them for the next interval.
+ * Statistics survive closing and reopening a device.
+ */
+public class I2cStats {
+    private static final String TAG = I2cStats.class.getSimpleName();
+
+    /** Register index of transfers without a register address. */
+    public static final int RAW = -1;
+    private static final int REGISTERS = 256;
+
+    private static final Map<String, I2cStats> sStats = new LinkedHashMap<>();
+
+    private final String mBus;
+    private final int mAddress;
+    private final Counters mCounters = new Counters();
+
+    /**
+     * Counts of a device, the live ones or a copy.
+     */
+    public static class Snapshot {
+        private final Counters mCounters = new Counters();
+        private String mBus;
+        private int mAddress;
+
+        /**
+         * Get the bus of the device.
+         * @return bus name.
+         */
+        public String getBus() {
+            return mBus;
+        }
+
+        /**
+         * Get the address of the device.
+         * @return 7bit slave address.
+         */
+        public int getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * Get the number of transactions, failed ones included.
+         * @return transactions.
+         */
+        public long getTransactions() {
+            return mCounters.mLatency.getCount();
+        }
+
+        /**
+         * Get the number of transactions that threw.
+         * @return failures.
+         */
+        public long getFailures() {
+            return mCounters.mFailures;
+        }
+
+        /**
+         * Get the number of transactions that were repeated after a failure.
+         * @return retries.
+         */
+        public long getRetries() {
+            return mCounters.mRetries;
+        }
+
+        /**
+         * Get the number of bytes read, register addresses excluded.
+         * @return bytes.
+         */
+        public long getBytesRead() {
+            return mCounters.mBytesRead;
+        }
+
+        /**
+         * Get the number of bytes written, register addresses excluded.
+         * @return bytes.
+         */
+        public long getBytesWritten() {
+            return mCounters.mBytesWritten;
+        }
+
+        /**
+         * Get the number of transactions on a register.
+         * @param reg register address, or RAW.
+         * @return transactions.
+         */
+        public long getRegisterTransactions(int reg) {
+            return mCounters.mRegisterTransactions[reg + 1];
+        }
+
+        /**
+         * Get the number of bytes moved to or from a register.
+         * @param reg register address, or RAW.
+         * @return bytes.
+         */
+        public long getRegisterBytes(int reg) {
+            return mCounters.mRegisterBytes[reg + 1];
+        }
+
+        /**
+         * Get the time transactions held the bus.
+         * @return latency histogram, do not modify.
+         */
+        public LatencyHistogram getLatency() {
+            return mCounters.mLatency;
+        }
+
+        @Override
+        public String toString() {
+            LatencyHistogram latency = mCounters.mLatency;
+            return mBus + ":0x" + Integer.toHexString(mAddress)
+                    + " transactions=" + latency.getCount()
+                    + " failures=" + mCounters.mFailures
+                    + " retries=" + mCounters.mRetries
+                    + " read=" + mCounters.mBytesRead
+                    + " written=" + mCounters.mBytesWritten
+                    + " busy=" + latency.getTotalNanos() / 1000 + "us"
+                    + " p50=" + latency.getValueAtPercentile(50) / 1000 + "us"
+                    + " p99=" + latency.getValueAtPercentile(99) / 1000 + "us"
+                    + " max=" + latency.getMax() / 1000 + "us";
+        }
+    }
+
+    private static class Counters {
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        /** Indexed by register address + 1, RAW first. */
+        private final long[] mRegisterTransactions = new long[REGISTERS + 1];
+        private final long[] mRegisterBytes = new long[REGISTERS + 1];
+        private long mFailures;
+        private long mRetries;
+        private long mBytesRead;
+        private long mBytesWritten;
+
+        void copyTo(Counters other) {
+            mLatency.copyTo(other.mLatency);
+            System.arraycopy(mRegisterTransactions, 0, other.mRegisterTransactions, 0, REGISTERS + 1);
+            System.arraycopy(mRegisterBytes, 0, other.mRegisterBytes, 0, REGISTERS + 1);
+            other.mFailures = mFailures;
+            other.mRetries = mRetries;
+            other.mBytesRead = mBytesRead;
+            other.mBytesWritten = mBytesWritten;
+        }
+
+        void reset() {
+            mLatency.reset();
+            Arrays.fill(mRegisterTransactions, 0);
+            Arrays.fill(mRegisterBytes, 0);
+            mFailures = 0;
+            mRetries = 0;
+            mBytesRead = 0;
+            mBytesWritten = 0;
+        }
+    }
+
+    private I2cStats(String bus, int address) {
+        mBus = bus;
+        mAddress = address;
+    }
+
+    /**
+     * Get the statistics of a device, created on first use.
+     * @param bus bus name.
+     * @param address 7bit slave address.
+     * @return statistics.
+     */
+    public static I2cStats get(String bus, int address) {
+        String key = bus + ":" + address;
+        synchronized (sStats) {
+            I2cStats stats = sStats.get(key);
+            if (stats == null) {
+                stats = new I2cStats(bus, address);
+                sStats.put(key, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Get the statistics of every device opened so far.
+     * @return statistics in the order the devices were first opened.
+     */
+    public static List<I2cStats> getAll() {
+        synchronized (sStats) {
+            return new ArrayList<>(sStats.values());
+        }
+    }
+
+    /**
+     * Open an instrumented device, like PeripheralManager.openI2cDevice.
+     * @param bus bus name.
+     * @param address 7bit slave address.
+     * @return device.
+     * @throws IOException
+     */
+    /*package*/ static I2cDevice open(String bus, int address) throws IOException {
+        PeripheralManager pioService = PeripheralManager.getInstance();
+        return instrument(bus, address, pioService.openI2cDevice(bus, address));
+    }
+
+    /**
+     * Record the transactions of an already opened device, and trace them
+     * while an I2cTraceRecorder runs.
+     * @param bus bus name.
+     * @param address 7bit slave address.
+     * @param device device.
+     * @return instrumented device.
+     */
+    /*package*/ static I2cDevice instrument(String bus, int address, I2cDevice device) {
+        return new InstrumentedI2cDevice(get(bus, address), I2cTraceRecorder.wrap(bus, address, device));
+    }
+
+    /**
+     * Find the statistics an opened device records into.
+     * @param device device, possibly routed through a scheduler and a multiplexer.
+     * @return statistics, or null when the device is not instrumented.
+     */
+    /*package*/ static I2cStats of(I2cDevice device) {
+        if (device instanceof ScheduledI2cDevice) {
+            device = ((ScheduledI2cDevice) device).getDevice();
+        }
+        if (device instanceof MuxedI2cDevice) {
+            device = ((MuxedI2cDevice) device).getDevice();
+        }
+        return device instanceof InstrumentedI2cDevice ? ((InstrumentedI2cDevice) device).getStats() : null;
+    }
+
+    /**
+     * Get the bus of the device.
+     * @return bus name.
+     */
+    public String getBus() {
+        return mBus;
+    }
+
+    /**
+     * Get the address of the device.
+     * @return 7bit slave address.
+     */
+    public int getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Create a snapshot to copy these statistics into.
+     * @return snapshot.
+     */
+    public Snapshot newSnapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot(snapshot, false);
+        return snapshot;
+    }
+
+    /**
+     * Copy the statistics without allocating.
+     * @param snapshot receives the counts.
+     * @param reset start counting from 0 again, e.g. once per scrape interval.
+     */
+    public synchronized void snapshot(Snapshot snapshot, boolean reset) {
+        snapshot.mBus = mBus;
+        snapshot.mAddress = mAddress;
+        mCounters.copyTo(snapshot.mCounters);
+        if (reset) {
+            mCounters.reset();
+        }
+    }
+
+    /**
+     * Start counting from 0 again.
+     */
+    public synchronized void reset() {
+        mCounters.reset();
+    }
+
+    /**
+     * Record a transaction.
+     * @param reg register address, or RAW.
+     * @param read bytes read.
+     * @param written bytes written.
+     * @param nanos time the transaction took.
+     * @param failed whether it threw.
+     */
+    /*package*/ synchronized void record(int reg, int read, int written, long nanos, boolean failed) {
+        Counters counters = mCounters;
+        counters.mLatency.record(nanos);
+        int index = (reg & 0xFF) + 1;
+        if (reg == RAW) {
+            index = 0;
+        }
+        counters.mRegisterTransactions[index]++;
+        if (failed) {
+            counters.mFailures++;
+            return;
+        }
+        counters.mRegisterBytes[index] += read + written;
+        counters.mBytesRead += read;
+        counters.mBytesWritten += written;
+    }
+
+    /**
+     * Record that a failed transaction is repeated.
+     */
+    /*package*/ synchronized void recordRetry() {
+        mCounters.mRetries++;
+    }
+}
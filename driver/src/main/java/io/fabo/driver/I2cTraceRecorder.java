@@ -0,0 +1,268 @@
+package io.fabo.driver;
+
+import android.util.Log;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the I2C transactions of a field unit into a compact binary trace,
+ * to replay them off-device with I2cTraceReplay. While a recording runs,
+ * every device the drivers open records each transaction: the operation,
+ * register, length, the bytes read or written and the time since the
+ * previous transaction. Devices opened before the recording started are not
+ * recorded, so start it before creating the drivers.
+ *
+ * The trace starts with the magic "I2CT" and a version byte, followed by
+ * records. A device record declares the index the transactions of a device
+ * refer to: tag 0x40, varint index, bus name, varint address. A transaction
+ * record is: tag (operation, 0x08 when it failed), varint device index,
+ * varint nanoseconds since the previous record, varint register unless the
+ * transfer is raw, varint length, and the data unless it failed. A trace cut
+ * off in the middle of a record, e.g. by a crash, is read up to that record.
+ */
+public class I2cTraceRecorder implements Closeable {
+    private static final String TAG = I2cTraceRecorder.class.getSimpleName();
+
+    /*package*/ static final int MAGIC = 0x49324354;
+    /*package*/ static final int VERSION = 1;
+
+    /*package*/ static final int OP_READ = 0;
+    /*package*/ static final int OP_READ_REG_BUFFER = 1;
+    /*package*/ static final int OP_READ_REG_BYTE = 2;
+    /*package*/ static final int OP_READ_REG_WORD = 3;
+    /*package*/ static final int OP_WRITE = 4;
+    /*package*/ static final int OP_WRITE_REG_BUFFER = 5;
+    /*package*/ static final int OP_WRITE_REG_BYTE = 6;
+    /*package*/ static final int OP_WRITE_REG_WORD = 7;
+    /*package*/ static final int OP_MASK = 0x07;
+    /*package*/ static final int FAILED = 0x08;
+    /*package*/ static final int TAG_DEVICE = 0x40;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static volatile I2cTraceRecorder sRecorder;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final Map<String, Integer> mDevices = new HashMap<>();
+    private int mCount;
+    private long mLastNanos;
+    private long mRecords;
+    private boolean mClosed;
+
+    private I2cTraceRecorder(OutputStream out) throws IOException {
+        mOut = out;
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.flush();
+        mLastNanos = System.nanoTime();
+    }
+
+    /**
+     * Start recording the devices opened from now on.
+     * @param out stream to write the trace to, closed when the recording stops.
+     * @return recording.
+     * @throws IOException
+     * @throws IllegalStateException when a recording runs already.
+     */
+    public static I2cTraceRecorder start(OutputStream out) throws IOException {
+        synchronized (I2cTraceRecorder.class) {
+            if (sRecorder != null) {
+                throw new IllegalStateException("already recording");
+            }
+            sRecorder = new I2cTraceRecorder(out);
+            return sRecorder;
+        }
+    }
+
+    /**
+     * Stop recording, write out the buffered records and close the stream.
+     * Devices recording into it keep working unrecorded.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (I2cTraceRecorder.class) {
+            if (sRecorder == this) {
+                sRecorder = null;
+            }
+        }
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                mOut.write(mBuffer, 0, mCount);
+                mCount = 0;
+            } finally {
+                mOut.close();
+            }
+        }
+    }
+
+    /**
+     * Write out the buffered records.
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (!mClosed) {
+            flushBuffer();
+            mOut.flush();
+        }
+    }
+
+    /**
+     * Get the number of transactions recorded.
+     * @return transactions.
+     */
+    public synchronized long getRecords() {
+        return mRecords;
+    }
+
+    /**
+     * Record the transactions of a device if a recording runs.
+     * @param bus bus name.
+     * @param address 7bit slave address.
+     * @param device device.
+     * @return recording device, or the device itself.
+     */
+    /*package*/ static I2cDevice wrap(String bus, int address, I2cDevice device) {
+        I2cTraceRecorder recorder = sRecorder;
+        if (recorder == null) {
+            return device;
+        }
+        int index = recorder.register(bus, address);
+        return index < 0 ? device : new RecordingI2cDevice(recorder, index, device);
+    }
+
+    private synchronized int register(String bus, int address) {
+        if (mClosed) {
+            return -1;
+        }
+        String key = bus + ":" + address;
+        Integer index = mDevices.get(key);
+        if (index == null) {
+            index = mDevices.size();
+            mDevices.put(key, index);
+            try {
+                put(TAG_DEVICE);
+                putVarint(index);
+                byte[] name = bus.getBytes("UTF-8");
+                putVarint(name.length);
+                for (byte b : name) {
+                    put(b);
+                }
+                putVarint(address);
+            } catch (IOException e) {
+                fail(e);
+                return -1;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Record a transfer of a buffer.
+     * @param device device index.
+     * @param op operation.
+     * @param reg register, ignored for raw transfers.
+     * @param buffer data read or written.
+     * @param length length.
+     * @param failed the transaction threw.
+     */
+    /*package*/ synchronized void record(int device, int op, int reg, byte[] buffer, int length,
+                                         boolean failed) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            header(device, op, reg, length, failed);
+            if (!failed) {
+                for (int i = 0; i < length; i++) {
+                    put(buffer[i]);
+                }
+            }
+            mRecords++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Record a byte or word register transfer, the word low byte first.
+     * @param device device index.
+     * @param op operation.
+     * @param reg register.
+     * @param value data read or written.
+     * @param length 1 or 2.
+     * @param failed the transaction threw.
+     */
+    /*package*/ synchronized void record(int device, int op, int reg, int value, int length,
+                                         boolean failed) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            header(device, op, reg, length, failed);
+            if (!failed) {
+                for (int i = 0; i < length; i++) {
+                    put(value >> 8 * i);
+                }
+            }
+            mRecords++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void header(int device, int op, int reg, int length, boolean failed) throws IOException {
+        long now = System.nanoTime();
+        put(failed ? op | FAILED : op);
+        putVarint(device);
+        putVarint(Math.max(0, now - mLastNanos));
+        mLastNanos = now;
+        if (op != OP_READ && op != OP_WRITE) {
+            putVarint(reg & 0xff);
+        }
+        putVarint(length);
+    }
+
+    private void fail(IOException e) {
+        Log.w(TAG, "recording stopped", e);
+        mClosed = true;
+        synchronized (I2cTraceRecorder.class) {
+            if (sRecorder == this) {
+                sRecorder = null;
+            }
+        }
+    }
+
+    private void put(int b) throws IOException {
+        if (mCount == mBuffer.length) {
+            flushBuffer();
+        }
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    private void putVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            put((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        put((int) value);
+    }
+
+    private void flushBuffer() throws IOException {
+        mOut.write(mBuffer, 0, mCount);
+        mCount = 0;
+    }
+}
@@ -0,0 +1,382 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a trace written by I2cTraceRecorder back to the drivers, e.g. on the
+ * host JVM. open() returns a device per recorded device to pass to the chip
+ * constructors; it answers each transaction with the recorded data, and
+ * throws where the recorded transaction failed. The drivers must issue the
+ * transactions of a device in the recorded order, writes with the recorded
+ * data; a transaction that differs throws an IOException, one past the end
+ * of the trace an EOFException. The trace is held in memory, a byte array
+ * per device, and replaying it does not allocate.
+ */
+public class I2cTraceReplay {
+
+    /** Speed to replay without waiting. */
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+
+    private final Map<String, ReplayDevice> mDevices = new LinkedHashMap<>();
+    private final long mDurationNanos;
+    private final long mTransactions;
+    private volatile double mSpeed = 1;
+    private boolean mStarted;
+    private long mStartNanos;
+
+    /**
+     * Read a trace. The stream is read to the end and not closed.
+     * @param in trace.
+     * @throws IOException when it is not a trace or cannot be read.
+     */
+    public I2cTraceReplay(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != I2cTraceRecorder.MAGIC) {
+            throw new IOException("not an I2C trace");
+        }
+        int version = data.readUnsignedByte();
+        if (version != I2cTraceRecorder.VERSION) {
+            throw new IOException("unsupported trace version " + version);
+        }
+        List<ByteArrayOutputStream> records = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        long offset = 0;
+        long transactions = 0;
+        byte[] payload = new byte[64];
+        try {
+            while (true) {
+                int tag = data.read();
+                if (tag < 0) {
+                    break;
+                }
+                if (tag == I2cTraceRecorder.TAG_DEVICE) {
+                    int index = (int) readVarint(data);
+                    byte[] name = new byte[(int) readVarint(data)];
+                    data.readFully(name);
+                    int address = (int) readVarint(data);
+                    if (index != records.size()) {
+                        throw new IOException("corrupt trace, device " + index);
+                    }
+                    String bus = new String(name, "UTF-8");
+                    records.add(new ByteArrayOutputStream());
+                    keys.add(key(bus, address));
+                    mDevices.put(key(bus, address), new ReplayDevice(bus, address));
+                    continue;
+                }
+                int op = tag & I2cTraceRecorder.OP_MASK;
+                if ((tag & ~(I2cTraceRecorder.OP_MASK | I2cTraceRecorder.FAILED)) != 0) {
+                    throw new IOException("corrupt trace, tag " + tag);
+                }
+                int index = (int) readVarint(data);
+                long delta = readVarint(data);
+                int reg = hasRegister(op) ? (int) readVarint(data) : 0;
+                int length = (int) readVarint(data);
+                boolean failed = (tag & I2cTraceRecorder.FAILED) != 0;
+                if (index >= records.size()) {
+                    throw new IOException("corrupt trace, device " + index);
+                }
+                if (!failed) {
+                    if (payload.length < length) {
+                        payload = new byte[length];
+                    }
+                    data.readFully(payload, 0, length);
+                }
+                // The record is complete, a trace cut off before this point ends with the previous one.
+                offset += delta;
+                transactions++;
+                ByteArrayOutputStream out = records.get(index);
+                out.write(tag);
+                writeVarint(out, offset);
+                if (hasRegister(op)) {
+                    writeVarint(out, reg);
+                }
+                writeVarint(out, length);
+                if (!failed) {
+                    out.write(payload, 0, length);
+                }
+            }
+        } catch (EOFException truncated) {
+            // Recording interrupted, keep the complete records.
+        }
+        for (int i = 0; i < records.size(); i++) {
+            mDevices.get(keys.get(i)).mData = records.get(i).toByteArray();
+        }
+        mDurationNanos = offset;
+        mTransactions = transactions;
+    }
+
+    /**
+     * Set the replay speed.
+     * @param speed 1 for the recorded timing, 10 for ten times as fast,
+     *              AS_FAST_AS_POSSIBLE not to wait at all.
+     */
+    public void setSpeed(double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        synchronized (this) {
+            mSpeed = speed;
+            mStarted = false;
+        }
+    }
+
+    /**
+     * Get the time from the start of the recording to the last transaction.
+     * @return nanoseconds.
+     */
+    public long getDurationNanos() {
+        return mDurationNanos;
+    }
+
+    /**
+     * Get the number of transactions in the trace.
+     * @return transactions.
+     */
+    public long getTransactions() {
+        return mTransactions;
+    }
+
+    /**
+     * Get the recorded devices.
+     * @return bus name and address of each device, like "I2C1:0x5a".
+     */
+    public List<String> getDevices() {
+        return new ArrayList<>(mDevices.keySet());
+    }
+
+    /**
+     * Open a recorded device.
+     * @param bus bus name.
+     * @param address 7bit slave address.
+     * @return device replaying its transactions.
+     * @throws IOException when the device is not in the trace.
+     */
+    public I2cDevice open(String bus, int address) throws IOException {
+        ReplayDevice device = mDevices.get(key(bus, address));
+        if (device == null) {
+            throw new IOException("no " + key(bus, address) + " in the trace");
+        }
+        return device;
+    }
+
+    /**
+     * Start over from the first transaction of every device.
+     */
+    public void rewind() {
+        for (ReplayDevice device : mDevices.values()) {
+            synchronized (device) {
+                device.mPosition = 0;
+            }
+        }
+        synchronized (this) {
+            mStarted = false;
+        }
+    }
+
+    private static String key(String bus, int address) {
+        return bus + ":0x" + Integer.toHexString(address);
+    }
+
+    private static boolean hasRegister(int op) {
+        return op != I2cTraceRecorder.OP_READ && op != I2cTraceRecorder.OP_WRITE;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("corrupt trace, varint too long");
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Wait until a transaction is due. The first one after a rewind or a
+     * change of speed is due at once and the others follow at its pace.
+     * @param offset nanoseconds from the start of the recording.
+     */
+    private void await(long offset) {
+        double speed = mSpeed;
+        if (Double.isInfinite(speed)) {
+            return;
+        }
+        long due;
+        synchronized (this) {
+            long scaled = (long) (offset / speed);
+            if (!mStarted) {
+                mStartNanos = System.nanoTime() - scaled;
+                mStarted = true;
+            }
+            due = mStartNanos + scaled;
+        }
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private class ReplayDevice implements I2cDevice {
+        private final String mBus;
+        private final int mAddress;
+        private byte[] mData;
+        private int mPosition;
+
+        ReplayDevice(String bus, int address) {
+            mBus = bus;
+            mAddress = address;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getName() {
+            return mBus;
+        }
+
+        @Override
+        public synchronized void read(byte[] buffer, int length) throws IOException {
+            int position = next(I2cTraceRecorder.OP_READ, 0, length);
+            System.arraycopy(mData, position, buffer, 0, length);
+        }
+
+        @Override
+        public synchronized void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+            int position = next(I2cTraceRecorder.OP_READ_REG_BUFFER, reg, length);
+            System.arraycopy(mData, position, buffer, 0, length);
+        }
+
+        @Override
+        public synchronized byte readRegByte(int reg) throws IOException {
+            return mData[next(I2cTraceRecorder.OP_READ_REG_BYTE, reg, 1)];
+        }
+
+        @Override
+        public synchronized short readRegWord(int reg) throws IOException {
+            int position = next(I2cTraceRecorder.OP_READ_REG_WORD, reg, 2);
+            return (short) (mData[position] & 0xff | mData[position + 1] << 8);
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int length) throws IOException {
+            int position = next(I2cTraceRecorder.OP_WRITE, 0, length);
+            for (int i = 0; i < length; i++) {
+                if (mData[position + i] != buffer[i]) {
+                    throw diverged(I2cTraceRecorder.OP_WRITE, 0, "data");
+                }
+            }
+        }
+
+        @Override
+        public synchronized void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+            int position = next(I2cTraceRecorder.OP_WRITE_REG_BUFFER, reg, length);
+            for (int i = 0; i < length; i++) {
+                if (mData[position + i] != buffer[i]) {
+                    throw diverged(I2cTraceRecorder.OP_WRITE_REG_BUFFER, reg, "data");
+                }
+            }
+        }
+
+        @Override
+        public synchronized void writeRegByte(int reg, byte data) throws IOException {
+            int position = next(I2cTraceRecorder.OP_WRITE_REG_BYTE, reg, 1);
+            if (mData[position] != data) {
+                throw diverged(I2cTraceRecorder.OP_WRITE_REG_BYTE, reg, "data");
+            }
+        }
+
+        @Override
+        public synchronized void writeRegWord(int reg, short data) throws IOException {
+            int position = next(I2cTraceRecorder.OP_WRITE_REG_WORD, reg, 2);
+            if (mData[position] != (byte) data || mData[position + 1] != (byte) (data >> 8)) {
+                throw diverged(I2cTraceRecorder.OP_WRITE_REG_WORD, reg, "data");
+            }
+        }
+
+        /**
+         * Take the next transaction of the device, once it is due.
+         * @return position of its data.
+         * @throws IOException when it differs or failed when recorded.
+         */
+        private int next(int op, int reg, int length) throws IOException {
+            if (mPosition >= mData.length) {
+                throw new EOFException("end of trace for " + key(mBus, mAddress));
+            }
+            int position = mPosition;
+            int tag = mData[position++] & 0xff;
+            long offset = varint(position);
+            position = skipVarint(position);
+            int recordedReg = 0;
+            if (hasRegister(tag & I2cTraceRecorder.OP_MASK)) {
+                recordedReg = (int) varint(position);
+                position = skipVarint(position);
+            }
+            int recordedLength = (int) varint(position);
+            position = skipVarint(position);
+            boolean failed = (tag & I2cTraceRecorder.FAILED) != 0;
+
+            if ((tag & I2cTraceRecorder.OP_MASK) != op) {
+                throw diverged(op, reg, "operation");
+            }
+            if (recordedReg != (reg & 0xff)) {
+                throw diverged(op, reg, "register");
+            }
+            if (recordedLength != length) {
+                throw diverged(op, reg, "length");
+            }
+            mPosition = failed ? position : position + length;
+            await(offset);
+            if (failed) {
+                throw new IOException("recorded failure of " + key(mBus, mAddress));
+            }
+            return position;
+        }
+
+        private long varint(int position) {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = mData[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private int skipVarint(int position) {
+            while ((mData[position++] & 0x80) != 0) {
+            }
+            return position;
+        }
+
+        private IOException diverged(int op, int reg, String what) {
+            return new IOException("trace diverged at " + key(mBus, mAddress) + ", " + what
+                    + " of transaction " + op + " on register 0x" + Integer.toHexString(reg & 0xff));
+        }
+    }
+}
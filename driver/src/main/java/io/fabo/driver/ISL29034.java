@@ -4,9 +4,9 @@ import android.support.annotation.IntDef;
 import android.util.Log;
 
 import com.google.android.things.pio.I2cDevice;
-import com.google.android.things.pio.PeripheralManager;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 public class ISL29034 implements AutoCloseable {
     private static final String TAG = ISL29034.class.getSimpleName();
@@ -14,7 +14,7 @@ public class ISL29034 implements AutoCloseable {
     /**
      * I2C slave address of the ISL29034.
      */
-    public final int I2C_ADDRESS = 0x44;
+    public static final int I2C_ADDRESS = 0x44;
 
     /** ISL29034 Device ID(xx101xxx). */
     private final byte DEVICE_ID = 0x28;
@@ -64,10 +64,26 @@ public class ISL29034 implements AutoCloseable {
     private final int OFFSET_BIT_8 = 0b11111111;
     private final int OFFSET_BIT_4 = 0b00001111;
 
+    /** Integration time of RES_16, RES_12, RES_8 and RES_4 in nanoseconds. */
+    private static final long[] CONVERSION_NANOS = {105000000L, 6500000L, 410000L, 25600L};
+
+    /**
+     * Receives the result of a one-shot measurement.
+     */
+    public interface LuxCallback {
+        /**
+         * Called on the bus thread.
+         * @param lux illuminance.
+         */
+        void onLux(float lux);
+    }
+
     private I2cDevice mDevice;
+    private RegisterCache mRegisters;
+    private final byte[] mDataBuffer = new byte[2];
 
-    private static int mRange;
-    private static int mResolution;
+    private int mRange;
+    private int mResolution;
 
     /**
      * Create a new ISL29034 driver connected to the given I2C bus.
@@ -75,8 +91,7 @@ public class ISL29034 implements AutoCloseable {
      * @throws IOException
      */
     public ISL29034(String bus) throws IOException {
-        PeripheralManager pioService = PeripheralManager.getInstance();
-        I2cDevice device = pioService.openI2cDevice(bus, I2C_ADDRESS);
+        I2cDevice device = I2cStats.open(bus, I2C_ADDRESS);
         try {
             connect(device);
         } catch (IOException|RuntimeException e) {
@@ -101,7 +116,13 @@ public class ISL29034 implements AutoCloseable {
         if (mDevice != null) {
             throw new IllegalStateException("device already connected");
         }
-        mDevice = device;
+        mDevice = ResilientI2cDevice.wrap(device, new ResilientI2cDevice.Probe() {
+            @Override
+            public boolean probe() {
+                return whoAmI();
+            }
+        });
+        mRegisters = new RegisterCache(mDevice);
     }
 
     /**
@@ -114,6 +135,7 @@ public class ISL29034 implements AutoCloseable {
                 mDevice.close();
             } finally {
                 mDevice = null;
+                mRegisters = null;
             }
         }
     }
@@ -155,10 +177,7 @@ public class ISL29034 implements AutoCloseable {
     public void setRange(@luxRange int range) {
         mRange = range;
         try {
-            byte data = mDevice.readRegByte(REG_CMD2);
-            data &= OFFSET_RANGE;
-            data |= range;
-            mDevice.writeRegByte(REG_CMD2, data);
+            mRegisters.update(REG_CMD2, OFFSET_RANGE, range);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -171,10 +190,7 @@ public class ISL29034 implements AutoCloseable {
     public void setResolution(@adcResolution int resolution) {
         mResolution = resolution;
         try {
-            byte data = mDevice.readRegByte(REG_CMD2);
-            data &= OFFSET_RES<<2;
-            data |= resolution;
-            mDevice.writeRegByte(REG_CMD2, data);
+            mRegisters.update(REG_CMD2, OFFSET_RES, resolution << 2);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -182,93 +198,159 @@ public class ISL29034 implements AutoCloseable {
     }
 
     /**
-     * read ADC.
-     * @return adc.
+     * Get the integration time of the current resolution.
+     * @return nanoseconds.
      */
-    private int readADC() {
-        byte data[] = new byte[2];
-        try {
-            switch (mResolution) {
-                case RES_16:
-                    Thread.sleep(105);
-                    break;
-                case RES_12:
-                    Thread.sleep(6);
-                    break;
-                case RES_8:
-                    Thread.sleep(0,352);
-                    break;
-                case RES_4:
-                    Thread.sleep(0,22);
-                    break;
+    public long getConversionNanos() {
+        return getConversionNanos(mResolution);
+    }
+
+    /**
+     * Get the integration time of a resolution.
+     * @param resolution resolution.
+     * @return nanoseconds.
+     */
+    public static long getConversionNanos(@adcResolution int resolution) {
+        return CONVERSION_NANOS[resolution];
+    }
+
+    /**
+     * Set range and resolution with a single write.
+     * @param range FullScale Range
+     * @param resolution Resolution
+     * @throws IOException
+     */
+    public void setRangeAndResolution(@luxRange int range, @adcResolution int resolution) throws IOException {
+        mRegisters.update(REG_CMD2, OFFSET_RANGE | OFFSET_RES, range | resolution << 2);
+        mRange = range;
+        mResolution = resolution;
+    }
+
+    /**
+     * Get FullScale Range.
+     * @return range.
+     */
+    public int getRange() {
+        return mRange;
+    }
+
+    /**
+     * Get ADC Resolution.
+     * @return resolution.
+     */
+    public int getResolution() {
+        return mResolution;
+    }
+
+    /**
+     * Start a one-shot ALS conversion, the chip powers down when it is done.
+     * @return nanoseconds until the result can be read.
+     */
+    public long startConversion() {
+        setOperation(MODE_ALS_ONCE);
+        return getConversionNanos();
+    }
+
+    /**
+     * Measure once without blocking. The conversion is started now and
+     * the result is read on the bus thread once it is done.
+     * @param scheduler scheduler of the bus the chip is on.
+     * @param callback receives the illuminance.
+     * @return handle to cancel the read.
+     */
+    public I2cBusScheduler.Poll requestLux(I2cBusScheduler scheduler, final LuxCallback callback) {
+        long delay = startConversion();
+        return scheduler.scheduleOnce(delay, TimeUnit.NANOSECONDS, new I2cBusScheduler.PollTask() {
+            @Override
+            public void poll() throws IOException {
+                callback.onLux(readLux());
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        });
+    }
 
+    /**
+     * read ADC.
+     * Returns the latest completed conversion without waiting: in continuous
+     * mode the result register is refreshed every conversion time, in
+     * one-shot mode it holds the result of the last startConversion().
+     * @return adc.
+     * @throws IOException
+     */
+    /*package*/ synchronized int readADC() throws IOException {
+        byte data[] = mDataBuffer;
         int adc = 0;
-        try {
-            mDevice.readRegBuffer(REG_DATA_L, data, 2);
-            switch (mResolution) {
-                case RES_16:
-                    adc = (int)(data[1]&0xff)<<8 | (int)(data[0]&0xff);
-                    break;
-                case RES_12:
-                    adc = (int)(data[1]&0x0f)<<8 | (int)(data[0]&0xff);
-                    break;
-                case RES_8:
-                    adc = (int)(data[0]&0xff);
-                    break;
-                case RES_4:
-                    adc = (int)(data[0]&0x0f);
-                    break;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        mDevice.readRegBuffer(REG_DATA_L, data, 2);
+        switch (mResolution) {
+            case RES_16:
+                adc = (int)(data[1]&0xff)<<8 | (int)(data[0]&0xff);
+                break;
+            case RES_12:
+                adc = (int)(data[1]&0x0f)<<8 | (int)(data[0]&0xff);
+                break;
+            case RES_8:
+                adc = (int)(data[0]&0xff);
+                break;
+            case RES_4:
+                adc = (int)(data[0]&0x0f);
+                break;
         }
-
         return adc;
     }
 
     /**
      * Read lux.
      * @return lux
+     * @throws IOException
+     */
+    public float readLux() throws IOException {
+        return toLux(readADC(), mRange, mResolution);
+    }
+
+    /**
+     * Convert an ADC count to lux.
+     * @param adc count.
+     * @param range range of the conversion.
+     * @param resolution resolution of the conversion.
+     * @return lux
      */
-    public float readLux() {
-        int adc = readADC();
-        int range = 0;
-        int count = 0;
+    public static float toLux(int adc, @luxRange int range, @adcResolution int resolution) {
+        return ((float)getFullScale(range) / (float)getCounts(resolution)) * (float)adc;
+    }
 
-        switch (mRange) {
+    /**
+     * Get the full scale lux of a range.
+     * @param range range.
+     * @return lux.
+     */
+    public static int getFullScale(@luxRange int range) {
+        switch (range) {
             case RANGE_0:
-                range = 1000;
-                break;
+                return 1000;
             case RANGE_1:
-                range = 4000;
-                break;
+                return 4000;
             case RANGE_2:
-                range = 16000;
-                break;
-            case RANGE_3:
-                range = 64000;
-                break;
+                return 16000;
+            default:
+                return 64000;
         }
+    }
 
-        switch (mResolution) {
+    /**
+     * Get the number of ADC counts of a resolution.
+     * @param resolution resolution.
+     * @return counts.
+     */
+    public static int getCounts(@adcResolution int resolution) {
+        switch (resolution) {
             case RES_16:
-                count = (int) Math.pow(2,16);
-                break;
+                return 1 << 16;
             case RES_12:
-                count = (int) Math.pow(2,12);
-                break;
+                return 1 << 12;
             case RES_8:
-                count = (int) Math.pow(2,8);
-                break;
-            case RES_4:
-                count = (int) Math.pow(2,4);
-                break;
+                return 1 << 8;
+            default:
+                return 1 << 4;
         }
-        return ((float)range / (float)count) * (float)adc;
     }
 
 }
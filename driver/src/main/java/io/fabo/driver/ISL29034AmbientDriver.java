@@ -5,18 +5,19 @@ import android.hardware.Sensor;
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
-import com.google.android.things.userdriver.sensor.UserSensorReading;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
-public class ISL29034AmbientDriver implements AutoCloseable {
+public class ISL29034AmbientDriver extends FrameworkSensorDriver implements AutoCloseable {
 
     private static final String TAG = ISL29034AmbientDriver.class.getSimpleName();
     private static final String DRIVER_NAME = "FaBoISL29034";
     private static final String DRIVER_VENDOR = "FaBo";
     private static final int DRIVER_VERSION = 1;
     private ISL29034 mDevice;
+    private I2cBusScheduler mScheduler;
     private UserSensor mUserSensor;
 
     /**
@@ -27,9 +28,23 @@ public class ISL29034AmbientDriver implements AutoCloseable {
      * @see #register()
      */
     public ISL29034AmbientDriver(String bus) throws IOException {
+        super(DRIVER_NAME);
         mDevice = new ISL29034(bus);
     }
 
+    /**
+     * Create a new framework driver whose transactions run on the given bus scheduler.
+     * The chip is polled at its conversion rate while the sensor is enabled.
+     * @param scheduler scheduler of the I2C bus.
+     * @throws IOException
+     * @see #register()
+     */
+    public ISL29034AmbientDriver(I2cBusScheduler scheduler) throws IOException {
+        super(DRIVER_NAME);
+        mDevice = new ISL29034(scheduler.open(ISL29034.I2C_ADDRESS));
+        mScheduler = scheduler;
+    }
+
     /**
      * Close the driver and the underlying device.
      * @throws IOException
@@ -42,6 +57,7 @@ public class ISL29034AmbientDriver implements AutoCloseable {
                 mDevice.close();
             } finally {
                 mDevice = null;
+                dropSensorDriver();
             }
         }
     }
@@ -55,7 +71,7 @@ public class ISL29034AmbientDriver implements AutoCloseable {
             throw new IllegalStateException("cannot registered closed driver");
         }
         if (mUserSensor == null) {
-            mUserSensor = build(mDevice);
+            mUserSensor = build(getSensorDriver());
             UserDriverManager.getInstance().registerSensor(mUserSensor);
         }
     }
@@ -70,34 +86,76 @@ public class ISL29034AmbientDriver implements AutoCloseable {
         }
     }
 
-    static UserSensor build(final ISL29034 isl29034) {
+    @Override
+    /*package*/ PolledSensorDriver newSensorDriver() {
+        return driver(mDevice, mScheduler);
+    }
+
+    @Override
+    /*package*/ boolean isClosed() {
+        return mDevice == null;
+    }
+
+    static UserSensor build(UserSensorDriver driver) {
         return new UserSensor.Builder()
                 .setType(Sensor.TYPE_LIGHT)
                 .setName(DRIVER_NAME)
                 .setVendor(DRIVER_VENDOR)
                 .setVersion(DRIVER_VERSION)
                 .setUuid(UUID.randomUUID())
-                .setDriver(new UserSensorDriver() {
-                    @Override
-                    public UserSensorReading read() throws IOException {
-                        float lux = isl29034.readLux();
-                        float data[] = {lux};
-                        return new UserSensorReading(data);
-                    }
-
-                    @Override
-                    public void setEnabled(boolean enabled) throws IOException {
-                        if (enabled) {
-                            if(isl29034.whoAmI()) {
-                                isl29034.setOperation(ISL29034.MODE_ALS_CONTINUS);
-                                isl29034.setRange(ISL29034.RANGE_3);
-                                isl29034.setResolution(ISL29034.RES_16);
-                            }
-                        } else {
-                            isl29034.setOperation(ISL29034.MODE_POWER_DOWN);
-                        }
-                    }
-                })
+                .setDriver(driver)
                 .build();
     }
+
+    static PolledSensorDriver driver(final ISL29034 isl29034, I2cBusScheduler scheduler) {
+        final ISL29034AutoRange autoRange = new ISL29034AutoRange(isl29034);
+        final PolledSensor sensor = new PolledSensor(scheduler, 1, new PolledSensor.AdaptiveSampler() {
+            @Override
+            public boolean sample(float[] values) throws IOException {
+                float lux = autoRange.read();
+                if (Float.isNaN(lux)) {
+                    return false;
+                }
+                values[0] = lux;
+                return true;
+            }
+
+            @Override
+            public long getPeriodNanos() {
+                return autoRange.getConversionNanos();
+            }
+        });
+        return new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) throws IOException {
+                if (enabled) {
+                    // Auto-ranging starts at 16bit, a conversion takes 105ms.
+                    sensor.start(bringUp(isl29034, autoRange),
+                            ISL29034.getConversionNanos(ISL29034.RES_16), TimeUnit.NANOSECONDS);
+                } else {
+                    sensor.stop();
+                    isl29034.setOperation(ISL29034.MODE_POWER_DOWN);
+                }
+            }
+        };
+    }
+
+    /**
+     * Check the part id and start continuous ALS conversion with auto-ranging.
+     * @param isl29034 chip.
+     * @param autoRange range controller.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(final ISL29034 isl29034, final ISL29034AutoRange autoRange) {
+        return new BringUp(DRIVER_NAME, 1, TimeUnit.SECONDS) {
+            @Override
+            protected long step(int state) throws IOException {
+                if (!isl29034.whoAmI()) {
+                    return FAILED;
+                }
+                autoRange.start();
+                return DONE;
+            }
+        };
+    }
 }
@@ -0,0 +1,123 @@
+package io.fabo.driver;
+
+import java.io.IOException;
+
+/**
+ * Automatic range and resolution for the ISL29034.
+ * Each reading picks the smallest range the light fits in and the
+ * shortest integration that still gives enough ADC counts, so dim light
+ * gets 16 bit at 1,000 lux full scale and daylight a 6.5ms 12 bit
+ * conversion. Both have hysteresis: the range moves up at 90% of full
+ * scale and down below 20%, where the next range would read below 80%;
+ * the resolution drops only when the shorter conversion still gives
+ * twice the minimum counts.
+ * The chip must be in MODE_ALS_CONTINUS.
+ */
+public class ISL29034AutoRange {
+    private static final String TAG = ISL29034AutoRange.class.getSimpleName();
+
+    /** Default counts a reading needs, about 1% quantization. */
+    public static final int DEFAULT_MIN_COUNTS = 100;
+
+    private static final float RANGE_UP = 0.9f;
+    private static final float RANGE_DOWN = 0.2f;
+    private static final float RANGE_TARGET = 0.8f;
+    private static final int RESOLUTION_HYSTERESIS = 2;
+
+    private final ISL29034 mDevice;
+    private int mMinCounts = DEFAULT_MIN_COUNTS;
+    private boolean mSettling;
+
+    /**
+     * Create a new controller.
+     * @param device light sensor.
+     */
+    public ISL29034AutoRange(ISL29034 device) {
+        mDevice = device;
+    }
+
+    /**
+     * Set the counts a reading needs; higher trades speed for precision.
+     * @param counts minimum counts.
+     */
+    public synchronized void setMinCounts(int counts) {
+        if (counts <= 0) {
+            throw new IllegalArgumentException("counts must be positive");
+        }
+        mMinCounts = counts;
+    }
+
+    /**
+     * Start from the most sensitive setting.
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        apply(ISL29034.RANGE_0, ISL29034.RES_16);
+    }
+
+    /**
+     * Read the latest conversion and adjust range and resolution for the next one.
+     * @return lux, NaN for the first read after a change since the result
+     * register may still hold a conversion at the previous setting.
+     * @throws IOException when the chip cannot be read; the setting is kept.
+     */
+    public synchronized float read() throws IOException {
+        int adc = mDevice.readADC();
+        if (mSettling) {
+            mSettling = false;
+            return Float.NaN;
+        }
+        int range = mDevice.getRange();
+        int resolution = mDevice.getResolution();
+        float lux = ISL29034.toLux(adc, range, resolution);
+
+        // Fraction of full scale, the same at any resolution.
+        float fraction = (float) adc / ISL29034.getCounts(resolution);
+        int nextRange = range;
+        if (fraction >= RANGE_UP && range < ISL29034.RANGE_3) {
+            // Saturated readings do not tell how far to go, one step at a time.
+            nextRange = range + 1;
+        } else if (fraction < RANGE_DOWN) {
+            while (nextRange > ISL29034.RANGE_0 && fraction * 4 < RANGE_TARGET) {
+                nextRange--;
+                fraction *= 4;
+            }
+        }
+        if (nextRange != range) {
+            fraction = lux / ISL29034.getFullScale(nextRange);
+        }
+
+        int nextResolution = resolution;
+        if (fraction * ISL29034.getCounts(resolution) < mMinCounts) {
+            while (nextResolution > ISL29034.RES_16
+                    && fraction * ISL29034.getCounts(nextResolution) < mMinCounts) {
+                nextResolution--;
+            }
+        } else {
+            while (nextResolution < ISL29034.RES_4
+                    && fraction * ISL29034.getCounts(nextResolution + 1) >= mMinCounts * RESOLUTION_HYSTERESIS) {
+                nextResolution++;
+            }
+        }
+
+        if (nextRange != range || nextResolution != resolution) {
+            apply(nextRange, nextResolution);
+        }
+        return lux;
+    }
+
+    /**
+     * Get the integration time of the current setting, the period to read at.
+     * @return nanoseconds.
+     */
+    public synchronized long getConversionNanos() {
+        return mDevice.getConversionNanos();
+    }
+
+    private void apply(int range, int resolution) throws IOException {
+        mDevice.setRangeAndResolution(range, resolution);
+        // Restart the conversion at the new setting.
+        mDevice.setOperation(ISL29034.MODE_ALS_CONTINUS);
+        mSettling = true;
+    }
+}
@@ -0,0 +1,131 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+
+/**
+ * I2cDevice that records every transaction in an I2cStats.
+ */
+/*package*/ class InstrumentedI2cDevice implements I2cDevice {
+
+    private final I2cStats mStats;
+    private final I2cDevice mDevice;
+
+    InstrumentedI2cDevice(I2cStats stats, I2cDevice device) {
+        mStats = stats;
+        mDevice = device;
+    }
+
+    /*package*/ I2cStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDevice.close();
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    public void read(byte[] buffer, int length) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            mDevice.read(buffer, length);
+            failed = false;
+        } finally {
+            mStats.record(I2cStats.RAW, length, 0, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            mDevice.readRegBuffer(reg, buffer, length);
+            failed = false;
+        } finally {
+            mStats.record(reg, length, 0, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public byte readRegByte(int reg) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            byte value = mDevice.readRegByte(reg);
+            failed = false;
+            return value;
+        } finally {
+            mStats.record(reg, 1, 0, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public short readRegWord(int reg) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            short value = mDevice.readRegWord(reg);
+            failed = false;
+            return value;
+        } finally {
+            mStats.record(reg, 2, 0, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int length) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            mDevice.write(buffer, length);
+            failed = false;
+        } finally {
+            mStats.record(I2cStats.RAW, 0, length, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            mDevice.writeRegBuffer(reg, buffer, length);
+            failed = false;
+        } finally {
+            mStats.record(reg, 0, length, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void writeRegByte(int reg, byte data) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            mDevice.writeRegByte(reg, data);
+            failed = false;
+        } finally {
+            mStats.record(reg, 0, 1, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void writeRegWord(int reg, short data) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            mDevice.writeRegWord(reg, data);
+            failed = false;
+        } finally {
+            mStats.record(reg, 0, 2, System.nanoTime() - start, failed);
+        }
+    }
+}
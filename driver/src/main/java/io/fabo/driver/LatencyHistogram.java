@@ -0,0 +1,153 @@
+package io.fabo.driver;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets like an HDR histogram.
+ * Every power of two is split into 16 buckets, so a recorded value is known to
+ * within 1/16; values from 0 to over half an hour fit in 608 counters.
+ * Recording does not allocate and is not synchronized, the owner locks.
+ */
+public class LatencyHistogram {
+    private static final String TAG = LatencyHistogram.class.getSimpleName();
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** Largest power of two tracked, larger values count in the last bucket. */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    /**
+     * Record a latency.
+     * @param nanos latency, negative values count as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        mCounts[bucket(value)]++;
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * Forget every recorded latency.
+     */
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Copy every count into another histogram without allocating.
+     * @param other receives the counts.
+     */
+    public void copyTo(LatencyHistogram other) {
+        System.arraycopy(mCounts, 0, other.mCounts, 0, BUCKETS);
+        other.mCount = mCount;
+        other.mSum = mSum;
+        other.mMin = mMin;
+        other.mMax = mMax;
+    }
+
+    /**
+     * Get the number of latencies recorded.
+     * @return count.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Get the sum of every latency recorded, e.g. the time a device held the bus.
+     * @return nanoseconds.
+     */
+    public long getTotalNanos() {
+        return mSum;
+    }
+
+    /**
+     * Get the smallest latency recorded.
+     * @return nanoseconds, 0 if none.
+     */
+    public long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    /**
+     * Get the largest latency recorded.
+     * @return nanoseconds.
+     */
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Get the mean latency.
+     * @return nanoseconds, 0 if none.
+     */
+    public double getMean() {
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     * Get the latency below which a share of the latencies fall.
+     * @param percentile 0 to 100.
+     * @return highest value of the bucket the percentile falls in, at most the maximum.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * mCount);
+        rank = Math.max(1, rank);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /*package*/ static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int mantissa = (int) (value >>> (exponent - SUB_BITS));
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+    }
+
+    /*package*/ static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return mantissa << (exponent - SUB_BITS);
+    }
+
+    /*package*/ static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowestValue(bucket + 1) - 1;
+    }
+}
@@ -4,7 +4,6 @@ import android.support.annotation.IntDef;
 import android.util.Log;
 
 import com.google.android.things.pio.I2cDevice;
-import com.google.android.things.pio.PeripheralManager;
 
 import java.io.IOException;
 
@@ -53,6 +52,7 @@ public class MPL115 implements AutoCloseable {
 
 
     private I2cDevice mDevice;
+    private final byte[] mDataBuffer = new byte[4];
 
     /**
      * Create a new MPL115 driver connected to the given I2C bus.
@@ -60,8 +60,7 @@ public class MPL115 implements AutoCloseable {
      * @throws IOException
      */
     public MPL115(String bus) throws IOException {
-        PeripheralManager pioService = PeripheralManager.getInstance();
-        I2cDevice device = pioService.openI2cDevice(bus, I2C_ADDRESS);
+        I2cDevice device = I2cStats.open(bus, I2C_ADDRESS);
         try {
             connect(device);
         } catch (IOException|RuntimeException e) {
@@ -86,7 +85,7 @@ public class MPL115 implements AutoCloseable {
         if (mDevice != null) {
             throw new IllegalStateException("device already connected");
         }
-        mDevice = device;
+        mDevice = ResilientI2cDevice.wrap(device, null);
     }
 
 
@@ -130,12 +129,25 @@ public class MPL115 implements AutoCloseable {
      * @throws IllegalStateException
      */
     public float[] readData() throws IOException, IllegalStateException {
+        float data[] = new float[2];
+        readInto(data, 0);
+        return data;
+    }
+
+    /**
+     * Read a barometer sample without allocating.
+     * @param out receives hpa, temp.
+     * @param offset index of hpa in out.
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public synchronized void readInto(float[] out, int offset) throws IOException, IllegalStateException {
         if (mDevice == null) {
             throw new IllegalStateException("device not connected");
         }
         mDevice.writeRegByte(REG_CONVERT, (byte)0x01);
 
-        byte data_buff[] = new byte[4];
+        byte data_buff[] = mDataBuffer;
         mDevice.readRegBuffer(REG_PADC_MSB, data_buff, data_buff.length);
 
         int padc = (((data_buff[0] & 0xff) << 8) | (data_buff[1] & 0xff)) >> 6;
@@ -145,7 +157,8 @@ public class MPL115 implements AutoCloseable {
         float hpa = (float) (pcomp * ((1150.0 - 500.0) / 1023.0) + 500.0);
         float temp = (float) (25.0 - ((float) tadc - 512.0) / 5.35);
 
-        return new float[]{hpa, temp};
+        out[offset] = hpa;
+        out[offset + 1] = temp;
     }
 
     /**
@@ -5,18 +5,19 @@ import android.hardware.Sensor;
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
-import com.google.android.things.userdriver.sensor.UserSensorReading;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
-public class MPL115BarometerDriver implements AutoCloseable {
+public class MPL115BarometerDriver extends FrameworkSensorDriver implements AutoCloseable {
 
     private static final String TAG = MPL115BarometerDriver.class.getSimpleName();
     private static final String DRIVER_NAME = "FaBoMPL115";
     private static final String DRIVER_VENDOR = "FaBo";
     private static final int DRIVER_VERSION = 1;
     private MPL115 mDevice;
+    private I2cBusScheduler mScheduler;
     private UserSensor mUserSensor;
 
     /**
@@ -27,9 +28,23 @@ public class MPL115BarometerDriver implements AutoCloseable {
      * @see #register()
      */
     public MPL115BarometerDriver(String bus) throws IOException {
+        super(DRIVER_NAME);
         mDevice = new MPL115(bus);
     }
 
+    /**
+     * Create a new framework driver whose transactions run on the given bus scheduler.
+     * The chip is polled at its conversion rate while the sensor is enabled.
+     * @param scheduler scheduler of the I2C bus.
+     * @throws IOException
+     * @see #register()
+     */
+    public MPL115BarometerDriver(I2cBusScheduler scheduler) throws IOException {
+        super(DRIVER_NAME);
+        mDevice = new MPL115(scheduler.open(MPL115.I2C_ADDRESS));
+        mScheduler = scheduler;
+    }
+
     /**
      * Close the driver and the underlying device.
      * @throws IOException
@@ -42,6 +57,7 @@ public class MPL115BarometerDriver implements AutoCloseable {
                 mDevice.close();
             } finally {
                 mDevice = null;
+                dropSensorDriver();
             }
         }
     }
@@ -55,7 +71,7 @@ public class MPL115BarometerDriver implements AutoCloseable {
             throw new IllegalStateException("cannot registered closed driver");
         }
         if (mUserSensor == null) {
-            mUserSensor = build(mDevice);
+            mUserSensor = build(getSensorDriver());
             UserDriverManager.getInstance().registerSensor(mUserSensor);
         }
     }
@@ -70,7 +86,17 @@ public class MPL115BarometerDriver implements AutoCloseable {
         }
     }
 
-    static UserSensor build(final MPL115 mpl115) {
+    @Override
+    /*package*/ PolledSensorDriver newSensorDriver() {
+        return driver(mDevice, mScheduler);
+    }
+
+    @Override
+    /*package*/ boolean isClosed() {
+        return mDevice == null;
+    }
+
+    static UserSensor build(UserSensorDriver driver) {
         return new UserSensor.Builder()
                 .setCustomType(Sensor.TYPE_DEVICE_PRIVATE_BASE,
                         "fabo.io.barometer",
@@ -79,22 +105,42 @@ public class MPL115BarometerDriver implements AutoCloseable {
                 .setVendor(DRIVER_VENDOR)
                 .setVersion(DRIVER_VERSION)
                 .setUuid(UUID.randomUUID())
-                .setDriver(new UserSensorDriver() {
-                    @Override
-                    public UserSensorReading read() throws IOException {
-                        float data[] = mpl115.readData();
-                        return new UserSensorReading(data);
-                    }
-
-                    @Override
-                    public void setEnabled(boolean enabled) throws IOException {
-                        if (enabled) {
-                            mpl115.readCoef();
-                        } else {
-                            // ToDo
-                        }
-                    }
-                })
+                .setDriver(driver)
                 .build();
     }
+
+    static PolledSensorDriver driver(final MPL115 mpl115, I2cBusScheduler scheduler) {
+        final PolledSensor sensor = new PolledSensor(scheduler, 2, new PolledSensor.Sampler() {
+            @Override
+            public boolean sample(float[] values) throws IOException {
+                mpl115.readInto(values, 0);
+                return true;
+            }
+        });
+        return new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) throws IOException {
+                if (enabled) {
+                    sensor.start(bringUp(mpl115), 1, TimeUnit.SECONDS);
+                } else {
+                    sensor.stop();
+                }
+            }
+        };
+    }
+
+    /**
+     * Read the compensation coefficients.
+     * @param mpl115 chip.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(final MPL115 mpl115) {
+        return new BringUp(DRIVER_NAME, 1, TimeUnit.SECONDS) {
+            @Override
+            protected long step(int state) throws IOException {
+                mpl115.readCoef();
+                return DONE;
+            }
+        };
+    }
 }
@@ -0,0 +1,145 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+
+/**
+ * I2cDevice on a bus with TCA9548A multiplexers. Before each transaction
+ * the device's channel is selected and the other multiplexers are
+ * switched off, so a device on the bus itself or behind another
+ * multiplexer does not collide with one at the same address on a channel.
+ * Runs on the bus thread, so selection and transaction are not interleaved.
+ */
+/*package*/ class MuxedI2cDevice implements I2cDevice {
+
+    private final I2cBusScheduler mRoot;
+    private final TCA9548A mMux;
+    private final int mChannel;
+    private final I2cDevice mDevice;
+
+    /**
+     * @param root scheduler of the bus.
+     * @param mux multiplexer the device is behind, null for a device on the bus itself.
+     * @param channel channel of the multiplexer.
+     * @param device device.
+     */
+    MuxedI2cDevice(I2cBusScheduler root, TCA9548A mux, int channel, I2cDevice device) {
+        mRoot = root;
+        mMux = mux;
+        mChannel = channel;
+        mDevice = device;
+    }
+
+    /*package*/ I2cDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mMux != null) {
+            mMux.closeDevice(mDevice);
+        } else {
+            mDevice.close();
+        }
+    }
+
+    private void invalidate() {
+        if (mMux != null) {
+            mMux.invalidate();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    public void read(byte[] buffer, int length) throws IOException {
+        mRoot.route(mMux, mChannel);
+        try {
+            mDevice.read(buffer, length);
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+    }
+
+    @Override
+    public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        mRoot.route(mMux, mChannel);
+        try {
+            mDevice.readRegBuffer(reg, buffer, length);
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+    }
+
+    @Override
+    public byte readRegByte(int reg) throws IOException {
+        mRoot.route(mMux, mChannel);
+        try {
+            return mDevice.readRegByte(reg);
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+    }
+
+    @Override
+    public short readRegWord(int reg) throws IOException {
+        mRoot.route(mMux, mChannel);
+        try {
+            return mDevice.readRegWord(reg);
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int length) throws IOException {
+        mRoot.route(mMux, mChannel);
+        try {
+            mDevice.write(buffer, length);
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        mRoot.route(mMux, mChannel);
+        try {
+            mDevice.writeRegBuffer(reg, buffer, length);
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeRegByte(int reg, byte data) throws IOException {
+        mRoot.route(mMux, mChannel);
+        try {
+            mDevice.writeRegByte(reg, data);
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeRegWord(int reg, short data) throws IOException {
+        mRoot.route(mMux, mChannel);
+        try {
+            mDevice.writeRegWord(reg, data);
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package io.fabo.driver;
+
+import android.hardware.SensorManager;
+import android.util.Log;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
+import com.google.android.things.userdriver.sensor.UserSensorReading;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sample source behind a UserSensorDriver.
+ * Without a scheduler every read goes to the chip. With a scheduler the
+ * chip is polled on the bus thread at its conversion rate and a read
+ * returns the sample published since the previous read, if any.
+ * A BringUp passed to start runs first; until it is done reads return null.
+ * Starting a sensor that is already started does nothing, so a sensor
+ * brought up by a SensorStartup keeps running when the framework enables it.
+ * Started with an interrupt line, the chip is read only when it pulls the
+ * line, instead of at its conversion rate.
+ */
+/*package*/ class PolledSensor {
+    private static final String TAG = PolledSensor.class.getSimpleName();
+
+    /** Delay before reading again while the interrupt line stays active. */
+    private static final long INTERRUPT_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Reads one sample from the chip.
+     */
+    interface Sampler {
+        /**
+         * @param values receives the sample.
+         * @return false when the chip has no valid data.
+         */
+        boolean sample(float[] values) throws IOException;
+    }
+
+    /**
+     * Sampler whose chip changes its conversion time, e.g. when auto-ranging.
+     */
+    interface AdaptiveSampler extends Sampler {
+        /**
+         * @return conversion time for the next sample in nanoseconds.
+         */
+        long getPeriodNanos();
+    }
+
+    /**
+     * Sampler that rates each sample, e.g. when some values failed a check.
+     */
+    interface AccuracySampler extends Sampler {
+        /**
+         * @return accuracy of the last sample, a SensorManager.SENSOR_STATUS_ value.
+         */
+        int getAccuracy();
+    }
+
+    private final I2cBusScheduler mScheduler;
+    private final Sampler mSampler;
+    private final float[] mScratch;
+    private final float[] mValues;
+    private I2cBusScheduler.Poll mPoll;
+    private BringUp mBringUp;
+    private long mPeriodNanos;
+    private boolean mStarted;
+    private boolean mFailed;
+    private long mStartedAt;
+    private long mFirstSampleAt;
+    private boolean mHasSample;
+    private int mAccuracy = SensorManager.SENSOR_STATUS_ACCURACY_HIGH;
+    private Gpio mInterrupt;
+    private SampleHistory mHistory;
+    private SampleLog mLog;
+    private SampleRollup mRollup;
+
+    private final GpioCallback mInterruptCallback = new GpioCallback() {
+        @Override
+        public boolean onGpioEdge(Gpio gpio) {
+            try {
+                if (gpio.getValue()) {
+                    requestSample(0);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "cannot read " + gpio.getName(), e);
+            }
+            return true;
+        }
+    };
+
+    private final I2cBusScheduler.PollTask mInterruptTask = new I2cBusScheduler.PollTask() {
+        @Override
+        public void poll() throws IOException {
+            Gpio interrupt;
+            synchronized (PolledSensor.this) {
+                mPoll = null;
+                interrupt = mInterrupt;
+            }
+            if (interrupt == null) {
+                return;
+            }
+            try {
+                sample();
+            } finally {
+                // Still active: the read failed or the next conversion ended meanwhile.
+                if (interrupt.getValue()) {
+                    requestSample(INTERRUPT_RETRY_NANOS);
+                }
+            }
+        }
+    };
+
+    /**
+     * @param scheduler bus scheduler, or null to read on demand.
+     * @param size number of values in a sample.
+     * @param sampler reads the chip.
+     */
+    PolledSensor(I2cBusScheduler scheduler, int size, Sampler sampler) {
+        mScheduler = scheduler;
+        mSampler = sampler;
+        mScratch = new float[size];
+        mValues = new float[size];
+    }
+
+    /**
+     * Keep every valid sample in a history.
+     * @param history history with one channel per value, or null.
+     */
+    synchronized void setHistory(SampleHistory history) {
+        if (history != null && history.getChannels() != mValues.length) {
+            throw new IllegalArgumentException("history has " + history.getChannels()
+                    + " channels, sensor " + mValues.length);
+        }
+        mHistory = history;
+    }
+
+    /**
+     * Store every valid sample in a log.
+     * @param log log with one channel per value, or null.
+     */
+    synchronized void setLog(SampleLog log) {
+        if (log != null && log.getChannels() != mValues.length) {
+            throw new IllegalArgumentException("log has " + log.getChannels()
+                    + " channels, sensor " + mValues.length);
+        }
+        mLog = log;
+    }
+
+    /**
+     * Keep aggregates of every valid sample.
+     * @param rollup rollup with one channel per value, or null.
+     */
+    synchronized void setRollup(SampleRollup rollup) {
+        if (rollup != null && rollup.getChannels() != mValues.length) {
+            throw new IllegalArgumentException("rollup has " + rollup.getChannels()
+                    + " channels, sensor " + mValues.length);
+        }
+        mRollup = rollup;
+    }
+
+    /**
+     * Start polling.
+     * @param period conversion time of the chip.
+     * @param unit unit of period.
+     */
+    synchronized void start(long period, TimeUnit unit) {
+        start(null, period, unit);
+    }
+
+    /**
+     * Run a power-up sequence, then start polling. Returns without waiting for the chip.
+     * @param bringUp power-up sequence, or null when the chip is ready.
+     * @param period conversion time of the chip.
+     * @param unit unit of period.
+     */
+    synchronized void start(BringUp bringUp, long period, TimeUnit unit) {
+        start(bringUp, null, unit.toNanos(period));
+    }
+
+    /**
+     * Run a power-up sequence, then read each time the chip signals new data.
+     * The INT pin is taken as active low; reading the chip must release it.
+     * Returns without waiting for the chip.
+     * @param bringUp power-up sequence, or null when the chip is ready.
+     * @param interrupt GPIO the INT pin of the chip is wired to.
+     * @throws IOException the GPIO cannot be configured.
+     */
+    synchronized void start(BringUp bringUp, Gpio interrupt) throws IOException {
+        if (mStarted) {
+            return;
+        }
+        interrupt.setDirection(Gpio.DIRECTION_IN);
+        interrupt.setActiveType(Gpio.ACTIVE_LOW);
+        // Both edges, the callback checks the level.
+        interrupt.setEdgeTriggerType(Gpio.EDGE_BOTH);
+        start(bringUp, interrupt, 0);
+    }
+
+    private void start(BringUp bringUp, Gpio interrupt, long periodNanos) {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mFailed = false;
+        mStartedAt = System.nanoTime();
+        mFirstSampleAt = 0;
+        mHasSample = false;
+        mBringUp = bringUp;
+        mInterrupt = interrupt;
+        mPeriodNanos = periodNanos;
+        if (bringUp != null) {
+            bringUp.restart(mStartedAt);
+        }
+        if (mScheduler == null) {
+            return;
+        }
+        if (interrupt != null && bringUp == null) {
+            try {
+                arm();
+            } catch (IOException e) {
+                Log.w(TAG, "cannot arm " + interrupt.getName(), e);
+                mFailed = true;
+            }
+            return;
+        }
+        // Without a bring-up the first poll comes one period from now.
+        long first = bringUp != null ? 0 : mPeriodNanos;
+        mPoll = mScheduler.schedule(first, TimeUnit.NANOSECONDS, new I2cBusScheduler.PollTask() {
+            @Override
+            public void poll() throws IOException {
+                if (!bringUp(System.nanoTime())) {
+                    return;
+                }
+                sample();
+            }
+        });
+    }
+
+    /**
+     * Sample on the bus thread and publish a valid sample.
+     */
+    private void sample() throws IOException {
+        // Only the bus thread samples, so mScratch is not shared.
+        boolean valid = mSampler.sample(mScratch);
+        if (mSampler instanceof AdaptiveSampler) {
+            adapt(((AdaptiveSampler) mSampler).getPeriodNanos());
+        }
+        if (valid) {
+            publish(mScratch, accuracy());
+        }
+    }
+
+    /**
+     * Wait for the interrupt line, read at once when it is already active.
+     */
+    private synchronized void arm() throws IOException {
+        mInterrupt.registerGpioCallback(mInterruptCallback);
+        if (mInterrupt.getValue()) {
+            requestSample(0);
+        }
+    }
+
+    private synchronized void requestSample(long delayNanos) {
+        if (!mStarted || mInterrupt == null || mBringUp != null || mPoll != null || mScheduler == null) {
+            return;
+        }
+        mPoll = mScheduler.scheduleOnce(delayNanos, TimeUnit.NANOSECONDS, mInterruptTask);
+    }
+
+    private synchronized void adapt(long period) {
+        if (period != mPeriodNanos && mPoll != null && mBringUp == null && mInterrupt == null) {
+            mPeriodNanos = period;
+            mPoll.setPeriod(period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Advance the bring-up and move the poll to the delay it asks for.
+     * @param now current time in nanoseconds.
+     * @return true once the chip is measuring.
+     */
+    private boolean bringUp(long now) throws IOException {
+        BringUp bringUp;
+        synchronized (this) {
+            bringUp = mBringUp;
+        }
+        if (bringUp == null) {
+            return true;
+        }
+        long next = bringUp.advance(now);
+        synchronized (this) {
+            if (bringUp != mBringUp) {
+                // Stopped or restarted meanwhile.
+                return false;
+            }
+            if (next == BringUp.DONE) {
+                mBringUp = null;
+            } else if (next == BringUp.FAILED) {
+                mFailed = true;
+            }
+            if (mPoll != null) {
+                if (next == BringUp.DONE && mInterrupt != null) {
+                    mPoll.cancel();
+                    mPoll = null;
+                    arm();
+                } else if (next == BringUp.DONE) {
+                    mPoll.setPeriod(mPeriodNanos, TimeUnit.NANOSECONDS);
+                } else if (next == BringUp.FAILED) {
+                    mPoll.cancel();
+                    mPoll = null;
+                } else {
+                    mPoll.setPeriod(next, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        // The first sample is due one period after the chip came up.
+        return false;
+    }
+
+    /**
+     * Stop polling and drop the last sample.
+     */
+    synchronized void stop() {
+        if (mPoll != null) {
+            mPoll.cancel();
+            mPoll = null;
+        }
+        if (mInterrupt != null) {
+            mInterrupt.unregisterGpioCallback(mInterruptCallback);
+            mInterrupt = null;
+        }
+        mBringUp = null;
+        mStarted = false;
+        mHasSample = false;
+    }
+
+    /**
+     * Read for the framework.
+     * @return the new sample, or the last one when there is none.
+     * @throws IOException during bring-up, before the first sample.
+     */
+    UserSensorReading read() throws IOException {
+        if (mScheduler == null) {
+            if (!bringUp(System.nanoTime())) {
+                throw new IOException("sensor is not up");
+            }
+            Gpio interrupt;
+            synchronized (this) {
+                interrupt = mInterrupt;
+            }
+            if (interrupt != null && !interrupt.getValue()) {
+                // Nothing new, no transaction.
+                return last();
+            }
+            float[] values = new float[mValues.length];
+            if (!mSampler.sample(values)) {
+                return last();
+            }
+            int accuracy = accuracy();
+            publish(values, accuracy);
+            return new UserSensorReading(values, accuracy);
+        }
+        return last();
+    }
+
+    private synchronized UserSensorReading last() throws IOException {
+        if (!mHasSample) {
+            throw new IOException("no sample yet");
+        }
+        return new UserSensorReading(mValues.clone(), mAccuracy);
+    }
+
+    private int accuracy() {
+        return mSampler instanceof AccuracySampler
+                ? ((AccuracySampler) mSampler).getAccuracy() : SensorManager.SENSOR_STATUS_ACCURACY_HIGH;
+    }
+
+    private synchronized void publish(float[] values, int accuracy) {
+        long now = System.nanoTime();
+        System.arraycopy(values, 0, mValues, 0, values.length);
+        mAccuracy = accuracy;
+        mHasSample = true;
+        if (mFirstSampleAt == 0) {
+            mFirstSampleAt = now;
+        }
+        if (mHistory != null) {
+            mHistory.append(now, values, 0);
+        }
+        if (mRollup != null) {
+            mRollup.append(mRollup.timestamp(now), values, 0);
+        }
+        store(now, values);
+    }
+
+    private void store(long now, float[] values) {
+        if (mLog == null) {
+            return;
+        }
+        try {
+            mLog.append(mLog.timestamp(now), values, 0);
+        } catch (IOException | IllegalStateException e) {
+            // Storage full, gone or closed: stop rather than fail every sample.
+            Log.e(TAG, "cannot store samples in " + mLog.getDirectory(), e);
+            mLog = null;
+        }
+    }
+
+    /**
+     * Time from start to the first valid sample.
+     * @return nanoseconds, -1 while there was none.
+     */
+    synchronized long getTimeToFirstSampleNanos() {
+        return mFirstSampleAt != 0 ? mFirstSampleAt - mStartedAt : -1;
+    }
+
+    /**
+     * Check whether the bring-up gave up.
+     * @return failed or not.
+     */
+    synchronized boolean isFailed() {
+        return mFailed;
+    }
+}
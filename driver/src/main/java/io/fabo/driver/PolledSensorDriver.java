@@ -0,0 +1,24 @@
+package io.fabo.driver;
+
+import com.google.android.things.userdriver.sensor.UserSensorDriver;
+import com.google.android.things.userdriver.sensor.UserSensorReading;
+
+import java.io.IOException;
+
+/**
+ * UserSensorDriver that reads from a PolledSensor.
+ * Drivers only implement setEnabled.
+ */
+/*package*/ abstract class PolledSensorDriver implements UserSensorDriver {
+
+    final PolledSensor mSensor;
+
+    PolledSensorDriver(PolledSensor sensor) {
+        mSensor = sensor;
+    }
+
+    @Override
+    public UserSensorReading read() throws IOException {
+        return mSensor.read();
+    }
+}
@@ -0,0 +1,123 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+
+/**
+ * I2cDevice that records every transaction into an I2cTraceRecorder.
+ */
+/*package*/ class RecordingI2cDevice implements I2cDevice {
+
+    private final I2cTraceRecorder mRecorder;
+    private final int mIndex;
+    private final I2cDevice mDevice;
+
+    RecordingI2cDevice(I2cTraceRecorder recorder, int index, I2cDevice device) {
+        mRecorder = recorder;
+        mIndex = index;
+        mDevice = device;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDevice.close();
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    public void read(byte[] buffer, int length) throws IOException {
+        boolean failed = true;
+        try {
+            mDevice.read(buffer, length);
+            failed = false;
+        } finally {
+            mRecorder.record(mIndex, I2cTraceRecorder.OP_READ, 0, buffer, length, failed);
+        }
+    }
+
+    @Override
+    public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        boolean failed = true;
+        try {
+            mDevice.readRegBuffer(reg, buffer, length);
+            failed = false;
+        } finally {
+            mRecorder.record(mIndex, I2cTraceRecorder.OP_READ_REG_BUFFER, reg, buffer, length, failed);
+        }
+    }
+
+    @Override
+    public byte readRegByte(int reg) throws IOException {
+        boolean failed = true;
+        byte value = 0;
+        try {
+            value = mDevice.readRegByte(reg);
+            failed = false;
+            return value;
+        } finally {
+            mRecorder.record(mIndex, I2cTraceRecorder.OP_READ_REG_BYTE, reg, value, 1, failed);
+        }
+    }
+
+    @Override
+    public short readRegWord(int reg) throws IOException {
+        boolean failed = true;
+        short value = 0;
+        try {
+            value = mDevice.readRegWord(reg);
+            failed = false;
+            return value;
+        } finally {
+            mRecorder.record(mIndex, I2cTraceRecorder.OP_READ_REG_WORD, reg, value, 2, failed);
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int length) throws IOException {
+        boolean failed = true;
+        try {
+            mDevice.write(buffer, length);
+            failed = false;
+        } finally {
+            mRecorder.record(mIndex, I2cTraceRecorder.OP_WRITE, 0, buffer, length, failed);
+        }
+    }
+
+    @Override
+    public void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        boolean failed = true;
+        try {
+            mDevice.writeRegBuffer(reg, buffer, length);
+            failed = false;
+        } finally {
+            mRecorder.record(mIndex, I2cTraceRecorder.OP_WRITE_REG_BUFFER, reg, buffer, length, failed);
+        }
+    }
+
+    @Override
+    public void writeRegByte(int reg, byte data) throws IOException {
+        boolean failed = true;
+        try {
+            mDevice.writeRegByte(reg, data);
+            failed = false;
+        } finally {
+            mRecorder.record(mIndex, I2cTraceRecorder.OP_WRITE_REG_BYTE, reg, data, 1, failed);
+        }
+    }
+
+    @Override
+    public void writeRegWord(int reg, short data) throws IOException {
+        boolean failed = true;
+        try {
+            mDevice.writeRegWord(reg, data);
+            failed = false;
+        } finally {
+            mRecorder.record(mIndex, I2cTraceRecorder.OP_WRITE_REG_WORD, reg, data, 2, failed);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+
+/**
+ * Write-through shadow of the configuration registers of one device.
+ * A register is read from the chip once, after that bitfield updates are
+ * computed locally and cost a single write. Only use it for registers
+ * that the chip itself never changes.
+ */
+/*package*/ class RegisterCache {
+
+    private final I2cDevice mDevice;
+    private final byte[] mValues = new byte[256];
+    private final boolean[] mValid = new boolean[256];
+
+    RegisterCache(I2cDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Read a register, from the shadow when known.
+     * @param reg register address.
+     * @return value.
+     * @throws IOException
+     */
+    synchronized byte read(int reg) throws IOException {
+        if (!mValid[reg]) {
+            mValues[reg] = mDevice.readRegByte(reg);
+            mValid[reg] = true;
+        }
+        return mValues[reg];
+    }
+
+    /**
+     * Write a register and remember the value.
+     * @param reg register address.
+     * @param value value.
+     * @throws IOException
+     */
+    synchronized void write(int reg, byte value) throws IOException {
+        // Unknown until the write is acknowledged.
+        mValid[reg] = false;
+        mDevice.writeRegByte(reg, value);
+        mValues[reg] = value;
+        mValid[reg] = true;
+    }
+
+    /**
+     * Replace the bits under mask with bits.
+     * @param reg register address.
+     * @param mask bits to replace.
+     * @param bits new bits, already shifted into place.
+     * @throws IOException
+     */
+    synchronized void update(int reg, int mask, int bits) throws IOException {
+        byte value = read(reg);
+        write(reg, (byte)((value & ~mask) | (bits & mask)));
+    }
+
+    /**
+     * Forget a register, e.g. after the chip changed it.
+     * @param reg register address.
+     */
+    synchronized void invalidate(int reg) {
+        mValid[reg] = false;
+    }
+
+    /**
+     * Forget all registers, e.g. after a reset.
+     */
+    synchronized void invalidateAll() {
+        for (int i = 0; i < mValid.length; i++) {
+            mValid[i] = false;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package io.fabo.driver;
+
+import android.util.Log;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * I2cDevice that rides out transient failures and stops using a dead device.
+ * Register reads have no side effects and are retried twice with a short
+ * jittered backoff; writes and raw transfers, e.g. a reset or a Sensirion
+ * command, are not. After 3 operations in a row failed the circuit opens:
+ * transactions throw DeviceUnavailableException at once instead of timing
+ * out on the bus, and the chip is probed, with whoAmI where it has one,
+ * after 1s, then after twice the previous wait up to 30s, until it answers.
+ */
+/*package*/ class ResilientI2cDevice implements I2cDevice {
+    private static final String TAG = ResilientI2cDevice.class.getSimpleName();
+
+    private static final int RETRIES = 2;
+    private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(250);
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long PROBE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_PROBE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Check whether a dead device answers again.
+     */
+    interface Probe {
+        /**
+         * Talk to the chip. Its transactions go through while probing.
+         * @return true when it is back.
+         */
+        boolean probe();
+    }
+
+    private final I2cDevice mDevice;
+    private final Probe mProbe;
+    private final I2cStats mStats;
+    private final String mName;
+    private final int mRetries;
+    private final long mBackoffNanos;
+    private final int mFailureThreshold;
+    private final long mMinProbeNanos;
+    private final long mMaxProbeNanos;
+
+    private int mFailures;
+    private boolean mOpen;
+    private long mProbeNanos;
+    private long mProbeAt;
+    /** Thread probing while the circuit is open, its transactions go through. */
+    private Thread mProber;
+    /** The prober's own transaction decides instead of a probe. */
+    private boolean mTrial;
+
+    /**
+     * Protect a device with the default policy.
+     * @param device device.
+     * @param probe check whether the chip is back, or null to try the next transaction.
+     * @return protected device.
+     */
+    static I2cDevice wrap(I2cDevice device, Probe probe) {
+        return new ResilientI2cDevice(device, probe, RETRIES, BACKOFF_NANOS, FAILURE_THRESHOLD,
+                PROBE_NANOS, MAX_PROBE_NANOS);
+    }
+
+    ResilientI2cDevice(I2cDevice device, Probe probe, int retries, long backoffNanos,
+                       int failureThreshold, long minProbeNanos, long maxProbeNanos) {
+        mDevice = device;
+        mProbe = probe;
+        mStats = I2cStats.of(device);
+        mName = mStats != null
+                ? mStats.getBus() + ":0x" + Integer.toHexString(mStats.getAddress())
+                : device.getName();
+        mRetries = retries;
+        mBackoffNanos = backoffNanos;
+        mFailureThreshold = failureThreshold;
+        mMinProbeNanos = minProbeNanos;
+        mMaxProbeNanos = maxProbeNanos;
+    }
+
+    /**
+     * Check whether the circuit is open.
+     * @return open or not.
+     */
+    /*package*/ synchronized boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDevice.close();
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    public void read(byte[] buffer, int length) throws IOException {
+        enter();
+        try {
+            mDevice.read(buffer, length);
+        } catch (IOException e) {
+            failed(e);
+            throw e;
+        }
+        succeeded();
+    }
+
+    @Override
+    public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            enter();
+            try {
+                mDevice.readRegBuffer(reg, buffer, length);
+                succeeded();
+                return;
+            } catch (IOException e) {
+                if (!retry(attempt, e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public byte readRegByte(int reg) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            enter();
+            try {
+                byte value = mDevice.readRegByte(reg);
+                succeeded();
+                return value;
+            } catch (IOException e) {
+                if (!retry(attempt, e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public short readRegWord(int reg) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            enter();
+            try {
+                short value = mDevice.readRegWord(reg);
+                succeeded();
+                return value;
+            } catch (IOException e) {
+                if (!retry(attempt, e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int length) throws IOException {
+        enter();
+        try {
+            mDevice.write(buffer, length);
+        } catch (IOException e) {
+            failed(e);
+            throw e;
+        }
+        succeeded();
+    }
+
+    @Override
+    public void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        enter();
+        try {
+            mDevice.writeRegBuffer(reg, buffer, length);
+        } catch (IOException e) {
+            failed(e);
+            throw e;
+        }
+        succeeded();
+    }
+
+    @Override
+    public void writeRegByte(int reg, byte data) throws IOException {
+        enter();
+        try {
+            mDevice.writeRegByte(reg, data);
+        } catch (IOException e) {
+            failed(e);
+            throw e;
+        }
+        succeeded();
+    }
+
+    @Override
+    public void writeRegWord(int reg, short data) throws IOException {
+        enter();
+        try {
+            mDevice.writeRegWord(reg, data);
+        } catch (IOException e) {
+            failed(e);
+            throw e;
+        }
+        succeeded();
+    }
+
+    /**
+     * Let a transaction through, probe first when the circuit is open and a probe is due.
+     * @throws DeviceUnavailableException the circuit is open.
+     */
+    private void enter() throws DeviceUnavailableException {
+        Thread current = Thread.currentThread();
+        synchronized (this) {
+            if (!mOpen || mProber == current) {
+                return;
+            }
+            if (mProber != null || System.nanoTime() - mProbeAt < 0) {
+                throw new DeviceUnavailableException(mName + " unavailable");
+            }
+            mProber = current;
+            mTrial = mProbe == null;
+            if (mTrial) {
+                return;
+            }
+        }
+        boolean alive = false;
+        try {
+            alive = mProbe.probe();
+        } finally {
+            finishProbe(alive);
+        }
+        if (!alive) {
+            throw new DeviceUnavailableException(mName + " unavailable");
+        }
+    }
+
+    private synchronized void succeeded() {
+        if (mProber == Thread.currentThread()) {
+            if (mTrial) {
+                finishProbe(true);
+            }
+            return;
+        }
+        mFailures = 0;
+    }
+
+    /**
+     * Wait before retrying a read, or count the failure when out of retries.
+     * @return true to retry.
+     */
+    private boolean retry(int attempt, IOException e) {
+        synchronized (this) {
+            if (attempt >= mRetries || mProber == Thread.currentThread()
+                    || e instanceof DeviceUnavailableException) {
+                failed(e);
+                return false;
+            }
+        }
+        if (mStats != null) {
+            mStats.recordRetry();
+        }
+        long backoff = mBackoffNanos << attempt;
+        LockSupport.parkNanos(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff + 1));
+        return true;
+    }
+
+    private synchronized void failed(IOException e) {
+        if (mProber == Thread.currentThread()) {
+            if (mTrial) {
+                finishProbe(false);
+            }
+            return;
+        }
+        if (e instanceof DeviceUnavailableException || mOpen) {
+            return;
+        }
+        if (++mFailures >= mFailureThreshold) {
+            mOpen = true;
+            mProbeNanos = mMinProbeNanos;
+            mProbeAt = System.nanoTime() + mProbeNanos;
+            Log.w(TAG, mName + " unavailable after " + mFailures + " failures", e);
+        }
+    }
+
+    private synchronized void finishProbe(boolean alive) {
+        mProber = null;
+        mTrial = false;
+        if (alive) {
+            mOpen = false;
+            mFailures = 0;
+            Log.i(TAG, mName + " is back");
+        } else {
+            mProbeNanos = Math.min(mProbeNanos * 2, mMaxProbeNanos);
+            mProbeAt = System.nanoTime() + mProbeNanos;
+        }
+    }
+}
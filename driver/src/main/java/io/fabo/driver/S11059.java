@@ -1,10 +1,7 @@
 package io.fabo.driver;
 
 
-import android.util.Log;
-
 import com.google.android.things.pio.I2cDevice;
-import com.google.android.things.pio.PeripheralManager;
 
 import java.io.IOException;
 
@@ -14,7 +11,7 @@ public class S11059 implements AutoCloseable {
     /**
      * I2C slave address of the S11059.
      */
-    public final int I2C_ADDRESS = 0x2A;
+    public static final int I2C_ADDRESS = 0x2A;
 
     /**
      * Control register.
@@ -24,11 +21,29 @@ public class S11059 implements AutoCloseable {
      * Data Format Control.
      */
     private byte S11059_DATA_RED_H = 0x03;
+    private byte S11059_CTRL_RESET = (byte) 0x80;
     private byte S11059_CTRL_GAIN = 0x08;
     private byte S11059_CTRL_MODE = 0x04;
     private byte S11059_CTRL_TIME_224M = 0x2;
 
+    /**
+     * Gain.
+     */
+    public static final int GAIN_LOW = 0;
+    public static final int GAIN_HIGH = 1;
+
+    /**
+     * Fixed integration time per channel.
+     */
+    public static final int TIME_87_5US = 0b00;
+    public static final int TIME_1_4MS = 0b01;
+    public static final int TIME_22_4MS = 0b10;
+    public static final int TIME_179_2MS = 0b11;
+
+    private static final long[] INTEGRATION_NANOS = {87500L, 1400000L, 22400000L, 179200000L};
+
     private I2cDevice mDevice;
+    private final byte[] mSampleBuffer = new byte[8];
 
     /**
      * Create a new S11059 driver connected to the given I2C bus.
@@ -36,8 +51,7 @@ public class S11059 implements AutoCloseable {
      * @throws IOException
      */
     public S11059(String bus) throws IOException {
-        PeripheralManager pioService = PeripheralManager.getInstance();
-        I2cDevice device = pioService.openI2cDevice(bus, I2C_ADDRESS);
+        I2cDevice device = I2cStats.open(bus, I2C_ADDRESS);
         try {
             connect(device);
         } catch (IOException|RuntimeException e) {
@@ -62,7 +76,7 @@ public class S11059 implements AutoCloseable {
         if (mDevice != null) {
             throw new IllegalStateException("device already connected");
         }
-        mDevice = device;
+        mDevice = ResilientI2cDevice.wrap(device, null);
     }
 
     /**
@@ -79,23 +93,53 @@ public class S11059 implements AutoCloseable {
         }
     }
 
+    /**
+     * Start measuring at high gain and 22.4ms per channel.
+     */
     public void setControl() {
+        setControl(GAIN_HIGH, S11059_CTRL_TIME_224M);
+    }
+
+    /**
+     * Set gain and fixed integration time and start a new measurement.
+     * The ADC is held in reset while the setting changes, so the next
+     * cycle runs entirely at the new setting.
+     * @param gain GAIN_LOW or GAIN_HIGH.
+     * @param time TIME_87_5US to TIME_179_2MS.
+     */
+    public void setControl(int gain, int time) {
         try {
-            // Setting
-            byte value = (byte) (mDevice.readRegByte(S11059_CONTROL) & 0xff);
-            Log.i("TEST", "value=" + value);
-            value |= S11059_CTRL_GAIN;
-            value &= ~(S11059_CTRL_MODE);
-            value &= 0xFC;
-            value |= S11059_CTRL_TIME_224M;
-            value &= 0x3F; // RESET off,SLEEP off
+            byte value = (byte) (time & 0x03);
+            if (gain == GAIN_HIGH) {
+                value |= S11059_CTRL_GAIN;
+            }
+            // RESET on, SLEEP off, fixed time mode.
+            mDevice.writeRegByte(S11059_CONTROL, (byte) (value | S11059_CTRL_RESET));
             mDevice.writeRegByte(S11059_CONTROL, value);
-
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Get the integration time per channel of a time setting.
+     * A measurement cycle integrates the four channels one after another.
+     * @param time TIME_87_5US to TIME_179_2MS.
+     * @return nanoseconds.
+     */
+    public static long getIntegrationNanos(int time) {
+        return INTEGRATION_NANOS[time & 0x03];
+    }
+
+    /**
+     * Get the amplification of a gain setting, high gain is about ten times low gain.
+     * @param gain GAIN_LOW or GAIN_HIGH.
+     * @return factor relative to low gain.
+     */
+    public static int getGainFactor(int gain) {
+        return gain == GAIN_HIGH ? 10 : 1;
+    }
+
     /**
      * Read an color sample.
      * @return RGBI.
@@ -103,18 +147,27 @@ public class S11059 implements AutoCloseable {
      * @throws IllegalStateException
      */
     public float[] readSample() throws IOException, IllegalStateException {
+        float sample[] = new float[4];
+        readInto(sample, 0);
+        return sample;
+    }
+
+    /**
+     * Read an color sample without allocating.
+     * @param out receives red, green, blue, ir.
+     * @param offset index of red in out.
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public synchronized void readInto(float[] out, int offset) throws IOException, IllegalStateException {
         if (mDevice == null) {
             throw new IllegalStateException("device not connected");
         }
-        int length = 8;
-        byte color_buff[] = new byte[length];
+        byte color_buff[] = mSampleBuffer;
         mDevice.readRegBuffer(S11059_DATA_RED_H, color_buff, color_buff.length);
-        int r = (((int)color_buff[0] & 0xff) << 8) | color_buff[1] & 0xff;
-        int g = (((int)color_buff[2] & 0xff) << 8) | color_buff[3] & 0xff;
-        int b = (((int)color_buff[4] & 0xff) << 8) | color_buff[5] & 0xff;
-        int i = (((int)color_buff[6] & 0xff) << 8) | color_buff[7] & 0xff;
-        return new float[]{
-                r, g, b, i
-        };
+        out[offset] = ((color_buff[0] & 0xff) << 8) | color_buff[1] & 0xff;
+        out[offset + 1] = ((color_buff[2] & 0xff) << 8) | color_buff[3] & 0xff;
+        out[offset + 2] = ((color_buff[4] & 0xff) << 8) | color_buff[5] & 0xff;
+        out[offset + 3] = ((color_buff[6] & 0xff) << 8) | color_buff[7] & 0xff;
     }
 }
\ No newline at end of file
@@ -5,18 +5,19 @@ import android.hardware.Sensor;
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
-import com.google.android.things.userdriver.sensor.UserSensorReading;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
-public class S11059ColorDriver implements AutoCloseable {
+public class S11059ColorDriver extends FrameworkSensorDriver implements AutoCloseable {
 
     private static final String TAG = S11059ColorDriver.class.getSimpleName();
     private static final String DRIVER_NAME = "FaBoS11059";
     private static final String DRIVER_VENDOR = "FaBo";
     private static final int DRIVER_VERSION = 1;
     private S11059 mDevice;
+    private I2cBusScheduler mScheduler;
     private UserSensor mUserSensor;
 
     /**
@@ -27,9 +28,23 @@ public class S11059ColorDriver implements AutoCloseable {
      * @see #register()
      */
     public S11059ColorDriver(String bus) throws IOException {
+        super(DRIVER_NAME);
         mDevice = new S11059(bus);
     }
 
+    /**
+     * Create a new framework driver whose transactions run on the given bus scheduler.
+     * The chip is polled at its conversion rate while the sensor is enabled.
+     * @param scheduler scheduler of the I2C bus.
+     * @throws IOException
+     * @see #register()
+     */
+    public S11059ColorDriver(I2cBusScheduler scheduler) throws IOException {
+        super(DRIVER_NAME);
+        mDevice = new S11059(scheduler.open(S11059.I2C_ADDRESS));
+        mScheduler = scheduler;
+    }
+
     /**
      * Close the driver and the underlying device.
      * @throws IOException
@@ -42,6 +57,7 @@ public class S11059ColorDriver implements AutoCloseable {
                 mDevice.close();
             } finally {
                 mDevice = null;
+                dropSensorDriver();
             }
         }
     }
@@ -55,7 +71,7 @@ public class S11059ColorDriver implements AutoCloseable {
             throw new IllegalStateException("cannot registered closed driver");
         }
         if (mUserSensor == null) {
-            mUserSensor = build(mDevice);
+            mUserSensor = build(getSensorDriver());
             UserDriverManager.getInstance().registerSensor(mUserSensor);
         }
     }
@@ -70,7 +86,17 @@ public class S11059ColorDriver implements AutoCloseable {
         }
     }
 
-    static UserSensor build(final S11059 s11059) {
+    @Override
+    /*package*/ PolledSensorDriver newSensorDriver() {
+        return driver(mDevice, mScheduler);
+    }
+
+    @Override
+    /*package*/ boolean isClosed() {
+        return mDevice == null;
+    }
+
+    static UserSensor build(UserSensorDriver driver) {
         return new UserSensor.Builder()
                 .setCustomType(Sensor.TYPE_DEVICE_PRIVATE_BASE,
                         "fabo.io.color",
@@ -79,22 +105,49 @@ public class S11059ColorDriver implements AutoCloseable {
                 .setVendor(DRIVER_VENDOR)
                 .setVersion(DRIVER_VERSION)
                 .setUuid(UUID.randomUUID())
-                .setDriver(new UserSensorDriver() {
-                    @Override
-                    public UserSensorReading read() throws IOException {
-                        float[] sample = s11059.readSample();
-                        return new UserSensorReading(sample);
-                    }
-
-                    @Override
-                    public void setEnabled(boolean enabled) throws IOException {
-                        if (enabled) {
-                            s11059.setControl();
-                        } else {
-                            // ToDo
-                        }
-                    }
-                })
+                .setDriver(driver)
                 .build();
     }
+
+    static PolledSensorDriver driver(final S11059 s11059, I2cBusScheduler scheduler) {
+        final ColorAutoExposure autoExposure = ColorAutoExposure.forS11059(s11059);
+        final PolledSensor sensor = new PolledSensor(scheduler, 4, new PolledSensor.AdaptiveSampler() {
+            @Override
+            public boolean sample(float[] values) throws IOException {
+                return autoExposure.read(values, 0);
+            }
+
+            @Override
+            public long getPeriodNanos() {
+                return autoExposure.getCycleNanos();
+            }
+        });
+        return new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) throws IOException {
+                if (enabled) {
+                    // Four channels at 22.4ms integration each to start with.
+                    sensor.start(bringUp(s11059, autoExposure), 90, TimeUnit.MILLISECONDS);
+                } else {
+                    sensor.stop();
+                }
+            }
+        };
+    }
+
+    /**
+     * Set the initial gain and integration and start measuring.
+     * @param s11059 chip.
+     * @param autoExposure gain and integration time control.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(final S11059 s11059, final ColorAutoExposure autoExposure) {
+        return new BringUp(DRIVER_NAME, 1, TimeUnit.SECONDS) {
+            @Override
+            protected long step(int state) throws IOException {
+                autoExposure.start();
+                return DONE;
+            }
+        };
+    }
 }
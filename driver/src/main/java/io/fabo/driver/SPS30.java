@@ -4,7 +4,6 @@ import android.support.annotation.IntDef;
 import android.util.Log;
 
 import com.google.android.things.pio.I2cDevice;
-import com.google.android.things.pio.PeripheralManager;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -36,6 +35,32 @@ public class SPS30 implements AutoCloseable {
     private final int REG_READ_SERIAL = 0xD033;
     /** Reset. */
     private final int REG_RESET = 0xD304;
+
+    /**
+     * Index of each value of a measurement.
+     */
+    /** Mass concentration PM1.0 [ug/m3]. */
+    public final static int MASS_PM1_0 = 0;
+    /** Mass concentration PM2.5 [ug/m3]. */
+    public final static int MASS_PM2_5 = 1;
+    /** Mass concentration PM4.0 [ug/m3]. */
+    public final static int MASS_PM4_0 = 2;
+    /** Mass concentration PM10 [ug/m3]. */
+    public final static int MASS_PM10 = 3;
+    /** Number concentration PM0.5 [#/cm3]. */
+    public final static int NUMBER_PM0_5 = 4;
+    /** Number concentration PM1.0 [#/cm3]. */
+    public final static int NUMBER_PM1_0 = 5;
+    /** Number concentration PM2.5 [#/cm3]. */
+    public final static int NUMBER_PM2_5 = 6;
+    /** Number concentration PM4.0 [#/cm3]. */
+    public final static int NUMBER_PM4_0 = 7;
+    /** Number concentration PM10 [#/cm3]. */
+    public final static int NUMBER_PM10 = 8;
+    /** Typical particle size [um]. */
+    public final static int TYPICAL_PARTICLE_SIZE = 9;
+    /** Number of values of a measurement. */
+    public final static int NUM_VALUES = 10;
     // Offset
     private final int OFFSET_CYCLE_TIME = 0b11100000;
     private final int OFFSET_ALERT_HOLD = 0b00010000;
@@ -68,6 +93,12 @@ public class SPS30 implements AutoCloseable {
 
 
     private I2cDevice mDevice;
+    private final byte[] mCommandBuffer = new byte[2];
+    private final byte[] mReadyBuffer = new byte[3];
+    /** Ten floats of 2 words each. */
+    private final byte[] mMeasurementBuffer = new byte[NUM_VALUES * 2 * SensirionFrame.WORD_SIZE];
+    /** The measurement without its CRC bytes. */
+    private final byte[] mMeasurementData = new byte[NUM_VALUES * 4];
 
     /**
      * Create a new SPS30 driver connected to the given I2C bus.
@@ -75,8 +106,7 @@ public class SPS30 implements AutoCloseable {
      * @throws IOException
      */
     public SPS30(String bus) throws IOException {
-        PeripheralManager pioService = PeripheralManager.getInstance();
-        I2cDevice device = pioService.openI2cDevice(bus, I2C_ADDRESS);
+        I2cDevice device = I2cStats.open(bus, I2C_ADDRESS);
         try {
             connect(device);
         } catch (IOException|RuntimeException e) {
@@ -101,7 +131,7 @@ public class SPS30 implements AutoCloseable {
         if (mDevice != null) {
             throw new IllegalStateException("device already connected");
         }
-        mDevice = device;
+        mDevice = ResilientI2cDevice.wrap(device, null);
     }
 
 
@@ -123,12 +153,8 @@ public class SPS30 implements AutoCloseable {
      * Start.
      */
     public void start() {
-        byte command[] = {0x03,0x00};
-        byte crc = checkSum(command);
-        byte data[] = new byte[3];
-        data[0] = command[0];
-        data[1] = command[1];
-        data[2] = crc;
+        byte data[] = new byte[SensirionFrame.WORD_SIZE];
+        SensirionFrame.putWord(data, 0, 0x0300);
         try {
             writeCommand(REG_START, data);
         } catch (Exception e) {
@@ -141,20 +167,29 @@ public class SPS30 implements AutoCloseable {
      */
     public boolean checkSerial() {
         try {
-            int length = NUM_SERIAL_STRING + NUM_SERIAL_STRING/2;
-            byte serial_buff[] = readCommand(REG_READ_SERIAL, length);
-            String serial = rawToString(serial_buff);
-            if(serial != null) {
-                return true;
-            } else {
-                return false;
-            }
+            return readSerial() != null;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
         }
     }
 
+    /**
+     * Read the serial number, telling a failed transfer apart from a bad frame.
+     * @return serial number, null when a word fails the CRC or it is empty.
+     * @throws IOException
+     */
+    public String readSerial() throws IOException {
+        int length = NUM_SERIAL_STRING + NUM_SERIAL_STRING/2;
+        byte serial_buff[] = new byte[length];
+        readCommand(REG_READ_SERIAL, serial_buff, length);
+        if (SensirionFrame.check(serial_buff, length / SensirionFrame.WORD_SIZE) != 0) {
+            return null;
+        }
+        String serial = rawToString(serial_buff);
+        return serial == null || serial.isEmpty() ? null : serial;
+    }
+
     /**
      * Write command for sensarion.
      * @param cmd
@@ -182,14 +217,12 @@ public class SPS30 implements AutoCloseable {
     /**
      * Read command for sensarion.
      * @param cmd
+     * @return response, null when the transfer failed.
      */
     public byte[] readCommand(int cmd, int length) {
         byte buff_result[] = new byte[length];
-        int cmd_msb = (cmd & 0xff00) >> 8;
-        int cmd_lsb = (cmd & 0x00ff);
         try {
-            mDevice.write(new byte[]{(byte)cmd_msb, (byte)cmd_lsb}, 2);
-            mDevice.read(buff_result, buff_result.length);
+            readCommand(cmd, buff_result, length);
             return buff_result;
         } catch (Exception e) {
             e.printStackTrace();
@@ -197,30 +230,35 @@ public class SPS30 implements AutoCloseable {
         }
     }
 
+    private synchronized void readCommand(int cmd, byte[] buffer, int length) throws IOException {
+        mCommandBuffer[0] = (byte)((cmd & 0xff00) >> 8);
+        mCommandBuffer[1] = (byte)(cmd & 0x00ff);
+        mDevice.write(mCommandBuffer, 2);
+        mDevice.read(buffer, length);
+    }
+
     /**
      * Get string from raw data.
      * @param rawData
      * @return
      */
     public String rawToString(byte[] rawData) {
-        byte[] data = new byte[rawData.length - rawData.length/3];
+        byte[] data = new byte[rawData.length / SensirionFrame.WORD_SIZE * 2];
         int pointer = 0;
-        for(int i = 2; i < rawData.length; i++) {
-            if(i % 2 == 0) {
-                if(rawData[i] == checkSum(new byte[]{rawData[i-2],rawData[i-1]})) {
-                    if(rawData[i - 2] != 0 && rawData[i - 1] != 0) {
-                        data[pointer++] = rawData[i - 2];
-                        data[pointer++] = rawData[i - 1];
-                    } else {
-                        break;
+        // Null terminated, words failing the CRC are skipped.
+        words:
+        for(int i = 0; i + SensirionFrame.WORD_SIZE <= rawData.length; i += SensirionFrame.WORD_SIZE) {
+            if(SensirionFrame.checkWord(rawData, i)) {
+                for(int j = i; j < i + 2; j++) {
+                    if(rawData[j] == 0) {
+                        break words;
                     }
+                    data[pointer++] = rawData[j];
                 }
             }
         }
-        byte[] stringData = new byte[pointer];
-        System.arraycopy(data, 0, stringData, 0, pointer);
         try {
-            return new String(stringData, "UTF-8");
+            return new String(data, 0, pointer, "UTF-8");
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             return null;
@@ -264,10 +302,11 @@ public class SPS30 implements AutoCloseable {
      * Check ready.
      * @return
      */
-    public boolean checkReady() {
+    public synchronized boolean checkReady() {
         try {
-            byte result_buff[] = readCommand(REG_READY, 3);
-            if(result_buff[1] == 0x01) {
+            byte result_buff[] = mReadyBuffer;
+            readCommand(REG_READY, result_buff, result_buff.length);
+            if(SensirionFrame.checkWord(result_buff, 0) && result_buff[1] == 0x01) {
                 return true;
             } else {
                 return false;
@@ -284,18 +323,7 @@ public class SPS30 implements AutoCloseable {
      * @return
      */
     public byte checkSum(byte[] data) {
-        byte crc = (byte)0xff;
-        for (int i = 0; i < data.length; i++) {
-            crc ^= data[i];
-            for (int bit = 8; bit > 0; --bit) {
-                if ((crc & 0x80) == 0x80) {
-                    crc = (byte)((crc << 1) ^ 0x31);
-                } else {
-                    crc = (byte)(crc << 1);
-                }
-            }
-        }
-        return crc;
+        return SensirionFrame.crc(data, 0, data.length);
     }
 
     /**
@@ -305,16 +333,41 @@ public class SPS30 implements AutoCloseable {
      * @throws IllegalStateException
      */
     public float[] readData() throws IOException, IllegalStateException {
+        float data[] = new float[NUM_VALUES];
+        readInto(data, 0);
+        return data;
+    }
+
+    /**
+     * Read a measurement without allocating.
+     * A value whose words fail the CRC is NaN and flagged in the result.
+     * @param out receives NUM_VALUES values, MASS_PM1_0 to TYPICAL_PARTICLE_SIZE.
+     * @param offset index of MASS_PM1_0 in out.
+     * @return bit n set when value n failed the CRC, 0 when all are valid.
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public synchronized int readInto(float[] out, int offset) throws IOException, IllegalStateException {
         if (mDevice == null) {
             throw new IllegalStateException("device not connected");
         }
-        byte data_buff[] = readCommand(REG_READ_MEAS, 59);
-        float pm1_0 = ((data_buff[0] & 0xff) << 24 + data_buff[1] & 0xff) << 16 + (data_buff[3] & 0xff) << 8 + data_buff[4] & 0xff;
-        float pm2_5 = ((data_buff[6] & 0xff) << 24 + data_buff[7] & 0xff) << 16 + (data_buff[9] & 0xff) << 8 + data_buff[10] & 0xff;
-        float pm4_0 = ((data_buff[12] & 0xff) << 24 + data_buff[13] & 0xff) << 16 + (data_buff[15] & 0xff) << 8 + data_buff[16] & 0xff;
-        float pm10 = ((data_buff[18] & 0xff) << 24 + data_buff[19] & 0xff) << 16 + (data_buff[21] & 0xff) << 8 + data_buff[22] & 0xff;
-        return new float[]{
-                pm1_0, pm2_5, pm4_0, pm10
-        };
+        byte data_buff[] = mMeasurementBuffer;
+        readCommand(REG_READ_MEAS, data_buff, data_buff.length);
+        int words = SensirionFrame.check(data_buff, NUM_VALUES * 2);
+        SensirionFrame.strip(data_buff, NUM_VALUES * 2, mMeasurementData, 0);
+        int failed = 0;
+        for (int i = 0; i < NUM_VALUES; i++) {
+            if ((words >>> (i * 2) & 0b11) == 0) {
+                out[offset + i] = Float.intBitsToFloat(
+                        (mMeasurementData[i * 4] & 0xff) << 24
+                        | (mMeasurementData[i * 4 + 1] & 0xff) << 16
+                        | (mMeasurementData[i * 4 + 2] & 0xff) << 8
+                        | (mMeasurementData[i * 4 + 3] & 0xff));
+            } else {
+                out[offset + i] = Float.NaN;
+                failed |= 1 << i;
+            }
+        }
+        return failed;
     }
 }
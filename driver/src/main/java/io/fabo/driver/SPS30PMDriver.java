@@ -1,23 +1,25 @@
 package io.fabo.driver;
 
 import android.hardware.Sensor;
+import android.hardware.SensorManager;
 import android.util.Log;
 
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
-import com.google.android.things.userdriver.sensor.UserSensorReading;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
-public class SPS30PMDriver implements AutoCloseable {
+public class SPS30PMDriver extends FrameworkSensorDriver implements AutoCloseable {
 
     private static final String TAG = SPS30PMDriver.class.getSimpleName();
     private static final String DRIVER_NAME = "FaBoSPS30";
     private static final String DRIVER_VENDOR = "GClue";
     private static final int DRIVER_VERSION = 1;
     private SPS30 mDevice;
+    private I2cBusScheduler mScheduler;
     private UserSensor mUserSensor;
 
     /**
@@ -28,9 +30,23 @@ public class SPS30PMDriver implements AutoCloseable {
      * @see #register()
      */
     public SPS30PMDriver(String bus) throws IOException {
+        super(DRIVER_NAME);
         mDevice = new SPS30(bus);
     }
 
+    /**
+     * Create a new framework driver whose transactions run on the given bus scheduler.
+     * The chip is polled at its conversion rate while the sensor is enabled.
+     * @param scheduler scheduler of the I2C bus.
+     * @throws IOException
+     * @see #register()
+     */
+    public SPS30PMDriver(I2cBusScheduler scheduler) throws IOException {
+        super(DRIVER_NAME);
+        mDevice = new SPS30(scheduler.open(SPS30.I2C_ADDRESS));
+        mScheduler = scheduler;
+    }
+
     /**
      * Close the driver and the underlying device.
      * @throws IOException
@@ -43,6 +59,7 @@ public class SPS30PMDriver implements AutoCloseable {
                 mDevice.close();
             } finally {
                 mDevice = null;
+                dropSensorDriver();
             }
         }
     }
@@ -56,7 +73,7 @@ public class SPS30PMDriver implements AutoCloseable {
             throw new IllegalStateException("cannot registered closed driver");
         }
         if (mUserSensor == null) {
-            mUserSensor = build(mDevice);
+            mUserSensor = build(getSensorDriver());
             UserDriverManager.getInstance().registerSensor(mUserSensor);
         }
     }
@@ -71,7 +88,17 @@ public class SPS30PMDriver implements AutoCloseable {
         }
     }
 
-    static UserSensor build(final SPS30 sps30) {
+    @Override
+    /*package*/ PolledSensorDriver newSensorDriver() {
+        return driver(mDevice, mScheduler);
+    }
+
+    @Override
+    /*package*/ boolean isClosed() {
+        return mDevice == null;
+    }
+
+    static UserSensor build(UserSensorDriver driver) {
         return new UserSensor.Builder()
                 .setCustomType(Sensor.TYPE_DEVICE_PRIVATE_BASE,
                         "fabo.io.p,",
@@ -80,34 +107,78 @@ public class SPS30PMDriver implements AutoCloseable {
                 .setVendor(DRIVER_VENDOR)
                 .setVersion(DRIVER_VERSION)
                 .setUuid(UUID.randomUUID())
-                .setDriver(new UserSensorDriver() {
-                    @Override
-                    public UserSensorReading read() throws IOException {
-                        if(sps30.checkReady()) {
-                            float data[] = sps30.readData();
-                            return new UserSensorReading(data);
-                        } else {
-                            return null;
+                .setDriver(driver)
+                .build();
+    }
+
+    static PolledSensorDriver driver(final SPS30 sps30, I2cBusScheduler scheduler) {
+        final PolledSensor sensor = new PolledSensor(scheduler, SPS30.NUM_VALUES, new PolledSensor.AccuracySampler() {
+            private int mAccuracy;
+
+            @Override
+            public boolean sample(float[] values) throws IOException {
+                if (!sps30.checkReady()) {
+                    return false;
+                }
+                // Values that failed the CRC are NaN; the others are published, the reading flagged.
+                int failed = sps30.readInto(values, 0);
+                mAccuracy = failed == 0
+                        ? SensorManager.SENSOR_STATUS_ACCURACY_HIGH : SensorManager.SENSOR_STATUS_UNRELIABLE;
+                return failed != (1 << SPS30.NUM_VALUES) - 1;
+            }
+
+            @Override
+            public int getAccuracy() {
+                return mAccuracy;
+            }
+        });
+        return new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) throws IOException {
+                if (enabled) {
+                    // New measurement every second.
+                    sensor.start(bringUp(sps30), 1, TimeUnit.SECONDS);
+                } else {
+                    sensor.stop();
+                    sps30.stop();
+                }
+            }
+        };
+    }
+
+    /**
+     * Reset and start measuring.
+     * The chip does not answer while it resets, so it is probed until it
+     * does rather than waiting out a fixed second.
+     * @param sps30 chip.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(final SPS30 sps30) {
+        return new BringUp(DRIVER_NAME, 2, TimeUnit.SECONDS) {
+            private static final int PROBE = 0;
+            private static final int RESET = 1;
+
+            @Override
+            protected long step(int state) throws IOException {
+                switch (state) {
+                    case PROBE:
+                        // A failed transfer throws and is tried again, a bad frame is no SPS30.
+                        if (sps30.readSerial() == null) {
+                            return FAILED;
                         }
-                    }
-
-                    @Override
-                    public void setEnabled(boolean enabled) throws IOException {
-                        if (enabled) {
-                            if(sps30.checkSerial()) {
-                                sps30.reset();
-                                try {
-                                    Thread.sleep(1000);
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                sps30.start();
-                            }
-                        } else {
-                            sps30.stop();
+                        sps30.reset();
+                        // Reset takes up to 100ms.
+                        return next(RESET, 100, TimeUnit.MILLISECONDS);
+                    case RESET:
+                        if (sps30.readSerial() == null) {
+                            return retry(20, TimeUnit.MILLISECONDS);
                         }
-                    }
-                })
-                .build();
+                        sps30.start();
+                        return DONE;
+                    default:
+                        return FAILED;
+                }
+            }
+        };
     }
 }
@@ -0,0 +1,189 @@
+package io.fabo.driver;
+
+/**
+ * Decodes blocks written by SampleBlockEncoder. The header tells the
+ * channels and timestamp resolution, so any block decodes on its own.
+ * A decoder is reused block after block and only allocates when a block
+ * has another number of channels than the one before.
+ */
+public class SampleBlockDecoder {
+    private static final String TAG = SampleBlockDecoder.class.getSimpleName();
+
+    private float[] mValues = new float[0];
+    private int[] mPrevious = new int[0];
+    private int[] mLeading = new int[0];
+    private int[] mTrailing = new int[0];
+    private byte[] mBlock;
+    private long mBits;
+
+    /**
+     * Get the size of the bit stream of a block.
+     * @param block bytes holding the block.
+     * @param offset offset of the block header.
+     * @return bytes after the header.
+     */
+    public static int getPayloadSize(byte[] block, int offset) {
+        return getInt(block, offset);
+    }
+
+    /**
+     * Get the number of samples of a block.
+     * @param block bytes holding the block.
+     * @param offset offset of the block header.
+     * @return samples.
+     */
+    public static int getCount(byte[] block, int offset) {
+        return getInt(block, offset + 4);
+    }
+
+    /**
+     * Get the number of channels of a block.
+     * @param block bytes holding the block.
+     * @param offset offset of the block header.
+     * @return channels.
+     */
+    public static int getChannels(byte[] block, int offset) {
+        return block[offset + 8] & 0xff | (block[offset + 9] & 0xff) << 8;
+    }
+
+    /**
+     * Get the timestamp of the first sample of a block.
+     * @param block bytes holding the block.
+     * @param offset offset of the block header.
+     * @return timestamp in nanoseconds.
+     */
+    public static long getFirstTimestamp(byte[] block, int offset) {
+        return getLong(block, offset + 20);
+    }
+
+    /**
+     * Get the timestamp of the last sample of a block.
+     * @param block bytes holding the block.
+     * @param offset offset of the block header.
+     * @return timestamp in nanoseconds.
+     */
+    public static long getLastTimestamp(byte[] block, int offset) {
+        return getLong(block, offset + 28);
+    }
+
+    /**
+     * Decode a block.
+     * @param block bytes holding the block, header and bit stream.
+     * @param offset offset of the block header.
+     * @param visitor receives the samples; the values array is reused.
+     * @return samples visited.
+     */
+    public int decode(byte[] block, int offset, SampleLog.Visitor visitor) {
+        int count = getCount(block, offset);
+        int channels = getChannels(block, offset);
+        long resolution = getLong(block, offset + 12);
+        if (mValues.length != channels) {
+            mValues = new float[channels];
+            mPrevious = new int[channels];
+            mLeading = new int[channels];
+            mTrailing = new int[channels];
+        }
+        float[] values = mValues;
+        mBlock = block;
+        mBits = (long) (offset + SampleBlockEncoder.HEADER_SIZE) * 8;
+
+        long units = getFirstTimestamp(block, offset) / resolution;
+        long delta = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                for (int c = 0; c < channels; c++) {
+                    mPrevious[c] = (int) readBits(32);
+                    mLeading[c] = -1;
+                }
+            } else {
+                delta += readDeltaOfDelta();
+                units += delta;
+                for (int c = 0; c < channels; c++) {
+                    readValue(c);
+                }
+            }
+            for (int c = 0; c < channels; c++) {
+                values[c] = Float.intBitsToFloat(mPrevious[c]);
+            }
+            if (!visitor.visit(units * resolution, values)) {
+                mBlock = null;
+                return i + 1;
+            }
+        }
+        mBlock = null;
+        return count;
+    }
+
+    private long readDeltaOfDelta() {
+        if (readBits(1) == 0) {
+            return 0;
+        }
+        if (readBits(1) == 0) {
+            return signed(readBits(7), 7);
+        }
+        if (readBits(1) == 0) {
+            return signed(readBits(9), 9);
+        }
+        if (readBits(1) == 0) {
+            return signed(readBits(12), 12);
+        }
+        if (readBits(1) == 0) {
+            return signed(readBits(32), 32);
+        }
+        return readBits(64);
+    }
+
+    private void readValue(int channel) {
+        if (readBits(1) == 0) {
+            return;
+        }
+        int xor;
+        if (readBits(1) == 0) {
+            int leading = mLeading[channel];
+            int trailing = mTrailing[channel];
+            xor = (int) readBits(32 - leading - trailing) << trailing;
+        } else {
+            int leading = (int) readBits(5);
+            int meaningful = (int) readBits(5) + 1;
+            int trailing = 32 - leading - meaningful;
+            xor = (int) readBits(meaningful) << trailing;
+            mLeading[channel] = leading;
+            mTrailing[channel] = trailing;
+        }
+        mPrevious[channel] ^= xor;
+    }
+
+    private long readBits(int bits) {
+        long value = 0;
+        while (bits > 0) {
+            int index = (int) (mBits >>> 3);
+            int available = 8 - (int) (mBits & 7);
+            int n = Math.min(available, bits);
+            int chunk = (mBlock[index] >>> (available - n)) & ((1 << n) - 1);
+            value = value << n | chunk;
+            mBits += n;
+            bits -= n;
+        }
+        return value;
+    }
+
+    private static long signed(long value, int bits) {
+        return value << (64 - bits) >> (64 - bits);
+    }
+
+    private static int getInt(byte[] block, int offset) {
+        int value = 0;
+        for (int i = 3; i >= 0; i--) {
+            value = value << 8 | block[offset + i] & 0xff;
+        }
+        return value;
+    }
+
+    private static long getLong(byte[] block, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | block[offset + i] & 0xff;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,262 @@
+package io.fabo.driver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compresses samples into blocks, after Facebook's Gorilla: timestamps as
+ * the difference between consecutive deltas, so a steady rate costs one bit
+ * per sample, and each value as the XOR with the previous value of its
+ * channel, stored as the bits that differ. A value that did not change
+ * costs one bit. Each block starts from scratch and carries its own header,
+ * so blocks decode independently and a reader can skip blocks by time.
+ * Timestamps are stored in units of a resolution, e.g. microseconds;
+ * 1 keeps them exact. The encoder is reused block after block without
+ * allocating.
+ *
+ * Block header, little-endian: payload bytes (int), samples (int), channels
+ * (short), reserved (short), resolution in ns (long), first and last
+ * timestamp in ns (long), then the bit stream, most significant bit first.
+ */
+public class SampleBlockEncoder {
+    private static final String TAG = SampleBlockEncoder.class.getSimpleName();
+
+    /** Bytes before the bit stream. */
+    public static final int HEADER_SIZE = 4 + 4 + 2 + 2 + 8 + 8 + 8;
+
+    /** Bits of a timestamp or value in the worst case, to size the buffer. */
+    private static final int MAX_TIMESTAMP_BITS = 5 + 64;
+    private static final int MAX_VALUE_BITS = 2 + 5 + 5 + 32;
+
+    private final int mChannels;
+    private final int mMaxSamples;
+    private final long mResolution;
+    private final byte[] mBuffer;
+    private final byte[] mHeader = new byte[HEADER_SIZE];
+    private final int[] mPrevious;
+    private final int[] mLeading;
+    private final int[] mTrailing;
+    private final float[] mMin;
+    private final float[] mMax;
+    private int mBits;
+    private int mCount;
+    private long mFirst;
+    private long mTimestamp;
+    private long mDelta;
+
+    /**
+     * Create a new encoder.
+     * @param channels values per sample.
+     * @param maxSamples samples per block.
+     * @param resolutionNanos resolution of the stored timestamps.
+     */
+    public SampleBlockEncoder(int channels, int maxSamples, long resolutionNanos) {
+        if (channels < 1 || channels > Short.MAX_VALUE || maxSamples < 1 || resolutionNanos < 1) {
+            throw new IllegalArgumentException("invalid block format");
+        }
+        mChannels = channels;
+        mMaxSamples = maxSamples;
+        mResolution = resolutionNanos;
+        long bits = (long) (MAX_TIMESTAMP_BITS + MAX_VALUE_BITS * channels) * maxSamples;
+        if (bits / 8 + 1 > Integer.MAX_VALUE - HEADER_SIZE) {
+            throw new IllegalArgumentException("block too large");
+        }
+        mBuffer = new byte[(int) (bits / 8 + 1)];
+        mPrevious = new int[channels];
+        mLeading = new int[channels];
+        mTrailing = new int[channels];
+        mMin = new float[channels];
+        mMax = new float[channels];
+    }
+
+    /**
+     * Get the number of samples in the block.
+     * @return samples.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Check whether the block holds the most samples it may.
+     * @return full or not.
+     */
+    public boolean isFull() {
+        return mCount == mMaxSamples;
+    }
+
+    /**
+     * Get the size the block has when written.
+     * @return bytes.
+     */
+    public int getBlockSize() {
+        return HEADER_SIZE + (mBits + 7) / 8;
+    }
+
+    /**
+     * Get the least value of a channel in the block, for a zone map.
+     * @param channel channel.
+     * @return value, +Infinity when only NaN.
+     */
+    public float getMin(int channel) {
+        return mMin[channel];
+    }
+
+    /**
+     * Get the greatest value of a channel in the block, for a zone map.
+     * @param channel channel.
+     * @return value, -Infinity when only NaN.
+     */
+    public float getMax(int channel) {
+        return mMax[channel];
+    }
+
+    /**
+     * Add a sample to the block.
+     * @param timestamp timestamp in nanoseconds, not before the previous one.
+     * @param values channel values.
+     * @param offset offset of the first value.
+     * @throws IllegalStateException when the block is full.
+     */
+    public void append(long timestamp, float[] values, int offset) {
+        if (mCount == mMaxSamples) {
+            throw new IllegalStateException("block full");
+        }
+        long units = Math.floorDiv(timestamp, mResolution);
+        if (mCount == 0) {
+            mFirst = units;
+            mDelta = 0;
+            for (int c = 0; c < mChannels; c++) {
+                int bits = Float.floatToRawIntBits(values[offset + c]);
+                writeBits(bits, 32);
+                mPrevious[c] = bits;
+                mLeading[c] = -1;
+                mMin[c] = Float.POSITIVE_INFINITY;
+                mMax[c] = Float.NEGATIVE_INFINITY;
+            }
+        } else {
+            if (units < mTimestamp) {
+                throw new IllegalArgumentException("timestamps must not decrease");
+            }
+            long delta = units - mTimestamp;
+            writeDeltaOfDelta(delta - mDelta);
+            mDelta = delta;
+            for (int c = 0; c < mChannels; c++) {
+                writeValue(c, Float.floatToRawIntBits(values[offset + c]));
+            }
+        }
+        for (int c = 0; c < mChannels; c++) {
+            float value = values[offset + c];
+            if (value < mMin[c]) {
+                mMin[c] = value;
+            }
+            if (value > mMax[c]) {
+                mMax[c] = value;
+            }
+        }
+        mTimestamp = units;
+        mCount++;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            writeBits(0, 1);
+        } else if (dod >= -64 && dod < 64) {
+            writeBits(0x2, 2);
+            writeBits(dod, 7);
+        } else if (dod >= -256 && dod < 256) {
+            writeBits(0x6, 3);
+            writeBits(dod, 9);
+        } else if (dod >= -2048 && dod < 2048) {
+            writeBits(0xE, 4);
+            writeBits(dod, 12);
+        } else if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) {
+            writeBits(0x1E, 5);
+            writeBits(dod, 32);
+        } else {
+            writeBits(0x1F, 5);
+            writeBits(dod, 64);
+        }
+    }
+
+    private void writeValue(int channel, int bits) {
+        int xor = bits ^ mPrevious[channel];
+        mPrevious[channel] = bits;
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+        int trailing = Integer.numberOfTrailingZeros(xor);
+        if (mLeading[channel] >= 0 && leading >= mLeading[channel] && trailing >= mTrailing[channel]) {
+            // The changed bits fit in the window of the previous value.
+            writeBits(0x2, 2);
+            writeBits(xor >>> mTrailing[channel], 32 - mLeading[channel] - mTrailing[channel]);
+        } else {
+            int meaningful = 32 - leading - trailing;
+            writeBits(0x3, 2);
+            writeBits(leading, 5);
+            writeBits(meaningful - 1, 5);
+            writeBits(xor >>> trailing, meaningful);
+            mLeading[channel] = leading;
+            mTrailing[channel] = trailing;
+        }
+    }
+
+    private void writeBits(long value, int bits) {
+        while (bits > 0) {
+            int free = 8 - (mBits & 7);
+            int n = Math.min(free, bits);
+            int chunk = (int) (value >>> (bits - n)) & ((1 << n) - 1);
+            mBuffer[mBits >>> 3] |= (byte) (chunk << (free - n));
+            mBits += n;
+            bits -= n;
+        }
+    }
+
+    /**
+     * Write the block.
+     * @param out stream.
+     * @throws IOException
+     * @throws IllegalStateException when the block is empty.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (mCount == 0) {
+            throw new IllegalStateException("block empty");
+        }
+        int payload = (mBits + 7) / 8;
+        putInt(0, payload);
+        putInt(4, mCount);
+        mHeader[8] = (byte) mChannels;
+        mHeader[9] = (byte) (mChannels >> 8);
+        mHeader[10] = 0;
+        mHeader[11] = 0;
+        putLong(12, mResolution);
+        putLong(20, mFirst * mResolution);
+        putLong(28, mTimestamp * mResolution);
+        out.write(mHeader, 0, HEADER_SIZE);
+        out.write(mBuffer, 0, payload);
+    }
+
+    /**
+     * Start a new block.
+     */
+    public void reset() {
+        Arrays.fill(mBuffer, 0, (mBits + 7) / 8, (byte) 0);
+        mBits = 0;
+        mCount = 0;
+    }
+
+    private void putInt(int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            mHeader[offset + i] = (byte) (value >> 8 * i);
+        }
+    }
+
+    private void putLong(int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            mHeader[offset + i] = (byte) (value >> 8 * i);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package io.fabo.driver;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A segment of a SampleLog compressed into blocks of SampleBlockEncoder.
+ * A file header, then one block after another, each behind its zone map:
+ * the least and greatest value of every channel (floats), so a query
+ * skips blocks by value as well as by time. Version 1 files have no zone
+ * maps. It is written next to the segment under a temporary name, synced
+ * and renamed, so it is either complete or not there.
+ */
+/*package*/ class SampleBlockFile {
+    private static final String TAG = SampleBlockFile.class.getSimpleName();
+
+    /*package*/ static final int MAGIC = 0x46424C4B;
+    /*package*/ static final int VERSION = 2;
+    /*package*/ static final int HEADER_SIZE = 16;
+    /*package*/ static final String SUFFIX = ".blk";
+    /*package*/ static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File mFile;
+    private final int mChannels;
+    private final long mBase;
+    /** Bytes of the zone map before each block. */
+    private final int mZoneSize;
+    private long mCount;
+    private long mFirst;
+    private long mLast;
+
+    private SampleBlockFile(File file, int channels, long base, int zoneSize) {
+        mFile = file;
+        mChannels = channels;
+        mBase = base;
+        mZoneSize = zoneSize;
+    }
+
+    /**
+     * Get the size of a zone map.
+     * @param channels values per sample.
+     * @return bytes.
+     */
+    /*package*/ static int zoneSize(int channels) {
+        return 2 * 4 * channels;
+    }
+
+    /**
+     * Get the file name of a compressed segment.
+     * @param base sequence number of the first sample.
+     * @return file name.
+     */
+    /*package*/ static String name(long base) {
+        return String.format("%019d", base) + SUFFIX;
+    }
+
+    /**
+     * Open a compressed segment and read its block headers.
+     * @param file file.
+     * @param channels values per sample expected.
+     * @return compressed segment.
+     * @throws IOException when it is not one or has other channels.
+     */
+    /*package*/ static SampleBlockFile open(File file, int channels) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(SampleBlockEncoder.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0, HEADER_SIZE);
+            int version = header.getShort(4);
+            if (header.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+                throw new IOException(file + " is not a compressed sample segment");
+            }
+            if (header.getShort(6) != channels) {
+                throw new IOException(file + " has " + header.getShort(6) + " channels, not " + channels);
+            }
+            SampleBlockFile blocks = new SampleBlockFile(file, channels, header.getLong(8),
+                    version == 1 ? 0 : zoneSize(channels));
+            long position = HEADER_SIZE;
+            long size = channel.size();
+            while (position < size) {
+                readFully(channel, header, position + blocks.mZoneSize, SampleBlockEncoder.HEADER_SIZE);
+                if (blocks.mCount == 0) {
+                    blocks.mFirst = header.getLong(20);
+                }
+                blocks.mLast = header.getLong(28);
+                blocks.mCount += header.getInt(4);
+                position += blocks.mZoneSize + SampleBlockEncoder.HEADER_SIZE + header.getInt(0);
+            }
+            return blocks;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Compress a segment. The segment file is left for the caller to delete.
+     * @param segment full segment, not appended to anymore.
+     * @param resolutionNanos resolution of the stored timestamps.
+     * @param blockSamples samples per block.
+     * @return compressed segment.
+     * @throws IOException
+     */
+    /*package*/ static SampleBlockFile write(SampleSegment segment, long resolutionNanos, int blockSamples)
+            throws IOException {
+        File directory = segment.getFile().getParentFile();
+        File file = new File(directory, name(segment.getBase()));
+        File temporary = new File(directory, name(segment.getBase()) + TEMPORARY_SUFFIX);
+        final SampleBlockEncoder encoder = new SampleBlockEncoder(segment.getChannels(), blockSamples,
+                resolutionNanos);
+        final ByteBuffer zone = ByteBuffer.allocate(zoneSize(segment.getChannels())).order(ByteOrder.LITTLE_ENDIAN);
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try {
+            final BufferedOutputStream out = new BufferedOutputStream(stream);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putShort((short) VERSION).putShort((short) segment.getChannels())
+                    .putLong(segment.getBase());
+            out.write(header.array());
+            final IOException[] failure = new IOException[1];
+            segment.read(new SampleLog.RangeVisitor(Long.MIN_VALUE, Long.MAX_VALUE, null, new SampleLog.Visitor() {
+                @Override
+                public boolean visit(long timestamp, float[] values) {
+                    encoder.append(timestamp, values, 0);
+                    if (encoder.isFull()) {
+                        try {
+                            writeBlock(encoder, zone, out);
+                        } catch (IOException e) {
+                            failure[0] = e;
+                            return false;
+                        }
+                        encoder.reset();
+                    }
+                    return true;
+                }
+            }));
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            if (encoder.size() > 0) {
+                writeBlock(encoder, zone, out);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            stream.close();
+            temporary.delete();
+            throw e;
+        }
+        stream.close();
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("cannot rename " + temporary);
+        }
+        return open(file, segment.getChannels());
+    }
+
+    private static void writeBlock(SampleBlockEncoder encoder, ByteBuffer zone, OutputStream out)
+            throws IOException {
+        int channels = zone.capacity() / 8;
+        for (int c = 0; c < channels; c++) {
+            zone.putFloat(4 * c, encoder.getMin(c));
+            zone.putFloat(4 * (channels + c), encoder.getMax(c));
+        }
+        out.write(zone.array());
+        encoder.writeTo(out);
+    }
+
+    /**
+     * Read the samples in the visitor's time range, skipping the blocks
+     * outside it and those whose zone map the predicate rules out.
+     * @param visitor receives the samples.
+     * @param decoder decoder to use.
+     * @return false when the visitor stopped or the range ended.
+     * @throws IOException
+     */
+    /*package*/ boolean read(SampleLog.RangeVisitor visitor, SampleBlockDecoder decoder) throws IOException {
+        SampleQuery.Predicate predicate = visitor.getPredicate();
+        float[] min = new float[mChannels];
+        float[] max = new float[mChannels];
+        int prefix = mZoneSize + SampleBlockEncoder.HEADER_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(prefix).order(ByteOrder.LITTLE_ENDIAN);
+            long position = HEADER_SIZE;
+            long size = channel.size();
+            ByteBuffer block = null;
+            while (position < size) {
+                readFully(channel, header, position, prefix);
+                int payload = header.getInt(mZoneSize);
+                long first = header.getLong(mZoneSize + 20);
+                long last = header.getLong(mZoneSize + 28);
+                if (first >= visitor.getTo()) {
+                    return false;
+                }
+                if (last >= visitor.getFrom()) {
+                    boolean skip = false;
+                    if (predicate != null && mZoneSize > 0) {
+                        for (int c = 0; c < mChannels; c++) {
+                            min[c] = header.getFloat(4 * c);
+                            max[c] = header.getFloat(4 * (mChannels + c));
+                        }
+                        skip = !predicate.mayMatch(min, max);
+                    }
+                    visitor.countBlock(skip);
+                    if (!skip) {
+                        int length = SampleBlockEncoder.HEADER_SIZE + payload;
+                        if (block == null || block.capacity() < length) {
+                            block = ByteBuffer.allocate(length);
+                        }
+                        readFully(channel, block, position + mZoneSize, length);
+                        decoder.decode(block.array(), 0, visitor);
+                        if (visitor.isDone()) {
+                            return false;
+                        }
+                    }
+                }
+                position += prefix + payload;
+            }
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+    }
+
+    /*package*/ File getFile() {
+        return mFile;
+    }
+
+    /*package*/ long getBase() {
+        return mBase;
+    }
+
+    /*package*/ long getCount() {
+        return mCount;
+    }
+
+    /*package*/ long getFirstTimestamp() {
+        return mFirst;
+    }
+
+    /*package*/ long getLastTimestamp() {
+        return mLast;
+    }
+}
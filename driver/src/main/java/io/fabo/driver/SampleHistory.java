@@ -0,0 +1,257 @@
+package io.fabo.driver;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Fixed-capacity history of the samples of one sensor in primitive arrays.
+ * Samples are numbered from 0 in the order they were appended; once more
+ * than the capacity was appended the oldest are overwritten.
+ * One thread appends, normally the bus thread. Any number of threads copy
+ * samples out into a Snapshot without locking: a copy is optimistic and
+ * retried when the writer appended meanwhile, like a seqlock, so readers
+ * never hold up acquisition. An append takes a few stores, so a reader
+ * only retries more than once when samples come faster than it copies.
+ * Appending and copying into a reused Snapshot do not allocate.
+ */
+public class SampleHistory {
+    private final int mChannels;
+    private final int mCapacity;
+    private final long[] mTimestamps;
+    /** Channels of one sample after another. */
+    private final float[] mValues;
+    private final StampedLock mLock = new StampedLock();
+    /** Number of samples appended, the sequence number of the next one. */
+    private volatile long mCount;
+
+    /**
+     * Samples copied out of a history.
+     * Create one per reader and reuse it.
+     */
+    public static class Snapshot {
+        private final int mChannels;
+        private final long[] mTimestamps;
+        private final float[] mValues;
+        private long mFirst;
+        private int mSize;
+
+        /**
+         * Create a new snapshot.
+         * @param channels values per sample.
+         * @param capacity most samples a copy holds.
+         */
+        public Snapshot(int channels, int capacity) {
+            mChannels = channels;
+            mTimestamps = new long[capacity];
+            mValues = new float[capacity * channels];
+        }
+
+        /**
+         * Get the number of samples copied.
+         * @return samples.
+         */
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Get the sequence number of the first sample copied.
+         * @return sequence number.
+         */
+        public long getFirstSequence() {
+            return mFirst;
+        }
+
+        /**
+         * Get the sequence number after the last sample copied, where to continue from.
+         * @return sequence number.
+         */
+        public long getNextSequence() {
+            return mFirst + mSize;
+        }
+
+        /**
+         * Get the time of a sample.
+         * @param index 0 to size() - 1.
+         * @return System.nanoTime() of the sample.
+         */
+        public long getTimestamp(int index) {
+            checkIndex(index);
+            return mTimestamps[index];
+        }
+
+        /**
+         * Get a value of a sample.
+         * @param index 0 to size() - 1.
+         * @param channel channel.
+         * @return value.
+         */
+        public float getValue(int index, int channel) {
+            checkIndex(index);
+            return mValues[index * mChannels + channel];
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+            }
+        }
+    }
+
+    /**
+     * Create a new history.
+     * @param channels values per sample.
+     * @param capacity samples kept, e.g. rate times the minutes to retain.
+     */
+    public SampleHistory(int channels, int capacity) {
+        if (channels <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("channels and capacity must be positive");
+        }
+        mChannels = channels;
+        mCapacity = capacity;
+        mTimestamps = new long[capacity];
+        mValues = new float[capacity * channels];
+    }
+
+    /**
+     * Get the number of values per sample.
+     * @return channels.
+     */
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * Get the number of samples kept.
+     * @return capacity.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Create a snapshot large enough for the whole history.
+     * @return snapshot.
+     */
+    public Snapshot newSnapshot() {
+        return new Snapshot(mChannels, mCapacity);
+    }
+
+    /**
+     * Get the number of samples appended so far.
+     * @return sequence number of the next sample.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Append a sample. Only one thread may append.
+     * @param timestampNanos System.nanoTime() of the sample, not before the previous one.
+     * @param values sample.
+     * @param offset index of the first channel in values.
+     */
+    public void append(long timestampNanos, float[] values, int offset) {
+        long stamp = mLock.writeLock();
+        try {
+            long count = mCount;
+            int slot = (int) (count % mCapacity);
+            mTimestamps[slot] = timestampNanos;
+            System.arraycopy(values, offset, mValues, slot * mChannels, mChannels);
+            mCount = count + 1;
+        } finally {
+            mLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copy the samples kept.
+     * @param snapshot receives the samples, the newest ones if it is smaller than the history.
+     */
+    public void snapshot(Snapshot snapshot) {
+        copy(0, Long.MIN_VALUE, Long.MAX_VALUE, true, snapshot);
+    }
+
+    /**
+     * Copy the samples from a sequence number on, e.g. to follow the history.
+     * @param from sequence number, samples overwritten meanwhile are skipped.
+     * @param snapshot receives the samples, the oldest ones if it is smaller.
+     */
+    public void copySince(long from, Snapshot snapshot) {
+        copy(from, Long.MIN_VALUE, Long.MAX_VALUE, false, snapshot);
+    }
+
+    /**
+     * Copy the samples taken in a time range.
+     * @param startNanos first time, inclusive.
+     * @param endNanos last time, exclusive.
+     * @param snapshot receives the samples, the oldest ones if it is smaller.
+     */
+    public void copyRange(long startNanos, long endNanos, Snapshot snapshot) {
+        copy(0, startNanos, endNanos, false, snapshot);
+    }
+
+    /**
+     * @param newest keep the newest samples when the snapshot is too small, else the oldest.
+     */
+    private void copy(long from, long startNanos, long endNanos, boolean newest, Snapshot snapshot) {
+        if (snapshot.mChannels != mChannels) {
+            throw new IllegalArgumentException("snapshot has " + snapshot.mChannels + " channels");
+        }
+        while (true) {
+            // Taken while the writer appends, the stamp is 0 and never validates.
+            long stamp = mLock.tryOptimisticRead();
+            copyOptimistic(from, startNanos, endNanos, newest, snapshot);
+            if (mLock.validate(stamp)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copy from the arrays. May run while the writer appends, so every
+     * index is bounded and the result is only used after validation.
+     */
+    private void copyOptimistic(long from, long startNanos, long endNanos, boolean newest, Snapshot snapshot) {
+        long count = mCount;
+        long oldest = Math.max(0, count - mCapacity);
+        long first = Math.max(from, oldest);
+        long last = count;
+        if (startNanos != Long.MIN_VALUE) {
+            first = search(first, last, startNanos);
+        }
+        if (endNanos != Long.MAX_VALUE) {
+            last = search(first, last, endNanos);
+        }
+        int room = snapshot.mTimestamps.length;
+        if (last - first > room) {
+            if (newest) {
+                first = last - room;
+            } else {
+                last = first + room;
+            }
+        }
+        int size = (int) Math.max(0, last - first);
+        for (int i = 0; i < size; i++) {
+            int slot = (int) ((first + i) % mCapacity);
+            snapshot.mTimestamps[i] = mTimestamps[slot];
+            System.arraycopy(mValues, slot * mChannels, snapshot.mValues, i * mChannels, mChannels);
+        }
+        snapshot.mFirst = first;
+        snapshot.mSize = size;
+    }
+
+    /**
+     * First sequence number in [low, high) whose timestamp is at or after time, high if none.
+     */
+    private long search(long low, long high, long time) {
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (mTimestamps[(int) (mid % mCapacity)] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
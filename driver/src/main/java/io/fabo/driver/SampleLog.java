@@ -0,0 +1,422 @@
+package io.fabo.driver;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only store of the samples of one sensor, a directory of segment
+ * files of fixed-width records. Appending writes into the mapped segment:
+ * no system call and no allocation per sample, only when a segment is full
+ * and the next one is created. flush() forces the records to storage; the
+ * kernel writes them back on its own otherwise. Timestamps never decrease,
+ * a sample older than the last one is stored with the last timestamp.
+ * Reads go through the file, on any thread, while samples are appended.
+ * compact() replaces full segments with compressed ones (SampleBlockFile).
+ */
+public class SampleLog implements AutoCloseable {
+    private static final String TAG = SampleLog.class.getSimpleName();
+
+    /** Samples per block of a compressed segment. */
+    private static final int BLOCK_SAMPLES = 1024;
+
+    private final File mDirectory;
+    private final int mChannels;
+    private final int mSegmentBytes;
+    private final long mClockOffsetNanos;
+    /** Every segment, the last one is appended to. */
+    private final List<SampleSegment> mSegments = new ArrayList<>();
+    /** Full segments whose records were not forced yet. */
+    private final List<SampleSegment> mUnflushed = new ArrayList<>();
+    /** Compressed segments, older than the segments. */
+    private final List<SampleBlockFile> mCompacted = new ArrayList<>();
+    /** Held by readers, and by compaction to delete a segment. */
+    private final ReentrantReadWriteLock mFilesLock = new ReentrantReadWriteLock();
+    private final Object mCompactLock = new Object();
+    private SampleSegment mTail;
+    private long mLastTimestamp = Long.MIN_VALUE;
+    private boolean mClosed;
+
+    /**
+     * Visits samples read from a log.
+     */
+    public interface Visitor {
+        /**
+         * @param timestamp timestamp of the sample.
+         * @param values channel values, only valid during the call.
+         * @return false to stop reading.
+         */
+        boolean visit(long timestamp, float[] values);
+    }
+
+    /**
+     * Open a log, recovering the samples written before a crash.
+     * @param directory directory of the segments, created if missing.
+     * @param channels values per sample.
+     * @param segmentBytes size of a segment file.
+     * @param clockOffsetNanos added to System.nanoTime() for timestamp(long).
+     * @throws IOException
+     */
+    /*package*/ SampleLog(File directory, int channels, int segmentBytes, long clockOffsetNanos)
+            throws IOException {
+        if (channels < 1 || channels > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid number of channels " + channels);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        mDirectory = directory;
+        mChannels = channels;
+        mSegmentBytes = segmentBytes;
+        mClockOffsetNanos = clockOffsetNanos;
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SampleSegment.SUFFIX) || name.endsWith(SampleBlockFile.SUFFIX)
+                        || name.endsWith(SampleBlockFile.TEMPORARY_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("cannot list " + directory);
+        }
+        // Names are zero-padded sequence numbers, a compressed segment sorts before its original.
+        Arrays.sort(files);
+        List<File> segments = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SampleBlockFile.TEMPORARY_SUFFIX)) {
+                // Compaction interrupted, the segment is still there.
+                file.delete();
+            } else if (name.endsWith(SampleBlockFile.SUFFIX)) {
+                SampleBlockFile compacted = SampleBlockFile.open(file, channels);
+                mCompacted.add(compacted);
+                if (compacted.getCount() > 0) {
+                    mLastTimestamp = compacted.getLastTimestamp();
+                }
+            } else if (new File(directory, SampleBlockFile.name(
+                    Long.parseLong(name.substring(0, name.length() - SampleSegment.SUFFIX.length())))).exists()) {
+                // Compressed, but not deleted yet.
+                file.delete();
+            } else {
+                segments.add(file);
+            }
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            mSegments.add(SampleSegment.open(segments.get(i), channels, i == segments.size() - 1));
+        }
+        if (!mSegments.isEmpty()) {
+            mTail = mSegments.get(mSegments.size() - 1);
+            for (SampleSegment segment : mSegments) {
+                if (segment.getCount() > 0) {
+                    mLastTimestamp = segment.getLastTimestamp();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of values per sample.
+     * @return channels.
+     */
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * Get the directory of the segments.
+     * @return directory.
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Get the number of samples in the log.
+     * @return samples.
+     */
+    public synchronized long size() {
+        if (mTail != null) {
+            return mTail.getBase() + mTail.getCount();
+        }
+        if (!mCompacted.isEmpty()) {
+            SampleBlockFile last = mCompacted.get(mCompacted.size() - 1);
+            return last.getBase() + last.getCount();
+        }
+        return 0;
+    }
+
+    /**
+     * Convert a System.nanoTime() timestamp, e.g. of a SensorEvent or a
+     * SampleHistory, to the wall clock timestamp the store uses.
+     * @param nanoTime System.nanoTime().
+     * @return nanoseconds since the epoch.
+     */
+    public long timestamp(long nanoTime) {
+        return nanoTime + mClockOffsetNanos;
+    }
+
+    /**
+     * Append a sample.
+     * @param timestamp nanoseconds since the epoch.
+     * @param values channel values.
+     * @param offset offset of the first value.
+     * @throws IOException when a new segment cannot be created.
+     */
+    public synchronized void append(long timestamp, float[] values, int offset) throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("log closed");
+        }
+        if (mTail == null || mTail.isFull()) {
+            roll();
+        }
+        if (timestamp < mLastTimestamp) {
+            timestamp = mLastTimestamp;
+        }
+        mTail.append(timestamp, values, offset);
+        mLastTimestamp = timestamp;
+    }
+
+    private void roll() throws IOException {
+        long base = size();
+        if (mTail != null) {
+            mUnflushed.add(mTail);
+        }
+        SampleSegment segment = SampleSegment.create(new File(mDirectory, SampleSegment.name(base)),
+                mChannels, mSegmentBytes, base);
+        mSegments.add(segment);
+        mTail = segment;
+    }
+
+    /**
+     * Force the samples appended so far to storage, then commit them in the
+     * segment headers. Appending goes on meanwhile. Call it regularly: full
+     * segments stay mapped until they were flushed.
+     */
+    public void flush() {
+        SampleSegment[] full;
+        SampleSegment tail;
+        int count;
+        synchronized (this) {
+            full = mUnflushed.toArray(new SampleSegment[mUnflushed.size()]);
+            mUnflushed.clear();
+            tail = mTail;
+            count = tail == null ? 0 : tail.getCount();
+        }
+        for (SampleSegment segment : full) {
+            commit(segment, segment.getCount());
+            segment.unmap();
+        }
+        if (tail != null) {
+            commit(tail, count);
+        }
+    }
+
+    private static void commit(SampleSegment segment, int count) {
+        segment.force();
+        segment.commit(count);
+        segment.force();
+    }
+
+    /**
+     * Force the samples to storage and stop appending.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        flush();
+        synchronized (this) {
+            if (mTail != null) {
+                mTail.unmap();
+            }
+        }
+    }
+
+    /**
+     * Read the samples in a time range, oldest first.
+     * @param from first timestamp, inclusive.
+     * @param to last timestamp, exclusive.
+     * @param visitor receives the samples.
+     * @return samples visited.
+     * @throws IOException
+     */
+    public long read(long from, long to, Visitor visitor) throws IOException {
+        RangeVisitor range = new RangeVisitor(from, to, null, visitor);
+        read(range);
+        return range.getVisited();
+    }
+
+    /**
+     * Pass the samples in the visitor's range to it, compressed segments first.
+     * @param range visitor.
+     * @throws IOException
+     */
+    /*package*/ void read(RangeVisitor range) throws IOException {
+        mFilesLock.readLock().lock();
+        try {
+            SampleBlockFile[] compacted;
+            SampleSegment[] segments;
+            synchronized (this) {
+                compacted = mCompacted.toArray(new SampleBlockFile[mCompacted.size()]);
+                segments = mSegments.toArray(new SampleSegment[mSegments.size()]);
+            }
+            SampleBlockDecoder decoder = null;
+            for (SampleBlockFile file : compacted) {
+                if (file.getCount() == 0 || file.getLastTimestamp() < range.getFrom()) {
+                    continue;
+                }
+                if (decoder == null) {
+                    decoder = new SampleBlockDecoder();
+                }
+                if (!file.read(range, decoder)) {
+                    return;
+                }
+            }
+            for (SampleSegment segment : segments) {
+                if (segment.getCount() == 0 || segment.getLastTimestamp() < range.getFrom()) {
+                    continue;
+                }
+                if (!segment.read(range)) {
+                    return;
+                }
+            }
+        } finally {
+            mFilesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compress the segments no longer appended to and flushed, oldest first,
+     * and delete them. Runs alongside appending and reading, e.g. on a
+     * background thread once a day; compressed samples read back the same
+     * except for their timestamps, which keep the resolution given.
+     * @param resolutionNanos resolution of the stored timestamps, 1 to keep them exact.
+     * @return segments compressed.
+     * @throws IOException
+     */
+    public int compact(long resolutionNanos) throws IOException {
+        synchronized (mCompactLock) {
+            int compacted = 0;
+            while (true) {
+                SampleSegment segment;
+                synchronized (this) {
+                    if (mSegments.isEmpty()) {
+                        break;
+                    }
+                    segment = mSegments.get(0);
+                    if (segment == mTail || mUnflushed.contains(segment)) {
+                        break;
+                    }
+                }
+                SampleBlockFile file = SampleBlockFile.write(segment, resolutionNanos, BLOCK_SAMPLES);
+                mFilesLock.writeLock().lock();
+                try {
+                    synchronized (this) {
+                        mSegments.remove(0);
+                        mCompacted.add(file);
+                    }
+                    if (!segment.getFile().delete()) {
+                        Log.w(TAG, "cannot delete " + segment.getFile());
+                    }
+                } finally {
+                    mFilesLock.writeLock().unlock();
+                }
+                compacted++;
+            }
+            return compacted;
+        }
+    }
+
+    /**
+     * Passes on the samples in a time range that match a predicate until
+     * the visitor stops.
+     */
+    /*package*/ static class RangeVisitor implements Visitor {
+        private final long mFrom;
+        private final long mTo;
+        private final SampleQuery.Predicate mPredicate;
+        private final Visitor mVisitor;
+        private long mVisited;
+        private long mBlocksRead;
+        private long mBlocksSkipped;
+        private boolean mDone;
+
+        /*package*/ RangeVisitor(long from, long to, SampleQuery.Predicate predicate, Visitor visitor) {
+            mFrom = from;
+            mTo = to;
+            mPredicate = predicate;
+            mVisitor = visitor;
+        }
+
+        @Override
+        public boolean visit(long timestamp, float[] values) {
+            if (timestamp < mFrom) {
+                return true;
+            }
+            if (timestamp >= mTo) {
+                mDone = true;
+                return false;
+            }
+            if (mPredicate != null && !mPredicate.matches(timestamp, values)) {
+                return true;
+            }
+            mVisited++;
+            if (!mVisitor.visit(timestamp, values)) {
+                mDone = true;
+                return false;
+            }
+            return true;
+        }
+
+        /*package*/ long getFrom() {
+            return mFrom;
+        }
+
+        /*package*/ long getTo() {
+            return mTo;
+        }
+
+        /*package*/ SampleQuery.Predicate getPredicate() {
+            return mPredicate;
+        }
+
+        /*package*/ long getVisited() {
+            return mVisited;
+        }
+
+        /*package*/ void countBlock(boolean skipped) {
+            if (skipped) {
+                mBlocksSkipped++;
+            } else {
+                mBlocksRead++;
+            }
+        }
+
+        /*package*/ long getBlocksRead() {
+            return mBlocksRead;
+        }
+
+        /*package*/ long getBlocksSkipped() {
+            return mBlocksSkipped;
+        }
+
+        /**
+         * Check whether the range ended or the visitor stopped.
+         * @return done or not.
+         */
+        /*package*/ boolean isDone() {
+            return mDone;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.fabo.driver;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Query over the samples of a SampleLog: a time range and conditions on
+ * the values, the matching samples streamed to a visitor, oldest first.
+ * Compressed segments keep a zone map per block, the least and greatest
+ * value of every channel, so blocks that cannot match are skipped without
+ * decoding; blocks outside the time range are skipped by their header.
+ * Segments not compressed yet are scanned from the first index block of
+ * the range. A query can run again, e.g. with a predicate that tightens.
+ */
+public class SampleQuery {
+    private static final String TAG = SampleQuery.class.getSimpleName();
+
+    /**
+     * Condition on the samples.
+     */
+    public interface Predicate {
+        /**
+         * Check whether a block may hold a matching sample. Called before
+         * each block is read, so it may depend on the samples matched so far.
+         * @param min least value of each channel in the block.
+         * @param max greatest value of each channel in the block.
+         * @return false to skip the block.
+         */
+        boolean mayMatch(float[] min, float[] max);
+
+        /**
+         * Check a sample.
+         * @param timestamp timestamp in nanoseconds.
+         * @param values channel values.
+         * @return true to pass the sample to the visitor.
+         */
+        boolean matches(long timestamp, float[] values);
+    }
+
+    private final SampleLog mLog;
+    private final long mFrom;
+    private final long mTo;
+    private int mConditions;
+    private int[] mChannels = new int[0];
+    private float[] mLow = new float[0];
+    private float[] mHigh = new float[0];
+    private Predicate mPredicate;
+    private long mBlocksRead;
+    private long mBlocksSkipped;
+
+    private final Predicate mMatcher = new Predicate() {
+        @Override
+        public boolean mayMatch(float[] min, float[] max) {
+            for (int i = 0; i < mConditions; i++) {
+                int channel = mChannels[i];
+                if (max[channel] < mLow[i] || min[channel] > mHigh[i]) {
+                    return false;
+                }
+            }
+            return mPredicate == null || mPredicate.mayMatch(min, max);
+        }
+
+        @Override
+        public boolean matches(long timestamp, float[] values) {
+            for (int i = 0; i < mConditions; i++) {
+                float value = values[mChannels[i]];
+                if (!(value >= mLow[i] && value <= mHigh[i])) {
+                    return false;
+                }
+            }
+            return mPredicate == null || mPredicate.matches(timestamp, values);
+        }
+    };
+
+    /**
+     * Create a new query.
+     * @param log log to query.
+     * @param from first timestamp, inclusive.
+     * @param to last timestamp, exclusive.
+     */
+    public SampleQuery(SampleLog log, long from, long to) {
+        mLog = log;
+        mFrom = from;
+        mTo = to;
+    }
+
+    /**
+     * Only match samples with a channel in a range. Conditions add up.
+     * @param channel channel.
+     * @param low least value, inclusive; -Infinity for no bound.
+     * @param high greatest value, inclusive; +Infinity for no bound.
+     */
+    public void where(int channel, float low, float high) {
+        if (channel < 0 || channel >= mLog.getChannels()) {
+            throw new IllegalArgumentException("no channel " + channel);
+        }
+        if (mConditions == mChannels.length) {
+            int size = mConditions * 2 + 1;
+            mChannels = Arrays.copyOf(mChannels, size);
+            mLow = Arrays.copyOf(mLow, size);
+            mHigh = Arrays.copyOf(mHigh, size);
+        }
+        mChannels[mConditions] = channel;
+        mLow[mConditions] = low;
+        mHigh[mConditions] = high;
+        mConditions++;
+    }
+
+    /**
+     * Only match samples a predicate accepts, besides the ranges of where().
+     * @param predicate predicate, or null.
+     */
+    public void setPredicate(Predicate predicate) {
+        mPredicate = predicate;
+    }
+
+    /**
+     * Run the query.
+     * @param visitor receives the matching samples; returns false to stop.
+     * @return samples matched.
+     * @throws IOException
+     */
+    public long run(SampleLog.Visitor visitor) throws IOException {
+        boolean filtered = mConditions > 0 || mPredicate != null;
+        SampleLog.RangeVisitor range = new SampleLog.RangeVisitor(mFrom, mTo, filtered ? mMatcher : null, visitor);
+        mLog.read(range);
+        mBlocksRead = range.getBlocksRead();
+        mBlocksSkipped = range.getBlocksSkipped();
+        return range.getVisited();
+    }
+
+    /**
+     * Get the number of compressed blocks decoded by the last run.
+     * @return blocks.
+     */
+    public long getBlocksRead() {
+        return mBlocksRead;
+    }
+
+    /**
+     * Get the number of compressed blocks the last run skipped by their zone map.
+     * @return blocks.
+     */
+    public long getBlocksSkipped() {
+        return mBlocksSkipped;
+    }
+}
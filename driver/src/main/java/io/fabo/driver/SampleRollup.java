@@ -0,0 +1,488 @@
+package io.fabo.driver;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Per-second, per-minute and per-hour aggregates of the samples of one
+ * sensor: count, and min, max and mean of every channel. Each level is a
+ * ring of buckets in primitive arrays, updated as samples arrive, so a
+ * sample costs the same whatever is kept and nothing is allocated.
+ * Buckets are aligned on the wall clock; pass the timestamps through
+ * timestamp() like for a SampleLog.
+ * One thread appends, normally the bus thread. Any number of threads copy
+ * buckets out or summarize a time range without holding up the writer,
+ * optimistically like SampleHistory.
+ */
+public class SampleRollup {
+    private static final String TAG = SampleRollup.class.getSimpleName();
+
+    public static final int LEVEL_SECOND = 0;
+    public static final int LEVEL_MINUTE = 1;
+    public static final int LEVEL_HOUR = 2;
+
+    /** Bucket length of each level, in seconds. */
+    private static final long[] SECONDS = {1, 60, 60 * 60};
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /** Optimistic copies before a reader takes the read lock to make progress. */
+    private static final int MAX_OPTIMISTIC_READS = 8;
+
+    private final int mChannels;
+    private final Level[] mLevels;
+    /** Wall clock minus System.nanoTime() when the rollup was created. */
+    private final long mClockOffsetNanos;
+    private final StampedLock mLock = new StampedLock();
+    private long mLastTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Buckets of one length, in a ring indexed by bucket number.
+     */
+    private static class Level {
+        final long mNanos;
+        final int mCapacity;
+        /** Bucket number held by a slot, Long.MIN_VALUE while unused. */
+        final long[] mBucket;
+        final int[] mCount;
+        /** Channels of one slot after another. */
+        final float[] mMin;
+        final float[] mMax;
+        final double[] mSum;
+        /** Newest bucket number appended to. */
+        long mNewest = Long.MIN_VALUE;
+
+        Level(long nanos, int capacity, int channels) {
+            mNanos = nanos;
+            mCapacity = capacity;
+            mBucket = new long[capacity];
+            mCount = new int[capacity];
+            mMin = new float[capacity * channels];
+            mMax = new float[capacity * channels];
+            mSum = new double[capacity * channels];
+            Arrays.fill(mBucket, Long.MIN_VALUE);
+        }
+
+        /** Whether a bucket is still kept, or not there yet. */
+        boolean isKept(long bucket) {
+            return mNewest != Long.MIN_VALUE && bucket > mNewest - mCapacity;
+        }
+
+        int slot(long bucket) {
+            return (int) Math.floorMod(bucket, (long) mCapacity);
+        }
+    }
+
+    /**
+     * Aggregates of several buckets of one level copied out of a rollup.
+     * Create one per reader and reuse it.
+     */
+    public static class Buckets {
+        private final int mChannels;
+        private final long[] mStart;
+        private final int[] mCount;
+        private final float[] mMin;
+        private final float[] mMax;
+        private final float[] mMean;
+        private int mSize;
+
+        /**
+         * Create new buckets.
+         * @param channels values per sample.
+         * @param capacity most buckets a copy holds.
+         */
+        public Buckets(int channels, int capacity) {
+            mChannels = channels;
+            mStart = new long[capacity];
+            mCount = new int[capacity];
+            mMin = new float[capacity * channels];
+            mMax = new float[capacity * channels];
+            mMean = new float[capacity * channels];
+        }
+
+        /**
+         * Get the number of buckets copied.
+         * @return buckets.
+         */
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Get the start of a bucket.
+         * @param index 0 to size() - 1.
+         * @return wall clock time in nanoseconds.
+         */
+        public long getStart(int index) {
+            checkIndex(index);
+            return mStart[index];
+        }
+
+        /**
+         * Get the number of samples of a bucket.
+         * @param index 0 to size() - 1.
+         * @return samples.
+         */
+        public int getCount(int index) {
+            checkIndex(index);
+            return mCount[index];
+        }
+
+        /**
+         * Get the least value of a channel in a bucket.
+         * @param index 0 to size() - 1.
+         * @param channel channel.
+         * @return value.
+         */
+        public float getMin(int index, int channel) {
+            checkIndex(index);
+            return mMin[index * mChannels + channel];
+        }
+
+        /**
+         * Get the greatest value of a channel in a bucket.
+         * @param index 0 to size() - 1.
+         * @param channel channel.
+         * @return value.
+         */
+        public float getMax(int index, int channel) {
+            checkIndex(index);
+            return mMax[index * mChannels + channel];
+        }
+
+        /**
+         * Get the mean value of a channel in a bucket.
+         * @param index 0 to size() - 1.
+         * @param channel channel.
+         * @return value.
+         */
+        public float getMean(int index, int channel) {
+            checkIndex(index);
+            return mMean[index * mChannels + channel];
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+            }
+        }
+    }
+
+    /**
+     * Aggregate of a time range. Create one per reader and reuse it.
+     */
+    public static class Summary {
+        private final int mChannels;
+        private final float[] mMin;
+        private final float[] mMax;
+        private final double[] mSum;
+        private long mCount;
+        private int mBuckets;
+
+        /**
+         * Create a new summary.
+         * @param channels values per sample.
+         */
+        public Summary(int channels) {
+            mChannels = channels;
+            mMin = new float[channels];
+            mMax = new float[channels];
+            mSum = new double[channels];
+        }
+
+        /**
+         * Get the number of samples summarized.
+         * @return samples.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Get the number of buckets read to summarize, a measure of the cost.
+         * @return buckets.
+         */
+        public int getBuckets() {
+            return mBuckets;
+        }
+
+        /**
+         * Get the least value of a channel.
+         * @param channel channel.
+         * @return value, NaN without samples.
+         */
+        public float getMin(int channel) {
+            return mCount == 0 ? Float.NaN : mMin[channel];
+        }
+
+        /**
+         * Get the greatest value of a channel.
+         * @param channel channel.
+         * @return value, NaN without samples.
+         */
+        public float getMax(int channel) {
+            return mCount == 0 ? Float.NaN : mMax[channel];
+        }
+
+        /**
+         * Get the mean value of a channel.
+         * @param channel channel.
+         * @return value, NaN without samples.
+         */
+        public float getMean(int channel) {
+            return mCount == 0 ? Float.NaN : (float) (mSum[channel] / mCount);
+        }
+
+        private void clear() {
+            mCount = 0;
+            mBuckets = 0;
+            for (int c = 0; c < mChannels; c++) {
+                mMin[c] = Float.POSITIVE_INFINITY;
+                mMax[c] = Float.NEGATIVE_INFINITY;
+                mSum[c] = 0;
+            }
+        }
+    }
+
+    /**
+     * Create a new rollup.
+     * @param channels values per sample.
+     * @param seconds per-second buckets kept, e.g. 3600 for the last hour.
+     * @param minutes per-minute buckets kept.
+     * @param hours per-hour buckets kept.
+     */
+    public SampleRollup(int channels, int seconds, int minutes, int hours) {
+        if (channels <= 0 || seconds <= 0 || minutes <= 0 || hours <= 0) {
+            throw new IllegalArgumentException("channels and buckets must be positive");
+        }
+        mChannels = channels;
+        int[] capacities = {seconds, minutes, hours};
+        mLevels = new Level[SECONDS.length];
+        for (int i = 0; i < mLevels.length; i++) {
+            mLevels[i] = new Level(SECONDS[i] * NANOS_PER_SECOND, capacities[i], channels);
+        }
+        mClockOffsetNanos = System.currentTimeMillis() * 1000000L - System.nanoTime();
+    }
+
+    /**
+     * Get the number of values per sample.
+     * @return channels.
+     */
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * Get the number of buckets a level keeps.
+     * @param level LEVEL_SECOND, LEVEL_MINUTE or LEVEL_HOUR.
+     * @return buckets.
+     */
+    public int getCapacity(int level) {
+        return mLevels[level].mCapacity;
+    }
+
+    /**
+     * Create buckets large enough for a whole level.
+     * @param level LEVEL_SECOND, LEVEL_MINUTE or LEVEL_HOUR.
+     * @return buckets.
+     */
+    public Buckets newBuckets(int level) {
+        return new Buckets(mChannels, mLevels[level].mCapacity);
+    }
+
+    /**
+     * Convert a System.nanoTime() to the wall clock time used by the rollup.
+     * @param nanoTime System.nanoTime().
+     * @return nanoseconds since the epoch.
+     */
+    public long timestamp(long nanoTime) {
+        return nanoTime + mClockOffsetNanos;
+    }
+
+    /**
+     * Add a sample to the bucket of each level. Only one thread may append.
+     * A sample with a NaN value, e.g. one that failed a CRC, is left out,
+     * so the counts and means of the channels stay consistent.
+     * @param timestamp wall clock time in nanoseconds; a time before the previous sample counts as that one.
+     * @param values sample.
+     * @param offset index of the first channel in values.
+     */
+    public void append(long timestamp, float[] values, int offset) {
+        for (int c = 0; c < mChannels; c++) {
+            if (Float.isNaN(values[offset + c])) {
+                return;
+            }
+        }
+        long stamp = mLock.writeLock();
+        try {
+            if (timestamp < mLastTimestamp) {
+                timestamp = mLastTimestamp;
+            }
+            mLastTimestamp = timestamp;
+            for (Level level : mLevels) {
+                long bucket = Math.floorDiv(timestamp, level.mNanos);
+                int slot = level.slot(bucket);
+                int base = slot * mChannels;
+                if (level.mBucket[slot] != bucket) {
+                    level.mBucket[slot] = bucket;
+                    level.mCount[slot] = 0;
+                    for (int c = 0; c < mChannels; c++) {
+                        level.mMin[base + c] = Float.POSITIVE_INFINITY;
+                        level.mMax[base + c] = Float.NEGATIVE_INFINITY;
+                        level.mSum[base + c] = 0;
+                    }
+                    level.mNewest = bucket;
+                }
+                level.mCount[slot]++;
+                for (int c = 0; c < mChannels; c++) {
+                    float value = values[offset + c];
+                    if (value < level.mMin[base + c]) {
+                        level.mMin[base + c] = value;
+                    }
+                    if (value > level.mMax[base + c]) {
+                        level.mMax[base + c] = value;
+                    }
+                    level.mSum[base + c] += value;
+                }
+            }
+        } finally {
+            mLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copy the buckets of one level that start in a time range and hold samples.
+     * @param level LEVEL_SECOND, LEVEL_MINUTE or LEVEL_HOUR.
+     * @param from first time, inclusive.
+     * @param to last time, exclusive.
+     * @param buckets receives the buckets, oldest first, the oldest ones if it is too small.
+     */
+    public void copy(int level, long from, long to, Buckets buckets) {
+        if (buckets.mChannels != mChannels) {
+            throw new IllegalArgumentException("buckets have " + buckets.mChannels + " channels");
+        }
+        for (int attempt = 0; ; attempt++) {
+            long stamp = attempt < MAX_OPTIMISTIC_READS ? mLock.tryOptimisticRead() : mLock.readLock();
+            try {
+                copyLocked(mLevels[level], from, to, buckets);
+                if (attempt >= MAX_OPTIMISTIC_READS || mLock.validate(stamp)) {
+                    return;
+                }
+            } finally {
+                if (attempt >= MAX_OPTIMISTIC_READS) {
+                    mLock.unlockRead(stamp);
+                }
+            }
+        }
+    }
+
+    /**
+     * Summarize a time range from the coarsest buckets that fit in it:
+     * hours where the range covers a whole hour, then minutes, then seconds
+     * at the ends. The range is rounded up to whole seconds. Where the
+     * seconds or minutes at an end are not kept anymore, the samples of
+     * the partly covered minute or hour are left out.
+     * @param from first time, inclusive.
+     * @param to last time, exclusive.
+     * @param summary receives the aggregate.
+     */
+    public void summarize(long from, long to, Summary summary) {
+        if (summary.mChannels != mChannels) {
+            throw new IllegalArgumentException("summary has " + summary.mChannels + " channels");
+        }
+        for (int attempt = 0; ; attempt++) {
+            long stamp = attempt < MAX_OPTIMISTIC_READS ? mLock.tryOptimisticRead() : mLock.readLock();
+            try {
+                summarizeLocked(from, to, summary);
+                if (attempt >= MAX_OPTIMISTIC_READS || mLock.validate(stamp)) {
+                    return;
+                }
+            } finally {
+                if (attempt >= MAX_OPTIMISTIC_READS) {
+                    mLock.unlockRead(stamp);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy from the arrays. May run while the writer appends, so every
+     * index is bounded and the result is only used after validation.
+     */
+    private void copyLocked(Level level, long from, long to, Buckets buckets) {
+        buckets.mSize = 0;
+        long newest = level.mNewest;
+        if (newest == Long.MIN_VALUE) {
+            return;
+        }
+        long first = Math.max(ceilDiv(from, level.mNanos), newest - level.mCapacity + 1);
+        long last = Math.min(ceilDiv(to, level.mNanos), newest + 1);
+        for (long bucket = first; bucket < last && buckets.mSize < buckets.mStart.length; bucket++) {
+            int slot = level.slot(bucket);
+            int count = level.mCount[slot];
+            if (level.mBucket[slot] != bucket || count == 0) {
+                continue;
+            }
+            int i = buckets.mSize++;
+            buckets.mStart[i] = bucket * level.mNanos;
+            buckets.mCount[i] = count;
+            for (int c = 0; c < mChannels; c++) {
+                int source = slot * mChannels + c;
+                int target = i * mChannels + c;
+                buckets.mMin[target] = level.mMin[source];
+                buckets.mMax[target] = level.mMax[source];
+                buckets.mMean[target] = (float) (level.mSum[source] / count);
+            }
+        }
+    }
+
+    private void summarizeLocked(long from, long to, Summary summary) {
+        summary.clear();
+        Level coarsest = mLevels[mLevels.length - 1];
+        if (coarsest.mNewest == Long.MIN_VALUE) {
+            return;
+        }
+        // In seconds from here on; nothing before the oldest hour kept.
+        long second = Math.max(ceilDiv(from, NANOS_PER_SECOND),
+                (coarsest.mNewest - coarsest.mCapacity + 1) * SECONDS[mLevels.length - 1]);
+        long end = Math.min(ceilDiv(to, NANOS_PER_SECOND), mLevels[0].mNewest + 1);
+        next:
+        while (second < end) {
+            for (int i = mLevels.length - 1; i >= 0; i--) {
+                long length = SECONDS[i];
+                if (second % length == 0 && second + length <= end && mLevels[i].isKept(second / length)) {
+                    add(mLevels[i], second / length, summary);
+                    second += length;
+                    continue next;
+                }
+            }
+            // The seconds are gone: skip to the next bucket of the finest level kept.
+            for (int i = 1; i < mLevels.length; i++) {
+                long length = SECONDS[i];
+                if (mLevels[i].isKept(Math.floorDiv(second, length)) || i == mLevels.length - 1) {
+                    second = (Math.floorDiv(second, length) + 1) * length;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static long ceilDiv(long x, long y) {
+        return Math.floorDiv(x, y) + (Math.floorMod(x, y) == 0 ? 0 : 1);
+    }
+
+    private void add(Level level, long bucket, Summary summary) {
+        int slot = level.slot(bucket);
+        int count = level.mCount[slot];
+        if (level.mBucket[slot] != bucket || count == 0) {
+            return;
+        }
+        summary.mBuckets++;
+        summary.mCount += count;
+        int base = slot * mChannels;
+        for (int c = 0; c < mChannels; c++) {
+            summary.mMin[c] = Math.min(summary.mMin[c], level.mMin[base + c]);
+            summary.mMax[c] = Math.max(summary.mMax[c], level.mMax[base + c]);
+            summary.mSum[c] += level.mSum[base + c];
+        }
+    }
+}
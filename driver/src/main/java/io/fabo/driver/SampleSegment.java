@@ -0,0 +1,444 @@
+package io.fabo.driver;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One file of a SampleLog: a header with a time index, then fixed-width
+ * records of a timestamp, the channel values and a check word over both and
+ * the sequence number of the record. The file is named after the sequence
+ * number of its first record. The segment being appended to is mapped, so an
+ * append is a few stores into memory; the header count is only committed
+ * after the records were forced to storage or when the segment is full.
+ * On open, records past the committed count are checked one by one and the
+ * valid ones kept, so a crash loses at most the records not yet written back.
+ */
+/*package*/ class SampleSegment {
+    private static final String TAG = SampleSegment.class.getSimpleName();
+
+    /*package*/ static final int MAGIC = 0x46534547;
+    /*package*/ static final int VERSION = 1;
+    /*package*/ static final int HEADER_SIZE = 4096;
+    /*package*/ static final String SUFFIX = ".seg";
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CHANNELS = 6;
+    private static final int OFFSET_RECORD_SIZE = 8;
+    private static final int OFFSET_CAPACITY = 12;
+    private static final int OFFSET_BASE = 16;
+    private static final int OFFSET_COUNT = 24;
+    private static final int OFFSET_STRIDE = 32;
+    /** Timestamp of every stride-th record. */
+    /*package*/ static final int OFFSET_INDEX = 64;
+    /*package*/ static final int INDEX_ENTRIES = (HEADER_SIZE - OFFSET_INDEX) / 8;
+
+    /** Records read from the file at a time. */
+    private static final int READ_RECORDS = 256;
+
+    private final File mFile;
+    private final int mChannels;
+    private final int mRecordSize;
+    private final int mCapacity;
+    private final int mStride;
+    private final long mBase;
+    /** Mapping until the records are forced after the segment is full or closed. */
+    private volatile MappedByteBuffer mBuffer;
+    /** Records written, readers see the records below it. */
+    private volatile int mCount;
+    private long mFirst;
+    private volatile long mLast;
+
+    private SampleSegment(File file, int channels, int capacity, int stride, long base) {
+        mFile = file;
+        mChannels = channels;
+        mRecordSize = recordSize(channels);
+        mCapacity = capacity;
+        mStride = stride;
+        mBase = base;
+    }
+
+    /**
+     * Get the size of a record.
+     * @param channels values per sample.
+     * @return bytes.
+     */
+    /*package*/ static int recordSize(int channels) {
+        return 8 + 4 * channels + 4;
+    }
+
+    /**
+     * Get the file name of a segment.
+     * @param base sequence number of the first record.
+     * @return file name.
+     */
+    /*package*/ static String name(long base) {
+        return String.format("%019d", base) + SUFFIX;
+    }
+
+    /**
+     * Create a new, empty segment and map it for appending.
+     * @param file file, must not exist.
+     * @param channels values per sample.
+     * @param bytes file size.
+     * @param base sequence number of the first record.
+     * @return segment.
+     * @throws IOException
+     */
+    /*package*/ static SampleSegment create(File file, int channels, int bytes, long base) throws IOException {
+        int capacity = (bytes - HEADER_SIZE) / recordSize(channels);
+        if (capacity < 1) {
+            throw new IllegalArgumentException("segment too small for a record");
+        }
+        int stride = (capacity + INDEX_ENTRIES - 1) / INDEX_ENTRIES;
+        SampleSegment segment = new SampleSegment(file, channels, capacity, stride, base);
+        segment.map();
+        segment.writeHeader();
+        return segment;
+    }
+
+    /**
+     * Open an existing segment and recover records past the committed count.
+     * @param file file.
+     * @param channels values per sample expected.
+     * @param writable map it for appending.
+     * @return segment.
+     * @throws IOException when it is not a segment or has other channels.
+     */
+    /*package*/ static SampleSegment open(File file, int channels, boolean writable) throws IOException {
+        long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+        ByteBuffer header = ByteBuffer.allocate(OFFSET_INDEX).order(ByteOrder.LITTLE_ENDIAN);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.getChannel().read(header, 0);
+        } finally {
+            raf.close();
+        }
+        int magic = header.getInt(OFFSET_MAGIC);
+        SampleSegment segment;
+        int committed;
+        if (magic == 0) {
+            // The header never reached storage, the records may have.
+            int capacity = (int) ((file.length() - HEADER_SIZE) / recordSize(channels));
+            capacity = Math.max(capacity, 0);
+            segment = new SampleSegment(file, channels, capacity,
+                    Math.max(1, (capacity + INDEX_ENTRIES - 1) / INDEX_ENTRIES), base);
+            committed = 0;
+        } else {
+            if (magic != MAGIC || header.getShort(OFFSET_VERSION) != VERSION) {
+                throw new IOException(file + " is not a sample segment");
+            }
+            if (header.getShort(OFFSET_CHANNELS) != channels
+                    || header.getInt(OFFSET_RECORD_SIZE) != recordSize(channels)) {
+                throw new IOException(file + " has " + header.getShort(OFFSET_CHANNELS) + " channels, not " + channels);
+            }
+            segment = new SampleSegment(file, channels, header.getInt(OFFSET_CAPACITY),
+                    header.getInt(OFFSET_STRIDE), header.getLong(OFFSET_BASE));
+            committed = (int) Math.min(header.getLong(OFFSET_COUNT), segment.mCapacity);
+            if (!writable && committed == segment.mCapacity) {
+                // A full segment, closed when the next one was started.
+                segment.readTimes(committed);
+                return segment;
+            }
+        }
+        segment.map();
+        try {
+            segment.recover(magic == 0, committed);
+        } finally {
+            if (!writable) {
+                segment.unmap();
+            }
+        }
+        return segment;
+    }
+
+    private void readTimes(int count) throws IOException {
+        ByteBuffer timestamp = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.read(timestamp, position(0));
+            mFirst = timestamp.getLong(0);
+            timestamp.clear();
+            channel.read(timestamp, position(count - 1));
+            mLast = timestamp.getLong(0);
+        } finally {
+            raf.close();
+        }
+        mCount = count;
+    }
+
+    private void map() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            long size = HEADER_SIZE + (long) mCapacity * mRecordSize;
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeHeader() {
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        mBuffer.putShort(OFFSET_VERSION, (short) VERSION);
+        mBuffer.putShort(OFFSET_CHANNELS, (short) mChannels);
+        mBuffer.putInt(OFFSET_RECORD_SIZE, mRecordSize);
+        mBuffer.putInt(OFFSET_CAPACITY, mCapacity);
+        mBuffer.putLong(OFFSET_BASE, mBase);
+        mBuffer.putLong(OFFSET_COUNT, mCount);
+        mBuffer.putInt(OFFSET_STRIDE, mStride);
+    }
+
+    /**
+     * Keep the valid records after the committed ones, rebuild their index
+     * entries and clear what follows, so stale records are never taken for new ones.
+     */
+    private void recover(boolean rebuildHeader, int committed) {
+        int count = committed;
+        long last = count > 0 ? mBuffer.getLong(position(count - 1)) : Long.MIN_VALUE;
+        while (count < mCapacity && isValid(count, last)) {
+            last = mBuffer.getLong(position(count));
+            if (count % mStride == 0) {
+                mBuffer.putLong(OFFSET_INDEX + count / mStride * 8, last);
+            }
+            count++;
+        }
+        int cleared = count;
+        while (cleared < mCapacity && !isEmpty(cleared)) {
+            int position = position(cleared);
+            for (int i = 0; i < mRecordSize; i += 4) {
+                mBuffer.putInt(position + i, 0);
+            }
+            cleared++;
+        }
+        mCount = count;
+        if (count > 0) {
+            mFirst = mBuffer.getLong(position(0));
+            mLast = last;
+        }
+        if (rebuildHeader || count != committed || cleared != count) {
+            Log.w(TAG, mFile + ": recovered " + (count - committed) + " records, cleared " + (cleared - count));
+            writeHeader();
+            mBuffer.force();
+        }
+    }
+
+    private boolean isValid(int index, long previous) {
+        int position = position(index);
+        long timestamp = mBuffer.getLong(position);
+        if (timestamp < previous) {
+            return false;
+        }
+        int check = check(mBase + index, timestamp);
+        for (int i = 0; i < mChannels; i++) {
+            check = mix(check, mBuffer.getInt(position + 8 + 4 * i));
+        }
+        return finish(check) == mBuffer.getInt(position + 8 + 4 * mChannels);
+    }
+
+    private boolean isEmpty(int index) {
+        int position = position(index);
+        return mBuffer.getLong(position) == 0 && mBuffer.getInt(position + mRecordSize - 4) == 0;
+    }
+
+    private int position(int index) {
+        return HEADER_SIZE + index * mRecordSize;
+    }
+
+    /**
+     * Append a record. The caller checks that the segment is not full.
+     * @param timestamp timestamp, not before the last one.
+     * @param values channel values.
+     * @param offset offset of the first value.
+     */
+    /*package*/ void append(long timestamp, float[] values, int offset) {
+        int index = mCount;
+        int position = position(index);
+        MappedByteBuffer buffer = mBuffer;
+        buffer.putLong(position, timestamp);
+        int check = check(mBase + index, timestamp);
+        for (int i = 0; i < mChannels; i++) {
+            int bits = Float.floatToRawIntBits(values[offset + i]);
+            buffer.putInt(position + 8 + 4 * i, bits);
+            check = mix(check, bits);
+        }
+        buffer.putInt(position + 8 + 4 * mChannels, finish(check));
+        if (index % mStride == 0) {
+            buffer.putLong(OFFSET_INDEX + index / mStride * 8, timestamp);
+        }
+        if (index == 0) {
+            mFirst = timestamp;
+        }
+        mLast = timestamp;
+        mCount = index + 1;
+    }
+
+    /**
+     * Force the mapped records to storage. May run while records are appended.
+     */
+    /*package*/ void force() {
+        MappedByteBuffer buffer = mBuffer;
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Record in the header that the records below count are on storage.
+     * @param count records forced.
+     */
+    /*package*/ void commit(int count) {
+        MappedByteBuffer buffer = mBuffer;
+        if (buffer != null) {
+            buffer.putLong(OFFSET_COUNT, count);
+        }
+    }
+
+    /**
+     * Drop the mapping, left to the garbage collector to unmap.
+     */
+    /*package*/ void unmap() {
+        mBuffer = null;
+    }
+
+    /*package*/ File getFile() {
+        return mFile;
+    }
+
+    /*package*/ int getChannels() {
+        return mChannels;
+    }
+
+    /*package*/ int getRecordSize() {
+        return mRecordSize;
+    }
+
+    /*package*/ int getStride() {
+        return mStride;
+    }
+
+    /*package*/ long getBase() {
+        return mBase;
+    }
+
+    /*package*/ int getCount() {
+        return mCount;
+    }
+
+    /*package*/ boolean isFull() {
+        return mCount == mCapacity;
+    }
+
+    /*package*/ long getFirstTimestamp() {
+        return mFirst;
+    }
+
+    /*package*/ long getLastTimestamp() {
+        return mLast;
+    }
+
+    /**
+     * Read the records from the first index block that may hold the start
+     * of the visitor's range.
+     * @param visitor receives the records.
+     * @return false when the visitor stopped or the range ended.
+     * @throws IOException
+     */
+    /*package*/ boolean read(SampleLog.RangeVisitor visitor) throws IOException {
+        int count = mCount;
+        if (count == 0) {
+            return true;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(READ_RECORDS * mRecordSize).order(ByteOrder.LITTLE_ENDIAN);
+        float[] values = new float[mChannels];
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            int index = seek(channel, count, visitor.getFrom());
+            while (index < count) {
+                int records = Math.min(READ_RECORDS, count - index);
+                buffer.clear();
+                buffer.limit(records * mRecordSize);
+                long position = position(index);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("unexpected end of " + mFile);
+                    }
+                }
+                for (int i = 0; i < records; i++) {
+                    int record = i * mRecordSize;
+                    for (int c = 0; c < mChannels; c++) {
+                        values[c] = buffer.getFloat(record + 8 + 4 * c);
+                    }
+                    if (!visitor.visit(buffer.getLong(record), values)) {
+                        return false;
+                    }
+                }
+                index += records;
+            }
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Find the first index block that may hold a timestamp.
+     * @return index of the first record of the block.
+     */
+    private int seek(FileChannel channel, int count, long from) throws IOException {
+        int entries = (count - 1) / mStride + 1;
+        ByteBuffer index = ByteBuffer.allocate(entries * 8).order(ByteOrder.LITTLE_ENDIAN);
+        while (index.hasRemaining()) {
+            if (channel.read(index, OFFSET_INDEX + index.position()) < 0) {
+                throw new IOException("unexpected end of " + mFile);
+            }
+        }
+        // Last block starting before from; samples with the same timestamp may span blocks.
+        int low = 0;
+        int high = entries - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (index.getLong(mid * 8) < from) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low * mStride;
+    }
+
+    private static int check(long sequence, long timestamp) {
+        int h = 0x5A3E_2F11;
+        h = mix(h, (int) sequence);
+        h = mix(h, (int) (sequence >>> 32));
+        h = mix(h, (int) timestamp);
+        return mix(h, (int) (timestamp >>> 32));
+    }
+
+    /** Murmur3 round. */
+    private static int mix(int h, int k) {
+        k *= 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15);
+        k *= 0x1b873593;
+        h ^= k;
+        h = Integer.rotateLeft(h, 13);
+        return h * 5 + 0xe6546b64;
+    }
+
+    private static int finish(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ h >>> 16;
+    }
+}
@@ -0,0 +1,130 @@
+package io.fabo.driver;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-device store of sensor samples, a SampleLog per sensor in a directory
+ * of its own. Pass a log to setLog of a driver to keep every sample it
+ * publishes, timestamped on the wall clock, and call flush() regularly,
+ * e.g. every few seconds, to bound what a crash or power cut can lose.
+ * At 4MiB per segment an ADXL345 at 3200Hz fills a segment every minute.
+ */
+public class SampleStore implements AutoCloseable {
+    private static final String TAG = SampleStore.class.getSimpleName();
+
+    /** Default size of a segment file. */
+    public static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+    /** Default resolution of compressed timestamps, 1us. */
+    public static final long DEFAULT_RESOLUTION_NANOS = 1000;
+
+    private final File mDirectory;
+    private final int mSegmentBytes;
+    /** Wall clock minus System.nanoTime() when the store was opened. */
+    private final long mClockOffsetNanos;
+    private final Map<String, SampleLog> mLogs = new LinkedHashMap<>();
+
+    /**
+     * Open a store with the default segment size.
+     * @param directory directory, e.g. on the SD card, created if missing.
+     */
+    public SampleStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Open a store.
+     * @param directory directory, created if missing.
+     * @param segmentBytes size of the segment files created from now on.
+     */
+    public SampleStore(File directory, int segmentBytes) {
+        if (segmentBytes <= SampleSegment.HEADER_SIZE) {
+            throw new IllegalArgumentException("segment size must exceed " + SampleSegment.HEADER_SIZE);
+        }
+        mDirectory = directory;
+        mSegmentBytes = segmentBytes;
+        mClockOffsetNanos = System.currentTimeMillis() * 1000000L - System.nanoTime();
+    }
+
+    /**
+     * Get the log of a sensor, opening it on first use.
+     * @param name name of the sensor, used as directory name.
+     * @param channels values per sample.
+     * @return log.
+     * @throws IOException when the log cannot be opened or has other channels.
+     */
+    public synchronized SampleLog getLog(String name, int channels) throws IOException {
+        if (name.isEmpty() || name.indexOf('/') >= 0 || name.equals(".") || name.equals("..")) {
+            throw new IllegalArgumentException("invalid log name " + name);
+        }
+        SampleLog log = mLogs.get(name);
+        if (log == null) {
+            log = new SampleLog(new File(mDirectory, name), channels, mSegmentBytes, mClockOffsetNanos);
+            mLogs.put(name, log);
+        } else if (log.getChannels() != channels) {
+            throw new IOException(name + " has " + log.getChannels() + " channels, not " + channels);
+        }
+        return log;
+    }
+
+    /**
+     * Get the logs opened so far.
+     * @return logs in the order they were opened.
+     */
+    public synchronized List<SampleLog> getLogs() {
+        return new ArrayList<>(mLogs.values());
+    }
+
+    /**
+     * Force the samples of every log to storage.
+     */
+    public void flush() {
+        for (SampleLog log : getLogs()) {
+            log.flush();
+        }
+    }
+
+    /**
+     * Compress the full segments of every log at the default resolution.
+     * @return segments compressed.
+     */
+    public int compact() {
+        return compact(DEFAULT_RESOLUTION_NANOS);
+    }
+
+    /**
+     * Compress the full segments of every log. A log that fails is skipped.
+     * @param resolutionNanos resolution of the stored timestamps, e.g. 1ms for a sensor read every second.
+     * @return segments compressed.
+     */
+    public int compact(long resolutionNanos) {
+        int compacted = 0;
+        for (SampleLog log : getLogs()) {
+            try {
+                compacted += log.compact(resolutionNanos);
+            } catch (IOException e) {
+                Log.e(TAG, "cannot compact " + log.getDirectory(), e);
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Flush and close every log.
+     */
+    @Override
+    public void close() {
+        for (SampleLog log : getLogs()) {
+            log.close();
+        }
+        synchronized (this) {
+            mLogs.clear();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/**
+ * I2cDevice whose transactions run on the bus thread of an I2cBusScheduler.
+ * On the bus thread itself, e.g. from a poll, transactions run directly
+ * without allocating.
+ */
+/*package*/ class ScheduledI2cDevice implements I2cDevice {
+
+    private final I2cBusScheduler mScheduler;
+    private final I2cDevice mDevice;
+
+    ScheduledI2cDevice(I2cBusScheduler scheduler, I2cDevice device) {
+        mScheduler = scheduler;
+        mDevice = device;
+    }
+
+    /*package*/ I2cDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Once the scheduler is closed no transaction can be queued, close directly.
+        if (mScheduler.isBusThread() || mScheduler.isClosed()) {
+            mDevice.close();
+            return;
+        }
+        mScheduler.call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                mDevice.close();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    public void read(final byte[] buffer, final int length) throws IOException {
+        if (mScheduler.isBusThread()) {
+            mDevice.read(buffer, length);
+            return;
+        }
+        mScheduler.call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                mDevice.read(buffer, length);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void readRegBuffer(final int reg, final byte[] buffer, final int length) throws IOException {
+        if (mScheduler.isBusThread()) {
+            mDevice.readRegBuffer(reg, buffer, length);
+            return;
+        }
+        mScheduler.call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                mDevice.readRegBuffer(reg, buffer, length);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public byte readRegByte(final int reg) throws IOException {
+        if (mScheduler.isBusThread()) {
+            return mDevice.readRegByte(reg);
+        }
+        return mScheduler.call(new Callable<Byte>() {
+            @Override
+            public Byte call() throws IOException {
+                return mDevice.readRegByte(reg);
+            }
+        });
+    }
+
+    @Override
+    public short readRegWord(final int reg) throws IOException {
+        if (mScheduler.isBusThread()) {
+            return mDevice.readRegWord(reg);
+        }
+        return mScheduler.call(new Callable<Short>() {
+            @Override
+            public Short call() throws IOException {
+                return mDevice.readRegWord(reg);
+            }
+        });
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int length) throws IOException {
+        if (mScheduler.isBusThread()) {
+            mDevice.write(buffer, length);
+            return;
+        }
+        mScheduler.call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                mDevice.write(buffer, length);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void writeRegBuffer(final int reg, final byte[] buffer, final int length) throws IOException {
+        if (mScheduler.isBusThread()) {
+            mDevice.writeRegBuffer(reg, buffer, length);
+            return;
+        }
+        mScheduler.call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                mDevice.writeRegBuffer(reg, buffer, length);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void writeRegByte(final int reg, final byte data) throws IOException {
+        if (mScheduler.isBusThread()) {
+            mDevice.writeRegByte(reg, data);
+            return;
+        }
+        mScheduler.call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                mDevice.writeRegByte(reg, data);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void writeRegWord(final int reg, final short data) throws IOException {
+        if (mScheduler.isBusThread()) {
+            mDevice.writeRegWord(reg, data);
+            return;
+        }
+        mScheduler.call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                mDevice.writeRegWord(reg, data);
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,123 @@
+package io.fabo.driver;
+
+/**
+ * Sensirion I2C frame codec.
+ * Data is sent as 16bit big-endian words, each followed by a CRC-8
+ * (polynomial 0x31, init 0xFF). All methods work on offsets into the
+ * caller's buffers and do not allocate.
+ */
+public final class SensirionFrame {
+
+    /** Bytes per word on the wire, 2 data bytes and the CRC. */
+    public static final int WORD_SIZE = 3;
+
+    private static final int POLYNOMIAL = 0x31;
+    private static final int INIT = 0xFF;
+    private static final byte[] CRC_TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+            }
+            CRC_TABLE[i] = (byte) crc;
+        }
+    }
+
+    private SensirionFrame() {
+    }
+
+    /**
+     * CRC-8 of a byte range.
+     * @param data buffer.
+     * @param offset first byte.
+     * @param length number of bytes.
+     * @return crc.
+     */
+    public static byte crc(byte[] data, int offset, int length) {
+        int crc = INIT;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC_TABLE[(crc ^ data[i]) & 0xff];
+        }
+        return (byte) crc;
+    }
+
+    /**
+     * Check the CRC of one word.
+     * @param frame buffer.
+     * @param offset first byte of the word.
+     * @return CRC matches.
+     */
+    public static boolean checkWord(byte[] frame, int offset) {
+        int crc = CRC_TABLE[(INIT ^ frame[offset]) & 0xff];
+        crc = CRC_TABLE[(crc ^ frame[offset + 1]) & 0xff];
+        return (byte) crc == frame[offset + 2];
+    }
+
+    /**
+     * Read the data of one word, without checking the CRC.
+     * @param frame buffer.
+     * @param word index of the word.
+     * @return unsigned 16bit value.
+     */
+    public static int getWord(byte[] frame, int word) {
+        int i = word * WORD_SIZE;
+        return (frame[i] & 0xff) << 8 | (frame[i + 1] & 0xff);
+    }
+
+    /**
+     * Read a big-endian IEEE754 float held in two consecutive words, without checking the CRCs.
+     * @param frame buffer.
+     * @param word index of the high word.
+     * @return value.
+     */
+    public static float getFloat(byte[] frame, int word) {
+        return Float.intBitsToFloat(getWord(frame, word) << 16 | getWord(frame, word + 1));
+    }
+
+    /**
+     * Check the CRC of every word of a frame.
+     * @param frame buffer.
+     * @param words number of words, at most 32.
+     * @return bit n set when word n failed, 0 when the frame is valid.
+     */
+    public static int check(byte[] frame, int words) {
+        if (words > 32) {
+            throw new IllegalArgumentException("at most 32 words");
+        }
+        int failed = 0;
+        for (int word = 0; word < words; word++) {
+            if (!checkWord(frame, word * WORD_SIZE)) {
+                failed |= 1 << word;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Strip the CRCs of a frame.
+     * @param frame source.
+     * @param words number of words.
+     * @param out receives 2 bytes per word.
+     * @param outOffset index of the first byte in out.
+     */
+    public static void strip(byte[] frame, int words, byte[] out, int outOffset) {
+        for (int word = 0; word < words; word++) {
+            out[outOffset + word * 2] = frame[word * WORD_SIZE];
+            out[outOffset + word * 2 + 1] = frame[word * WORD_SIZE + 1];
+        }
+    }
+
+    /**
+     * Put one word and its CRC.
+     * @param frame destination.
+     * @param offset first byte of the word.
+     * @param value 16bit value.
+     */
+    public static void putWord(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) (value >> 8);
+        frame[offset + 1] = (byte) value;
+        frame[offset + 2] = crc(frame, offset, 2);
+    }
+}
@@ -0,0 +1,260 @@
+package io.fabo.driver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings up the sensors of one bus in parallel.
+ * Drivers join with startup(); start() then enables every sensor whose
+ * dependencies delivered a sample. The power-up sequences run as polls
+ * on the bus thread, so the transactions of one chip fill the reset and
+ * boot delays of the others and the whole set comes up in about the time
+ * of the slowest chain instead of the sum of all sequences.
+ * Sensors stay enabled afterwards; registering them with the framework
+ * does not run their sequence again.
+ */
+public class SensorStartup {
+    private static final String TAG = SensorStartup.class.getSimpleName();
+
+    /** Time a sensor may take to deliver its first sample. */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    /** Period at which progress is checked. */
+    private static final long CHECK_PERIOD_MILLIS = 10;
+
+    /**
+     * Progress of a startup, called on the bus thread.
+     */
+    public interface Callback {
+        /**
+         * A sensor delivered its first sample.
+         * @param name driver name.
+         * @param timeToFirstSampleNanos time since start().
+         */
+        void onSensorReady(String name, long timeToFirstSampleNanos);
+
+        /**
+         * A sensor, or one it depends on, did not come up.
+         * @param name driver name.
+         */
+        void onSensorFailed(String name);
+
+        /**
+         * Every sensor is ready or failed.
+         * @param elapsedNanos time since start().
+         */
+        void onStartupFinished(long elapsedNanos);
+    }
+
+    private static final int WAITING = 0;
+    private static final int STARTING = 1;
+    private static final int READY = 2;
+    private static final int FAILED = 3;
+
+    private static final class Entry {
+        final String mName;
+        final PolledSensorDriver mDriver;
+        final String[] mDependsOn;
+        int mState = WAITING;
+        long mEnabledAt;
+        long mTimeToFirstSample = -1;
+
+        Entry(String name, PolledSensorDriver driver, String[] dependsOn) {
+            mName = name;
+            mDriver = driver;
+            mDependsOn = dependsOn;
+        }
+    }
+
+    private final I2cBusScheduler mScheduler;
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+    private long mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MILLIS);
+    private Callback mCallback;
+    private I2cBusScheduler.Poll mPoll;
+    private long mStartedAt;
+    private int mPending;
+
+    /**
+     * Create a new startup for the sensors of one bus.
+     * @param scheduler scheduler the drivers were created with.
+     */
+    public SensorStartup(I2cBusScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Set the time a sensor may take to deliver its first sample.
+     * @param timeout timeout.
+     * @param unit unit of timeout.
+     */
+    public synchronized void setTimeout(long timeout, TimeUnit unit) {
+        mTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /*package*/ synchronized void add(String name, PolledSensorDriver driver, String[] dependsOn) {
+        if (mPoll != null) {
+            throw new IllegalStateException("startup already running");
+        }
+        if (mEntries.containsKey(name)) {
+            throw new IllegalArgumentException(name + " already added");
+        }
+        mEntries.put(name, new Entry(name, driver, dependsOn));
+    }
+
+    /**
+     * Start every sensor. Returns without waiting for the chips.
+     * @param callback progress, may be null.
+     * @throws IllegalArgumentException a dependency is unknown or circular.
+     */
+    public synchronized void start(Callback callback) {
+        if (mPoll != null) {
+            throw new IllegalStateException("startup already running");
+        }
+        checkDependencies();
+        mCallback = callback;
+        mStartedAt = System.nanoTime();
+        mPending = mEntries.size();
+        if (mPending == 0) {
+            if (callback != null) {
+                callback.onStartupFinished(0);
+            }
+            return;
+        }
+        mPoll = mScheduler.schedule(CHECK_PERIOD_MILLIS, TimeUnit.MILLISECONDS,
+                new I2cBusScheduler.PollTask() {
+                    @Override
+                    public void poll() throws IOException {
+                        update(System.nanoTime());
+                    }
+                });
+        update(mStartedAt);
+    }
+
+    /**
+     * Stop checking progress. Sensors already started keep running.
+     */
+    public synchronized void cancel() {
+        if (mPoll != null) {
+            mPoll.cancel();
+        }
+    }
+
+    /**
+     * Get the time a sensor took to deliver its first sample.
+     * @param name driver name.
+     * @return nanoseconds since start(), -1 when not ready.
+     */
+    public synchronized long getTimeToFirstSampleNanos(String name) {
+        Entry entry = mEntries.get(name);
+        return entry != null ? entry.mTimeToFirstSample : -1;
+    }
+
+    private void checkDependencies() {
+        for (Entry entry : mEntries.values()) {
+            for (String dependency : entry.mDependsOn) {
+                if (!mEntries.containsKey(dependency)) {
+                    throw new IllegalArgumentException(entry.mName + " depends on unknown " + dependency);
+                }
+            }
+            checkCycle(entry, new ArrayList<String>());
+        }
+    }
+
+    private void checkCycle(Entry entry, List<String> path) {
+        if (path.contains(entry.mName)) {
+            throw new IllegalArgumentException("circular dependency " + path + " -> " + entry.mName);
+        }
+        path.add(entry.mName);
+        for (String dependency : entry.mDependsOn) {
+            checkCycle(mEntries.get(dependency), path);
+        }
+        path.remove(path.size() - 1);
+    }
+
+    private synchronized void update(long now) {
+        if (mPending == 0) {
+            return;
+        }
+        for (Entry entry : mEntries.values()) {
+            switch (entry.mState) {
+                case WAITING:
+                    int ready = dependencies(entry);
+                    if (ready == FAILED) {
+                        finish(entry, FAILED);
+                    } else if (ready == READY) {
+                        enable(entry, now);
+                    }
+                    break;
+                case STARTING:
+                    PolledSensor sensor = entry.mDriver.mSensor;
+                    long first = sensor.getTimeToFirstSampleNanos();
+                    if (first >= 0) {
+                        entry.mTimeToFirstSample = entry.mEnabledAt - mStartedAt + first;
+                        finish(entry, READY);
+                    } else if (sensor.isFailed() || now - mStartedAt > mTimeoutNanos) {
+                        finish(entry, FAILED);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (mPending == 0) {
+            mPoll.cancel();
+            if (mCallback != null) {
+                mCallback.onStartupFinished(now - mStartedAt);
+            }
+        }
+    }
+
+    private int dependencies(Entry entry) {
+        int result = READY;
+        for (String dependency : entry.mDependsOn) {
+            int state = mEntries.get(dependency).mState;
+            if (state == FAILED) {
+                return FAILED;
+            } else if (state != READY) {
+                result = WAITING;
+            }
+        }
+        return result;
+    }
+
+    private void enable(Entry entry, long now) {
+        entry.mState = STARTING;
+        entry.mEnabledAt = now;
+        try {
+            entry.mDriver.setEnabled(true);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "cannot enable " + entry.mName, e);
+            finish(entry, FAILED);
+        }
+    }
+
+    private void finish(Entry entry, int state) {
+        entry.mState = state;
+        mPending--;
+        if (state == READY) {
+            Log.i(TAG, entry.mName + " first sample after "
+                    + TimeUnit.NANOSECONDS.toMillis(entry.mTimeToFirstSample) + "ms");
+            if (mCallback != null) {
+                mCallback.onSensorReady(entry.mName, entry.mTimeToFirstSample);
+            }
+        } else {
+            // Stop retrying the bring-up or waiting for a sample.
+            entry.mDriver.mSensor.stop();
+            Log.w(TAG, entry.mName + " did not come up"
+                    + (entry.mDependsOn.length > 0 ? ", depends on " + Arrays.toString(entry.mDependsOn) : ""));
+            if (mCallback != null) {
+                mCallback.onSensorFailed(entry.mName);
+            }
+        }
+    }
+}
@@ -1,10 +1,8 @@
 package io.fabo.driver;
 
 import android.support.annotation.IntDef;
-import android.util.Log;
 
 import com.google.android.things.pio.I2cDevice;
-import com.google.android.things.pio.PeripheralManager;
 
 import java.io.IOException;
 import java.lang.annotation.Retention;
@@ -16,7 +14,7 @@ public class Si1132 implements AutoCloseable {
     /**
      * I2C slave address of the Si1132.
      */
-    private final byte I2C_ADDRESS = (byte)0x60;
+    public static final int I2C_ADDRESS = 0x60;
 
     // Register
     /** Who am I. */
@@ -160,6 +158,8 @@ public class Si1132 implements AutoCloseable {
     private final int DEVICE_ID = 0x32;
 
     private I2cDevice mDevice;
+    /** VISIBLE to AUX data, 0x22-0x2D. */
+    private final byte[] mDataBuffer = new byte[REG_AUX_DATA + 2 - REG_VISIBLE_DATA];
 
     /**
      * Create a new Si1132 driver connected to the given I2C bus.
@@ -167,8 +167,7 @@ public class Si1132 implements AutoCloseable {
      * @throws IOException
      */
     public Si1132(String bus) throws IOException {
-        PeripheralManager pioService = PeripheralManager.getInstance();
-        I2cDevice device = pioService.openI2cDevice(bus, I2C_ADDRESS);
+        I2cDevice device = I2cStats.open(bus, I2C_ADDRESS);
         try {
             connect(device);
         } catch (IOException|RuntimeException e) {
@@ -193,7 +192,12 @@ public class Si1132 implements AutoCloseable {
         if (mDevice != null) {
             throw new IllegalStateException("device already connected");
         }
-        mDevice = device;
+        mDevice = ResilientI2cDevice.wrap(device, new ResilientI2cDevice.Probe() {
+            @Override
+            public boolean probe() {
+                return whoAmI();
+            }
+        });
     }
 
     /**
@@ -461,7 +465,6 @@ public class Si1132 implements AutoCloseable {
             throw new IllegalStateException("device not connected");
         }
         Short uv = mDevice.readRegWord(REG_AUX_DATA);
-        Log.i("AAA", "" + uv);
         return Short.toUnsignedInt(uv);
     }
 
@@ -475,7 +478,7 @@ public class Si1132 implements AutoCloseable {
         }
 
         Short ir = mDevice.readRegWord(REG_IR_DATA);
-        return (float) (((float)(Short.toUnsignedInt(ir) - 250)/2.44) * 14.5);
+        return irFromRaw(Short.toUnsignedInt(ir));
     }
 
     /**
@@ -488,6 +491,37 @@ public class Si1132 implements AutoCloseable {
         }
 
         Short visible = mDevice.readRegWord(REG_VISIBLE_DATA);
-        return (float) (((float)(Short.toUnsignedInt(visible) -256)/0.282) * 14.5);
+        return visibleFromRaw(Short.toUnsignedInt(visible));
+    }
+
+    /**
+     * Read UV, IR and visible of one measurement cycle in a single block read.
+     * @param out receives uv, ir, visible as readUV, readIR and readVisible return them.
+     * @param offset index of uv in out.
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public synchronized void readInto(float[] out, int offset) throws IOException, IllegalStateException {
+        if (mDevice == null) {
+            throw new IllegalStateException("device not connected");
+        }
+        byte data_buff[] = mDataBuffer;
+        mDevice.readRegBuffer(REG_VISIBLE_DATA, data_buff, data_buff.length);
+        out[offset] = word(data_buff, REG_AUX_DATA);
+        out[offset + 1] = irFromRaw(word(data_buff, REG_IR_DATA));
+        out[offset + 2] = visibleFromRaw(word(data_buff, REG_VISIBLE_DATA));
+    }
+
+    private int word(byte[] data, int reg) {
+        int i = reg - REG_VISIBLE_DATA;
+        return (data[i] & 0xff) | (data[i + 1] & 0xff) << 8;
+    }
+
+    private static float irFromRaw(int ir) {
+        return (float) (((float)(ir - 250)/2.44) * 14.5);
+    }
+
+    private static float visibleFromRaw(int visible) {
+        return (float) (((float)(visible -256)/0.282) * 14.5);
     }
 }
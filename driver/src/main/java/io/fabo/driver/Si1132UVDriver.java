@@ -5,18 +5,19 @@ import android.hardware.Sensor;
 import com.google.android.things.userdriver.UserDriverManager;
 import com.google.android.things.userdriver.sensor.UserSensor;
 import com.google.android.things.userdriver.sensor.UserSensorDriver;
-import com.google.android.things.userdriver.sensor.UserSensorReading;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
-public class Si1132UVDriver implements AutoCloseable {
+public class Si1132UVDriver extends FrameworkSensorDriver implements AutoCloseable {
 
     private static final String TAG = Si1132UVDriver.class.getSimpleName();
     private static final String DRIVER_NAME = "FaBoSi1132";
     private static final String DRIVER_VENDOR = "FaBo";
     private static final int DRIVER_VERSION = 1;
     private Si1132 mDevice;
+    private I2cBusScheduler mScheduler;
     private UserSensor mUserSensor;
 
     /**
@@ -27,9 +28,23 @@ public class Si1132UVDriver implements AutoCloseable {
      * @see #register()
      */
     public Si1132UVDriver(String bus) throws IOException {
+        super(DRIVER_NAME);
         mDevice = new Si1132(bus);
     }
 
+    /**
+     * Create a new framework driver whose transactions run on the given bus scheduler.
+     * The chip is polled at its conversion rate while the sensor is enabled.
+     * @param scheduler scheduler of the I2C bus.
+     * @throws IOException
+     * @see #register()
+     */
+    public Si1132UVDriver(I2cBusScheduler scheduler) throws IOException {
+        super(DRIVER_NAME);
+        mDevice = new Si1132(scheduler.open(Si1132.I2C_ADDRESS));
+        mScheduler = scheduler;
+    }
+
     /**
      * Close the driver and the underlying device.
      * @throws IOException
@@ -42,6 +57,7 @@ public class Si1132UVDriver implements AutoCloseable {
                 mDevice.close();
             } finally {
                 mDevice = null;
+                dropSensorDriver();
             }
         }
     }
@@ -55,7 +71,7 @@ public class Si1132UVDriver implements AutoCloseable {
             throw new IllegalStateException("cannot registered closed driver");
         }
         if (mUserSensor == null) {
-            mUserSensor = build(mDevice);
+            mUserSensor = build(getSensorDriver());
             UserDriverManager.getInstance().registerSensor(mUserSensor);
         }
     }
@@ -70,7 +86,17 @@ public class Si1132UVDriver implements AutoCloseable {
         }
     }
 
-    static UserSensor build(final Si1132 si1132) {
+    @Override
+    /*package*/ PolledSensorDriver newSensorDriver() {
+        return driver(mDevice, mScheduler);
+    }
+
+    @Override
+    /*package*/ boolean isClosed() {
+        return mDevice == null;
+    }
+
+    static UserSensor build(UserSensorDriver driver) {
         return new UserSensor.Builder()
                 .setCustomType(Sensor.TYPE_DEVICE_PRIVATE_BASE,
                         "fabo.io.uv",
@@ -79,29 +105,47 @@ public class Si1132UVDriver implements AutoCloseable {
                 .setVendor(DRIVER_VENDOR)
                 .setVersion(DRIVER_VERSION)
                 .setUuid(UUID.randomUUID())
-                .setDriver(new UserSensorDriver() {
-                    @Override
-                    public UserSensorReading read() throws IOException {
-                        float uv = si1132.readUV();
-                        float ir = si1132.readIR();
-                        float visible = si1132.readVisible();
+                .setDriver(driver)
+                .build();
+    }
 
-                        float data[] = {uv, ir, visible};
-                        return new UserSensorReading(data);
-                    }
+    static PolledSensorDriver driver(final Si1132 si1132, I2cBusScheduler scheduler) {
+        final PolledSensor sensor = new PolledSensor(scheduler, 3, new PolledSensor.Sampler() {
+            @Override
+            public boolean sample(float[] values) throws IOException {
+                si1132.readInto(values, 0);
+                return true;
+            }
+        });
+        return new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) throws IOException {
+                if (enabled) {
+                    // Auto measurement every 0xff x 31.25us.
+                    sensor.start(bringUp(si1132), 8, TimeUnit.MILLISECONDS);
+                } else {
+                    sensor.stop();
+                    si1132.setMeasRate(0);
+                    si1132.pause();
+                }
+            }
+        };
+    }
 
-                    @Override
-                    public void setEnabled(boolean enabled) throws IOException {
-                        if (enabled) {
-                            si1132.reset();
-                            si1132.configuration();
-                            si1132.start();
-                        } else {
-                            si1132.setMeasRate(0);
-                            si1132.pause();
-                        }
-                    }
-                })
-                .build();
+    /**
+     * Reset, configure and start autonomous measurement.
+     * @param si1132 chip.
+     * @return power-up sequence.
+     */
+    static BringUp bringUp(final Si1132 si1132) {
+        return new BringUp(DRIVER_NAME, 1, TimeUnit.SECONDS) {
+            @Override
+            protected long step(int state) throws IOException {
+                si1132.reset();
+                si1132.configuration();
+                si1132.start();
+                return DONE;
+            }
+        };
     }
 }
@@ -0,0 +1,224 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+import com.google.android.things.pio.PeripheralManager;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * TCA9548A 8 channel I2C multiplexer.
+ * Each channel is an I2cBusScheduler to pass to the driver constructors, so
+ * chips with the same address, e.g. SPS30 and CDM7160 at 0x69 or two units
+ * of one sensor, go on different channels. Channels share the bus thread of
+ * the scheduler the multiplexer is on. The selected channel is remembered,
+ * so consecutive transactions on one channel need no switch. Devices on
+ * the bus itself switch the multiplexer off first, once.
+ */
+public class TCA9548A implements AutoCloseable {
+    private static final String TAG = TCA9548A.class.getSimpleName();
+
+    /**
+     * I2C slave address of the TCA9548A with A0-A2 low, up to 0x77.
+     */
+    public static final int I2C_ADDRESS = 0x70;
+
+    /**
+     * Number of channels.
+     */
+    public static final int CHANNELS = 8;
+
+    /** Control register value not known, e.g. after a failed transaction. */
+    private static final int UNKNOWN = -1;
+
+    private final I2cBusScheduler mScheduler;
+    private final int mAddress;
+    private final I2cBusScheduler[] mChannels = new I2cBusScheduler[CHANNELS];
+    /** Devices opened on the bus by address, shared by the channels. */
+    private final Map<Integer, SharedDevice> mShared = new HashMap<>();
+    private final Map<I2cDevice, Integer> mOpened = new IdentityHashMap<>();
+    private final byte[] mControlBuffer = new byte[1];
+    private volatile I2cDevice mDevice;
+    /** Last control register value written, only changed on the bus thread. */
+    private volatile int mControl = UNKNOWN;
+
+    private static class SharedDevice {
+        private final I2cDevice mDevice;
+        private int mUsers;
+
+        SharedDevice(I2cDevice device) {
+            mDevice = device;
+        }
+    }
+
+    /**
+     * Create a new TCA9548A driver at the default address.
+     * @param scheduler scheduler of the bus the multiplexer is on.
+     * @throws IOException
+     */
+    public TCA9548A(I2cBusScheduler scheduler) throws IOException {
+        this(scheduler, I2C_ADDRESS);
+    }
+
+    /**
+     * Create a new TCA9548A driver.
+     * @param scheduler scheduler of the bus the multiplexer is on.
+     * @param address 0x70 to 0x77.
+     * @throws IOException
+     */
+    public TCA9548A(I2cBusScheduler scheduler, int address) throws IOException {
+        this(scheduler, scheduler.open(address), address);
+    }
+
+    /**
+     * Create a new TCA9548A driver connected to the given I2C device.
+     * @param scheduler scheduler of the bus the multiplexer is on.
+     * @param device scheduled device of the multiplexer.
+     * @param address slave address.
+     */
+    /*package*/ TCA9548A(I2cBusScheduler scheduler, I2cDevice device, int address) {
+        if (scheduler.getRoot() != scheduler) {
+            throw new IllegalArgumentException("cascaded multiplexers are not supported");
+        }
+        mScheduler = scheduler;
+        mAddress = address;
+        mDevice = ResilientI2cDevice.wrap(device, null);
+        for (int i = 0; i < CHANNELS; i++) {
+            mChannels[i] = new I2cBusScheduler(scheduler, this, i);
+        }
+        scheduler.addMux(this);
+    }
+
+    /**
+     * Close the multiplexer. Devices opened on its channels stay open.
+     */
+    @Override
+    public void close() throws IOException {
+        mScheduler.removeMux(this);
+        if (mDevice != null) {
+            try {
+                mDevice.close();
+            } finally {
+                mDevice = null;
+            }
+        }
+    }
+
+    /**
+     * Get the slave address.
+     * @return address.
+     */
+    public int getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Get a channel to open the devices behind it, like a bus of its own.
+     * @param channel 0 to 7.
+     * @return scheduler of the channel.
+     */
+    public I2cBusScheduler getChannel(int channel) {
+        if (channel < 0 || channel >= CHANNELS) {
+            throw new IllegalArgumentException("invalid channel " + channel);
+        }
+        return mChannels[channel];
+    }
+
+    /**
+     * Get the channel the multiplexer is switched to.
+     * @return channel, -1 when none or not known.
+     */
+    public int getSelectedChannel() {
+        int control = mControl;
+        return control > 0 && Integer.bitCount(control) == 1 ? Integer.numberOfTrailingZeros(control) : -1;
+    }
+
+    /**
+     * Switch to a channel unless it is selected already. Runs on the bus thread.
+     * @param channel channel.
+     * @throws IOException when it failed or the multiplexer is closed.
+     */
+    /*package*/ void select(int channel) throws IOException {
+        I2cDevice device = mDevice;
+        if (device == null) {
+            throw new IOException("multiplexer closed");
+        }
+        int control = 1 << channel;
+        if (mControl == control) {
+            return;
+        }
+        mControl = UNKNOWN;
+        mControlBuffer[0] = (byte) control;
+        device.write(mControlBuffer, 1);
+        mControl = control;
+    }
+
+    /**
+     * Switch all channels off unless they are already. Runs on the bus thread.
+     * @throws IOException
+     */
+    /*package*/ void deselect() throws IOException {
+        if (mControl == 0 || mDevice == null) {
+            return;
+        }
+        mControl = UNKNOWN;
+        mControlBuffer[0] = 0;
+        mDevice.write(mControlBuffer, 1);
+        mControl = 0;
+    }
+
+    /**
+     * Forget the selected channel, so the next transaction writes it again.
+     */
+    /*package*/ void invalidate() {
+        mControl = UNKNOWN;
+    }
+
+    /**
+     * Open a device behind a channel. Devices at the same address on
+     * different channels share one device on the bus.
+     * @param channel channel.
+     * @param address 7bit slave address.
+     * @return device recording into the statistics of the channel.
+     * @throws IOException
+     */
+    /*package*/ I2cDevice openDevice(int channel, int address) throws IOException {
+        synchronized (mShared) {
+            SharedDevice shared = mShared.get(address);
+            if (shared == null) {
+                PeripheralManager pioService = PeripheralManager.getInstance();
+                shared = new SharedDevice(pioService.openI2cDevice(mScheduler.getBus(), address));
+                mShared.put(address, shared);
+            }
+            shared.mUsers++;
+            I2cDevice device = I2cStats.instrument(mChannels[channel].getBus(), address, shared.mDevice);
+            mOpened.put(device, address);
+            return device;
+        }
+    }
+
+    /**
+     * Close a device of a channel, the device on the bus once no channel uses it.
+     * @param device device.
+     * @throws IOException
+     */
+    /*package*/ void closeDevice(I2cDevice device) throws IOException {
+        I2cDevice closed = device;
+        synchronized (mShared) {
+            Integer address = mOpened.remove(device);
+            if (address != null) {
+                SharedDevice shared = mShared.get(address);
+                closed = null;
+                if (--shared.mUsers == 0) {
+                    mShared.remove(address);
+                    closed = shared.mDevice;
+                }
+            }
+        }
+        if (closed != null) {
+            closed.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package io.fabo.driver;
+
+import java.util.Arrays;
+
+/**
+ * Simulated ADC121C027 12bit ADC.
+ * In automatic mode the conversion register follows the input every cycle,
+ * otherwise a conversion is made when the result is read.
+ * Automatic conversions outside the alert limits set the alert status and,
+ * with the pin enabled, assert the active-low ALERT output until the status
+ * is cleared, or with alert hold off until a conversion is back inside.
+ */
+public class SimADC121 extends SimulatedI2cDevice {
+
+    private static final int REG_CONVERSION = 0x00;
+    private static final int REG_ALERT_STATUS = 0x01;
+    private static final int REG_CONFIGURATION = 0x02;
+    private static final int REG_ALERT_LIMIT_LW = 0x03;
+    private static final int REG_ALERT_LIMIT_HG = 0x04;
+    private static final int CYCLE_TIME_SHIFT = 5;
+    private static final int ALERT_HOLD = 0b00010000;
+    private static final int ALERT_FLAG = 0b00001000;
+    private static final int ALERT_PIN = 0b00000100;
+    private static final int UNDER_RANGE = 0b01;
+    private static final int OVER_RANGE = 0b10;
+
+    /** Conversion interval of each cycle time setting, in microseconds. */
+    private static final long[] CYCLE_MICROS = {0, 32, 64, 128, 256, 512, 1024, 2048};
+
+    private int mInput;
+    private long mLastConversion;
+    private int mLowLimit;
+    private int mHighLimit;
+    private int mAlertStatus;
+
+    @Override
+    protected void powerOn() {
+        Arrays.fill(mRegisters, (byte) 0);
+        mLastConversion = now();
+        mLowLimit = 0;
+        mHighLimit = 0x0fff;
+        mAlertStatus = 0;
+        setInterrupt(false);
+    }
+
+    /**
+     * Set the analog input.
+     * @param counts 0-4095.
+     */
+    public synchronized void setInput(int counts) {
+        mInput = counts & 0x0fff;
+    }
+
+    /**
+     * Conversion interval of the current configuration.
+     * @return nanoseconds, 0 when automatic conversion is off.
+     */
+    public synchronized long getCycleNanos() {
+        return CYCLE_MICROS[(mRegisters[REG_CONFIGURATION] & 0xff) >> CYCLE_TIME_SHIFT] * 1000L;
+    }
+
+    @Override
+    protected void update(long now) {
+        long cycle = getCycleNanos();
+        if (cycle > 0 && now - mLastConversion >= cycle) {
+            mLastConversion = now;
+            latch();
+            alert();
+        }
+    }
+
+    private void alert() {
+        int config = mRegisters[REG_CONFIGURATION];
+        if ((config & (ALERT_FLAG | ALERT_PIN)) == 0) {
+            return;
+        }
+        int status = mInput > mHighLimit ? OVER_RANGE : mInput < mLowLimit ? UNDER_RANGE : 0;
+        mAlertStatus = (config & ALERT_HOLD) != 0 ? mAlertStatus | status : status;
+        setInterrupt((config & ALERT_PIN) != 0 && mAlertStatus != 0);
+    }
+
+    private int limit(byte[] buffer, int length) {
+        return length >= 2 ? (buffer[0] & 0x0f) << 8 | (buffer[1] & 0xff) : 0;
+    }
+
+    @Override
+    protected void readBlock(int reg, byte[] buffer, int length) {
+        if (reg == REG_CONVERSION && getCycleNanos() == 0) {
+            latch();
+        }
+        if (reg == REG_ALERT_STATUS && length > 0) {
+            buffer[0] = (byte) mAlertStatus;
+            return;
+        }
+        super.readBlock(reg, buffer, length);
+    }
+
+    @Override
+    protected void writeBlock(int reg, byte[] buffer, int length) {
+        switch (reg) {
+            case REG_ALERT_STATUS:
+                // Write one to clear.
+                mAlertStatus &= ~buffer[0];
+                setInterrupt((mRegisters[REG_CONFIGURATION] & ALERT_PIN) != 0 && mAlertStatus != 0);
+                break;
+            case REG_ALERT_LIMIT_LW:
+                mLowLimit = limit(buffer, length);
+                break;
+            case REG_ALERT_LIMIT_HG:
+                mHighLimit = limit(buffer, length);
+                break;
+            default:
+                super.writeBlock(reg, buffer, length);
+                break;
+        }
+    }
+
+    private void latch() {
+        // MSB first, the 12 bit result in D11-D0.
+        mRegisters[REG_CONVERSION] = (byte) (mInput >> 8 & 0x0f);
+        mRegisters[REG_CONVERSION + 1] = (byte) mInput;
+    }
+}
@@ -0,0 +1,185 @@
+package io.fabo.driver;
+
+import java.util.Arrays;
+
+/**
+ * Simulated ADXL345 accelerometer.
+ * While measuring a sample is produced at the BW_RATE output data rate.
+ * In bypass mode the data registers hold the newest sample; in FIFO,
+ * stream and trigger mode samples queue in the 32 entry FIFO and a
+ * read starting at DATAX0 pops one entry.
+ */
+public class SimAdx345 extends SimulatedI2cDevice {
+
+    private static final int REG_DEVID = 0x00;
+    private static final int REG_BW_RATE = 0x2C;
+    private static final int REG_POWER_CTL = 0x2D;
+    private static final int REG_DATAX0 = 0x32;
+    private static final int REG_FIFO_CTL = 0x38;
+    private static final int REG_FIFO_STATUS = 0x39;
+    private static final int MEASURE = 0b00001000;
+    private static final int FIFO_MODE_MASK = 0b11000000;
+    private static final int FIFO_MODE_FIFO = 0b01000000;
+    private static final int FIFO_MODE_STREAM = 0b10000000;
+    private static final int FIFO_DEPTH = 32;
+
+    private int mX;
+    private int mY;
+    private int mZ;
+    private boolean mRamp;
+
+    private final int[] mFifo = new int[FIFO_DEPTH * 3];
+    private int mFifoHead;
+    private int mFifoCount;
+    private long mLastSample;
+    private long mSampleCount;
+    private long mOverflowCount;
+
+    @Override
+    protected void powerOn() {
+        Arrays.fill(mRegisters, (byte) 0);
+        mRegisters[REG_DEVID] = (byte) 0xE5;
+        mRegisters[REG_BW_RATE] = 0x0A;
+        mFifoHead = 0;
+        mFifoCount = 0;
+    }
+
+    /**
+     * Set the acceleration.
+     * @param x raw counts.
+     * @param y raw counts.
+     * @param z raw counts.
+     */
+    public synchronized void setAcceleration(int x, int y, int z) {
+        mX = x;
+        mY = y;
+        mZ = z;
+    }
+
+    /**
+     * Make x count the samples produced, to check ordering and loss.
+     * @param ramp x is the sample number (mod 2^16) when true.
+     */
+    public synchronized void setRamp(boolean ramp) {
+        mRamp = ramp;
+    }
+
+    /**
+     * Check the measure bit of POWER_CTL.
+     * @return measuring or not.
+     */
+    public synchronized boolean isMeasuring() {
+        return (mRegisters[REG_POWER_CTL] & MEASURE) != 0;
+    }
+
+    /**
+     * Output data rate of BW_RATE.
+     * @return period in nanoseconds.
+     */
+    public synchronized long getSampleNanos() {
+        int rate = mRegisters[REG_BW_RATE] & 0x0f;
+        return Math.round(1e9 / (3200.0 / (1 << (0x0f - rate))));
+    }
+
+    /**
+     * Samples produced since power on.
+     * @return count.
+     */
+    public synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Samples dropped because the FIFO was full.
+     * @return count.
+     */
+    public synchronized long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    @Override
+    protected void writeRegister(int reg, int value) {
+        if (reg == REG_POWER_CTL && (value & MEASURE) != 0 && !isMeasuring()) {
+            mLastSample = now();
+        }
+        if (reg == REG_FIFO_CTL) {
+            mFifoHead = 0;
+            mFifoCount = 0;
+        }
+        super.writeRegister(reg, value);
+    }
+
+    @Override
+    protected void update(long now) {
+        if (!isMeasuring()) {
+            return;
+        }
+        long period = getSampleNanos();
+        long due = (now - mLastSample) / period;
+        if (due <= 0) {
+            return;
+        }
+        mLastSample += due * period;
+        // Only the newest FIFO_DEPTH samples can still be visible.
+        long skip = Math.max(0, due - FIFO_DEPTH);
+        mSampleCount += skip;
+        if (skip > 0 && fifoMode() != 0) {
+            mOverflowCount += skip;
+        }
+        for (long i = skip; i < due; i++) {
+            produce();
+        }
+        mRegisters[REG_FIFO_STATUS] = (byte) mFifoCount;
+    }
+
+    private void produce() {
+        int x = mRamp ? (short) mSampleCount : mX;
+        mSampleCount++;
+        int mode = fifoMode();
+        if (mode == 0) {
+            putWord(REG_DATAX0, x);
+            putWord(REG_DATAX0 + 2, mY);
+            putWord(REG_DATAX0 + 4, mZ);
+            return;
+        }
+        if (mFifoCount == FIFO_DEPTH) {
+            mOverflowCount++;
+            if (mode == FIFO_MODE_FIFO) {
+                return;
+            }
+            // Stream and trigger mode keep the newest samples.
+            mFifoHead = (mFifoHead + 1) % FIFO_DEPTH;
+            mFifoCount--;
+        }
+        int tail = (mFifoHead + mFifoCount) % FIFO_DEPTH;
+        mFifo[tail * 3] = x;
+        mFifo[tail * 3 + 1] = mY;
+        mFifo[tail * 3 + 2] = mZ;
+        mFifoCount++;
+    }
+
+    @Override
+    protected void readBlock(int reg, byte[] buffer, int length) {
+        boolean pop = reg == REG_DATAX0 && fifoMode() != 0 && mFifoCount > 0;
+        if (pop) {
+            putWord(REG_DATAX0, mFifo[mFifoHead * 3]);
+            putWord(REG_DATAX0 + 2, mFifo[mFifoHead * 3 + 1]);
+            putWord(REG_DATAX0 + 4, mFifo[mFifoHead * 3 + 2]);
+        }
+        super.readBlock(reg, buffer, length);
+        if (pop) {
+            mFifoHead = (mFifoHead + 1) % FIFO_DEPTH;
+            mFifoCount--;
+            mRegisters[REG_FIFO_STATUS] = (byte) mFifoCount;
+        }
+    }
+
+    private int fifoMode() {
+        return mRegisters[REG_FIFO_CTL] & FIFO_MODE_MASK;
+    }
+
+    private void putWord(int reg, int value) {
+        mRegisters[reg] = (byte) value;
+        mRegisters[reg + 1] = (byte) (value >> 8);
+    }
+}
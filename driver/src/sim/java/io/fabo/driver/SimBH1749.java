@@ -0,0 +1,224 @@
+package io.fabo.driver;
+
+import java.util.Arrays;
+
+/**
+ * Simulated BH1749NUC colour sensor.
+ * While RGB_EN is set the data registers are latched once per measurement
+ * time and VALID is raised; reading MODE_CONTROL2 clears VALID.
+ * With the interrupt enabled the INT output is asserted at the end of a
+ * measurement as set by PERSISTENCE and released by reading INTERRUPT.
+ */
+public class SimBH1749 extends SimulatedI2cDevice {
+
+    private static final int REG_SYSTEM_CONTROL = 0x40;
+    private static final int REG_MODE_CONTROL1 = 0x41;
+    private static final int REG_MODE_CONTROL2 = 0x42;
+    private static final int REG_RED_DATA = 0x50;
+    private static final int REG_GREEN_DATA = 0x52;
+    private static final int REG_BLUE_DATA = 0x54;
+    private static final int REG_IR_DATA = 0x58;
+    private static final int REG_GREEN2_DATA = 0x5A;
+    private static final int REG_INTERRUPT = 0x60;
+    private static final int REG_PERSISTENCE = 0x61;
+    private static final int REG_TH_HIGH = 0x62;
+    private static final int REG_TH_LOW = 0x64;
+    private static final int REG_MANUFACTURER_ID = 0x92;
+
+    private static final int PART_ID = 0x0D;
+    private static final int SW_RESET = 0b10000000;
+    private static final int VALID = 0b10000000;
+    private static final int RGB_EN = 0b00010000;
+    private static final int MEAS_MASK = 0b00000111;
+    private static final int RGB_GAIN_MASK = 0b00011000;
+    private static final int IR_GAIN_MASK = 0b01100000;
+    private static final int INT_STATUS = 0b10000000;
+    private static final int INT_SOURCE_MASK = 0b00001100;
+    private static final int INT_ENABLE = 0b00000001;
+
+    /** Consecutive measurements outside the thresholds of each persistence. */
+    private static final int[] PERSISTENCE_COUNTS = {0, 1, 4, 8};
+
+    private int mRed;
+    private int mGreen;
+    private int mBlue;
+    private int mIR;
+    private int mGreen2;
+    private long mCycleStart;
+    private long mConversionCount;
+    private int mOutsideCount;
+    /** Counts per millisecond at x1 when set, else fixed counts. */
+    private float[] mIrradiance;
+
+    @Override
+    protected void powerOn() {
+        Arrays.fill(mRegisters, (byte) 0);
+        mRegisters[REG_SYSTEM_CONTROL] = PART_ID;
+        mRegisters[REG_MANUFACTURER_ID] = (byte) 0xE0;
+        mRegisters[REG_TH_HIGH] = (byte) 0xFF;
+        mRegisters[REG_TH_HIGH + 1] = (byte) 0xFF;
+        mOutsideCount = 0;
+        setInterrupt(false);
+    }
+
+    /**
+     * Set the light falling on the sensor.
+     * @param red raw counts.
+     * @param green raw counts.
+     * @param blue raw counts.
+     * @param ir raw counts.
+     * @param green2 raw counts.
+     */
+    public synchronized void setLight(int red, int green, int blue, int ir, int green2) {
+        mRed = red;
+        mGreen = green;
+        mBlue = blue;
+        mIR = ir;
+        mGreen2 = green2;
+        mIrradiance = null;
+    }
+
+    /**
+     * Set the light falling on the sensor as a rate, so the counts follow
+     * gain and measurement time and saturate at 65535.
+     * @param red counts per millisecond at x1.
+     * @param green counts per millisecond at x1.
+     * @param blue counts per millisecond at x1.
+     * @param ir counts per millisecond at x1.
+     * @param green2 counts per millisecond at x1.
+     */
+    public synchronized void setIrradiance(float red, float green, float blue, float ir, float green2) {
+        mIrradiance = new float[]{red, green, blue, ir, green2};
+    }
+
+    /**
+     * Number of completed measurement cycles.
+     * @return conversions.
+     */
+    public synchronized long getConversionCount() {
+        return mConversionCount;
+    }
+
+    /**
+     * Measurement time of the current MODE_CONTROL1 setting.
+     * @return nanoseconds, 0 for a reserved setting.
+     */
+    public synchronized long getMeasurementNanos() {
+        switch (mRegisters[REG_MODE_CONTROL1] & MEAS_MASK) {
+            case 0b010:
+                return 120000000L;
+            case 0b011:
+                return 240000000L;
+            case 0b101:
+                return 35000000L;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    protected void update(long now) {
+        long meas = getMeasurementNanos();
+        if ((mRegisters[REG_MODE_CONTROL2] & RGB_EN) == 0 || meas == 0) {
+            mCycleStart = now;
+            return;
+        }
+        if (now - mCycleStart >= meas) {
+            mCycleStart += (now - mCycleStart) / meas * meas;
+            if (mIrradiance != null) {
+                float ms = meas / 1e6f;
+                int rgbGain = gain(mRegisters[REG_MODE_CONTROL1] & RGB_GAIN_MASK, RGB_GAIN_MASK);
+                int irGain = gain(mRegisters[REG_MODE_CONTROL1] & IR_GAIN_MASK, IR_GAIN_MASK);
+                mRed = counts(mIrradiance[0] * rgbGain * ms);
+                mGreen = counts(mIrradiance[1] * rgbGain * ms);
+                mBlue = counts(mIrradiance[2] * rgbGain * ms);
+                mIR = counts(mIrradiance[3] * irGain * ms);
+                mGreen2 = counts(mIrradiance[4] * rgbGain * ms);
+            }
+            putWord(REG_RED_DATA, mRed);
+            putWord(REG_GREEN_DATA, mGreen);
+            putWord(REG_BLUE_DATA, mBlue);
+            putWord(REG_IR_DATA, mIR);
+            putWord(REG_GREEN2_DATA, mGreen2);
+            mRegisters[REG_MODE_CONTROL2] |= VALID;
+            mConversionCount++;
+            interrupt();
+        }
+    }
+
+    private void interrupt() {
+        if ((mRegisters[REG_INTERRUPT] & INT_ENABLE) == 0) {
+            return;
+        }
+        int persistence = PERSISTENCE_COUNTS[mRegisters[REG_PERSISTENCE] & 0b11];
+        boolean asserted = persistence == 0;
+        if (!asserted) {
+            int source = REG_RED_DATA + ((mRegisters[REG_INTERRUPT] & INT_SOURCE_MASK) >> 1);
+            int value = word(source);
+            if (value > word(REG_TH_HIGH) || value < word(REG_TH_LOW)) {
+                mOutsideCount++;
+            } else {
+                mOutsideCount = 0;
+            }
+            asserted = mOutsideCount >= persistence;
+        }
+        if (asserted) {
+            mRegisters[REG_INTERRUPT] |= INT_STATUS;
+            setInterrupt(true);
+        }
+    }
+
+    @Override
+    protected int readRegister(int reg) {
+        int value = super.readRegister(reg);
+        if (reg == REG_MODE_CONTROL2) {
+            mRegisters[REG_MODE_CONTROL2] &= ~VALID;
+        } else if (reg == REG_INTERRUPT) {
+            mRegisters[REG_INTERRUPT] &= ~INT_STATUS;
+            setInterrupt(false);
+        }
+        return value;
+    }
+
+    @Override
+    protected void writeRegister(int reg, int value) {
+        if (reg == REG_SYSTEM_CONTROL) {
+            if ((value & SW_RESET) != 0) {
+                powerOn();
+            }
+            return;
+        }
+        if (reg == REG_INTERRUPT) {
+            // The status is read only.
+            value = (value & ~INT_STATUS) | (mRegisters[REG_INTERRUPT] & INT_STATUS);
+        } else if (reg == REG_PERSISTENCE) {
+            mOutsideCount = 0;
+        }
+        if (reg == REG_MODE_CONTROL2) {
+            // VALID is read only.
+            value = (value & ~VALID) | (mRegisters[REG_MODE_CONTROL2] & VALID);
+            if ((value & RGB_EN) != 0 && (mRegisters[REG_MODE_CONTROL2] & RGB_EN) == 0) {
+                mCycleStart = now();
+            }
+        }
+        super.writeRegister(reg, value);
+    }
+
+    /** Gain of the two bit field under mask, 0b11 is x32. */
+    private static int gain(int value, int mask) {
+        return value == mask ? 32 : 1;
+    }
+
+    private static int counts(float counts) {
+        return (int) Math.min(0xFFFF, counts);
+    }
+
+    private int word(int reg) {
+        return (mRegisters[reg] & 0xff) | (mRegisters[reg + 1] & 0xff) << 8;
+    }
+
+    private void putWord(int reg, int value) {
+        mRegisters[reg] = (byte) value;
+        mRegisters[reg + 1] = (byte) (value >> 8);
+    }
+}
@@ -0,0 +1,251 @@
+package io.fabo.driver;
+
+import java.util.Arrays;
+
+/**
+ * Simulated CCS811 gas sensor.
+ * Models the boot/application firmware modes, the mailbox registers and
+ * the DATA_READY cadence of each drive mode.
+ * nINT follows INT_DATARDY and INT_THRESH and is released by reading
+ * ALG_RESULT_DATA.
+ */
+public class SimCCS811 extends SimulatedI2cDevice {
+
+    private static final int REG_STATUS = 0x00;
+    private static final int REG_MEAS_MODE = 0x01;
+    private static final int REG_ALG_RESULT_DATA = 0x02;
+    private static final int REG_THRESHOLDS = 0x10;
+    private static final int REG_BASELINE = 0x11;
+    private static final int REG_HW_ID = 0x20;
+    private static final int REG_ERROR_ID = 0xE0;
+    private static final int REG_APP_START = 0xF4;
+    private static final int REG_SW_RESET = 0xFF;
+
+    private static final int STATUS_FW_MODE = 0b10000000;
+    private static final int STATUS_APP_VALID = 0b00010000;
+    private static final int STATUS_DATA_READY = 0b00001000;
+    private static final int STATUS_ERROR = 0b00000001;
+    private static final int DRIVE_MODE_MASK = 0b01110000;
+    private static final int DRIVE_MODE_SHIFT = 4;
+    private static final int INT_DATARDY = 0b00001000;
+    private static final int INT_THRESH = 0b00000100;
+
+    private static final int ERR_WRITE_REG_INVALID = 1;
+    private static final int ERR_MEASMODE_INVALID = 1 << 2;
+
+    /** Time from reset until the boot loader answers, 2ms max. */
+    public static final long RESET_NANOS = 2000000L;
+    /** Time from APP_START until the application answers, 1ms max. */
+    public static final long APP_START_NANOS = 1000000L;
+
+    private static final byte[] RESET_SEQUENCE = {(byte) 0x11, (byte) 0xE5, (byte) 0x72, (byte) 0x8A};
+
+    /** Sample period of each drive mode in nanoseconds. */
+    private static final long[] DRIVE_MODE_NANOS = {0, 1000000000L, 10000000000L, 60000000000L, 250000000L};
+
+    private final byte[] mMailbox = new byte[8];
+    private int mEco2 = 400;
+    private int mTvoc;
+    private int mBaseline;
+    private int mErrorId;
+    private boolean mAppMode;
+    private long mAppReadyAt;
+    private long mBootReadyAt;
+    private long mLastSample;
+    private long mSampleCount;
+    private int mLowToMedium = 1500;
+    private int mMediumToHigh = 2500;
+    private int mHysteresis = 50;
+    /** Range of the eCO2 result of the last threshold interrupt. */
+    private int mRange;
+
+    @Override
+    protected void powerOn() {
+        Arrays.fill(mRegisters, (byte) 0);
+        mRegisters[REG_HW_ID] = (byte) 0x81;
+        mAppMode = false;
+        mAppReadyAt = Long.MAX_VALUE;
+        mBootReadyAt = now() + RESET_NANOS;
+        mErrorId = 0;
+        mLowToMedium = 1500;
+        mMediumToHigh = 2500;
+        mHysteresis = 50;
+        setInterrupt(false);
+    }
+
+    /**
+     * Set the gas concentration.
+     * @param eco2 equivalent CO2 in ppm.
+     * @param tvoc TVOC in ppb.
+     */
+    public synchronized void setAir(int eco2, int tvoc) {
+        mEco2 = eco2;
+        mTvoc = tvoc;
+    }
+
+    /**
+     * Check whether the application firmware is running.
+     * @return app mode or not.
+     */
+    public synchronized boolean isAppMode() {
+        return mAppMode;
+    }
+
+    /**
+     * Number of algorithm results produced.
+     * @return samples.
+     */
+    public synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Sample period of the current drive mode.
+     * @return nanoseconds, 0 when idle.
+     */
+    public synchronized long getSampleNanos() {
+        int mode = (mRegisters[REG_MEAS_MODE] & DRIVE_MODE_MASK) >> DRIVE_MODE_SHIFT;
+        return mode < DRIVE_MODE_NANOS.length ? DRIVE_MODE_NANOS[mode] : 0;
+    }
+
+    @Override
+    protected void update(long now) {
+        if (!mAppMode && now >= mAppReadyAt) {
+            mAppMode = true;
+            mLastSample = now;
+        }
+        int status = mRegisters[REG_STATUS] & STATUS_DATA_READY;
+        if (now >= mBootReadyAt) {
+            status |= STATUS_APP_VALID;
+        }
+        if (mAppMode) {
+            status |= STATUS_FW_MODE;
+            long period = getSampleNanos();
+            if (period == 0) {
+                mLastSample = now;
+            } else if (now - mLastSample >= period) {
+                mLastSample += (now - mLastSample) / period * period;
+                status |= STATUS_DATA_READY;
+                mSampleCount++;
+                interrupt();
+            }
+        }
+        if (mErrorId != 0) {
+            status |= STATUS_ERROR;
+        }
+        mRegisters[REG_STATUS] = (byte) status;
+    }
+
+    private void interrupt() {
+        int mode = mRegisters[REG_MEAS_MODE];
+        if ((mode & INT_DATARDY) == 0) {
+            return;
+        }
+        if ((mode & INT_THRESH) != 0) {
+            int range = range(mEco2);
+            if (range == mRange) {
+                return;
+            }
+            int boundary = Math.max(range, mRange) == 2 && Math.min(range, mRange) == 1
+                    ? mMediumToHigh : mLowToMedium;
+            if (Math.abs(mEco2 - boundary) <= mHysteresis) {
+                return;
+            }
+            mRange = range;
+        }
+        setInterrupt(true);
+    }
+
+    private int range(int eco2) {
+        return eco2 < mLowToMedium ? 0 : eco2 <= mMediumToHigh ? 1 : 2;
+    }
+
+    @Override
+    protected void readBlock(int reg, byte[] buffer, int length) {
+        int size;
+        switch (reg) {
+            case REG_ALG_RESULT_DATA:
+                mMailbox[0] = (byte) (mEco2 >> 8);
+                mMailbox[1] = (byte) mEco2;
+                mMailbox[2] = (byte) (mTvoc >> 8);
+                mMailbox[3] = (byte) mTvoc;
+                mMailbox[4] = mRegisters[REG_STATUS];
+                mMailbox[5] = (byte) mErrorId;
+                mMailbox[6] = 0;
+                mMailbox[7] = 0;
+                size = 8;
+                mRegisters[REG_STATUS] &= ~STATUS_DATA_READY;
+                setInterrupt(false);
+                break;
+            case REG_BASELINE:
+                mMailbox[0] = (byte) (mBaseline >> 8);
+                mMailbox[1] = (byte) mBaseline;
+                size = 2;
+                break;
+            case REG_ERROR_ID:
+                mMailbox[0] = (byte) mErrorId;
+                size = 1;
+                mErrorId = 0;
+                mRegisters[REG_STATUS] &= ~STATUS_ERROR;
+                break;
+            default:
+                mMailbox[0] = mRegisters[reg];
+                size = 1;
+                break;
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[i] = i < size ? mMailbox[i] : 0;
+        }
+    }
+
+    @Override
+    protected void writeBlock(int reg, byte[] buffer, int length) {
+        switch (reg) {
+            case REG_SW_RESET:
+                if (length == RESET_SEQUENCE.length
+                        && Arrays.equals(Arrays.copyOf(buffer, length), RESET_SEQUENCE)) {
+                    powerOn();
+                }
+                break;
+            case REG_MEAS_MODE:
+                if (!mAppMode) {
+                    mErrorId |= ERR_WRITE_REG_INVALID;
+                } else if (((buffer[0] & DRIVE_MODE_MASK) >> DRIVE_MODE_SHIFT) >= DRIVE_MODE_NANOS.length) {
+                    mErrorId |= ERR_MEASMODE_INVALID;
+                } else {
+                    mRegisters[REG_MEAS_MODE] = buffer[0];
+                    mLastSample = now();
+                }
+                break;
+            case REG_THRESHOLDS:
+                if (length >= 5) {
+                    mLowToMedium = (buffer[0] & 0xff) << 8 | (buffer[1] & 0xff);
+                    mMediumToHigh = (buffer[2] & 0xff) << 8 | (buffer[3] & 0xff);
+                    mHysteresis = buffer[4] & 0xff;
+                    mRange = range(mEco2);
+                }
+                break;
+            case REG_BASELINE:
+                if (length >= 2) {
+                    mBaseline = (buffer[0] & 0xff) << 8 | (buffer[1] & 0xff);
+                }
+                break;
+            default:
+                mErrorId |= ERR_WRITE_REG_INVALID;
+                break;
+        }
+    }
+
+    @Override
+    protected void writeRaw(byte[] buffer, int length) {
+        if (length == 1 && (buffer[0] & 0xff) == REG_APP_START) {
+            if (!mAppMode && now() >= mBootReadyAt) {
+                mAppReadyAt = now() + APP_START_NANOS;
+            }
+            return;
+        }
+        if (length > 1) {
+            writeBlock(buffer[0] & 0xff, Arrays.copyOfRange(buffer, 1, length), length - 1);
+        }
+    }
+}
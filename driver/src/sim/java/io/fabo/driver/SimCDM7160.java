@@ -0,0 +1,78 @@
+package io.fabo.driver;
+
+import java.util.Arrays;
+
+/**
+ * Simulated CDM7160 CO2 sensor.
+ * In continuous mode the CO2 registers are refreshed every two seconds and
+ * BUSY is set for the duration of each measurement.
+ */
+public class SimCDM7160 extends SimulatedI2cDevice {
+
+    private static final int REG_RESET = 0x00;
+    private static final int REG_CONTROL = 0x01;
+    private static final int REG_STATUS = 0x02;
+    private static final int REG_CO2_LO = 0x03;
+    private static final int REG_CO2_HI = 0x04;
+
+    private static final int MODE_CONTINUS = 0b110;
+    private static final int STATUS_BUSY = 0b10000000;
+
+    /** Measurement period in continuous mode. */
+    public static final long PERIOD_NANOS = 2000000000L;
+    /** Time BUSY stays set while measuring. */
+    public static final long BUSY_NANOS = 200000000L;
+
+    private int mCo2 = 400;
+    private long mPeriodStart;
+
+    @Override
+    protected void powerOn() {
+        Arrays.fill(mRegisters, (byte) 0);
+        mPeriodStart = now();
+    }
+
+    /**
+     * Set the CO2 concentration.
+     * @param ppm CO2 in ppm.
+     */
+    public synchronized void setCo2(int ppm) {
+        mCo2 = ppm;
+    }
+
+    @Override
+    protected void update(long now) {
+        if ((mRegisters[REG_CONTROL] & 0b111) != MODE_CONTINUS) {
+            mPeriodStart = now;
+            mRegisters[REG_STATUS] &= ~STATUS_BUSY;
+            return;
+        }
+        if (now - mPeriodStart >= PERIOD_NANOS) {
+            mPeriodStart += (now - mPeriodStart) / PERIOD_NANOS * PERIOD_NANOS;
+            mRegisters[REG_CO2_LO] = (byte) mCo2;
+            mRegisters[REG_CO2_HI] = (byte) (mCo2 >> 8);
+        }
+        if (now - mPeriodStart < BUSY_NANOS) {
+            mRegisters[REG_STATUS] |= STATUS_BUSY;
+        } else {
+            mRegisters[REG_STATUS] &= ~STATUS_BUSY;
+        }
+    }
+
+    @Override
+    protected void writeRegister(int reg, int value) {
+        if (reg == REG_RESET) {
+            if ((value & 1) != 0) {
+                powerOn();
+            }
+            return;
+        }
+        if (reg == REG_STATUS || reg == REG_CO2_LO || reg == REG_CO2_HI) {
+            return;
+        }
+        if (reg == REG_CONTROL) {
+            mPeriodStart = now();
+        }
+        super.writeRegister(reg, value);
+    }
+}
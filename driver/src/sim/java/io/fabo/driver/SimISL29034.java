@@ -0,0 +1,100 @@
+package io.fabo.driver;
+
+import java.util.Arrays;
+
+/**
+ * Simulated ISL29034 ambient light sensor.
+ * The data registers are updated at the end of each integration period;
+ * a one-shot measurement returns to power down once it completes.
+ */
+public class SimISL29034 extends SimulatedI2cDevice {
+
+    private static final int REG_CMD1 = 0x00;
+    private static final int REG_CMD2 = 0x01;
+    private static final int REG_DATA_L = 0x02;
+    private static final int REG_DATA_H = 0x03;
+    private static final int REG_ID = 0x0F;
+
+    private static final int DEVICE_ID = 0x28;
+    private static final int MODE_MASK = 0b11100000;
+    private static final int MODE_ALS_ONCE = 0b001 << 5;
+    private static final int MODE_ALS_CONTINUS = 0b101 << 5;
+    private static final int RANGE_MASK = 0b00000011;
+    private static final int RES_MASK = 0b00001100;
+    private static final int RES_SHIFT = 2;
+
+    /** Integration time of RES_16, RES_12, RES_8 and RES_4 in nanoseconds. */
+    private static final long[] INTEGRATION_NANOS = {105000000L, 6500000L, 410000L, 25600L};
+    private static final int[] FULL_SCALE_LUX = {1000, 4000, 16000, 64000};
+    private static final int[] BITS = {16, 12, 8, 4};
+
+    private float mLux;
+    private long mConversionStart;
+    private long mConversionCount;
+
+    @Override
+    protected void powerOn() {
+        Arrays.fill(mRegisters, (byte) 0);
+        mRegisters[REG_ID] = DEVICE_ID;
+        mConversionStart = now();
+    }
+
+    /**
+     * Set the ambient light.
+     * @param lux illuminance.
+     */
+    public synchronized void setLux(float lux) {
+        mLux = lux;
+    }
+
+    /**
+     * Number of completed conversions.
+     * @return conversions.
+     */
+    public synchronized long getConversionCount() {
+        return mConversionCount;
+    }
+
+    /**
+     * Integration time of the current resolution.
+     * @return nanoseconds.
+     */
+    public synchronized long getIntegrationNanos() {
+        return INTEGRATION_NANOS[(mRegisters[REG_CMD2] & RES_MASK) >> RES_SHIFT];
+    }
+
+    @Override
+    protected void update(long now) {
+        int mode = mRegisters[REG_CMD1] & MODE_MASK;
+        if (mode != MODE_ALS_ONCE && mode != MODE_ALS_CONTINUS) {
+            mConversionStart = now;
+            return;
+        }
+        long integration = getIntegrationNanos();
+        if (now - mConversionStart < integration) {
+            return;
+        }
+        mConversionStart += (now - mConversionStart) / integration * integration;
+        int res = (mRegisters[REG_CMD2] & RES_MASK) >> RES_SHIFT;
+        int range = mRegisters[REG_CMD2] & RANGE_MASK;
+        int max = (1 << BITS[res]) - 1;
+        int adc = (int) Math.min(max, Math.max(0, mLux * (1 << BITS[res]) / FULL_SCALE_LUX[range]));
+        mRegisters[REG_DATA_L] = (byte) adc;
+        mRegisters[REG_DATA_H] = (byte) (adc >> 8);
+        mConversionCount++;
+        if (mode == MODE_ALS_ONCE) {
+            mRegisters[REG_CMD1] &= ~MODE_MASK;
+        }
+    }
+
+    @Override
+    protected void writeRegister(int reg, int value) {
+        if (reg == REG_DATA_L || reg == REG_DATA_H || reg == REG_ID) {
+            return;
+        }
+        if (reg == REG_CMD1) {
+            mConversionStart = now();
+        }
+        super.writeRegister(reg, value);
+    }
+}
@@ -0,0 +1,75 @@
+package io.fabo.driver;
+
+import java.util.Arrays;
+
+/**
+ * Simulated MPL115A2 barometer.
+ * Writing CONVERT starts a conversion whose result replaces the ADC
+ * registers 1.6ms later.
+ */
+public class SimMPL115 extends SimulatedI2cDevice {
+
+    private static final int REG_PADC_MSB = 0x00;
+    private static final int REG_TADC_MSB = 0x02;
+    private static final int REG_A0_MSB = 0x04;
+    private static final int REG_CONVERT = 0x12;
+
+    /** Conversion time of pressure and temperature. */
+    public static final long CONVERSION_NANOS = 1600000L;
+
+    private int mPadc;
+    private int mTadc;
+    private long mConversionDoneAt = Long.MAX_VALUE;
+
+    @Override
+    protected void powerOn() {
+        Arrays.fill(mRegisters, (byte) 0);
+    }
+
+    /**
+     * Set the calibration coefficients, as stored in the part.
+     * @param a0 raw a0.
+     * @param b1 raw b1.
+     * @param b2 raw b2.
+     * @param c12 raw c12.
+     */
+    public synchronized void setCoefficients(int a0, int b1, int b2, int c12) {
+        putWord(REG_A0_MSB, a0);
+        putWord(REG_A0_MSB + 2, b1);
+        putWord(REG_A0_MSB + 4, b2);
+        putWord(REG_A0_MSB + 6, c12);
+    }
+
+    /**
+     * Set the ADC outputs of the next conversion.
+     * @param padc 10bit pressure.
+     * @param tadc 10bit temperature.
+     */
+    public synchronized void setAdc(int padc, int tadc) {
+        mPadc = padc & 0x3ff;
+        mTadc = tadc & 0x3ff;
+    }
+
+    @Override
+    protected void update(long now) {
+        if (now >= mConversionDoneAt) {
+            mConversionDoneAt = Long.MAX_VALUE;
+            putWord(REG_PADC_MSB, mPadc << 6);
+            putWord(REG_TADC_MSB, mTadc << 6);
+        }
+    }
+
+    @Override
+    protected void writeRegister(int reg, int value) {
+        if (reg == REG_CONVERT) {
+            mConversionDoneAt = now() + CONVERSION_NANOS;
+            return;
+        }
+        super.writeRegister(reg, value);
+    }
+
+    private void putWord(int reg, int value) {
+        mRegisters[reg] = (byte) (value >> 8);
+        mRegisters[reg + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,119 @@
+package io.fabo.driver;
+
+import java.util.Arrays;
+
+/**
+ * Simulated S11059-02DT colour sensor.
+ * Once ADC reset and sleep are released, the four channels are integrated
+ * one after another and the data registers are latched at the end of the
+ * cycle.
+ */
+public class SimS11059 extends SimulatedI2cDevice {
+
+    private static final int REG_CONTROL = 0x00;
+    private static final int REG_DATA_RED_H = 0x03;
+
+    private static final int CTRL_RESET = 0b10000000;
+    private static final int CTRL_SLEEP = 0b01000000;
+    private static final int CTRL_MONITOR = 0b00100000;
+    private static final int CTRL_GAIN = 0b00001000;
+    private static final int CTRL_TIME_MASK = 0b00000011;
+
+    /** Integration time per channel of each fixed time setting in nanoseconds. */
+    private static final long[] INTEGRATION_NANOS = {87500L, 1400000L, 22400000L, 179200000L};
+
+    private int mRed;
+    private int mGreen;
+    private int mBlue;
+    private int mIR;
+    private long mCycleStart;
+    /** Counts per millisecond at low gain when set, else fixed counts. */
+    private float[] mIrradiance;
+
+    @Override
+    protected void powerOn() {
+        Arrays.fill(mRegisters, (byte) 0);
+        mRegisters[REG_CONTROL] = (byte) (CTRL_RESET | CTRL_SLEEP);
+    }
+
+    /**
+     * Set the light falling on the sensor.
+     * @param red raw counts.
+     * @param green raw counts.
+     * @param blue raw counts.
+     * @param ir raw counts.
+     */
+    public synchronized void setLight(int red, int green, int blue, int ir) {
+        mRed = red;
+        mGreen = green;
+        mBlue = blue;
+        mIR = ir;
+        mIrradiance = null;
+    }
+
+    /**
+     * Set the light falling on the sensor as a rate, so the counts follow
+     * gain and integration time and saturate at 65535.
+     * @param red counts per millisecond at low gain.
+     * @param green counts per millisecond at low gain.
+     * @param blue counts per millisecond at low gain.
+     * @param ir counts per millisecond at low gain.
+     */
+    public synchronized void setIrradiance(float red, float green, float blue, float ir) {
+        mIrradiance = new float[]{red, green, blue, ir};
+    }
+
+    /**
+     * Duration of one measurement cycle over the four channels.
+     * @return nanoseconds.
+     */
+    public synchronized long getCycleNanos() {
+        return 4 * INTEGRATION_NANOS[mRegisters[REG_CONTROL] & CTRL_TIME_MASK];
+    }
+
+    @Override
+    protected void update(long now) {
+        if ((mRegisters[REG_CONTROL] & (CTRL_RESET | CTRL_SLEEP)) != 0) {
+            mCycleStart = now;
+            return;
+        }
+        long cycle = getCycleNanos();
+        if (now - mCycleStart >= cycle) {
+            mCycleStart += (now - mCycleStart) / cycle * cycle;
+            if (mIrradiance != null) {
+                // High gain is ten times low gain.
+                float exposure = INTEGRATION_NANOS[mRegisters[REG_CONTROL] & CTRL_TIME_MASK] / 1e6f
+                        * ((mRegisters[REG_CONTROL] & CTRL_GAIN) != 0 ? 10 : 1);
+                mRed = counts(mIrradiance[0] * exposure);
+                mGreen = counts(mIrradiance[1] * exposure);
+                mBlue = counts(mIrradiance[2] * exposure);
+                mIR = counts(mIrradiance[3] * exposure);
+            }
+            putWord(REG_DATA_RED_H, mRed);
+            putWord(REG_DATA_RED_H + 2, mGreen);
+            putWord(REG_DATA_RED_H + 4, mBlue);
+            putWord(REG_DATA_RED_H + 6, mIR);
+            mRegisters[REG_CONTROL] |= CTRL_MONITOR;
+        }
+    }
+
+    @Override
+    protected void writeRegister(int reg, int value) {
+        if (reg == REG_CONTROL) {
+            if ((value & CTRL_RESET) == 0 && (mRegisters[REG_CONTROL] & CTRL_RESET) != 0) {
+                mCycleStart = now();
+            }
+            value &= ~CTRL_MONITOR;
+        }
+        super.writeRegister(reg, value);
+    }
+
+    private static int counts(float counts) {
+        return (int) Math.min(0xFFFF, counts);
+    }
+
+    private void putWord(int reg, int value) {
+        mRegisters[reg] = (byte) (value >> 8);
+        mRegisters[reg + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,222 @@
+package io.fabo.driver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Simulated Sensirion SPS30 particulate matter sensor.
+ * Implements the 16bit command protocol with CRC-8 protected words, the
+ * one second measurement interval and the data-ready flag.
+ */
+public class SimSPS30 extends SimulatedI2cDevice {
+
+    private static final int CMD_START = 0x0010;
+    private static final int CMD_STOP = 0x0104;
+    private static final int CMD_READY = 0x0202;
+    private static final int CMD_READ_MEAS = 0x0300;
+    private static final int CMD_CLEAN_INTERVAL = 0x8004;
+    private static final int CMD_FAN_CLEANING = 0x5607;
+    private static final int CMD_READ_ARTICLE = 0xD025;
+    private static final int CMD_READ_SERIAL = 0xD033;
+    private static final int CMD_RESET = 0xD304;
+
+    private static final int FORMAT_FLOAT = 0x03;
+
+    /** Measurement interval. */
+    public static final long INTERVAL_NANOS = 1000000000L;
+    /** Time the sensor does not answer after a reset. */
+    public static final long RESET_NANOS = 100000000L;
+    /** Number of values in a measurement frame. */
+    public static final int NUM_VALUES = 10;
+
+    private final float[] mValues = new float[NUM_VALUES];
+    private final byte[] mResponse = new byte[NUM_VALUES * 6];
+    private int mResponseLength;
+    private String mSerial = "FABO0123456789AB";
+    private String mArticle = "00080000";
+    private int mCleanInterval = 604800;
+
+    private boolean mMeasuring;
+    private boolean mReady;
+    private long mLastMeasurement;
+    private long mMeasurementCount;
+    private int mCrcErrors;
+    private int mCorruptOffset = -1;
+
+    @Override
+    protected void powerOn() {
+        mMeasuring = false;
+        mReady = false;
+        mResponseLength = 0;
+    }
+
+    /**
+     * Set the values reported in the next measurement, in the frame order:
+     * PM1.0, PM2.5, PM4.0, PM10 mass, NC0.5, NC1.0, NC2.5, NC4.0, NC10 and typical particle size.
+     * @param values ten values.
+     */
+    public synchronized void setValues(float... values) {
+        System.arraycopy(values, 0, mValues, 0, Math.min(values.length, NUM_VALUES));
+    }
+
+    /**
+     * Flip a bit of the next response that reaches the given byte, as noise
+     * on the bus would. Shorter reads, e.g. of the ready flag, pass intact.
+     * @param offset byte of the response to damage.
+     */
+    public synchronized void corruptNextRead(int offset) {
+        mCorruptOffset = offset;
+    }
+
+    /**
+     * Set the serial number.
+     * @param serial ASCII, up to 31 characters.
+     */
+    public synchronized void setSerial(String serial) {
+        mSerial = serial;
+    }
+
+    /**
+     * Check whether a measurement is running.
+     * @return measuring or not.
+     */
+    public synchronized boolean isMeasuring() {
+        return mMeasuring;
+    }
+
+    /**
+     * Number of measurements produced.
+     * @return measurements.
+     */
+    public synchronized long getMeasurementCount() {
+        return mMeasurementCount;
+    }
+
+    /**
+     * Number of written words with a bad CRC.
+     * @return errors.
+     */
+    public synchronized int getCrcErrors() {
+        return mCrcErrors;
+    }
+
+    /**
+     * Sensirion CRC-8, polynomial 0x31, init 0xFF.
+     * @param msb first byte.
+     * @param lsb second byte.
+     * @return crc.
+     */
+    public static byte crc(int msb, int lsb) {
+        int crc = 0xff;
+        crc ^= msb & 0xff;
+        for (int bit = 0; bit < 8; bit++) {
+            crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x31 : crc << 1;
+        }
+        crc ^= lsb & 0xff;
+        for (int bit = 0; bit < 8; bit++) {
+            crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x31 : crc << 1;
+        }
+        return (byte) crc;
+    }
+
+    @Override
+    protected void update(long now) {
+        if (mMeasuring && now - mLastMeasurement >= INTERVAL_NANOS) {
+            mLastMeasurement += (now - mLastMeasurement) / INTERVAL_NANOS * INTERVAL_NANOS;
+            mReady = true;
+            mMeasurementCount++;
+        }
+    }
+
+    @Override
+    protected void writeRaw(byte[] buffer, int length) {
+        mResponseLength = 0;
+        if (length < 2) {
+            return;
+        }
+        int command = (buffer[0] & 0xff) << 8 | (buffer[1] & 0xff);
+        for (int i = 2; i + 2 < length; i += 3) {
+            if (crc(buffer[i], buffer[i + 1]) != buffer[i + 2]) {
+                mCrcErrors++;
+                return;
+            }
+        }
+        switch (command) {
+            case CMD_START:
+                if (length >= 5 && (buffer[2] & 0xff) == FORMAT_FLOAT && !mMeasuring) {
+                    mMeasuring = true;
+                    mReady = false;
+                    mLastMeasurement = now();
+                }
+                break;
+            case CMD_STOP:
+                mMeasuring = false;
+                mReady = false;
+                break;
+            case CMD_READY:
+                putWord(0, 0, mReady ? 1 : 0);
+                mResponseLength = 3;
+                break;
+            case CMD_READ_MEAS:
+                for (int i = 0; i < NUM_VALUES; i++) {
+                    int bits = Float.floatToIntBits(mValues[i]);
+                    putWord(i * 6, bits >>> 24, bits >>> 16);
+                    putWord(i * 6 + 3, bits >>> 8, bits);
+                }
+                mResponseLength = NUM_VALUES * 6;
+                mReady = false;
+                break;
+            case CMD_CLEAN_INTERVAL:
+                if (length >= 8) {
+                    mCleanInterval = (buffer[2] & 0xff) << 24 | (buffer[3] & 0xff) << 16
+                            | (buffer[5] & 0xff) << 8 | (buffer[6] & 0xff);
+                } else {
+                    putWord(0, mCleanInterval >>> 24, mCleanInterval >>> 16);
+                    putWord(3, mCleanInterval >>> 8, mCleanInterval);
+                    mResponseLength = 6;
+                }
+                break;
+            case CMD_FAN_CLEANING:
+                break;
+            case CMD_READ_ARTICLE:
+                putString(mArticle);
+                break;
+            case CMD_READ_SERIAL:
+                putString(mSerial);
+                break;
+            case CMD_RESET:
+                powerOn();
+                nackFor(RESET_NANOS);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    protected void readRaw(byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            buffer[i] = i < mResponseLength ? mResponse[i] : (byte) 0xff;
+            if (i == mCorruptOffset) {
+                buffer[i] ^= 0x01;
+                mCorruptOffset = -1;
+            }
+        }
+    }
+
+    private void putWord(int offset, int msb, int lsb) {
+        mResponse[offset] = (byte) msb;
+        mResponse[offset + 1] = (byte) lsb;
+        mResponse[offset + 2] = crc(msb, lsb);
+    }
+
+    private void putString(String value) {
+        byte[] ascii = value.getBytes(StandardCharsets.US_ASCII);
+        // 32 bytes including the terminating zero, sent as 16 words.
+        for (int word = 0; word < 16; word++) {
+            int msb = word * 2 < ascii.length ? ascii[word * 2] : 0;
+            int lsb = word * 2 + 1 < ascii.length ? ascii[word * 2 + 1] : 0;
+            putWord(word * 3, msb, lsb);
+        }
+        mResponseLength = 48;
+    }
+}
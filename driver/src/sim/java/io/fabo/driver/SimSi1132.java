@@ -0,0 +1,148 @@
+package io.fabo.driver;
+
+import java.util.Arrays;
+
+/**
+ * Simulated Si1132 UV index and ambient light sensor.
+ * Models the command/response mailbox, the parameter RAM and autonomous
+ * ALS measurement at the MEAS_RATE interval.
+ */
+public class SimSi1132 extends SimulatedI2cDevice {
+
+    private static final int REG_PART_ID = 0x00;
+    private static final int REG_MEAS_RATE0 = 0x08;
+    private static final int REG_MEAS_RATE1 = 0x09;
+    private static final int REG_PARAM_WR = 0x17;
+    private static final int REG_COMMAND = 0x18;
+    private static final int REG_RESPONSE = 0x20;
+    private static final int REG_VISIBLE_DATA = 0x22;
+    private static final int REG_IR_DATA = 0x24;
+    private static final int REG_AUX_DATA = 0x2C;
+    private static final int REG_PARAM_RD = 0x2E;
+
+    private static final int PART_ID = 0x32;
+    private static final int COMMAND_RESET = 0x01;
+    private static final int COMMAND_ALS_FORCE = 0x06;
+    private static final int COMMAND_ALS_PAUSE = 0x0A;
+    private static final int COMMAND_ALS_AUTO = 0x0E;
+    private static final int COMMAND_MASK = 0b11100000;
+    private static final int PARAM_QUERY = 0b10000000;
+    private static final int PARAM_SET = 0b10100000;
+    private static final int PARAM_OFFSET_MASK = 0b00011111;
+
+    /** MEAS_RATE unit. */
+    private static final long MEAS_RATE_UNIT_NANOS = 31250L;
+
+    private final byte[] mParameters = new byte[32];
+    private int mVisible;
+    private int mIR;
+    private int mUV;
+    private boolean mAutonomous;
+    private long mCycleStart;
+    private long mMeasurementCount;
+
+    @Override
+    protected void powerOn() {
+        Arrays.fill(mRegisters, (byte) 0);
+        Arrays.fill(mParameters, (byte) 0);
+        mRegisters[REG_PART_ID] = PART_ID;
+        mAutonomous = false;
+    }
+
+    /**
+     * Set the light falling on the sensor.
+     * @param visible raw counts.
+     * @param ir raw counts.
+     * @param uv UV index times 100.
+     */
+    public synchronized void setLight(int visible, int ir, int uv) {
+        mVisible = visible;
+        mIR = ir;
+        mUV = uv;
+    }
+
+    /**
+     * Get a value of the parameter RAM.
+     * @param offset parameter offset.
+     * @return value.
+     */
+    public synchronized int getParameter(int offset) {
+        return mParameters[offset & PARAM_OFFSET_MASK] & 0xff;
+    }
+
+    /**
+     * Number of autonomous measurements made.
+     * @return measurements.
+     */
+    public synchronized long getMeasurementCount() {
+        return mMeasurementCount;
+    }
+
+    /**
+     * Autonomous measurement interval.
+     * @return nanoseconds, 0 when autonomous mode is off.
+     */
+    public synchronized long getMeasurementNanos() {
+        int rate = (mRegisters[REG_MEAS_RATE0] & 0xff) | (mRegisters[REG_MEAS_RATE1] & 0xff) << 8;
+        return rate * MEAS_RATE_UNIT_NANOS;
+    }
+
+    @Override
+    protected void update(long now) {
+        long interval = getMeasurementNanos();
+        if (!mAutonomous || interval == 0) {
+            mCycleStart = now;
+            return;
+        }
+        if (now - mCycleStart >= interval) {
+            mCycleStart += (now - mCycleStart) / interval * interval;
+            measure();
+        }
+    }
+
+    @Override
+    protected void writeRegister(int reg, int value) {
+        if (reg != REG_COMMAND) {
+            super.writeRegister(reg, value);
+            return;
+        }
+        int response = (mRegisters[REG_RESPONSE] + 1) & 0x0f;
+        if ((value & COMMAND_MASK) == PARAM_SET) {
+            mParameters[value & PARAM_OFFSET_MASK] = mRegisters[REG_PARAM_WR];
+            mRegisters[REG_PARAM_RD] = mRegisters[REG_PARAM_WR];
+        } else if ((value & COMMAND_MASK) == PARAM_QUERY) {
+            mRegisters[REG_PARAM_RD] = mParameters[value & PARAM_OFFSET_MASK];
+        } else {
+            switch (value) {
+                case COMMAND_RESET:
+                    powerOn();
+                    return;
+                case COMMAND_ALS_FORCE:
+                    measure();
+                    break;
+                case COMMAND_ALS_PAUSE:
+                    mAutonomous = false;
+                    break;
+                case COMMAND_ALS_AUTO:
+                    mAutonomous = true;
+                    mCycleStart = now();
+                    break;
+                default:
+                    break;
+            }
+        }
+        mRegisters[REG_RESPONSE] = (byte) response;
+    }
+
+    private void measure() {
+        putWord(REG_VISIBLE_DATA, mVisible);
+        putWord(REG_IR_DATA, mIR);
+        putWord(REG_AUX_DATA, mUV);
+        mMeasurementCount++;
+    }
+
+    private void putWord(int reg, int value) {
+        mRegisters[reg] = (byte) value;
+        mRegisters[reg + 1] = (byte) (value >> 8);
+    }
+}
@@ -0,0 +1,158 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+
+/**
+ * Simulated TCA9548A I2C multiplexer.
+ * The control register enables channels, one bit each. Chips attached behind
+ * a channel answer on the bus only while their channel is enabled; open()
+ * returns a device for an address that reaches whichever chip is connected.
+ */
+public class SimTCA9548A extends SimulatedI2cDevice {
+
+    private final SimulatedI2cDevice[][] mChannels = new SimulatedI2cDevice[TCA9548A.CHANNELS][128];
+    private int mControl;
+    private long mControlWrites;
+
+    @Override
+    protected void powerOn() {
+        mControl = 0;
+    }
+
+    /**
+     * Attach a chip model behind a channel.
+     * @param channel channel.
+     * @param address 7bit slave address.
+     * @param device chip model.
+     * @return the model, for chaining.
+     */
+    public synchronized <T extends SimulatedI2cDevice> T attach(int channel, int address, T device) {
+        if (mChannels[channel][address] != null) {
+            throw new IllegalStateException("address already in use on channel " + channel);
+        }
+        device.attach(getBus(), address);
+        mChannels[channel][address] = device;
+        return device;
+    }
+
+    /**
+     * Open the chips behind the multiplexer at an address.
+     * @param address 7bit slave address.
+     * @return device reaching the chip on the enabled channel.
+     */
+    public synchronized I2cDevice open(final int address) {
+        for (SimulatedI2cDevice[] channel : mChannels) {
+            if (channel[address] != null) {
+                channel[address].open();
+            }
+        }
+        return new Route(address);
+    }
+
+    /**
+     * Get the control register.
+     * @return enabled channels, one bit each.
+     */
+    public synchronized int getControl() {
+        return mControl;
+    }
+
+    /**
+     * Number of writes to the control register.
+     * @return writes.
+     */
+    public synchronized long getControlWrites() {
+        return mControlWrites;
+    }
+
+    @Override
+    protected void writeRaw(byte[] buffer, int length) {
+        if (length > 0) {
+            mControl = buffer[length - 1] & 0xff;
+            mControlWrites++;
+        }
+    }
+
+    @Override
+    protected void readRaw(byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (byte) mControl;
+        }
+    }
+
+    private synchronized SimulatedI2cDevice route(int address) throws IOException {
+        SimulatedI2cDevice found = null;
+        for (int i = 0; i < mChannels.length; i++) {
+            SimulatedI2cDevice device = mChannels[i][address];
+            if ((mControl & 1 << i) != 0 && device != null) {
+                if (found != null) {
+                    throw new IOException("collision at 0x" + Integer.toHexString(address));
+                }
+                found = device;
+            }
+        }
+        if (found == null) {
+            throw new IOException("NACK from 0x" + Integer.toHexString(address));
+        }
+        return found;
+    }
+
+    private class Route implements I2cDevice {
+        private final int mAddress;
+
+        Route(int address) {
+            mAddress = address;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getName() {
+            return getBus().getName();
+        }
+
+        @Override
+        public void read(byte[] buffer, int length) throws IOException {
+            route(mAddress).read(buffer, length);
+        }
+
+        @Override
+        public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+            route(mAddress).readRegBuffer(reg, buffer, length);
+        }
+
+        @Override
+        public byte readRegByte(int reg) throws IOException {
+            return route(mAddress).readRegByte(reg);
+        }
+
+        @Override
+        public short readRegWord(int reg) throws IOException {
+            return route(mAddress).readRegWord(reg);
+        }
+
+        @Override
+        public void write(byte[] buffer, int length) throws IOException {
+            route(mAddress).write(buffer, length);
+        }
+
+        @Override
+        public void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+            route(mAddress).writeRegBuffer(reg, buffer, length);
+        }
+
+        @Override
+        public void writeRegByte(int reg, byte data) throws IOException {
+            route(mAddress).writeRegByte(reg, data);
+        }
+
+        @Override
+        public void writeRegWord(int reg, short data) throws IOException {
+            route(mAddress).writeRegWord(reg, data);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package io.fabo.driver;
+
+import android.os.Handler;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory GPIO for running interrupt driven drivers on a host JVM.
+ * A simulated chip drives the line level through its interrupt output;
+ * callbacks run on the thread that changes the level, Handlers are ignored.
+ * The line idles high like an open-drain INT pin with a pull-up.
+ */
+public class SimulatedGpio implements Gpio {
+
+    private final String mName;
+    private final List<GpioCallback> mCallbacks = new ArrayList<>();
+    private boolean mOpen = true;
+    private boolean mLevel = true;
+    private int mDirection = DIRECTION_IN;
+    private int mActiveType = ACTIVE_HIGH;
+    private int mEdgeTriggerType = EDGE_NONE;
+    private long mEdgeCount;
+
+    /**
+     * Create a new line.
+     * @param name GPIO name.
+     */
+    public SimulatedGpio(String name) {
+        mName = name;
+    }
+
+    /**
+     * Drive the line from outside, e.g. from a chip model.
+     * @param high physical level.
+     */
+    public void setLevel(boolean high) {
+        List<GpioCallback> callbacks;
+        synchronized (this) {
+            if (mLevel == high || mDirection != DIRECTION_IN) {
+                mLevel = high;
+                return;
+            }
+            mLevel = high;
+            if (!triggers(high)) {
+                return;
+            }
+            mEdgeCount++;
+            callbacks = new ArrayList<>(mCallbacks);
+        }
+        // Outside the lock, callbacks may read the line or talk to the chip.
+        for (GpioCallback callback : callbacks) {
+            if (!callback.onGpioEdge(this)) {
+                unregisterGpioCallback(callback);
+            }
+        }
+    }
+
+    /**
+     * Get the physical level.
+     * @return high or low.
+     */
+    public synchronized boolean getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Number of edges that matched the trigger type.
+     * @return edges.
+     */
+    public synchronized long getEdgeCount() {
+        return mEdgeCount;
+    }
+
+    /**
+     * Number of registered callbacks.
+     * @return callbacks.
+     */
+    public synchronized int getCallbackCount() {
+        return mCallbacks.size();
+    }
+
+    private boolean triggers(boolean high) {
+        switch (mEdgeTriggerType) {
+            case EDGE_RISING:
+                return high;
+            case EDGE_FALLING:
+                return !high;
+            case EDGE_BOTH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (!mOpen) {
+            throw new IOException(mName + " is closed");
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mOpen = false;
+        mCallbacks.clear();
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public synchronized boolean getValue() throws IOException {
+        checkOpen();
+        return mActiveType == ACTIVE_HIGH ? mLevel : !mLevel;
+    }
+
+    @Override
+    public void registerGpioCallback(GpioCallback callback) throws IOException {
+        registerGpioCallback(null, callback);
+    }
+
+    @Override
+    public synchronized void registerGpioCallback(Handler handler, GpioCallback callback) throws IOException {
+        checkOpen();
+        if (!mCallbacks.contains(callback)) {
+            mCallbacks.add(callback);
+        }
+    }
+
+    @Override
+    public synchronized void setActiveType(int activeType) throws IOException {
+        checkOpen();
+        mActiveType = activeType;
+    }
+
+    @Override
+    public synchronized void setDirection(int direction) throws IOException {
+        checkOpen();
+        mDirection = direction;
+        if (direction == DIRECTION_OUT_INITIALLY_HIGH || direction == DIRECTION_OUT_INITIALLY_LOW) {
+            mLevel = (direction == DIRECTION_OUT_INITIALLY_HIGH) == (mActiveType == ACTIVE_HIGH);
+        }
+    }
+
+    @Override
+    public synchronized void setEdgeTriggerType(int edgeTriggerType) throws IOException {
+        checkOpen();
+        mEdgeTriggerType = edgeTriggerType;
+    }
+
+    @Override
+    public synchronized void setValue(boolean value) throws IOException {
+        checkOpen();
+        if (mDirection == DIRECTION_IN) {
+            throw new IllegalStateException(mName + " is an input");
+        }
+        mLevel = mActiveType == ACTIVE_HIGH ? value : !value;
+    }
+
+    @Override
+    public synchronized void unregisterGpioCallback(GpioCallback callback) {
+        mCallbacks.remove(callback);
+    }
+}
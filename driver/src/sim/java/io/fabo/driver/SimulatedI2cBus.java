@@ -0,0 +1,200 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory I2C bus for running the drivers on a host JVM.
+ * Chip models are attached at their slave address and handed to the
+ * package-private {@code XXX(I2cDevice)} constructors of the drivers.
+ */
+public class SimulatedI2cBus {
+    private static final String TAG = SimulatedI2cBus.class.getSimpleName();
+
+    /** Standard mode clock. */
+    public static final int SPEED_STANDARD = 100000;
+    /** Fast mode clock. */
+    public static final int SPEED_FAST = 400000;
+
+    /** START + address byte + STOP, in bit times. */
+    private static final int FRAME_OVERHEAD_BITS = 1 + 9 + 1;
+    /** One data byte plus ACK. */
+    private static final int BITS_PER_BYTE = 9;
+
+    private final String mName;
+    private final Map<Integer, SimulatedI2cDevice> mDevices = new HashMap<>();
+    private final int mSpeed;
+
+    private boolean mManualClock;
+    private long mVirtualNanos;
+
+    private long mTransactionCount;
+    private long mByteCount;
+    private long mWireNanos;
+
+    /**
+     * Create a new bus running on the real monotonic clock.
+     * @param name bus name reported by the devices.
+     */
+    public SimulatedI2cBus(String name) {
+        this(name, SPEED_STANDARD);
+    }
+
+    /**
+     * Create a new bus running on the real monotonic clock.
+     * @param name bus name reported by the devices.
+     * @param speed bus clock in Hz, used to account wire time.
+     */
+    public SimulatedI2cBus(String name, int speed) {
+        mName = name;
+        mSpeed = speed;
+    }
+
+    /**
+     * Get the bus name.
+     * @return name.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Attach a chip model at the given address.
+     * @param address 7bit slave address.
+     * @param device chip model.
+     * @return the model, for chaining.
+     */
+    public synchronized <T extends SimulatedI2cDevice> T attach(int address, T device) {
+        if (mDevices.containsKey(address)) {
+            throw new IllegalStateException("address already in use: 0x" + Integer.toHexString(address));
+        }
+        device.attach(this, address);
+        mDevices.put(address, device);
+        return device;
+    }
+
+    /**
+     * Remove the chip model at the given address.
+     * @param address 7bit slave address.
+     */
+    public synchronized void detach(int address) {
+        mDevices.remove(address);
+    }
+
+    /**
+     * Open the device at the given address, like PeripheralManager.openI2cDevice.
+     * @param address 7bit slave address.
+     * @return device.
+     * @throws IOException no device acknowledges the address.
+     */
+    public synchronized I2cDevice open(int address) throws IOException {
+        SimulatedI2cDevice device = mDevices.get(address);
+        if (device == null) {
+            throw new IOException("no device at 0x" + Integer.toHexString(address) + " on " + mName);
+        }
+        device.open();
+        return device;
+    }
+
+    /**
+     * Switch between the real clock and a manually advanced virtual clock.
+     * The virtual clock starts at the current real time.
+     * @param manual true to use the virtual clock.
+     */
+    public synchronized void setManualClock(boolean manual) {
+        if (manual && !mManualClock) {
+            mVirtualNanos = System.nanoTime();
+        }
+        mManualClock = manual;
+    }
+
+    /**
+     * Advance the virtual clock.
+     * @param millis milliseconds.
+     */
+    public void advanceMillis(long millis) {
+        advanceNanos(millis * 1000000L);
+    }
+
+    /**
+     * Advance the virtual clock.
+     * Chips with a connected interrupt line are advanced with it.
+     * @param nanos nanoseconds.
+     */
+    public void advanceNanos(long nanos) {
+        long now;
+        List<SimulatedI2cDevice> devices = new ArrayList<>();
+        synchronized (this) {
+            if (!mManualClock) {
+                throw new IllegalStateException("bus is not on the manual clock");
+            }
+            mVirtualNanos += nanos;
+            now = mVirtualNanos;
+            for (SimulatedI2cDevice device : mDevices.values()) {
+                if (device.hasInterrupt()) {
+                    devices.add(device);
+                }
+            }
+        }
+        // Outside the bus lock, transactions lock the device and then the bus.
+        for (SimulatedI2cDevice device : devices) {
+            device.tick(now);
+        }
+    }
+
+    /**
+     * Current bus time.
+     * @return nanoseconds.
+     */
+    public synchronized long nanoTime() {
+        return mManualClock ? mVirtualNanos : System.nanoTime();
+    }
+
+    /**
+     * Number of transactions since the last reset.
+     * @return transactions.
+     */
+    public synchronized long getTransactionCount() {
+        return mTransactionCount;
+    }
+
+    /**
+     * Number of payload bytes (register pointers included) since the last reset.
+     * @return bytes.
+     */
+    public synchronized long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * Time the transactions would have occupied a real wire at the bus speed.
+     * @return nanoseconds.
+     */
+    public synchronized long getWireNanos() {
+        return mWireNanos;
+    }
+
+    /**
+     * Reset the transaction statistics of the bus and all devices.
+     */
+    public synchronized void resetStatistics() {
+        mTransactionCount = 0;
+        mByteCount = 0;
+        mWireNanos = 0;
+        for (SimulatedI2cDevice device : mDevices.values()) {
+            device.resetStatistics();
+        }
+    }
+
+    /*package*/ synchronized void onTransaction(int bytes) {
+        mTransactionCount++;
+        mByteCount += bytes;
+        long bits = FRAME_OVERHEAD_BITS + (long) bytes * BITS_PER_BYTE;
+        mWireNanos += bits * 1000000000L / mSpeed;
+    }
+}
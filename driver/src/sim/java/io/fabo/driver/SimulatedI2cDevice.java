@@ -0,0 +1,350 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+
+/**
+ * Base of the simulated chips.
+ * Models a byte addressed register file with auto-increment burst access.
+ * Chips with mailbox or command protocols override the block hooks.
+ */
+public abstract class SimulatedI2cDevice implements I2cDevice {
+
+    /** Register file. */
+    protected final byte[] mRegisters = new byte[256];
+
+    private SimulatedI2cBus mBus;
+    private int mAddress;
+    private boolean mOpen;
+    private int mPointer;
+    private final byte[] mScratch = new byte[2];
+
+    private int mFailures;
+    private long mNackUntil = Long.MIN_VALUE;
+    private long mTransactionCount;
+    private long mReadCount;
+    private long mWriteCount;
+
+    private SimulatedGpio mInterrupt;
+    private boolean mInterruptAsserted;
+
+    /*package*/ void attach(SimulatedI2cBus bus, int address) {
+        mBus = bus;
+        mAddress = address;
+        powerOn();
+    }
+
+    /*package*/ void open() {
+        mOpen = true;
+    }
+
+    /**
+     * Get the bus this chip is attached to.
+     * @return bus.
+     */
+    public SimulatedI2cBus getBus() {
+        return mBus;
+    }
+
+    /**
+     * Get the slave address.
+     * @return address.
+     */
+    public int getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Wire the active-low interrupt output of the chip to a GPIO.
+     * The chip is then also advanced when the bus clock moves, so the
+     * line changes without transactions.
+     * @param gpio line.
+     */
+    public synchronized void connectInterrupt(SimulatedGpio gpio) {
+        mInterrupt = gpio;
+        gpio.setLevel(!mInterruptAsserted);
+    }
+
+    /*package*/ synchronized boolean hasInterrupt() {
+        return mInterrupt != null;
+    }
+
+    /*package*/ synchronized void tick(long now) {
+        update(now);
+    }
+
+    /**
+     * Drive the interrupt output.
+     * @param asserted true to pull the line low.
+     */
+    protected void setInterrupt(boolean asserted) {
+        if (asserted == mInterruptAsserted) {
+            return;
+        }
+        mInterruptAsserted = asserted;
+        if (mInterrupt != null) {
+            mInterrupt.setLevel(!asserted);
+        }
+    }
+
+    /**
+     * Make the next transactions fail with an IOException, like a NACK.
+     * @param count number of transactions to fail.
+     */
+    public synchronized void failNextTransactions(int count) {
+        mFailures = count;
+    }
+
+    /**
+     * Make the chip ignore its address for a while, e.g. while it reboots.
+     * @param nanos duration from now.
+     */
+    protected void nackFor(long nanos) {
+        mNackUntil = now() + nanos;
+    }
+
+    /**
+     * Number of transactions addressed to this chip.
+     * @return transactions.
+     */
+    public synchronized long getTransactionCount() {
+        return mTransactionCount;
+    }
+
+    /**
+     * Number of read transactions addressed to this chip.
+     * @return transactions.
+     */
+    public synchronized long getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * Number of write transactions addressed to this chip.
+     * @return transactions.
+     */
+    public synchronized long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /*package*/ synchronized void resetStatistics() {
+        mTransactionCount = 0;
+        mReadCount = 0;
+        mWriteCount = 0;
+    }
+
+    /**
+     * Get a register value without going through the bus.
+     * @param reg register.
+     * @return value.
+     */
+    public synchronized int peek(int reg) {
+        return mRegisters[reg & 0xff] & 0xff;
+    }
+
+    /**
+     * Set a register value without going through the bus.
+     * @param reg register.
+     * @param value value.
+     */
+    public synchronized void poke(int reg, int value) {
+        mRegisters[reg & 0xff] = (byte) value;
+    }
+
+    /**
+     * Current bus time.
+     * @return nanoseconds.
+     */
+    protected long now() {
+        return mBus.nanoTime();
+    }
+
+    /**
+     * Load the power-on register defaults.
+     */
+    protected abstract void powerOn();
+
+    /**
+     * Advance the chip to the given time, e.g. to complete conversions.
+     * Called before every transaction.
+     * @param now nanoseconds.
+     */
+    protected void update(long now) {
+    }
+
+    /**
+     * Read one register. Side effects such as clear-on-read go here.
+     * @param reg register.
+     * @return value.
+     */
+    protected int readRegister(int reg) {
+        return mRegisters[reg] & 0xff;
+    }
+
+    /**
+     * Write one register. Command registers go here.
+     * @param reg register.
+     * @param value value.
+     */
+    protected void writeRegister(int reg, int value) {
+        mRegisters[reg] = (byte) value;
+    }
+
+    /**
+     * Next register of a burst access.
+     * @param reg current register.
+     * @return next register.
+     */
+    protected int nextRegister(int reg) {
+        return (reg + 1) & 0xff;
+    }
+
+    /**
+     * Burst read starting at a register.
+     * @param reg first register.
+     * @param buffer destination.
+     * @param length number of bytes.
+     */
+    protected void readBlock(int reg, byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (byte) readRegister(reg);
+            reg = nextRegister(reg);
+        }
+        mPointer = reg;
+    }
+
+    /**
+     * Burst write starting at a register.
+     * @param reg first register.
+     * @param buffer source.
+     * @param length number of bytes.
+     */
+    protected void writeBlock(int reg, byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            writeRegister(reg, buffer[i] & 0xff);
+            reg = nextRegister(reg);
+        }
+        mPointer = reg;
+    }
+
+    /**
+     * Plain write without a repeated start. The first byte sets the register pointer.
+     * @param buffer data.
+     * @param length number of bytes.
+     */
+    protected void writeRaw(byte[] buffer, int length) {
+        if (length == 0) {
+            return;
+        }
+        mPointer = buffer[0] & 0xff;
+        for (int i = 1; i < length; i++) {
+            writeRegister(mPointer, buffer[i] & 0xff);
+            mPointer = nextRegister(mPointer);
+        }
+    }
+
+    /**
+     * Plain read from the current register pointer.
+     * @param buffer destination.
+     * @param length number of bytes.
+     */
+    protected void readRaw(byte[] buffer, int length) {
+        readBlock(mPointer, buffer, length);
+    }
+
+    private void begin(boolean read, int bytes) throws IOException {
+        if (!mOpen) {
+            throw new IllegalStateException("device is closed");
+        }
+        mBus.onTransaction(bytes);
+        mTransactionCount++;
+        if (read) {
+            mReadCount++;
+        } else {
+            mWriteCount++;
+        }
+        long now = now();
+        if (mFailures > 0 || now < mNackUntil) {
+            if (mFailures > 0) {
+                mFailures--;
+            }
+            throw new IOException("NACK from 0x" + Integer.toHexString(mAddress));
+        }
+        update(now);
+    }
+
+    private static void checkLength(byte[] buffer, int length) {
+        if (length < 0 || length > buffer.length) {
+            throw new IllegalArgumentException("invalid length " + length);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mOpen = false;
+    }
+
+    @Override
+    public String getName() {
+        return mBus.getName();
+    }
+
+    @Override
+    public synchronized void read(byte[] buffer, int length) throws IOException {
+        checkLength(buffer, length);
+        begin(true, length);
+        readRaw(buffer, length);
+    }
+
+    @Override
+    public synchronized void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        checkLength(buffer, length);
+        begin(true, length + 2);
+        readBlock(reg & 0xff, buffer, length);
+    }
+
+    @Override
+    public synchronized byte readRegByte(int reg) throws IOException {
+        begin(true, 3);
+        readBlock(reg & 0xff, mScratch, 1);
+        return mScratch[0];
+    }
+
+    @Override
+    public synchronized short readRegWord(int reg) throws IOException {
+        begin(true, 4);
+        readBlock(reg & 0xff, mScratch, 2);
+        // SMBus words are sent low byte first.
+        return (short) ((mScratch[0] & 0xff) | (mScratch[1] & 0xff) << 8);
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int length) throws IOException {
+        checkLength(buffer, length);
+        begin(false, length);
+        writeRaw(buffer, length);
+    }
+
+    @Override
+    public synchronized void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        checkLength(buffer, length);
+        begin(false, length + 1);
+        writeBlock(reg & 0xff, buffer, length);
+    }
+
+    @Override
+    public synchronized void writeRegByte(int reg, byte data) throws IOException {
+        begin(false, 2);
+        mScratch[0] = data;
+        writeBlock(reg & 0xff, mScratch, 1);
+    }
+
+    @Override
+    public synchronized void writeRegWord(int reg, short data) throws IOException {
+        begin(false, 3);
+        mScratch[0] = (byte) data;
+        mScratch[1] = (byte) (data >> 8);
+        writeBlock(reg & 0xff, mScratch, 2);
+    }
+}
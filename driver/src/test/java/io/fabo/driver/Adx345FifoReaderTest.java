@@ -0,0 +1,173 @@
+package io.fabo.driver;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FIFO stream acquisition against the simulated ADXL345.
+ */
+public class Adx345FifoReaderTest {
+
+    private SimulatedI2cBus mBus;
+    private SimAdx345 mSim;
+    private Adx345FifoReader mReader;
+
+    @Before
+    public void setUp() throws IOException {
+        mBus = new SimulatedI2cBus("I2C1");
+        mBus.setManualClock(true);
+        mSim = mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        mSim.setRamp(true);
+        Adx345 device = new Adx345(mBus.open(Adx345.I2C_ADDRESS));
+        mReader = new Adx345FifoReader(device, 256, new Adx345FifoReader.Ticker() {
+            @Override
+            public long nanoTime() {
+                return mBus.nanoTime();
+            }
+        });
+    }
+
+    @Test
+    public void drainsAtWatermark() throws IOException {
+        mReader.start(Adx345.RATE_3200HZ, 16);
+        long period = mReader.getSamplePeriodNanos();
+        assertEquals(312500, period);
+
+        mBus.advanceNanos(15 * period);
+        assertEquals(0, mReader.drain());
+        mBus.advanceNanos(period);
+        assertEquals(16, mReader.drain());
+        mBus.advanceNanos(20 * period);
+        assertEquals(20, mReader.drain());
+
+        float[] xyz = new float[36 * 3];
+        long[] timestamps = new long[36];
+        assertEquals(36, mReader.read(xyz, timestamps, 36));
+        for (int i = 0; i < 36; i++) {
+            assertEquals(i, xyz[i * 3], 0f);
+        }
+        for (int i = 1; i < 36; i++) {
+            long delta = timestamps[i] - timestamps[i - 1];
+            assertTrue("delta " + delta, Math.abs(delta - period) <= period / 8);
+        }
+        assertEquals(0, mReader.available());
+        assertEquals(0, mReader.getOverrunCount());
+    }
+
+    @Test
+    public void flushDrainsBelowWatermark() throws IOException {
+        mReader.start(Adx345.RATE_800HZ, 20);
+        mBus.advanceNanos(5 * mReader.getSamplePeriodNanos());
+        assertEquals(0, mReader.drain());
+        assertEquals(5, mReader.flush());
+        assertEquals(5, mReader.available());
+    }
+
+    @Test
+    public void overrunRestartsClock() throws IOException {
+        mReader.start(Adx345.RATE_1600HZ, 16);
+        long period = mReader.getSamplePeriodNanos();
+        mBus.advanceNanos(16 * period);
+        mReader.drain();
+        mBus.advanceNanos(100 * period);
+        assertEquals(Adx345.FIFO_DEPTH, mReader.drain());
+        assertEquals(1, mReader.getOverrunCount());
+
+        float[] xyz = new float[48 * 3];
+        long[] timestamps = new long[48];
+        assertEquals(48, mReader.read(xyz, timestamps, 48));
+        // Only the newest 32 of the 100 samples fit the FIFO.
+        assertEquals(84, xyz[16 * 3], 0f);
+        assertEquals(mBus.nanoTime(), timestamps[47]);
+    }
+
+    @Test
+    public void scheduledDrainKeepsUpAtFullRate() throws Exception {
+        // Batches of 2.5ms, shorter than the scheduler's 10ms minimum period.
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        bus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        I2cBusScheduler scheduler = new I2cBusScheduler("I2C1");
+        try {
+            Adx345FifoReader reader = new Adx345FifoReader(
+                    new Adx345(scheduler.attach(bus.open(Adx345.I2C_ADDRESS))), 4096);
+            reader.start(Adx345.RATE_3200HZ, 8);
+            reader.schedule(scheduler);
+            Thread.sleep(200);
+            reader.stop();
+            // Polled every 10ms the FIFO would overrun each time; allow for a pause of the test JVM.
+            assertTrue("overruns " + reader.getOverrunCount(), reader.getOverrunCount() <= 2);
+            assertTrue("drained " + reader.available(), reader.available() >= 320);
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void stopWhileDraining() throws Exception {
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        bus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        I2cBusScheduler scheduler = new I2cBusScheduler("I2C1");
+        final CountDownLatch draining = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            // The first drain holds the bus thread until stop() waits for the bus.
+            final Adx345FifoReader reader = new Adx345FifoReader(
+                    new Adx345(scheduler.attach(bus.open(Adx345.I2C_ADDRESS))), 256, new Adx345FifoReader.Ticker() {
+                        @Override
+                        public long nanoTime() {
+                            if (draining.getCount() > 0) {
+                                draining.countDown();
+                                try {
+                                    release.await(2, TimeUnit.SECONDS);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                            return System.nanoTime();
+                        }
+                    });
+            reader.start(Adx345.RATE_3200HZ, 1);
+            reader.schedule(scheduler);
+            assertTrue(draining.await(2, TimeUnit.SECONDS));
+            Thread stopper = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    reader.stop();
+                }
+            });
+            stopper.start();
+            Thread.sleep(50);
+            release.countDown();
+            stopper.join(2000);
+            assertFalse(stopper.isAlive());
+        } finally {
+            release.countDown();
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void ringDropsOldest() throws IOException {
+        Adx345 device = new Adx345(mBus.open(Adx345.I2C_ADDRESS));
+        Adx345FifoReader reader = new Adx345FifoReader(device, 20);
+        reader.start(Adx345.RATE_400HZ, 10);
+        long period = reader.getSamplePeriodNanos();
+        for (int i = 0; i < 3; i++) {
+            mBus.advanceNanos(10 * period);
+            reader.drain();
+        }
+        assertEquals(20, reader.available());
+        assertEquals(10, reader.getDroppedCount());
+        float[] xyz = new float[3];
+        reader.read(xyz, null, 1);
+        assertEquals(10, xyz[0], 0f);
+    }
+}
@@ -0,0 +1,142 @@
+package io.fabo.driver;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Power-up sequences against the simulated chips on the virtual clock.
+ */
+public class BringUpTest {
+
+    /**
+     * Advance a sequence on the bus clock until it finishes.
+     * @return DONE or FAILED.
+     */
+    private static long run(SimulatedI2cBus bus, BringUp bringUp) {
+        bringUp.restart(bus.nanoTime());
+        while (true) {
+            long next = bringUp.advance(bus.nanoTime());
+            if (next < 0) {
+                return next;
+            }
+            bus.advanceNanos(next);
+        }
+    }
+
+    @Test
+    public void sps30ProbesThroughReset() throws IOException {
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        bus.setManualClock(true);
+        SimSPS30 sim = bus.attach(SPS30.I2C_ADDRESS, new SimSPS30());
+        SPS30 sps30 = new SPS30(bus.open(SPS30.I2C_ADDRESS));
+        BringUp bringUp = SPS30PMDriver.bringUp(sps30);
+
+        assertEquals(BringUp.DONE, run(bus, bringUp));
+        assertTrue(sim.isMeasuring());
+        long elapsed = bringUp.getElapsedNanos();
+        assertTrue("elapsed " + elapsed, elapsed >= SimSPS30.RESET_NANOS
+                && elapsed < SimSPS30.RESET_NANOS + TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void sps30ProbeRejectsBadFrame() throws IOException {
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        bus.setManualClock(true);
+        SimSPS30 sim = bus.attach(SPS30.I2C_ADDRESS, new SimSPS30());
+        SPS30 sps30 = new SPS30(bus.open(SPS30.I2C_ADDRESS));
+        sim.corruptNextRead(2);
+
+        BringUp bringUp = SPS30PMDriver.bringUp(sps30);
+        assertEquals(BringUp.FAILED, run(bus, bringUp));
+        assertFalse(sim.isMeasuring());
+        // Given up at the probe, not after the timeout.
+        assertTrue(bringUp.getElapsedNanos() < TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void sps30ProbeRejectsOtherChip() throws IOException {
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        bus.setManualClock(true);
+        bus.attach(SPS30.I2C_ADDRESS, new SimCDM7160());
+        SPS30 sps30 = new SPS30(bus.open(SPS30.I2C_ADDRESS));
+
+        BringUp bringUp = SPS30PMDriver.bringUp(sps30);
+        assertEquals(BringUp.FAILED, run(bus, bringUp));
+        assertTrue(bringUp.getElapsedNanos() < TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void ccs811PollsStatus() throws IOException {
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        bus.setManualClock(true);
+        SimCCS811 sim = bus.attach(CCS811.I2C_ADDRESS, new SimCCS811());
+        CCS811 ccs811 = new CCS811(bus.open(CCS811.I2C_ADDRESS));
+        BringUp bringUp = CCS811Co2Driver.bringUp(ccs811);
+
+        assertEquals(BringUp.DONE, run(bus, bringUp));
+        assertTrue(sim.isAppMode());
+        assertEquals(TimeUnit.SECONDS.toNanos(1), sim.getSampleNanos());
+        assertTrue(bringUp.getElapsedNanos() <= TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+    @Test
+    public void failsAfterTimeout() {
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        bus.setManualClock(true);
+        BringUp bringUp = new BringUp("never", 100, TimeUnit.MILLISECONDS) {
+            @Override
+            protected long step(int state) throws IOException {
+                throw new IOException("no ack");
+            }
+        };
+        assertEquals(BringUp.FAILED, run(bus, bringUp));
+        assertTrue(bringUp.isFinished());
+        assertTrue(bringUp.getElapsedNanos() > TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void startDoesNotWaitForBringUp() throws Exception {
+        I2cBusScheduler scheduler = new I2cBusScheduler("I2C1");
+        try {
+            final CountDownLatch sampled = new CountDownLatch(1);
+            PolledSensor sensor = new PolledSensor(scheduler, 1, new PolledSensor.Sampler() {
+                @Override
+                public boolean sample(float[] values) {
+                    values[0] = 1;
+                    sampled.countDown();
+                    return true;
+                }
+            });
+            BringUp bringUp = new BringUp("slow", 1, TimeUnit.SECONDS) {
+                @Override
+                protected long step(int state) {
+                    return state < 3 ? next(state + 1, 50, TimeUnit.MILLISECONDS) : DONE;
+                }
+            };
+
+            long start = System.nanoTime();
+            sensor.start(bringUp, 10, TimeUnit.MILLISECONDS);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+            try {
+                sensor.read();
+                fail("read during bring-up");
+            } catch (IOException expected) {
+            }
+            assertFalse(bringUp.isFinished());
+
+            assertTrue(sampled.await(2, TimeUnit.SECONDS));
+            assertTrue(bringUp.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(150));
+            sensor.stop();
+        } finally {
+            scheduler.close();
+        }
+    }
+}
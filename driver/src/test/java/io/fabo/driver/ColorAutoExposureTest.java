@@ -0,0 +1,122 @@
+package io.fabo.driver;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Auto-exposure against the simulated colour sensors.
+ */
+public class ColorAutoExposureTest {
+
+    private SimulatedI2cBus mBus;
+    private final float[] mValues = new float[5];
+
+    @Before
+    public void setUp() {
+        mBus = new SimulatedI2cBus("I2C1");
+        mBus.setManualClock(true);
+    }
+
+    /** Read once per cycle, as the drivers poll, and return the last reading. */
+    private float[] read(ColorAutoExposure autoExposure, int times) throws IOException {
+        for (int i = 0; i < times; i++) {
+            mBus.advanceNanos(autoExposure.getCycleNanos());
+            autoExposure.read(mValues, 0);
+        }
+        return mValues;
+    }
+
+    private ColorAutoExposure bh1749(SimBH1749 sim) throws IOException {
+        mBus.attach(BH1749.I2C_ADDRESS, sim);
+        ColorAutoExposure autoExposure = ColorAutoExposure.forBH1749(
+                new BH1749(mBus.open(BH1749.I2C_ADDRESS)));
+        autoExposure.start();
+        return autoExposure;
+    }
+
+    private ColorAutoExposure s11059(SimS11059 sim) throws IOException {
+        mBus.attach(S11059.I2C_ADDRESS, sim);
+        ColorAutoExposure autoExposure = ColorAutoExposure.forS11059(
+                new S11059(mBus.open(S11059.I2C_ADDRESS)));
+        autoExposure.start();
+        return autoExposure;
+    }
+
+    @Test
+    public void bh1749BrightLightShortensCycle() throws IOException {
+        SimBH1749 sim = new SimBH1749();
+        ColorAutoExposure autoExposure = bh1749(sim);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(240), autoExposure.getCycleNanos());
+
+        sim.setIrradiance(1000, 1500, 500, 100, 1500);
+        float[] values = read(autoExposure, 10);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(35), autoExposure.getCycleNanos());
+        assertEquals(0, autoExposure.getGain());
+        assertEquals(1000f, values[0], 1f);
+        assertEquals(1500f, values[1], 1f);
+        assertEquals(100f, values[3], 1f);
+    }
+
+    @Test
+    public void bh1749DimLightRaisesGain() throws IOException {
+        SimBH1749 sim = new SimBH1749();
+        ColorAutoExposure autoExposure = bh1749(sim);
+        sim.setIrradiance(2, 3, 1, 0.5f, 3);
+        float[] values = read(autoExposure, 10);
+        assertEquals(1, autoExposure.getGain());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(240), autoExposure.getCycleNanos());
+        assertEquals(2f, values[0], 0.01f);
+        assertEquals(0.5f, values[3], 0.01f);
+    }
+
+    @Test
+    public void bh1749HysteresisAvoidsToggling() throws IOException {
+        SimBH1749 sim = new SimBH1749();
+        ColorAutoExposure autoExposure = bh1749(sim);
+        // 92% of full scale at 120ms, 27% at 35ms.
+        sim.setIrradiance(500, 500, 500, 500, 500);
+        read(autoExposure, 10);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(35), autoExposure.getCycleNanos());
+        long conversions = sim.getConversionCount();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(500f, read(autoExposure, 1)[0], 1f);
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(35), autoExposure.getCycleNanos());
+        }
+        assertEquals(conversions + 20, sim.getConversionCount());
+    }
+
+    @Test
+    public void s11059FollowsLight() throws IOException {
+        SimS11059 sim = new SimS11059();
+        ColorAutoExposure autoExposure = s11059(sim);
+        sim.setIrradiance(5000, 4000, 3000, 1000);
+        float[] values = read(autoExposure, 10);
+        assertEquals(S11059.GAIN_LOW, autoExposure.getGain());
+        assertEquals(S11059.TIME_1_4MS, autoExposure.getTime());
+        assertEquals(5000f, values[0], 5f);
+
+        sim.setIrradiance(1, 0.5f, 0.25f, 0.1f);
+        values = read(autoExposure, 10);
+        assertEquals(S11059.GAIN_HIGH, autoExposure.getGain());
+        assertEquals(S11059.TIME_179_2MS, autoExposure.getTime());
+        assertEquals(1f, values[0], 0.01f);
+        assertEquals(0.1f, values[3], 0.01f);
+    }
+
+    @Test
+    public void saturatedReadingIsDropped() throws IOException {
+        SimS11059 sim = new SimS11059();
+        ColorAutoExposure autoExposure = s11059(sim);
+        mBus.advanceNanos(autoExposure.getCycleNanos());
+        autoExposure.read(mValues, 0);
+        sim.setIrradiance(100000, 0, 0, 0);
+        mBus.advanceNanos(autoExposure.getCycleNanos());
+        assertFalse(autoExposure.read(mValues, 0));
+    }
+}
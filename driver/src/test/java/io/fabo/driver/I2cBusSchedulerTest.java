@@ -0,0 +1,192 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the bus scheduler against the simulated bus on the host JVM.
+ */
+public class I2cBusSchedulerTest {
+
+    private SimulatedI2cBus mBus;
+    private I2cBusScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mBus = new SimulatedI2cBus("I2C1");
+        mScheduler = new I2cBusScheduler("I2C1");
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.close();
+    }
+
+    @Test
+    public void transactionsRunOnBusThread() throws Exception {
+        final Set<String> threads = new HashSet<>();
+        mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345() {
+            @Override
+            protected void update(long now) {
+                super.update(now);
+                threads.add(Thread.currentThread().getName());
+            }
+        }).setAcceleration(1, 2, 3);
+        final Adx345 adx345 = new Adx345(mScheduler.attach(mBus.open(Adx345.I2C_ADDRESS)));
+        adx345.powerOn();
+
+        final CountDownLatch done = new CountDownLatch(4);
+        final AtomicInteger errors = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            adx345.readSample();
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, errors.get());
+        assertEquals(1, threads.size());
+        assertTrue(threads.iterator().next().endsWith("-I2C1"));
+        assertArrayEquals(new float[]{1, 2, 3}, adx345.readSample(), 0f);
+    }
+
+    @Test(expected = IOException.class)
+    public void failurePropagatesToCaller() throws IOException {
+        SimAdx345 sim = mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        I2cDevice device = mScheduler.attach(mBus.open(Adx345.I2C_ADDRESS));
+        sim.failNextTransactions(1);
+        device.readRegByte(0x00);
+    }
+
+    @Test
+    public void closeFailsWaitingTransactions() throws Exception {
+        mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        final I2cDevice device = mScheduler.attach(mBus.open(Adx345.I2C_ADDRESS));
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mScheduler.scheduleOnce(0, TimeUnit.MILLISECONDS, new I2cBusScheduler.PollTask() {
+            @Override
+            public void poll() {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(busy.await(2, TimeUnit.SECONDS));
+        final CountDownLatch failed = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    device.readRegByte(0x00);
+                } catch (IOException e) {
+                    failed.countDown();
+                }
+            }
+        });
+        reader.start();
+        Thread.sleep(50);
+        mScheduler.close();
+        release.countDown();
+        assertTrue(failed.await(2, TimeUnit.SECONDS));
+        try {
+            device.readRegByte(0x00);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void pollRunsAtPeriod() throws Exception {
+        final CountDownLatch polls = new CountDownLatch(5);
+        I2cBusScheduler.Poll poll = mScheduler.schedule(20, TimeUnit.MILLISECONDS,
+                new I2cBusScheduler.PollTask() {
+                    @Override
+                    public void poll() {
+                        polls.countDown();
+                    }
+                });
+        assertTrue(polls.await(2, TimeUnit.SECONDS));
+        poll.cancel();
+    }
+
+    @Test
+    public void periodClampedToMinimum() {
+        I2cBusScheduler.Poll poll = mScheduler.schedule(1, TimeUnit.MICROSECONDS,
+                new I2cBusScheduler.PollTask() {
+                    @Override
+                    public void poll() {
+                    }
+                });
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(I2cBusScheduler.DEFAULT_MIN_PERIOD_MILLIS),
+                poll.getPeriodNanos());
+        poll.cancel();
+    }
+
+    @Test
+    public void pollFailureKeepsPolling() throws Exception {
+        final CountDownLatch polls = new CountDownLatch(3);
+        I2cBusScheduler.Poll poll = mScheduler.schedule(10, TimeUnit.MILLISECONDS,
+                new I2cBusScheduler.PollTask() {
+                    @Override
+                    public void poll() throws IOException {
+                        polls.countDown();
+                        throw new IOException("NACK");
+                    }
+                });
+        assertTrue(polls.await(2, TimeUnit.SECONDS));
+        poll.cancel();
+    }
+
+    @Test
+    public void oneShotReadAfterConversion() throws Exception {
+        SimISL29034 sim = mBus.attach(ISL29034.I2C_ADDRESS, new SimISL29034());
+        sim.setLux(400);
+        ISL29034 isl29034 = new ISL29034(mScheduler.attach(mBus.open(ISL29034.I2C_ADDRESS)));
+        isl29034.setRange(ISL29034.RANGE_0);
+        isl29034.setResolution(ISL29034.RES_12);
+
+        final CountDownLatch measured = new CountDownLatch(1);
+        final float[] lux = new float[1];
+        final AtomicInteger runs = new AtomicInteger();
+        isl29034.requestLux(mScheduler, new ISL29034.LuxCallback() {
+            @Override
+            public void onLux(float value) {
+                lux[0] = value;
+                runs.incrementAndGet();
+                measured.countDown();
+            }
+        });
+        assertTrue(measured.await(2, TimeUnit.SECONDS));
+        assertEquals(400f, lux[0], 1f);
+        Thread.sleep(50);
+        assertEquals(1, runs.get());
+    }
+}
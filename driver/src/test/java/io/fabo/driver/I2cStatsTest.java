@@ -0,0 +1,110 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Transaction statistics and the latency histogram.
+ */
+public class I2cStatsTest {
+
+    @Test
+    public void bucketsCoverValuesWithinOneSixteenth() {
+        for (long value = 0; value < 1L << 40; value = value * 5 / 4 + 1) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(LatencyHistogram.lowestValue(bucket) <= value);
+            assertTrue(LatencyHistogram.highestValue(bucket) >= value);
+            assertTrue(LatencyHistogram.highestValue(bucket) - LatencyHistogram.lowestValue(bucket)
+                    <= Math.max(0, value / 16));
+        }
+        assertEquals(LatencyHistogram.bucket(1L << 41), LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000L, histogram.getMin());
+        assertEquals(1000000L, histogram.getMax());
+        assertEquals(500500.0, histogram.getMean(), 0.1);
+        assertEquals(500000.0, histogram.getValueAtPercentile(50), 500000.0 / 16);
+        assertEquals(990000.0, histogram.getValueAtPercentile(99), 990000.0 / 16);
+        assertEquals(1000000L, histogram.getValueAtPercentile(100));
+
+        LatencyHistogram copy = new LatencyHistogram();
+        histogram.copyTo(copy);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(1000, copy.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void countsPerRegister() throws IOException {
+        SimulatedI2cBus bus = new SimulatedI2cBus("stats-registers");
+        SimADC121 sim = bus.attach(ADC121.I2C_ADDRESS, new SimADC121());
+        I2cDevice device = I2cStats.instrument(bus.getName(), ADC121.I2C_ADDRESS,
+                bus.open(ADC121.I2C_ADDRESS));
+        byte[] buffer = new byte[2];
+        device.readRegBuffer(0x00, buffer, 2);
+        device.readRegBuffer(0x00, buffer, 2);
+        device.writeRegByte(0x02, (byte) 0x20);
+        device.write(buffer, 1);
+
+        sim.failNextTransactions(1);
+        try {
+            device.readRegWord(0x00);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        I2cStats stats = I2cStats.get(bus.getName(), ADC121.I2C_ADDRESS);
+        I2cStats.Snapshot snapshot = stats.newSnapshot();
+        assertEquals(5, snapshot.getTransactions());
+        assertEquals(1, snapshot.getFailures());
+        assertEquals(4, snapshot.getBytesRead());
+        assertEquals(2, snapshot.getBytesWritten());
+        assertEquals(3, snapshot.getRegisterTransactions(0x00));
+        assertEquals(4, snapshot.getRegisterBytes(0x00));
+        assertEquals(1, snapshot.getRegisterTransactions(0x02));
+        assertEquals(1, snapshot.getRegisterBytes(I2cStats.RAW));
+        assertTrue(snapshot.getLatency().getTotalNanos() > 0);
+        assertEquals(stats.getAddress(), snapshot.getAddress());
+    }
+
+    @Test
+    public void snapshotAndReset() throws IOException {
+        SimulatedI2cBus bus = new SimulatedI2cBus("stats-reset");
+        bus.attach(ADC121.I2C_ADDRESS, new SimADC121());
+        I2cDevice device = I2cStats.instrument(bus.getName(), ADC121.I2C_ADDRESS,
+                bus.open(ADC121.I2C_ADDRESS));
+        device.readRegWord(0x00);
+
+        I2cStats stats = I2cStats.get(bus.getName(), ADC121.I2C_ADDRESS);
+        assertSame(stats, I2cStats.get(bus.getName(), ADC121.I2C_ADDRESS));
+        assertTrue(I2cStats.getAll().contains(stats));
+        I2cStats.Snapshot snapshot = stats.newSnapshot();
+        stats.snapshot(snapshot, true);
+        assertEquals(1, snapshot.getTransactions());
+        stats.snapshot(snapshot, false);
+        assertEquals(0, snapshot.getTransactions());
+
+        // Reopening the device keeps counting into the same statistics.
+        device.close();
+        device = I2cStats.instrument(bus.getName(), ADC121.I2C_ADDRESS, bus.open(ADC121.I2C_ADDRESS));
+        device.readRegWord(0x00);
+        stats.snapshot(snapshot, false);
+        assertEquals(1, snapshot.getTransactions());
+    }
+}
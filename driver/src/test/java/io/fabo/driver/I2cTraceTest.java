@@ -0,0 +1,188 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Recording bus traffic of the simulated chips and replaying it to the drivers.
+ */
+public class I2cTraceTest {
+
+    private SimulatedI2cBus mBus;
+    private ByteArrayOutputStream mTrace;
+    private I2cTraceRecorder mRecorder;
+
+    @Before
+    public void setUp() throws IOException {
+        mBus = new SimulatedI2cBus("trace-" + System.nanoTime());
+        mBus.setManualClock(true);
+        mTrace = new ByteArrayOutputStream();
+        mRecorder = I2cTraceRecorder.start(mTrace);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mRecorder.close();
+    }
+
+    private I2cDevice open(int address) throws IOException {
+        return I2cStats.instrument(mBus.getName(), address, mBus.open(address));
+    }
+
+    private I2cTraceReplay replay(byte[] trace) throws IOException {
+        I2cTraceReplay replay = new I2cTraceReplay(new ByteArrayInputStream(trace));
+        replay.setSpeed(I2cTraceReplay.AS_FAST_AS_POSSIBLE);
+        return replay;
+    }
+
+    private I2cTraceReplay stop() throws IOException {
+        mRecorder.close();
+        return replay(mTrace.toByteArray());
+    }
+
+    @Test
+    public void driversDecodeReplayedTraffic() throws IOException {
+        mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345()).setAcceleration(12, -34, 256);
+        SimSPS30 sps30 = mBus.attach(SPS30.I2C_ADDRESS, new SimSPS30());
+        sps30.setValues(1.5f, 2.5f, 3.5f, 12.25f, 10.5f, 12f, 12.5f, 12.75f, 13f, 0.625f);
+        Adx345 adx345 = new Adx345(open(Adx345.I2C_ADDRESS));
+        SPS30 sps = new SPS30(open(SPS30.I2C_ADDRESS));
+        adx345.setConfigure();
+        adx345.powerOn();
+        sps.start();
+        mBus.advanceMillis(1000);
+        float[] acceleration = new float[3];
+        float[] pm = new float[SPS30.NUM_VALUES];
+        adx345.readInto(acceleration, 0);
+        assertEquals(0, sps.readInto(pm, 0));
+
+        I2cTraceReplay replay = stop();
+        assertEquals(mRecorder.getRecords(), replay.getTransactions());
+        assertEquals(Arrays.asList(mBus.getName() + ":0x53", mBus.getName() + ":0x69"), replay.getDevices());
+        Adx345 replayedAdx345 = new Adx345(replay.open(mBus.getName(), Adx345.I2C_ADDRESS));
+        SPS30 replayedSps = new SPS30(replay.open(mBus.getName(), SPS30.I2C_ADDRESS));
+        replayedAdx345.setConfigure();
+        replayedAdx345.powerOn();
+        replayedSps.start();
+        float[] replayed = new float[3];
+        float[] replayedPm = new float[SPS30.NUM_VALUES];
+        replayedAdx345.readInto(replayed, 0);
+        assertEquals(0, replayedSps.readInto(replayedPm, 0));
+        assertArrayEquals(acceleration, replayed, 0f);
+        assertArrayEquals(pm, replayedPm, 0f);
+        try {
+            replayedAdx345.readInto(replayed, 0);
+            fail();
+        } catch (EOFException expected) {
+        }
+
+        replay.rewind();
+        replayedAdx345.setConfigure();
+    }
+
+    @Test
+    public void failuresAreReplayed() throws IOException {
+        SimAdx345 sim = mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        I2cDevice device = open(Adx345.I2C_ADDRESS);
+        sim.failNextTransactions(1);
+        try {
+            device.readRegByte(0x00);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals((byte) 0xE5, device.readRegByte(0x00));
+
+        I2cDevice replayed = stop().open(mBus.getName(), Adx345.I2C_ADDRESS);
+        try {
+            replayed.readRegByte(0x00);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals((byte) 0xE5, replayed.readRegByte(0x00));
+    }
+
+    @Test
+    public void divergingTransactionsThrow() throws IOException {
+        mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        I2cDevice device = open(Adx345.I2C_ADDRESS);
+        device.writeRegByte(0x2D, (byte) 0x08);
+        device.readRegWord(0x32);
+
+        I2cTraceReplay replay = stop();
+        I2cDevice replayed = replay.open(mBus.getName(), Adx345.I2C_ADDRESS);
+        try {
+            replayed.writeRegByte(0x2D, (byte) 0x00);
+            fail();
+        } catch (IOException expected) {
+        }
+        replay.rewind();
+        replayed.writeRegByte(0x2D, (byte) 0x08);
+        try {
+            replayed.readRegWord(0x34);
+            fail();
+        } catch (IOException expected) {
+        }
+        replayed.readRegWord(0x32);
+    }
+
+    @Test
+    public void truncatedTraceKeepsCompleteRecords() throws IOException {
+        mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        I2cDevice device = open(Adx345.I2C_ADDRESS);
+        byte[] buffer = new byte[6];
+        device.readRegByte(0x00);
+        device.readRegBuffer(0x32, buffer, buffer.length);
+        mRecorder.close();
+
+        byte[] trace = mTrace.toByteArray();
+        I2cTraceReplay replay = replay(Arrays.copyOf(trace, trace.length - 3));
+        assertEquals(1, replay.getTransactions());
+        I2cDevice replayed = replay.open(mBus.getName(), Adx345.I2C_ADDRESS);
+        assertEquals((byte) 0xE5, replayed.readRegByte(0x00));
+        try {
+            replayed.readRegBuffer(0x32, buffer, buffer.length);
+            fail();
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void recordedTimingIsScaled() throws Exception {
+        mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        I2cDevice device = open(Adx345.I2C_ADDRESS);
+        device.readRegByte(0x00);
+        Thread.sleep(100);
+        device.readRegByte(0x00);
+
+        I2cTraceReplay replay = stop();
+        assertTrue(replay.getDurationNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+        I2cDevice replayed = replay.open(mBus.getName(), Adx345.I2C_ADDRESS);
+        replay.setSpeed(1);
+        long start = System.nanoTime();
+        replayed.readRegByte(0x00);
+        replayed.readRegByte(0x00);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(95));
+
+        replay.rewind();
+        replay.setSpeed(I2cTraceReplay.AS_FAST_AS_POSSIBLE);
+        start = System.nanoTime();
+        replayed.readRegByte(0x00);
+        replayed.readRegByte(0x00);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+    }
+}
@@ -0,0 +1,107 @@
+package io.fabo.driver;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Auto-ranging against the simulated ISL29034.
+ */
+public class ISL29034AutoRangeTest {
+
+    private SimulatedI2cBus mBus;
+    private SimISL29034 mSim;
+    private ISL29034 mDevice;
+    private ISL29034AutoRange mAutoRange;
+
+    @Before
+    public void setUp() throws IOException {
+        mBus = new SimulatedI2cBus("I2C1");
+        mBus.setManualClock(true);
+        mSim = mBus.attach(ISL29034.I2C_ADDRESS, new SimISL29034());
+        mDevice = new ISL29034(mBus.open(ISL29034.I2C_ADDRESS));
+        mAutoRange = new ISL29034AutoRange(mDevice);
+        mAutoRange.start();
+    }
+
+    /** Read once per conversion, as the driver polls. */
+    private float read(int times) throws IOException {
+        float lux = Float.NaN;
+        for (int i = 0; i < times; i++) {
+            mBus.advanceNanos(mAutoRange.getConversionNanos());
+            float value = mAutoRange.read();
+            if (!Float.isNaN(value)) {
+                lux = value;
+            }
+        }
+        return lux;
+    }
+
+    @Test
+    public void darkKeepsFullSensitivity() throws IOException {
+        mSim.setLux(5);
+        assertEquals(5f, read(4), 0.05f);
+        assertEquals(ISL29034.RANGE_0, mDevice.getRange());
+        assertEquals(ISL29034.RES_16, mDevice.getResolution());
+    }
+
+    @Test
+    public void indoorUsesShorterConversion() throws IOException {
+        mSim.setLux(500);
+        assertEquals(500f, read(6), 5f);
+        assertEquals(ISL29034.RANGE_0, mDevice.getRange());
+        assertEquals(ISL29034.RES_12, mDevice.getResolution());
+        assertEquals(6500000L, mAutoRange.getConversionNanos());
+    }
+
+    @Test
+    public void daylightClimbsRange() throws IOException {
+        mSim.setLux(30000);
+        assertEquals(30000f, read(12), 300f);
+        assertEquals(ISL29034.RANGE_3, mDevice.getRange());
+        assertEquals(ISL29034.RES_12, mDevice.getResolution());
+
+        mSim.setLux(20);
+        assertEquals(20f, read(6), 0.2f);
+        assertEquals(ISL29034.RANGE_0, mDevice.getRange());
+        assertEquals(ISL29034.RES_16, mDevice.getResolution());
+    }
+
+    @Test
+    public void hysteresisAvoidsToggling() throws IOException {
+        mSim.setLux(850);
+        read(6);
+        assertEquals(ISL29034.RANGE_0, mDevice.getRange());
+        mSim.setLux(950);
+        read(6);
+        assertEquals(ISL29034.RANGE_1, mDevice.getRange());
+        // Below the range 0 full scale again, but well above the 20% to step down.
+        mSim.setLux(850);
+        long conversions = mSim.getConversionCount();
+        for (int i = 0; i < 20; i++) {
+            read(1);
+            assertEquals(ISL29034.RANGE_1, mDevice.getRange());
+        }
+        assertEquals(conversions + 20, mSim.getConversionCount());
+    }
+
+    @Test
+    public void busErrorIsNotDarkness() throws IOException {
+        mSim.setLux(30000);
+        read(12);
+        mBus.advanceNanos(mAutoRange.getConversionNanos());
+        // Past the retries.
+        mSim.failNextTransactions(3);
+        try {
+            mAutoRange.read();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(ISL29034.RANGE_3, mDevice.getRange());
+        assertEquals(ISL29034.RES_12, mDevice.getResolution());
+    }
+}
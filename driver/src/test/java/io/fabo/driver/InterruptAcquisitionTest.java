@@ -0,0 +1,215 @@
+package io.fabo.driver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Interrupt driven reads against the simulated chips and GPIO.
+ * The bus runs on the virtual clock, the scheduler on its own thread.
+ */
+public class InterruptAcquisitionTest {
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private SimulatedI2cBus mBus;
+    private I2cBusScheduler mScheduler;
+    private SimulatedGpio mGpio;
+
+    @Before
+    public void setUp() {
+        mBus = new SimulatedI2cBus("I2C1");
+        mBus.setManualClock(true);
+        mScheduler = new I2cBusScheduler("I2C1");
+        mGpio = new SimulatedGpio("BCM4");
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.close();
+    }
+
+    /** Wait until the bring-up is done and the driver listens to the line. */
+    private void awaitArmed() throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (mGpio.getCallbackCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, mGpio.getCallbackCount());
+    }
+
+    /** Advance the bus clock and wait for the driver to release the line. */
+    private void advance(long nanos) throws InterruptedException {
+        mBus.advanceNanos(nanos);
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (!mGpio.getLevel() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue("interrupt not released", mGpio.getLevel());
+    }
+
+    /** Read until the driver reports the value, read() repeats the last sample in between. */
+    private static void awaitValue(PolledSensorDriver driver, int index, float expected, float delta)
+            throws Exception {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        float value = Float.NaN;
+        while (System.nanoTime() < deadline) {
+            try {
+                value = driver.read().values[index];
+                if (Math.abs(value - expected) <= delta) {
+                    return;
+                }
+            } catch (IOException e) {
+                // No sample yet.
+            }
+            Thread.sleep(1);
+        }
+        throw new AssertionError("expected " + expected + " but was " + value);
+    }
+
+    @Test
+    public void bh1749ReadsAtMeasurementEnd() throws Exception {
+        SimBH1749 sim = mBus.attach(BH1749.I2C_ADDRESS, new SimBH1749());
+        sim.connectInterrupt(mGpio);
+        sim.setIrradiance(10, 20, 5, 1, 20);
+        BH1749 bh1749 = new BH1749(mScheduler.attach(mBus.open(BH1749.I2C_ADDRESS)));
+        PolledSensorDriver driver = BH1749ColorDriver.driver(bh1749, mScheduler, mGpio, 0);
+        driver.setEnabled(true);
+        awaitArmed();
+
+        long transactions = sim.getTransactionCount();
+        advance(TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(transactions, sim.getTransactionCount());
+        // The first measurement is dropped after the exposure was set.
+        advance(TimeUnit.MILLISECONDS.toNanos(40));
+        assertTrue(sim.getTransactionCount() > transactions);
+        advance(TimeUnit.MILLISECONDS.toNanos(240));
+        awaitValue(driver, 1, 20f, 0.1f);
+        driver.setEnabled(false);
+    }
+
+    @Test
+    public void failedRearmThrows() throws Exception {
+        SimADC121 adcSim = mBus.attach(ADC121.I2C_ADDRESS, new SimADC121());
+        SimBH1749 bhSim = mBus.attach(BH1749.I2C_ADDRESS, new SimBH1749());
+        SimCCS811 ccsSim = mBus.attach(CCS811.I2C_ADDRESS, new SimCCS811());
+        ADC121 adc121 = new ADC121(mBus.open(ADC121.I2C_ADDRESS));
+        BH1749 bh1749 = new BH1749(mBus.open(BH1749.I2C_ADDRESS));
+        CCS811 ccs811 = new CCS811(mBus.open(CCS811.I2C_ADDRESS));
+        // A window left stale would silence the sensor, so the sampler must see the failure.
+        adcSim.failNextTransactions(1);
+        try {
+            adc121.setAlertLimits(0, 100);
+            fail("ADC121 limits");
+        } catch (IOException expected) {
+        }
+        bhSim.failNextTransactions(1);
+        try {
+            bh1749.setThresholds(0, 100);
+            fail("BH1749 thresholds");
+        } catch (IOException expected) {
+        }
+        ccsSim.failNextTransactions(1);
+        try {
+            ccs811.setThresholds(400, 1000, 0);
+            fail("CCS811 thresholds");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void adc121ReadsOnlyOnChange() throws Exception {
+        SimADC121 sim = mBus.attach(ADC121.I2C_ADDRESS, new SimADC121());
+        sim.connectInterrupt(mGpio);
+        sim.setInput(1000);
+        ADC121 adc121 = new ADC121(mScheduler.attach(mBus.open(ADC121.I2C_ADDRESS)));
+        PolledSensorDriver driver = ADC121AnalogDriver.driver(adc121, mScheduler, mGpio, 8);
+        driver.setEnabled(true);
+        awaitArmed();
+
+        long cycle = sim.getCycleNanos();
+        advance(cycle);
+        awaitValue(driver, 0, 1000f, 0f);
+
+        long transactions = sim.getTransactionCount();
+        for (int i = 0; i < 100; i++) {
+            advance(cycle);
+        }
+        sim.setInput(1006);
+        for (int i = 0; i < 100; i++) {
+            advance(cycle);
+        }
+        assertEquals(transactions, sim.getTransactionCount());
+        // No conversion was read, the last sample is repeated.
+        assertEquals(1000f, driver.read().values[0], 0f);
+
+        sim.setInput(1100);
+        advance(cycle);
+        awaitValue(driver, 0, 1100f, 0f);
+        driver.setEnabled(false);
+    }
+
+    @Test
+    public void ccs811WakesOnThresholdCrossing() throws Exception {
+        SimCCS811 sim = mBus.attach(CCS811.I2C_ADDRESS, new SimCCS811());
+        sim.connectInterrupt(mGpio);
+        sim.setAir(600, 10);
+        CCS811 ccs811 = new CCS811(mScheduler.attach(mBus.open(CCS811.I2C_ADDRESS)));
+        PolledSensorDriver driver = CCS811Co2Driver.driver(ccs811, mScheduler, mGpio, 50);
+        driver.setEnabled(true);
+        // The boot delays of the bring-up follow the bus clock.
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (mGpio.getCallbackCount() == 0 && System.nanoTime() < deadline) {
+            mBus.advanceNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            Thread.sleep(1);
+        }
+        awaitArmed();
+
+        advance(TimeUnit.SECONDS.toNanos(1));
+        awaitValue(driver, 0, 600f, 0f);
+
+        long transactions = sim.getTransactionCount();
+        sim.setAir(640, 10);
+        for (int i = 0; i < 60; i++) {
+            advance(TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals(transactions, sim.getTransactionCount());
+
+        sim.setAir(700, 10);
+        advance(TimeUnit.SECONDS.toNanos(1));
+        awaitValue(driver, 0, 700f, 0f);
+        driver.setEnabled(false);
+    }
+
+    @Test
+    public void onDemandReadSkipsIdleLine() throws IOException {
+        SimADC121 sim = mBus.attach(ADC121.I2C_ADDRESS, new SimADC121());
+        sim.connectInterrupt(mGpio);
+        sim.setInput(2000);
+        ADC121 adc121 = new ADC121(mBus.open(ADC121.I2C_ADDRESS));
+        PolledSensorDriver driver = ADC121AnalogDriver.driver(adc121, null, mGpio, 0);
+        driver.setEnabled(true);
+
+        // The bring-up runs on the first read, no conversion yet.
+        try {
+            driver.read();
+            fail("read during bring-up");
+        } catch (IOException expected) {
+        }
+        mBus.advanceNanos(sim.getCycleNanos());
+        assertEquals(2000f, driver.read().values[0], 0f);
+        long transactions = sim.getTransactionCount();
+        for (int i = 0; i < 10; i++) {
+            mBus.advanceNanos(sim.getCycleNanos());
+            assertEquals(2000f, driver.read().values[0], 0f);
+        }
+        assertEquals(transactions, sim.getTransactionCount());
+    }
+}
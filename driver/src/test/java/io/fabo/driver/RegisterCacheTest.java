@@ -0,0 +1,97 @@
+package io.fabo.driver;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Bus traffic of the read-modify-write setters against the simulated bus.
+ */
+public class RegisterCacheTest {
+
+    private SimulatedI2cBus mBus;
+
+    @Before
+    public void setUp() {
+        mBus = new SimulatedI2cBus("I2C1");
+        mBus.setManualClock(true);
+    }
+
+    @Test
+    public void bh1749SettersCostOneWrite() throws IOException {
+        SimBH1749 sim = mBus.attach(BH1749.I2C_ADDRESS, new SimBH1749());
+        BH1749 driver = new BH1749(mBus.open(BH1749.I2C_ADDRESS));
+        driver.reset();
+
+        long reads = sim.getReadCount();
+        long writes = sim.getWriteCount();
+        driver.setIRGain(BH1749.IR_GAIN_X32);
+        driver.setRGBGain(BH1749.RGB_GAIN_X32);
+        driver.setMeasurement(BH1749.MEAS_35MS);
+        assertEquals(1, sim.getReadCount() - reads);
+        assertEquals(3, sim.getWriteCount() - writes);
+
+        assertEquals(BH1749.IR_GAIN_X32, driver.getIRGain());
+        assertEquals(BH1749.RGB_GAIN_X32, driver.getRGBGain());
+        assertEquals(BH1749.MEAS_35MS, driver.getMeasurement());
+        assertEquals(1, sim.getReadCount() - reads);
+        assertEquals((0b11 << 5) | (0b11 << 3) | 0b101, sim.peek(0x41) & 0x7f);
+    }
+
+    @Test
+    public void resetInvalidates() throws IOException {
+        SimBH1749 sim = mBus.attach(BH1749.I2C_ADDRESS, new SimBH1749());
+        BH1749 driver = new BH1749(mBus.open(BH1749.I2C_ADDRESS));
+        driver.setMeasurement(BH1749.MEAS_35MS);
+        driver.reset();
+
+        long reads = sim.getReadCount();
+        assertEquals(sim.peek(0x41) & 0b111, driver.getMeasurement());
+        assertEquals(1, sim.getReadCount() - reads);
+    }
+
+    @Test
+    public void failedWriteInvalidates() throws IOException {
+        SimADC121 sim = mBus.attach(ADC121.I2C_ADDRESS, new SimADC121());
+        ADC121 driver = new ADC121(mBus.open(ADC121.I2C_ADDRESS));
+        driver.alertFlagEnable(true);
+        sim.failNextTransactions(1);
+        driver.alertPinEnable(true);
+        sim.poke(0x02, 0);
+
+        long reads = sim.getReadCount();
+        driver.setCycleTime(ADC121.INTERVAL_0_4);
+        assertEquals(1, sim.getReadCount() - reads);
+        assertEquals(0b111 << 5, sim.peek(0x02) & 0xff);
+    }
+
+    @Test
+    public void isl29034RangeAndResolution() throws IOException {
+        SimISL29034 sim = mBus.attach(ISL29034.I2C_ADDRESS, new SimISL29034());
+        ISL29034 driver = new ISL29034(mBus.open(ISL29034.I2C_ADDRESS));
+        long writes = sim.getWriteCount();
+        driver.setRange(ISL29034.RANGE_2);
+        driver.setResolution(ISL29034.RES_8);
+        driver.setRange(ISL29034.RANGE_1);
+        assertEquals(3, sim.getWriteCount() - writes);
+        assertEquals((ISL29034.RES_8 << 2) | ISL29034.RANGE_1, sim.peek(0x01) & 0x0f);
+    }
+
+    @Test
+    public void ccs811DriveModeSkipsReadback() throws IOException {
+        SimCCS811 sim = mBus.attach(CCS811.I2C_ADDRESS, new SimCCS811());
+        CCS811 driver = new CCS811(mBus.open(CCS811.I2C_ADDRESS));
+        mBus.advanceMillis(2);
+        driver.start();
+        mBus.advanceMillis(1);
+
+        long transactions = sim.getTransactionCount();
+        driver.setDriveMode(CCS811.MEAS_DRIVE_MODE_1);
+        driver.setDriveMode(CCS811.MEAS_DRIVE_MODE_4);
+        assertEquals(3, sim.getTransactionCount() - transactions);
+        assertEquals(CCS811.MEAS_DRIVE_MODE_4, sim.peek(0x01) & 0x70);
+    }
+}
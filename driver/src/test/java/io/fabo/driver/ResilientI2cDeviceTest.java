@@ -0,0 +1,149 @@
+package io.fabo.driver;
+
+import com.google.android.things.pio.I2cDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Retries and the circuit breaker against a simulated chip.
+ */
+public class ResilientI2cDeviceTest {
+
+    private static final long PROBE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private SimAdx345 mSim;
+    private I2cStats mStats;
+    private I2cDevice mInstrumented;
+
+    @Before
+    public void setUp() throws IOException {
+        SimulatedI2cBus bus = new SimulatedI2cBus("resilient-" + System.nanoTime());
+        mSim = bus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        mInstrumented = I2cStats.instrument(bus.getName(), Adx345.I2C_ADDRESS,
+                bus.open(Adx345.I2C_ADDRESS));
+        mStats = I2cStats.get(bus.getName(), Adx345.I2C_ADDRESS);
+    }
+
+    private ResilientI2cDevice protect(ResilientI2cDevice.Probe probe) {
+        return new ResilientI2cDevice(mInstrumented, probe, 2, 1000, 3, PROBE_NANOS, 4 * PROBE_NANOS);
+    }
+
+    private long transactions() {
+        return mStats.newSnapshot().getTransactions();
+    }
+
+    private static void assertUnavailable(I2cDevice device) throws IOException {
+        try {
+            device.readRegByte(0x00);
+            fail();
+        } catch (DeviceUnavailableException expected) {
+        }
+    }
+
+    @Test
+    public void retriesReadsOnly() throws IOException {
+        ResilientI2cDevice device = protect(null);
+        mSim.failNextTransactions(2);
+        assertEquals((byte) 0xE5, device.readRegByte(0x00));
+        assertEquals(2, mStats.newSnapshot().getRetries());
+
+        mSim.failNextTransactions(1);
+        try {
+            device.writeRegByte(0x2D, (byte) 0x08);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(2, mStats.newSnapshot().getRetries());
+        assertFalse(device.isOpen());
+    }
+
+    @Test
+    public void opensAndProbes() throws Exception {
+        final int[] probes = new int[1];
+        final ResilientI2cDevice[] holder = new ResilientI2cDevice[1];
+        ResilientI2cDevice device = protect(new ResilientI2cDevice.Probe() {
+            @Override
+            public boolean probe() {
+                probes[0]++;
+                try {
+                    return holder[0].readRegByte(0x00) == (byte) 0xE5;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        });
+        holder[0] = device;
+
+        mSim.failNextTransactions(Integer.MAX_VALUE);
+        for (int i = 0; i < 3; i++) {
+            try {
+                device.readRegByte(0x00);
+                fail();
+            } catch (IOException e) {
+                assertFalse(e instanceof DeviceUnavailableException);
+            }
+        }
+        assertTrue(device.isOpen());
+
+        // Open: no bus traffic at all.
+        long transactions = transactions();
+        for (int i = 0; i < 100; i++) {
+            assertUnavailable(device);
+        }
+        assertEquals(transactions, transactions());
+        assertEquals(0, probes[0]);
+
+        // The probe fails once, the wait doubles.
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(PROBE_NANOS) + 5);
+        assertUnavailable(device);
+        assertEquals(1, probes[0]);
+        assertEquals(transactions + 1, transactions());
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(PROBE_NANOS) + 5);
+        assertUnavailable(device);
+        assertEquals(1, probes[0]);
+
+        mSim.failNextTransactions(0);
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(PROBE_NANOS) + 5);
+        assertEquals((byte) 0xE5, device.readRegByte(0x00));
+        assertEquals(2, probes[0]);
+        assertFalse(device.isOpen());
+    }
+
+    @Test
+    public void trialTransactionWithoutProbe() throws Exception {
+        ResilientI2cDevice device = protect(null);
+        mSim.failNextTransactions(9);
+        for (int i = 0; i < 3; i++) {
+            try {
+                device.readRegByte(0x00);
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+        assertTrue(device.isOpen());
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(PROBE_NANOS) + 5);
+        assertEquals((byte) 0xE5, device.readRegByte(0x00));
+        assertFalse(device.isOpen());
+    }
+
+    @Test
+    public void chipsUseWhoAmIAsProbe() throws Exception {
+        Adx345 adx345 = new Adx345(mInstrumented);
+        mSim.failNextTransactions(9);
+        for (int i = 0; i < 3; i++) {
+            assertFalse(adx345.whoAmI());
+        }
+        long transactions = transactions();
+        assertFalse(adx345.whoAmI());
+        assertEquals(transactions, transactions());
+    }
+}
@@ -0,0 +1,187 @@
+package io.fabo.driver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Block compression of samples and compaction of sample logs.
+ */
+public class SampleBlockCodecTest {
+
+    /** Room for 10 one-channel records per segment. */
+    private static final int SEGMENT_BYTES = SampleSegment.HEADER_SIZE + 10 * SampleSegment.recordSize(1);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static class Samples implements SampleLog.Visitor {
+        final List<Long> mTimestamps = new ArrayList<>();
+        final List<float[]> mValues = new ArrayList<>();
+
+        @Override
+        public boolean visit(long timestamp, float[] values) {
+            mTimestamps.add(timestamp);
+            mValues.add(values.clone());
+            return true;
+        }
+    }
+
+    private static byte[] encode(SampleBlockEncoder encoder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeTo(out);
+        assertEquals(encoder.getBlockSize(), out.size());
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTripsExactly() throws IOException {
+        float[][] values = {
+                {0f, -0f, 1f},
+                {Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY},
+                {Float.MIN_VALUE, Float.MAX_VALUE, -1e-30f},
+                {Float.MIN_VALUE, Float.MAX_VALUE, -1e-30f},
+                {3.25f, 3.5f, 1e30f},
+                {3.25f, 3.75f, 1e30f},
+        };
+        // Steady, then each timestamp bucket, a 64 bit one and repeated timestamps.
+        long[] deltas = {0, 5, 5, 68, 4, 260, 4, 2052, 4, 3000000000L, 4, 1L << 40, 0, 0};
+        SampleBlockEncoder encoder = new SampleBlockEncoder(3, 100, 1);
+        long[] timestamps = new long[deltas.length];
+        long timestamp = -123456789L;
+        for (int i = 0; i < deltas.length; i++) {
+            timestamp += deltas[i];
+            timestamps[i] = timestamp;
+            encoder.append(timestamp, values[i % values.length], 0);
+        }
+        byte[] block = encode(encoder);
+        assertEquals(deltas.length, SampleBlockDecoder.getCount(block, 0));
+        assertEquals(3, SampleBlockDecoder.getChannels(block, 0));
+        assertEquals(timestamps[0], SampleBlockDecoder.getFirstTimestamp(block, 0));
+        assertEquals(timestamp, SampleBlockDecoder.getLastTimestamp(block, 0));
+
+        Samples samples = new Samples();
+        assertEquals(deltas.length, new SampleBlockDecoder().decode(block, 0, samples));
+        for (int i = 0; i < deltas.length; i++) {
+            assertEquals(timestamps[i], (long) samples.mTimestamps.get(i));
+            float[] expected = values[i % values.length];
+            for (int c = 0; c < 3; c++) {
+                assertEquals(Float.floatToRawIntBits(expected[c]), Float.floatToRawIntBits(samples.mValues.get(i)[c]));
+            }
+        }
+    }
+
+    @Test
+    public void decodesBlocksIndependently() throws IOException {
+        SampleBlockEncoder encoder = new SampleBlockEncoder(1, 4, 1000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 8; i++) {
+            encoder.append(1000000L * i + 999, new float[]{i}, 0);
+            if (encoder.isFull()) {
+                encoder.writeTo(out);
+                encoder.reset();
+            }
+        }
+        byte[] blocks = out.toByteArray();
+        int second = SampleBlockEncoder.HEADER_SIZE + SampleBlockDecoder.getPayloadSize(blocks, 0);
+
+        Samples samples = new Samples();
+        assertEquals(4, new SampleBlockDecoder().decode(blocks, second, samples));
+        // Timestamps are kept to the resolution.
+        assertEquals(Long.valueOf(4000000L), samples.mTimestamps.get(0));
+        assertEquals(7f, samples.mValues.get(3)[0], 0f);
+    }
+
+    @Test
+    public void compressesSlowSensorTenfold() throws IOException {
+        // A CO2 sensor read every second: integer ppm drifting, sub-millisecond jitter.
+        Random random = new Random(1);
+        SampleBlockEncoder encoder = new SampleBlockEncoder(1, 1024, 1000000);
+        float ppm = 450;
+        for (int i = 0; i < 1024; i++) {
+            if (random.nextInt(5) == 0) {
+                ppm += random.nextBoolean() ? 1 : -1;
+            }
+            encoder.append(1000000000L * i + random.nextInt(500000), new float[]{ppm}, 0);
+        }
+        int raw = 1024 * SampleSegment.recordSize(1);
+        assertTrue("ratio " + (float) raw / encoder.getBlockSize(), encoder.getBlockSize() * 10 < raw);
+    }
+
+    @Test
+    public void readsAcrossCompactedSegments() throws IOException {
+        SampleLog log = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        float[] value = new float[1];
+        for (int i = 0; i < 35; i++) {
+            value[0] = i;
+            log.append(1000L * i, value, 0);
+        }
+        // Full segments are compacted once flushed, never the one appended to.
+        assertEquals(0, log.compact(1));
+        log.flush();
+        assertEquals(3, log.compact(1));
+        File directory = log.getDirectory();
+        assertFalse(new File(directory, SampleSegment.name(0)).exists());
+        assertTrue(new File(directory, SampleBlockFile.name(20)).exists());
+        assertTrue(new File(directory, SampleSegment.name(30)).exists());
+
+        Samples samples = new Samples();
+        assertEquals(15, log.read(8000, 23000, samples));
+        assertEquals(Long.valueOf(8000), samples.mTimestamps.get(0));
+        assertEquals(22f, samples.mValues.get(14)[0], 0f);
+        assertEquals(35, log.size());
+        log.close();
+
+        SampleLog reopened = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        assertEquals(35, reopened.size());
+        value[0] = 35;
+        reopened.append(35000, value, 0);
+        samples = new Samples();
+        assertEquals(36, reopened.read(0, Long.MAX_VALUE, samples));
+        for (int i = 0; i < 36; i++) {
+            assertEquals(Long.valueOf(1000L * i), samples.mTimestamps.get(i));
+            assertArrayEquals(new float[]{i}, samples.mValues.get(i), 0f);
+        }
+    }
+
+    @Test
+    public void recoversInterruptedCompaction() throws IOException {
+        SampleLog log = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        float[] value = new float[1];
+        for (int i = 0; i < 15; i++) {
+            value[0] = i;
+            log.append(1000L * i, value, 0);
+        }
+        log.flush();
+        File directory = log.getDirectory();
+        File segment = new File(directory, SampleSegment.name(0));
+        File copy = new File(mFolder.getRoot(), "copy");
+        Files.copy(segment.toPath(), copy.toPath());
+        assertEquals(1, log.compact(1));
+        log.close();
+        // Crash after the rename, before the segment was deleted, and during the next compaction.
+        Files.copy(copy.toPath(), segment.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        File temporary = new File(directory, SampleBlockFile.name(10) + SampleBlockFile.TEMPORARY_SUFFIX);
+        assertTrue(temporary.createNewFile());
+
+        SampleLog reopened = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        assertFalse(segment.exists());
+        assertFalse(temporary.exists());
+        assertEquals(15, reopened.size());
+        assertEquals(15, reopened.read(0, Long.MAX_VALUE, new Samples()));
+    }
+}
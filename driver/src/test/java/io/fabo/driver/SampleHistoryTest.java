@@ -0,0 +1,157 @@
+package io.fabo.driver;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * History ring buffer, single threaded and with concurrent readers.
+ */
+public class SampleHistoryTest {
+
+    private static void append(SampleHistory history, int from, int to) {
+        float[] values = new float[2];
+        for (int i = from; i < to; i++) {
+            values[0] = i;
+            values[1] = -i;
+            history.append(i * 1000L, values, 0);
+        }
+    }
+
+    @Test
+    public void snapshotKeepsNewestAfterWrap() {
+        SampleHistory history = new SampleHistory(2, 8);
+        append(history, 0, 20);
+        SampleHistory.Snapshot snapshot = history.newSnapshot();
+        history.snapshot(snapshot);
+        assertEquals(8, snapshot.size());
+        assertEquals(12, snapshot.getFirstSequence());
+        for (int i = 0; i < 8; i++) {
+            assertEquals((12 + i) * 1000L, snapshot.getTimestamp(i));
+            assertEquals(12f + i, snapshot.getValue(i, 0), 0f);
+            assertEquals(-12f - i, snapshot.getValue(i, 1), 0f);
+        }
+
+        SampleHistory.Snapshot small = new SampleHistory.Snapshot(2, 3);
+        history.snapshot(small);
+        assertEquals(3, small.size());
+        assertEquals(17, small.getFirstSequence());
+        assertEquals(20, small.getNextSequence());
+    }
+
+    @Test
+    public void copySinceFollowsAppends() {
+        SampleHistory history = new SampleHistory(2, 8);
+        SampleHistory.Snapshot snapshot = new SampleHistory.Snapshot(2, 4);
+        append(history, 0, 6);
+        history.copySince(0, snapshot);
+        assertEquals(4, snapshot.size());
+        assertEquals(0f, snapshot.getValue(0, 0), 0f);
+
+        history.copySince(snapshot.getNextSequence(), snapshot);
+        assertEquals(2, snapshot.size());
+        assertEquals(4f, snapshot.getValue(0, 0), 0f);
+
+        // Samples overwritten since are skipped.
+        long next = snapshot.getNextSequence();
+        append(history, 6, 30);
+        history.copySince(next, snapshot);
+        assertEquals(22, snapshot.getFirstSequence());
+        assertEquals(22f, snapshot.getValue(0, 0), 0f);
+
+        history.copySince(history.getCount(), snapshot);
+        assertEquals(0, snapshot.size());
+    }
+
+    @Test
+    public void copyRangeByTime() {
+        SampleHistory history = new SampleHistory(2, 16);
+        append(history, 0, 40);
+        SampleHistory.Snapshot snapshot = history.newSnapshot();
+        history.copyRange(30500, 35000, snapshot);
+        assertEquals(4, snapshot.size());
+        assertEquals(31000L, snapshot.getTimestamp(0));
+        assertEquals(34f, snapshot.getValue(3, 0), 0f);
+
+        // Older than what is kept.
+        history.copyRange(0, 20000, snapshot);
+        assertEquals(0, snapshot.size());
+    }
+
+    @Test
+    public void readersSeeConsistentSamples() throws Exception {
+        final SampleHistory history = new SampleHistory(2, 64);
+        final int samples = 200000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SampleHistory.Snapshot snapshot = history.newSnapshot();
+                    long next = 0;
+                    while (next < samples && failure.get() == null) {
+                        history.copySince(next, snapshot);
+                        for (int i = 0; i < snapshot.size(); i++) {
+                            long sequence = snapshot.getFirstSequence() + i;
+                            if (snapshot.getTimestamp(i) != sequence * 1000L
+                                    || snapshot.getValue(i, 0) != sequence
+                                    || snapshot.getValue(i, 1) != -sequence) {
+                                failure.set("torn sample " + sequence);
+                            }
+                        }
+                        if (snapshot.getFirstSequence() < next) {
+                            failure.set("went back to " + snapshot.getFirstSequence());
+                        }
+                        next = snapshot.getNextSequence();
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        append(history, 0, samples);
+        for (Thread reader : readers) {
+            reader.join(10000);
+        }
+        assertEquals(null, failure.get());
+        assertEquals(samples, history.getCount());
+    }
+
+    @Test
+    public void driverRecordsSamples() throws Exception {
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        bus.setManualClock(true);
+        SimADC121 sim = bus.attach(ADC121.I2C_ADDRESS, new SimADC121());
+        sim.setInput(1234);
+        PolledSensorDriver driver = ADC121AnalogDriver.driver(
+                new ADC121(bus.open(ADC121.I2C_ADDRESS)), null);
+        SampleHistory history = new SampleHistory(1, 4);
+        driver.mSensor.setHistory(history);
+        driver.setEnabled(true);
+        for (int i = 0; i < 6; i++) {
+            bus.advanceNanos(sim.getCycleNanos());
+            try {
+                driver.read();
+            } catch (IOException e) {
+                // The first read brings the chip up.
+            }
+        }
+        assertTrue(history.getCount() > 0);
+        SampleHistory.Snapshot snapshot = history.newSnapshot();
+        history.snapshot(snapshot);
+        assertEquals(1234f, snapshot.getValue(snapshot.size() - 1, 0), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void channelMismatchRejected() throws Exception {
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        bus.attach(ADC121.I2C_ADDRESS, new SimADC121());
+        PolledSensorDriver driver = ADC121AnalogDriver.driver(
+                new ADC121(bus.open(ADC121.I2C_ADDRESS)), null);
+        driver.mSensor.setHistory(new SampleHistory(3, 4));
+    }
+}
@@ -0,0 +1,138 @@
+package io.fabo.driver;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queries over compressed and raw segments, skipping blocks by zone map.
+ */
+public class SampleQueryTest {
+
+    private static final long SECOND = 1000000000L;
+    /** Four blocks of 1024 one-channel samples per segment. */
+    private static final int SEGMENT_BYTES = SampleSegment.HEADER_SIZE + 4096 * SampleSegment.recordSize(1);
+    /** Three compressed segments, 12 blocks, and a raw one. */
+    private static final int SAMPLES = 3 * 4096 + 500;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SampleLog mLog;
+    private float[] mValues = new float[SAMPLES];
+
+    @Before
+    public void setUp() throws IOException {
+        mLog = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("co2", 1);
+        Random random = new Random(1);
+        float ppm = 600;
+        float[] value = new float[1];
+        for (int i = 0; i < SAMPLES; i++) {
+            ppm = Math.max(400, Math.min(900, ppm + random.nextInt(3) - 1));
+            // Window opened late, then someone breathing on the sensor.
+            value[0] = i >= 5000 && i < 5010 ? 1500 : i >= SAMPLES - 20 ? 1200 : ppm;
+            mValues[i] = value[0];
+            mLog.append(i * SECOND, value, 0);
+        }
+        mLog.flush();
+        assertEquals(3, mLog.compact(SECOND));
+    }
+
+    @Test
+    public void filtersByValue() throws IOException {
+        SampleQuery query = new SampleQuery(mLog, 0, Long.MAX_VALUE);
+        query.where(0, 1000, Float.POSITIVE_INFINITY);
+        final long[] first = {-1};
+        long matched = query.run(new SampleLog.Visitor() {
+            @Override
+            public boolean visit(long timestamp, float[] values) {
+                if (first[0] < 0) {
+                    first[0] = timestamp;
+                }
+                assertTrue(values[0] > 1000);
+                return true;
+            }
+        });
+        assertEquals(30, matched);
+        assertEquals(5000 * SECOND, first[0]);
+        // Only the block with the spike is decoded.
+        assertEquals(1, query.getBlocksRead());
+        assertEquals(11, query.getBlocksSkipped());
+    }
+
+    @Test
+    public void stopsWithTheVisitor() throws IOException {
+        SampleQuery query = new SampleQuery(mLog, 6000 * SECOND, Long.MAX_VALUE);
+        query.where(0, 1000, Float.POSITIVE_INFINITY);
+        final long[] first = new long[1];
+        long matched = query.run(new SampleLog.Visitor() {
+            @Override
+            public boolean visit(long timestamp, float[] values) {
+                first[0] = timestamp;
+                return false;
+            }
+        });
+        assertEquals(1, matched);
+        assertEquals((SAMPLES - 20) * SECOND, first[0]);
+        assertEquals(0, query.getBlocksRead());
+    }
+
+    @Test
+    public void tightensPredicate() throws IOException {
+        long from = 1000 * SECOND;
+        long to = 4000 * SECOND;
+        final float[] best = {Float.NEGATIVE_INFINITY};
+        final long[] at = new long[1];
+        SampleQuery query = new SampleQuery(mLog, from, to);
+        query.where(0, 0, 1000);
+        query.setPredicate(new SampleQuery.Predicate() {
+            @Override
+            public boolean mayMatch(float[] min, float[] max) {
+                return max[0] > best[0];
+            }
+
+            @Override
+            public boolean matches(long timestamp, float[] values) {
+                return values[0] > best[0];
+            }
+        });
+        query.run(new SampleLog.Visitor() {
+            @Override
+            public boolean visit(long timestamp, float[] values) {
+                best[0] = values[0];
+                at[0] = timestamp;
+                return true;
+            }
+        });
+        float max = Float.NEGATIVE_INFINITY;
+        long expected = 0;
+        for (int i = 1000; i < 4000; i++) {
+            if (mValues[i] > max) {
+                max = mValues[i];
+                expected = i * SECOND;
+            }
+        }
+        assertEquals(max, best[0], 0f);
+        assertEquals(expected, at[0]);
+        assertEquals(4, query.getBlocksRead() + query.getBlocksSkipped());
+    }
+
+    @Test
+    public void skipsBlocksByTime() throws IOException {
+        SampleQuery query = new SampleQuery(mLog, 0, 100 * SECOND);
+        assertEquals(100, query.run(new SampleLog.Visitor() {
+            @Override
+            public boolean visit(long timestamp, float[] values) {
+                return true;
+            }
+        }));
+        assertEquals(1, query.getBlocksRead());
+    }
+}
@@ -0,0 +1,144 @@
+package io.fabo.driver;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Aggregates per second, minute and hour, and summaries of time ranges.
+ */
+public class SampleRollupTest {
+
+    private static final long SECOND = 1000000000L;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+
+    /** Samples every 250ms for three hours, value = minute index, second channel noise. */
+    private static final int SAMPLES = 3 * 60 * 60 * 4;
+
+    private static long time(int i) {
+        return i * (SECOND / 4);
+    }
+
+    private static float[] sample(int i, Random random) {
+        return new float[]{i / 240, random.nextFloat()};
+    }
+
+    @Test
+    public void aggregatesEachLevel() {
+        SampleRollup rollup = new SampleRollup(2, 120, 240, 24);
+        Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            rollup.append(time(i), sample(i, random), 0);
+        }
+
+        SampleRollup.Buckets seconds = rollup.newBuckets(SampleRollup.LEVEL_SECOND);
+        rollup.copy(SampleRollup.LEVEL_SECOND, 0, Long.MAX_VALUE, seconds);
+        // Only the last two minutes are kept.
+        assertEquals(120, seconds.size());
+        assertEquals(3 * HOUR - 2 * MINUTE, seconds.getStart(0));
+        assertEquals(4, seconds.getCount(0));
+
+        SampleRollup.Buckets minutes = rollup.newBuckets(SampleRollup.LEVEL_MINUTE);
+        rollup.copy(SampleRollup.LEVEL_MINUTE, 10 * MINUTE + 1, 20 * MINUTE, minutes);
+        assertEquals(9, minutes.size());
+        assertEquals(11 * MINUTE, minutes.getStart(0));
+        assertEquals(240, minutes.getCount(0));
+        assertEquals(11f, minutes.getMin(0, 0), 0f);
+        assertEquals(11f, minutes.getMean(0, 0), 0f);
+
+        SampleRollup.Buckets hours = rollup.newBuckets(SampleRollup.LEVEL_HOUR);
+        rollup.copy(SampleRollup.LEVEL_HOUR, 0, Long.MAX_VALUE, hours);
+        assertEquals(3, hours.size());
+        assertEquals(HOUR, hours.getStart(1));
+        assertEquals(60f, hours.getMin(1, 0), 0f);
+        assertEquals(119f, hours.getMax(1, 0), 0f);
+        assertEquals(89.5f, hours.getMean(1, 0), 1e-4f);
+    }
+
+    @Test
+    public void summarizesFromCoarseBuckets() {
+        SampleRollup rollup = new SampleRollup(2, 3 * 60 * 60, 3 * 60, 3);
+        Random random = new Random(2);
+        float[][] samples = new float[SAMPLES][];
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = sample(i, random);
+            rollup.append(time(i), samples[i], 0);
+        }
+        long from = 25 * MINUTE + 7 * SECOND;
+        long to = 2 * HOUR + 3 * MINUTE + 2 * SECOND;
+        SampleRollup.Summary summary = new SampleRollup.Summary(2);
+        rollup.summarize(from, to, summary);
+
+        long count = 0;
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            if (time(i) >= from && time(i) < to) {
+                count++;
+                min = Math.min(min, samples[i][1]);
+                max = Math.max(max, samples[i][1]);
+                sum += samples[i][1];
+            }
+        }
+        assertEquals(count, summary.getCount());
+        assertEquals(min, summary.getMin(1), 0f);
+        assertEquals(max, summary.getMax(1), 0f);
+        assertEquals(sum / count, summary.getMean(1), 1e-5);
+        // 53s, 34min, 1h, 3min, 2s instead of 6475 seconds.
+        assertEquals(53 + 34 + 1 + 3 + 2, summary.getBuckets());
+    }
+
+    @Test
+    public void summarizesWhatIsKept() {
+        SampleRollup rollup = new SampleRollup(2, 60, 60, 2);
+        Random random = new Random(3);
+        for (int i = 0; i < SAMPLES; i++) {
+            rollup.append(time(i), sample(i, random), 0);
+        }
+        SampleRollup.Summary summary = new SampleRollup.Summary(2);
+        rollup.summarize(Long.MIN_VALUE, Long.MAX_VALUE, summary);
+        // The first hour is gone.
+        assertEquals(SAMPLES - 60 * 60 * 4, summary.getCount());
+        assertEquals(60f, summary.getMin(0), 0f);
+        assertEquals(179f, summary.getMax(0), 0f);
+
+        // Seconds and minutes of the second hour are gone, its partly covered minute is left out.
+        rollup.summarize(HOUR + 30 * MINUTE + 30 * SECOND, Long.MAX_VALUE, summary);
+        assertEquals(60 * 60 * 4, summary.getCount());
+        assertEquals(120f, summary.getMin(0), 0f);
+
+        rollup.summarize(0, HOUR, summary);
+        assertEquals(0, summary.getCount());
+        assertTrue(Float.isNaN(summary.getMean(0)));
+    }
+
+    @Test
+    public void leavesOutSamplesWithNaN() {
+        SampleRollup rollup = new SampleRollup(2, 10, 10, 10);
+        rollup.append(SECOND, new float[]{1, 2}, 0);
+        rollup.append(SECOND + 1, new float[]{Float.NaN, 4}, 0);
+        rollup.append(SECOND + 2, new float[]{3, 6}, 0);
+        SampleRollup.Summary summary = new SampleRollup.Summary(2);
+        rollup.summarize(0, Long.MAX_VALUE, summary);
+        assertEquals(2, summary.getCount());
+        assertEquals(2f, summary.getMean(0), 0f);
+        assertEquals(4f, summary.getMean(1), 0f);
+    }
+
+    @Test
+    public void timestampsNeverDecrease() {
+        SampleRollup rollup = new SampleRollup(1, 10, 10, 10);
+        rollup.append(2 * SECOND, new float[]{1}, 0);
+        rollup.append(SECOND, new float[]{3}, 0);
+        SampleRollup.Buckets seconds = rollup.newBuckets(SampleRollup.LEVEL_SECOND);
+        rollup.copy(SampleRollup.LEVEL_SECOND, 0, Long.MAX_VALUE, seconds);
+        assertEquals(1, seconds.size());
+        assertEquals(2 * SECOND, seconds.getStart(0));
+        assertEquals(2f, seconds.getMean(0, 0), 0f);
+    }
+}
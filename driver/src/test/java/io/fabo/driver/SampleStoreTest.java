@@ -0,0 +1,149 @@
+package io.fabo.driver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segment files of the sample store, reading them back and recovering after a crash.
+ */
+public class SampleStoreTest {
+
+    /** Room for 10 one-channel records per segment. */
+    private static final int SEGMENT_BYTES = SampleSegment.HEADER_SIZE + 10 * SampleSegment.recordSize(1);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void append(SampleLog log, int from, int to) throws IOException {
+        float[] value = new float[1];
+        for (int i = from; i < to; i++) {
+            value[0] = i;
+            log.append(1000L * i, value, 0);
+        }
+    }
+
+    private static List<Float> read(SampleLog log, long from, long to) throws IOException {
+        final List<Float> values = new ArrayList<>();
+        log.read(from, to, new SampleLog.Visitor() {
+            @Override
+            public boolean visit(long timestamp, float[] sample) {
+                assertEquals(1000L * (long) sample[0], timestamp);
+                values.add(sample[0]);
+                return true;
+            }
+        });
+        return values;
+    }
+
+    private File segment(String name, long base) {
+        return new File(new File(mFolder.getRoot(), name), SampleSegment.name(base));
+    }
+
+    @Test
+    public void readsAcrossSegments() throws IOException {
+        SampleStore store = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES);
+        SampleLog log = store.getLog("adc", 1);
+        append(log, 0, 35);
+        assertEquals(35, log.size());
+        assertTrue(segment("adc", 30).exists());
+
+        List<Float> values = read(log, 8000, 23000);
+        assertEquals(15, values.size());
+        assertEquals(8f, values.get(0), 0f);
+        assertEquals(22f, values.get(14), 0f);
+
+        final int[] visited = new int[1];
+        log.read(0, Long.MAX_VALUE, new SampleLog.Visitor() {
+            @Override
+            public boolean visit(long timestamp, float[] sample) {
+                return ++visited[0] < 3;
+            }
+        });
+        assertEquals(3, visited[0]);
+        store.close();
+
+        SampleLog reopened = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        assertEquals(35, reopened.size());
+        assertEquals(35, read(reopened, 0, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void recoversSamplesNotFlushed() throws IOException {
+        SampleLog log = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        append(log, 0, 5);
+        log.flush();
+        append(log, 5, 8);
+        // Crash: the mapped records reached the file, the header count did not.
+
+        SampleLog recovered = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        assertEquals(8, recovered.size());
+        assertEquals(8, read(recovered, 0, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void dropsTornTail() throws IOException {
+        SampleLog log = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        append(log, 0, 5);
+        log.flush();
+        append(log, 5, 8);
+        // Record 6 only partly written back.
+        RandomAccessFile raf = new RandomAccessFile(segment("adc", 0), "rw");
+        raf.seek(SampleSegment.HEADER_SIZE + 6 * SampleSegment.recordSize(1) + 8);
+        raf.writeInt(0x12345678);
+        raf.close();
+
+        SampleLog recovered = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        assertEquals(6, recovered.size());
+        append(recovered, 6, 7);
+        recovered.close();
+
+        SampleLog reopened = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        assertEquals(7, reopened.size());
+        List<Float> values = read(reopened, 0, Long.MAX_VALUE);
+        assertEquals(7, values.size());
+        assertEquals(6f, values.get(6), 0f);
+    }
+
+    @Test
+    public void rebuildsLostHeader() throws IOException {
+        SampleLog log = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        append(log, 0, 15);
+        log.close();
+        RandomAccessFile raf = new RandomAccessFile(segment("adc", 10), "rw");
+        raf.write(new byte[SampleSegment.HEADER_SIZE]);
+        raf.close();
+
+        SampleLog recovered = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        assertEquals(15, recovered.size());
+        assertEquals(3, read(recovered, 11000, 14000).size());
+    }
+
+    @Test
+    public void timestampsNeverDecrease() throws IOException {
+        SampleLog log = new SampleStore(mFolder.getRoot(), SEGMENT_BYTES).getLog("adc", 1);
+        log.append(2000, new float[]{1}, 0);
+        log.append(1000, new float[]{2}, 0);
+        final List<Long> timestamps = new ArrayList<>();
+        log.read(0, Long.MAX_VALUE, new SampleLog.Visitor() {
+            @Override
+            public boolean visit(long timestamp, float[] sample) {
+                timestamps.add(timestamp);
+                return true;
+            }
+        });
+        assertEquals(2, timestamps.size());
+        assertEquals(2000L, (long) timestamps.get(1));
+        assertFalse(log.timestamp(System.nanoTime()) < System.currentTimeMillis() * 1000000L - 1000000000L);
+    }
+}
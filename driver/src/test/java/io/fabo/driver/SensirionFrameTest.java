@@ -0,0 +1,108 @@
+package io.fabo.driver;
+
+import android.hardware.SensorManager;
+
+import com.google.android.things.userdriver.sensor.UserSensorReading;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sensirion CRC and frame decoding.
+ */
+public class SensirionFrameTest {
+
+    @Test
+    public void crcMatchesDatasheet() {
+        assertEquals((byte) 0x92, SensirionFrame.crc(new byte[]{(byte) 0xBE, (byte) 0xEF}, 0, 2));
+        for (int msb = 0; msb < 256; msb += 7) {
+            for (int lsb = 0; lsb < 256; lsb += 13) {
+                assertEquals(SimSPS30.crc(msb, lsb),
+                        SensirionFrame.crc(new byte[]{(byte) msb, (byte) lsb}, 0, 2));
+            }
+        }
+    }
+
+    @Test
+    public void decodeFrame() {
+        byte[] frame = new byte[4 * SensirionFrame.WORD_SIZE];
+        int bits = Float.floatToIntBits(12.5f);
+        SensirionFrame.putWord(frame, 0, bits >>> 16);
+        SensirionFrame.putWord(frame, 3, bits & 0xffff);
+        SensirionFrame.putWord(frame, 6, 0x4142);
+        SensirionFrame.putWord(frame, 9, 0x4300);
+
+        assertEquals(0, SensirionFrame.check(frame, 4));
+        assertEquals(12.5f, SensirionFrame.getFloat(frame, 0), 0f);
+        assertEquals(0x4142, SensirionFrame.getWord(frame, 2));
+        byte[] data = new byte[8];
+        SensirionFrame.strip(frame, 4, data, 0);
+        assertArrayEquals(new byte[]{0x41, 0x42, 0x43, 0x00}, Arrays.copyOfRange(data, 4, 8));
+
+        frame[7] ^= 0x10;
+        assertFalse(SensirionFrame.checkWord(frame, 6));
+        assertTrue(SensirionFrame.checkWord(frame, 9));
+        assertEquals(0b0100, SensirionFrame.check(frame, 4));
+    }
+
+    @Test
+    public void sps30FlagsCrcFailures() throws IOException {
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        bus.setManualClock(true);
+        SimSPS30 sim = bus.attach(SPS30.I2C_ADDRESS, new SimSPS30());
+        SPS30 driver = new SPS30(bus.open(SPS30.I2C_ADDRESS));
+        driver.start();
+        sim.setValues(1f, 2f, 3f, 4f);
+        bus.advanceMillis(1000);
+
+        float[] out = new float[SPS30.NUM_VALUES];
+        sim.corruptNextRead(10);
+        assertEquals(0b0010, driver.readInto(out, 0));
+        assertTrue(Float.isNaN(out[1]));
+        assertEquals(3f, out[2], 0f);
+        sim.corruptNextRead(57);
+        assertEquals(1 << SPS30.TYPICAL_PARTICLE_SIZE, driver.readInto(out, 0));
+        assertTrue(Float.isNaN(out[SPS30.TYPICAL_PARTICLE_SIZE]));
+        assertEquals(0, driver.readInto(out, 0));
+        assertArrayEquals(new float[]{1f, 2f, 3f, 4f, 0, 0, 0, 0, 0, 0}, out, 0f);
+    }
+
+    @Test
+    public void sps30DriverPublishesFlaggedFrame() throws IOException {
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        bus.setManualClock(true);
+        SimSPS30 sim = bus.attach(SPS30.I2C_ADDRESS, new SimSPS30());
+        SPS30 sps30 = new SPS30(bus.open(SPS30.I2C_ADDRESS));
+        PolledSensorDriver driver = SPS30PMDriver.driver(sps30, null);
+        sps30.start();
+        sim.setValues(1f, 2f, 3f, 4f);
+        bus.advanceMillis(1000);
+
+        sim.corruptNextRead(10);
+        UserSensorReading reading = driver.read();
+        assertEquals(SensorManager.SENSOR_STATUS_UNRELIABLE, reading.accuracy);
+        assertTrue(Float.isNaN(reading.values[1]));
+        assertEquals(3f, reading.values[2], 0f);
+
+        bus.advanceMillis(1000);
+        reading = driver.read();
+        assertEquals(SensorManager.SENSOR_STATUS_ACCURACY_HIGH, reading.accuracy);
+        assertEquals(2f, reading.values[1], 0f);
+    }
+
+    @Test
+    public void sps30Serial() throws IOException {
+        SimulatedI2cBus bus = new SimulatedI2cBus("I2C1");
+        SimSPS30 sim = bus.attach(SPS30.I2C_ADDRESS, new SimSPS30());
+        sim.setSerial("ABCDEFG");
+        SPS30 driver = new SPS30(bus.open(SPS30.I2C_ADDRESS));
+        assertEquals("ABCDEFG", driver.rawToString(driver.readCommand(0xD033, 48)));
+    }
+}
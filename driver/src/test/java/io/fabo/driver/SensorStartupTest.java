@@ -0,0 +1,160 @@
+package io.fabo.driver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parallel startup against the simulated bus on the real clock.
+ */
+public class SensorStartupTest {
+
+    private SimulatedI2cBus mBus;
+    private I2cBusScheduler mScheduler;
+    private SensorStartup mStartup;
+    private final List<String> mReady = new ArrayList<>();
+    private final List<String> mFailed = new ArrayList<>();
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+    private long mElapsed;
+
+    private final SensorStartup.Callback mCallback = new SensorStartup.Callback() {
+        @Override
+        public void onSensorReady(String name, long timeToFirstSampleNanos) {
+            mReady.add(name);
+        }
+
+        @Override
+        public void onSensorFailed(String name) {
+            mFailed.add(name);
+        }
+
+        @Override
+        public void onStartupFinished(long elapsedNanos) {
+            mElapsed = elapsedNanos;
+            mFinished.countDown();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mBus = new SimulatedI2cBus("I2C1");
+        mScheduler = new I2cBusScheduler("I2C1");
+        mStartup = new SensorStartup(mScheduler);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.close();
+    }
+
+    private PolledSensorDriver failing() {
+        final PolledSensor sensor = new PolledSensor(mScheduler, 1, new PolledSensor.Sampler() {
+            @Override
+            public boolean sample(float[] values) {
+                return true;
+            }
+        });
+        return new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) {
+                sensor.start(new BringUp("missing", 1, TimeUnit.SECONDS) {
+                    @Override
+                    protected long step(int state) throws IOException {
+                        return FAILED;
+                    }
+                }, 10, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    @Test
+    public void sequencesOverlap() throws Exception {
+        mBus.attach(SPS30.I2C_ADDRESS, new SimSPS30());
+        mBus.attach(CCS811.I2C_ADDRESS, new SimCCS811());
+        mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        SPS30 sps30 = new SPS30(mScheduler.attach(mBus.open(SPS30.I2C_ADDRESS)));
+        CCS811 ccs811 = new CCS811(mScheduler.attach(mBus.open(CCS811.I2C_ADDRESS)));
+        Adx345 adx345 = new Adx345(mScheduler.attach(mBus.open(Adx345.I2C_ADDRESS)));
+        mStartup.add("sps30", SPS30PMDriver.driver(sps30, mScheduler), new String[0]);
+        mStartup.add("ccs811", CCS811Co2Driver.driver(ccs811, mScheduler), new String[0]);
+        mStartup.add("adx345", Adx345AccelerometerDriver.driver(adx345, mScheduler), new String[]{"ccs811"});
+
+        mStartup.start(mCallback);
+        assertTrue(mFinished.await(5, TimeUnit.SECONDS));
+        assertEquals(3, mReady.size());
+        assertEquals(0, mFailed.size());
+
+        long sps30Time = mStartup.getTimeToFirstSampleNanos("sps30");
+        long ccs811Time = mStartup.getTimeToFirstSampleNanos("ccs811");
+        long adx345Time = mStartup.getTimeToFirstSampleNanos("adx345");
+        // SPS30: 100ms reset and a 1s first measurement; CCS811: 1s drive mode 1.
+        assertTrue("sps30 " + sps30Time, sps30Time >= TimeUnit.MILLISECONDS.toNanos(1100));
+        assertTrue("ccs811 " + ccs811Time, ccs811Time >= TimeUnit.SECONDS.toNanos(1));
+        assertTrue("adx345 " + adx345Time, adx345Time > ccs811Time);
+        // Run one after another the SPS30 and CCS811 alone take over 2.1s.
+        assertTrue("elapsed " + mElapsed, mElapsed < TimeUnit.MILLISECONDS.toNanos(1800));
+    }
+
+    @Test
+    public void failurePropagatesToDependents() throws Exception {
+        mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        Adx345 adx345 = new Adx345(mScheduler.attach(mBus.open(Adx345.I2C_ADDRESS)));
+        mStartup.add("missing", failing(), new String[0]);
+        mStartup.add("adx345", Adx345AccelerometerDriver.driver(adx345, mScheduler), new String[]{"missing"});
+
+        mStartup.start(mCallback);
+        assertTrue(mFinished.await(2, TimeUnit.SECONDS));
+        assertEquals(2, mFailed.size());
+        assertEquals(-1, mStartup.getTimeToFirstSampleNanos("adx345"));
+    }
+
+    @Test
+    public void timeoutStopsPolling() throws Exception {
+        final AtomicInteger samples = new AtomicInteger();
+        final PolledSensor sensor = new PolledSensor(mScheduler, 1, new PolledSensor.Sampler() {
+            @Override
+            public boolean sample(float[] values) {
+                samples.incrementAndGet();
+                return false;
+            }
+        });
+        mStartup.add("silent", new PolledSensorDriver(sensor) {
+            @Override
+            public void setEnabled(boolean enabled) {
+                sensor.start(10, TimeUnit.MILLISECONDS);
+            }
+        }, new String[0]);
+        mStartup.setTimeout(100, TimeUnit.MILLISECONDS);
+
+        mStartup.start(mCallback);
+        assertTrue(mFinished.await(2, TimeUnit.SECONDS));
+        assertEquals(1, mFailed.size());
+        int polled = samples.get();
+        Thread.sleep(100);
+        assertEquals(polled, samples.get());
+    }
+
+    @Test
+    public void nothingToStart() throws Exception {
+        mStartup.start(mCallback);
+        assertTrue(mFinished.await(0, TimeUnit.SECONDS));
+        assertEquals(0, mElapsed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCircularDependencies() {
+        mStartup.add("a", failing(), new String[]{"b"});
+        mStartup.add("b", failing(), new String[]{"a"});
+        mStartup.start(mCallback);
+    }
+}
@@ -0,0 +1,282 @@
+package io.fabo.driver;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the drivers against the simulated bus on the host JVM.
+ */
+public class SimulatedI2cBusTest {
+
+    private SimulatedI2cBus mBus;
+
+    @Before
+    public void setUp() {
+        mBus = new SimulatedI2cBus("I2C1");
+        mBus.setManualClock(true);
+    }
+
+    @Test(expected = IOException.class)
+    public void openMissingDevice() throws IOException {
+        mBus.open(0x77);
+    }
+
+    @Test
+    public void adx345() throws IOException {
+        SimAdx345 sim = mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        Adx345 driver = new Adx345(mBus.open(Adx345.I2C_ADDRESS));
+        assertTrue(driver.whoAmI());
+        driver.setConfigure();
+        driver.powerOn();
+        sim.setAcceleration(100, 50, 25);
+        mBus.advanceMillis(10);
+        assertArrayEquals(new float[]{100, 50, 25}, driver.readSample(), 0f);
+    }
+
+    @Test
+    public void adx345ReadInto() throws IOException {
+        SimAdx345 sim = mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        Adx345 driver = new Adx345(mBus.open(Adx345.I2C_ADDRESS));
+        driver.powerOn();
+        sim.setAcceleration(-200, 130, -1);
+        mBus.advanceMillis(10);
+        float[] out = new float[5];
+        driver.readInto(out, 2);
+        assertArrayEquals(new float[]{0, 0, -200, 130, -1}, out, 0f);
+    }
+
+    @Test
+    public void adc121() throws IOException {
+        SimADC121 sim = mBus.attach(ADC121.I2C_ADDRESS, new SimADC121());
+        ADC121 driver = new ADC121(mBus.open(ADC121.I2C_ADDRESS));
+        driver.setCycleTime(ADC121.INTERVAL_0_4);
+        sim.setInput(2048);
+        mBus.advanceMillis(3);
+        assertEquals(2048f, driver.readAdc(), 0f);
+        // Conversion result MSB first, as on the wire.
+        sim.setInput(0x123);
+        mBus.advanceMillis(3);
+        byte[] raw = new byte[2];
+        mBus.open(ADC121.I2C_ADDRESS).readRegBuffer(0x00, raw, raw.length);
+        assertArrayEquals(new byte[]{0x01, 0x23}, raw);
+        assertEquals(0x123, driver.readAdc(), 0f);
+    }
+
+    @Test
+    public void bh1749() throws IOException {
+        SimBH1749 sim = mBus.attach(0x38, new SimBH1749());
+        BH1749 driver = new BH1749(mBus.open(0x38));
+        driver.reset();
+        assertTrue(driver.whoAmI());
+        driver.setIRGain(BH1749.IR_GAIN_X1);
+        driver.setRGBGain(BH1749.RGB_GAIN_X1);
+        driver.setMeasurement(BH1749.MEAS_120MS);
+        driver.setMeasurementEnable(true);
+        sim.setLight(100, 200, 300, 40, 210);
+
+        assertFalse(driver.readValid());
+        mBus.advanceMillis(120);
+        assertTrue(driver.readValid());
+        assertEquals(100, driver.readRed());
+        assertEquals(200, driver.readGreen());
+        assertEquals(300, driver.readBlue());
+        assertEquals(40, driver.readIR());
+        assertEquals(210, driver.readGreen2());
+        assertFalse(driver.readValid());
+    }
+
+    @Test
+    public void bh1749ReadInto() throws IOException {
+        SimBH1749 sim = mBus.attach(BH1749.I2C_ADDRESS, new SimBH1749());
+        BH1749 driver = new BH1749(mBus.open(BH1749.I2C_ADDRESS));
+        driver.setMeasurement(BH1749.MEAS_35MS);
+        driver.setMeasurementEnable(true);
+        sim.setLight(1000, 65535, 300, 40, 210);
+        float[] out = new float[5];
+
+        assertFalse(driver.readInto(out, 0));
+        mBus.advanceMillis(35);
+        long transactions = sim.getTransactionCount();
+        assertTrue(driver.readInto(out, 0));
+        assertEquals(2, sim.getTransactionCount() - transactions);
+        assertArrayEquals(new float[]{1000, 65535, 300, 40, 210}, out, 0f);
+        assertFalse(driver.readInto(out, 0));
+    }
+
+    @Test
+    public void ccs811() throws IOException {
+        SimCCS811 sim = mBus.attach(CCS811.I2C_ADDRESS, new SimCCS811());
+        CCS811 driver = new CCS811(mBus.open(CCS811.I2C_ADDRESS));
+        driver.reset();
+        mBus.advanceMillis(2);
+        assertTrue(driver.whoAmI());
+        driver.start();
+        mBus.advanceMillis(1);
+        assertFalse(driver.checkError());
+        driver.setDriveMode(CCS811.MEAS_DRIVE_MODE_1);
+        assertTrue(sim.isAppMode());
+
+        sim.setAir(450, 12);
+        assertFalse(driver.checkStatus());
+        mBus.advanceMillis(1000);
+        assertTrue(driver.checkStatus());
+        assertArrayEquals(new float[]{450, 12}, driver.getAlgResultData(), 0f);
+        assertFalse(driver.checkStatus());
+    }
+
+    @Test
+    public void cdm7160() throws IOException {
+        SimCDM7160 sim = mBus.attach(CDM7160.I2C_ADDRESS, new SimCDM7160());
+        CDM7160 driver = new CDM7160(mBus.open(CDM7160.I2C_ADDRESS));
+        driver.reset();
+        driver.setControl(CDM7160.MODE_CONTINUS);
+        sim.setCo2(812);
+        mBus.advanceMillis(2000);
+        assertEquals(812f, driver.readCo2(), 0f);
+    }
+
+    @Test
+    public void isl29034() throws IOException {
+        SimISL29034 sim = mBus.attach(0x44, new SimISL29034());
+        ISL29034 driver = new ISL29034(mBus.open(0x44));
+        assertTrue(driver.whoAmI());
+        driver.setOperation(ISL29034.MODE_ALS_CONTINUS);
+        driver.setRange(ISL29034.RANGE_0);
+        driver.setResolution(ISL29034.RES_16);
+        sim.setLux(500);
+        mBus.advanceMillis(105);
+        long transactions = sim.getTransactionCount();
+        assertEquals(500f, driver.readLux(), 0.1f);
+        assertEquals(1, sim.getTransactionCount() - transactions);
+    }
+
+    @Test
+    public void isl29034OneShot() throws IOException {
+        SimISL29034 sim = mBus.attach(0x44, new SimISL29034());
+        ISL29034 driver = new ISL29034(mBus.open(0x44));
+        driver.setRange(ISL29034.RANGE_0);
+        driver.setResolution(ISL29034.RES_12);
+        sim.setLux(250);
+        long delay = driver.startConversion();
+        assertEquals(6500000L, delay);
+        assertEquals(0f, driver.readLux(), 0f);
+        mBus.advanceNanos(delay);
+        assertEquals(250f, driver.readLux(), 1f);
+        assertEquals(1, sim.getConversionCount());
+        assertEquals(0, sim.peek(0x00) & 0xe0);
+    }
+
+    @Test
+    public void mpl115() throws IOException {
+        SimMPL115 sim = mBus.attach(MPL115.I2C_ADDRESS, new SimMPL115());
+        MPL115 driver = new MPL115(mBus.open(MPL115.I2C_ADDRESS));
+        sim.setCoefficients(0x3ECE, 0x1000, 0x1000, 0x0100);
+        driver.readCoef();
+        sim.setAdc(400, 512);
+        driver.readData();
+        mBus.advanceMillis(2);
+        float[] data = driver.readData();
+        assertEquals(25f, data[1], 0.01f);
+    }
+
+    @Test
+    public void s11059() throws IOException {
+        SimS11059 sim = mBus.attach(0x2A, new SimS11059());
+        S11059 driver = new S11059(mBus.open(0x2A));
+        driver.setControl();
+        sim.setLight(1000, 2000, 3000, 400);
+        mBus.advanceMillis(90);
+        assertArrayEquals(new float[]{1000, 2000, 3000, 400}, driver.readSample(), 0f);
+    }
+
+    @Test
+    public void si1132() throws IOException {
+        SimSi1132 sim = mBus.attach(0x60, new SimSi1132());
+        Si1132 driver = new Si1132(mBus.open(0x60));
+        driver.reset();
+        assertTrue(driver.whoAmI());
+        driver.configuration();
+        driver.start();
+        assertEquals(Si1132.ADC_CLOCK_511, sim.getParameter(0x10));
+        sim.setLight(300, 260, 512);
+        mBus.advanceMillis(8);
+        assertEquals(512, driver.readUV());
+
+        float[] out = new float[3];
+        long transactions = sim.getTransactionCount();
+        driver.readInto(out, 0);
+        assertEquals(1, sim.getTransactionCount() - transactions);
+        assertArrayEquals(new float[]{512, driver.readIR(), driver.readVisible()}, out, 0f);
+    }
+
+    @Test
+    public void sps30() throws IOException {
+        SimSPS30 sim = mBus.attach(SPS30.I2C_ADDRESS, new SimSPS30());
+        SPS30 driver = new SPS30(mBus.open(SPS30.I2C_ADDRESS));
+        assertTrue(driver.checkSerial());
+        driver.reset();
+        mBus.advanceMillis(100);
+        driver.start();
+        assertTrue(sim.isMeasuring());
+        assertEquals(0, sim.getCrcErrors());
+        assertFalse(driver.checkReady());
+        mBus.advanceMillis(1000);
+        assertTrue(driver.checkReady());
+
+        sim.setValues(1.5f, 2.5f, 3.5f, 12.25f, 10.5f, 12f, 12.5f, 12.75f, 13f, 0.625f);
+        float[] out = new float[SPS30.NUM_VALUES];
+        assertEquals(0, driver.readInto(out, 0));
+        assertArrayEquals(new float[]{1.5f, 2.5f, 3.5f, 12.25f, 10.5f, 12f, 12.5f, 12.75f, 13f, 0.625f}, out, 0f);
+        assertEquals(0, sim.getCrcErrors());
+    }
+
+    @Test
+    public void failedTransaction() throws IOException {
+        SimAdx345 sim = mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        Adx345 driver = new Adx345(mBus.open(Adx345.I2C_ADDRESS));
+        // A transient failure is retried, three in a row are reported.
+        sim.failNextTransactions(1);
+        assertTrue(driver.whoAmI());
+        sim.failNextTransactions(3);
+        assertFalse(driver.whoAmI());
+        assertTrue(driver.whoAmI());
+    }
+
+    @Test
+    public void loadThroughput() throws IOException {
+        mBus.setManualClock(false);
+        SimAdx345 adx = mBus.attach(Adx345.I2C_ADDRESS, new SimAdx345());
+        SimS11059 color = mBus.attach(0x2A, new SimS11059());
+        mBus.attach(CCS811.I2C_ADDRESS, new SimCCS811());
+        mBus.attach(ADC121.I2C_ADDRESS, new SimADC121());
+        Adx345 adx345 = new Adx345(mBus.open(Adx345.I2C_ADDRESS));
+        S11059 s11059 = new S11059(mBus.open(0x2A));
+        CCS811 ccs811 = new CCS811(mBus.open(CCS811.I2C_ADDRESS));
+        ADC121 adc121 = new ADC121(mBus.open(ADC121.I2C_ADDRESS));
+        adx345.powerOn();
+        adx.setAcceleration(1, 2, 3);
+        color.setLight(1, 2, 3, 4);
+
+        int reads = 20000;
+        mBus.resetStatistics();
+        long start = System.nanoTime();
+        for (int i = 0; i < reads / 4; i++) {
+            adx345.readSample();
+            s11059.readSample();
+            ccs811.getAlgResultData();
+            adc121.readAdc();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(reads, mBus.getTransactionCount());
+        double perSecond = reads * 1e9 / elapsed;
+        assertTrue("reads/s " + perSecond, perSecond > 1000);
+    }
+}
@@ -0,0 +1,154 @@
+package io.fabo.driver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Multiplexer channels against the simulated TCA9548A.
+ */
+public class TCA9548ATest {
+
+    private SimulatedI2cBus mBus;
+    private SimTCA9548A mSimMux;
+    private I2cBusScheduler mScheduler;
+    private TCA9548A mMux;
+
+    @Before
+    public void setUp() throws IOException {
+        mBus = new SimulatedI2cBus("I2C1");
+        mSimMux = mBus.attach(TCA9548A.I2C_ADDRESS, new SimTCA9548A());
+        mScheduler = new I2cBusScheduler("I2C1");
+        mMux = new TCA9548A(mScheduler, mScheduler.attach(mBus.open(TCA9548A.I2C_ADDRESS)),
+                TCA9548A.I2C_ADDRESS);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.close();
+    }
+
+    private ADC121 adc121(int channel, int input) {
+        SimADC121 sim = mSimMux.attach(channel, ADC121.I2C_ADDRESS, new SimADC121());
+        sim.setInput(input);
+        try {
+            return new ADC121(mMux.getChannel(channel).attach(mSimMux.open(ADC121.I2C_ADDRESS)));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void sameAddressOnTwoChannels() throws IOException {
+        ADC121 first = adc121(0, 1000);
+        ADC121 second = adc121(3, 3000);
+        assertEquals(1000f, first.readAdc(), 0f);
+        assertEquals(3000f, second.readAdc(), 0f);
+        assertEquals(1000f, first.readAdc(), 0f);
+        assertEquals(0, mMux.getSelectedChannel());
+        assertEquals(1, mSimMux.getControl());
+        assertEquals("I2C1/0x70.3", mMux.getChannel(3).getBus());
+    }
+
+    @Test
+    public void switchOnlyWhenChannelChanges() throws IOException {
+        ADC121 first = adc121(0, 1000);
+        ADC121 second = adc121(1, 2000);
+        for (int i = 0; i < 10; i++) {
+            first.readAdc();
+        }
+        assertEquals(1, mSimMux.getControlWrites());
+        second.readAdc();
+        second.readAdc();
+        assertEquals(2, mSimMux.getControlWrites());
+    }
+
+    @Test
+    public void busDevicesSwitchTheMultiplexerOff() throws IOException {
+        ADC121 behind = adc121(2, 1000);
+        SimADC121 sim = mBus.attach(ADC121.I2C_ADDRESS, new SimADC121());
+        sim.setInput(2000);
+        ADC121 root = new ADC121(mScheduler.attach(mBus.open(ADC121.I2C_ADDRESS)));
+        assertEquals(1000f, behind.readAdc(), 0f);
+        assertEquals(4, mSimMux.getControl());
+        assertEquals(2000f, root.readAdc(), 0f);
+        assertEquals(0, mSimMux.getControl());
+        assertEquals(-1, mMux.getSelectedChannel());
+        // Switched off once, not per transaction.
+        long writes = mSimMux.getControlWrites();
+        root.readAdc();
+        assertEquals(writes, mSimMux.getControlWrites());
+        assertEquals(1000f, behind.readAdc(), 0f);
+        assertEquals(writes + 1, mSimMux.getControlWrites());
+    }
+
+    @Test
+    public void selectAfterCloseThrows() throws IOException {
+        mMux.close();
+        try {
+            mMux.select(0);
+            fail("select on a closed multiplexer");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void failedTransactionSelectsAgain() throws IOException {
+        ADC121 first = adc121(0, 1000);
+        first.readAdc();
+        // The multiplexer lost its state, e.g. after a brown-out.
+        mBus.open(TCA9548A.I2C_ADDRESS).write(new byte[]{0}, 1);
+        // The read fails once and is retried after selecting again.
+        assertEquals(1000f, first.readAdc(), 0f);
+        assertEquals(1, mSimMux.getControl());
+    }
+
+    @Test
+    public void dueJobsAreGroupedByChannel() throws Exception {
+        final ADC121[] adcs = {adc121(0, 1000), adc121(1, 2000)};
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mScheduler.scheduleOnce(0, TimeUnit.NANOSECONDS, new I2cBusScheduler.PollTask() {
+            @Override
+            public void poll() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(blocked.await(2, TimeUnit.SECONDS));
+
+        final List<Integer> order = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            final int channel = i % 2;
+            mMux.getChannel(channel).scheduleOnce(0, TimeUnit.NANOSECONDS, new I2cBusScheduler.PollTask() {
+                @Override
+                public void poll() throws IOException {
+                    adcs[channel].readAdc();
+                    order.add(channel);
+                    done.countDown();
+                }
+            });
+        }
+        long writes = mSimMux.getControlWrites();
+        release.countDown();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 0, 1, 1), order);
+        assertEquals(writes + 2, mSimMux.getControlWrites());
+    }
+}